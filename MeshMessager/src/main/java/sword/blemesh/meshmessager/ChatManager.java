@@ -4,12 +4,14 @@ import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.Map;
 
 import sword.blemesh.meshmessager.database.DbManager;
 import sword.blemesh.sdk.app.BleMeshService;
+import sword.blemesh.sdk.app.MeshRouter;
 import sword.blemesh.sdk.mesh_graph.Peer;
 import sword.blemesh.sdk.transport.Transport;
 import timber.log.Timber;
@@ -109,8 +111,17 @@ public class ChatManager implements BleMeshService.Callback, Serializable {
     }
 
     @Override
-    public void onDataSent(@NonNull BleMeshService.ServiceBinder binder, @Nullable byte[] data, @NonNull Peer recipient, @NonNull Peer desc, @Nullable Exception exception) {
-        Timber.d("data send to %s : %s",desc.getAlias(),desc.getMacAddress());
+    public void onFileReceived(@NonNull BleMeshService.ServiceBinder binder, @NonNull File file, @NonNull Date date,
+                               @NonNull String sourceAddress, @NonNull Peer sender, @Nullable Exception exception) {
+        // Chat messages are always small enough to be held in memory
+        Timber.w("Ignoring %d byte file from %s", file.length(), sourceAddress);
+        if (!file.delete()) Timber.w("Failed to delete %s", file.getAbsolutePath());
+    }
+
+    @Override
+    public void onDataSent(@NonNull BleMeshService.ServiceBinder binder, @Nullable byte[] data, @NonNull Peer recipient, @NonNull Peer desc,
+                           @NonNull MeshRouter.DeliveryStatus status, @Nullable Exception exception) {
+        Timber.d("data %s to %s : %s", status, desc.getAlias(), desc.getMacAddress());
     }
 
     @Override
@@ -0,0 +1,81 @@
+package sword.blemesh.benchmarks;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import sword.blemesh.sdk.mesh_graph.LocalGraph;
+import sword.blemesh.sdk.mesh_graph.PeersGraph;
+import sword.blemesh.sdk.session.GraphMessage;
+
+/**
+ * Graph encoding carried by {@link GraphMessage}s and the route computation run on each
+ * graph change, by mesh size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphBenchmark {
+
+    private static final String LOCAL_MAC_ADDRESS = MeshGraphs.macAddress(0);
+
+    @Param({"10", "50", "200"})
+    public int nodes;
+
+    private LocalGraph   graph;
+    private GraphMessage graphMessage;
+    private String       vertexJson;
+    private String       edgeJson;
+
+    @Setup
+    public void setUp() {
+        graph = MeshGraphs.randomMesh(nodes, nodes);
+        graph.calCluateShortestPath();
+        graphMessage = GraphMessage.createOutgoing(null, GraphMessage.ACTION_JOIN, GraphMessage.BROADCAST,
+                graph, LOCAL_MAC_ADDRESS);
+        vertexJson = graph.toVertexJSONObject().toString();
+        edgeJson   = graph.toEdgeJSONOBject().toString();
+    }
+
+    @Benchmark
+    public GraphMessage setPeersGraph() {
+        return GraphMessage.createOutgoing(null, GraphMessage.ACTION_JOIN, GraphMessage.BROADCAST,
+                graph, LOCAL_MAC_ADDRESS);
+    }
+
+    @Benchmark
+    public PeersGraph getPeersGraph() {
+        return graphMessage.getPeersGraph();
+    }
+
+    @Benchmark
+    public String peersGraphToJson() {
+        return graph.toVertexJSONObject().toString() + graph.toEdgeJSONOBject().toString();
+    }
+
+    @Benchmark
+    public PeersGraph peersGraphFromJson() throws JSONException {
+        return new PeersGraph(new JSONObject(vertexJson), new JSONObject(edgeJson));
+    }
+
+    @Benchmark
+    public LocalGraph calculateShortestPath() {
+        graph.calCluateShortestPath();
+        return graph;
+    }
+}
@@ -0,0 +1,52 @@
+package sword.blemesh.benchmarks;
+
+import java.util.Date;
+import java.util.Random;
+
+import sword.blemesh.sdk.mesh_graph.LocalGraph;
+import sword.blemesh.sdk.mesh_graph.LocalPeer;
+import sword.blemesh.sdk.mesh_graph.Peer;
+import sword.blemesh.sdk.mesh_graph.PeersEdge;
+
+/**
+ * Builds reproducible mesh topologies for benchmarks
+ */
+public class MeshGraphs {
+
+    /** Mean number of neighbours of each node in {@link #randomMesh(int, long)} */
+    public static final int MEAN_DEGREE = 4;
+
+    public static String macAddress(int index) {
+        return String.format("02:00:00:%02X:%02X:%02X", (index >> 16) & 0xFF, (index >> 8) & 0xFF, index & 0xFF);
+    }
+
+    /**
+     * A connected graph of size nodes, as seen by node 0. Each node links to a random earlier
+     * node, then random links are added until nodes average {@link #MEAN_DEGREE} neighbours.
+     * Links have rssi spread across the range LocalGraph distinguishes.
+     */
+    public static LocalGraph randomMesh(int size, long seed) {
+        Random random = new Random(seed);
+        LocalGraph graph = new LocalGraph(new LocalPeer("node0", macAddress(0)));
+
+        for (int i = 1; i < size; i++) {
+            graph.insertVertex(new Peer("node" + i, macAddress(i), new Date(), 0, 0));
+            graph.addMatrixRow(macAddress(i));
+            link(graph, i, random.nextInt(i), random);
+        }
+
+        int extraLinks = size * (MEAN_DEGREE / 2) - (size - 1);
+        for (int i = 0; i < extraLinks && size > 2; i++) {
+            int a = random.nextInt(size);
+            int b = random.nextInt(size);
+            if (a != b) link(graph, a, b, random);
+        }
+        return graph;
+    }
+
+    private static void link(LocalGraph graph, int a, int b, Random random) {
+        int rssi = 40 + random.nextInt(55);
+        graph.insertEdge(new PeersEdge(macAddress(a), macAddress(b), rssi));
+        graph.insertEdge(new PeersEdge(macAddress(b), macAddress(a), rssi));
+    }
+}
@@ -0,0 +1,70 @@
+package sword.blemesh.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import sword.blemesh.sdk.simulator.MeshSimulator;
+import sword.blemesh.sdk.transport.ReceiveBatch;
+
+/**
+ * CPU time of a 64 KB message crossing a relay of a simulated 3 node line, so twice received,
+ * with chunks handed to the session layer one at a time or in {@link ReceiveBatch}es gathered
+ * per 7.5 ms connection event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveBatchBenchmark {
+
+    private static final int BODY_BYTES = 64 * 1024;
+
+    @Param({"0", "7500"})
+    public int receiveBatchMicros;
+
+    private MeshSimulator      simulator;
+    private MeshSimulator.Node source;
+    private MeshSimulator.Node destination;
+    private byte[]             body;
+
+    @Setup
+    public void setUp() {
+        simulator = new MeshSimulator(1);
+        simulator.setReceiveBatchMicros(receiveBatchMicros);
+        MeshSimulator.LinkConfig config = new MeshSimulator.LinkConfig().setLatencyMillis(1).setBytesPerSecond(1000 * 1000);
+        source = simulator.addNode("source");
+        MeshSimulator.Node relay = simulator.addNode("relay");
+        destination = simulator.addNode("destination");
+        simulator.connect(source, relay, config);
+        simulator.connect(relay, destination, config);
+        simulator.runUntilIdle();
+        if (!simulator.isConverged()) throw new IllegalStateException("Mesh did not converge");
+
+        body = new byte[BODY_BYTES];
+        new Random(BODY_BYTES).nextBytes(body);
+    }
+
+    @Benchmark
+    public int transfer() {
+        destination.getReceived().clear();
+        destination.getReceivedMicros().clear();
+        source.send(body, destination);
+        simulator.runUntilIdle();
+        if (destination.getReceived().size() != 1) throw new IllegalStateException("Message not delivered");
+        return destination.getReceived().size();
+    }
+}
@@ -0,0 +1,96 @@
+package sword.blemesh.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import sword.blemesh.sdk.mesh_graph.Peer;
+import sword.blemesh.sdk.session.DataTransferMessage;
+import sword.blemesh.sdk.session.SessionMessage;
+import sword.blemesh.sdk.session.SessionMessageDeserializer;
+
+/**
+ * Serialization and deserialization of {@link DataTransferMessage}s in transport sized chunks,
+ * by body size. Bodies stay below {@link SessionMessageDeserializer}'s disk cutoff.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionMessageBenchmark {
+
+    /** Chunk size the session layer writes to BLETransport */
+    private static final int CHUNK_BYTES = 512;
+
+    private static final Peer RECIPIENT = new Peer("bob", MeshGraphs.macAddress(1), new Date(), -1, 0);
+
+    @Param({"0", "512", "16384", "1048576"})
+    public int bodyBytes;
+
+    private DataTransferMessage        message;
+    private byte[]                     serialized;
+    private byte[]                     chunk = new byte[CHUNK_BYTES];
+    private SessionMessageDeserializer deserializer;
+    private int                        completed;
+
+    @Setup
+    public void setUp() {
+        byte[] body = new byte[bodyBytes];
+        new Random(bodyBytes).nextBytes(body);
+        message    = DataTransferMessage.createOutgoing(null, RECIPIENT, MeshGraphs.macAddress(0), body);
+        serialized = message.serialize();
+
+        deserializer = new SessionMessageDeserializer(null,
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        if (e != null) throw new IllegalStateException("Deserialization failed", e);
+                        completed++;
+                    }
+                });
+    }
+
+    /** Whole message into a new array */
+    @Benchmark
+    public byte[] serialize() {
+        return message.serialize();
+    }
+
+    /** Message chunk by chunk into a reused buffer, as the session layer sends it */
+    @Benchmark
+    public int serializeChunks() {
+        int offset = 0;
+        int bytesWritten;
+        while ((bytesWritten = message.serialize(offset, chunk, 0, CHUNK_BYTES)) > 0)
+            offset += bytesWritten;
+        return offset;
+    }
+
+    /** Message chunk by chunk, as transports deliver it */
+    @Benchmark
+    public int dataReceived() {
+        for (int offset = 0; offset < serialized.length; offset += CHUNK_BYTES)
+            deserializer.dataReceived(serialized, offset, Math.min(CHUNK_BYTES, serialized.length - offset));
+        return completed;
+    }
+}
@@ -0,0 +1,78 @@
+package sword.blemesh.sdk.mesh_graph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import sword.blemesh.benchmarks.MeshGraphs;
+
+/**
+ * {@link RoutingEngine} against the {@link LegacyShortestPath} it replaced, and repair of
+ * a single link change against full computation, by mesh size. In the sdk's package to reach both.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShortestPathBenchmark {
+
+    @Param({"50", "200", "1000"})
+    public int nodes;
+
+    private LocalGraph    graph;
+    private RoutingEngine engine;
+    private String        localAddress;
+    private String[][]    links;
+    private int           changes;
+
+    @Setup
+    public void setUp() {
+        graph        = MeshGraphs.randomMesh(nodes, nodes);
+        engine       = new RoutingEngine();
+        localAddress = MeshGraphs.macAddress(0);
+        engine.compute(graph.getVertexList(), graph.getEdgeMatrix(), localAddress);
+
+        Random random = new Random(nodes);
+        links = new String[64][];
+        for (int i = 0; i < links.length; i++) {
+            String src = MeshGraphs.macAddress(random.nextInt(nodes));
+            ArrayList<String> row = new ArrayList<>(graph.getEdgeMatrix().get(src).keySet());
+            links[i] = new String[] {src, row.get(random.nextInt(row.size()))};
+        }
+    }
+
+    @Benchmark
+    public LinkedHashMap<String, LegacyShortestPath.Shortest_Path_Info> legacy() {
+        return LegacyShortestPath.calculate(graph.getVertexList(), graph.getEdgeMatrix(), localAddress);
+    }
+
+    @Benchmark
+    public RoutingEngine routingEngine() {
+        engine.compute(graph.getVertexList(), graph.getEdgeMatrix(), localAddress);
+        return engine;
+    }
+
+    /** Weaken a link by 30 dBm, or restore it */
+    @Benchmark
+    public RoutingEngine repairLink() {
+        String[] link = links[(changes >> 1) % links.length];
+        int rssi = graph.getEdgeMatrix().get(link[0]).get(link[1]);
+        engine.updateLink(link[0], link[1], (changes++ & 1) == 0 ? rssi + 30 : rssi);
+        return engine;
+    }
+}
@@ -0,0 +1,37 @@
+package sword.blemesh.sdk;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts copies of outgoing data between serialization and the transport write. The session
+ * layer serializes each frame into the array the transport writes, so normally none are made.
+ * Counts only in debug builds.
+ */
+public class ByteCopyCounter {
+
+    private static final AtomicLong copies = new AtomicLong();
+    private static final AtomicLong bytes  = new AtomicLong();
+
+    /** Record a copy of byteCount bytes */
+    public static void count(int byteCount) {
+        if (!BuildConfig.DEBUG) return;
+
+        copies.incrementAndGet();
+        bytes.addAndGet(byteCount);
+    }
+
+    /** @return copies made since the last {@link #reset()} */
+    public static long getCopies() {
+        return copies.get();
+    }
+
+    /** @return bytes copied since the last {@link #reset()} */
+    public static long getBytes() {
+        return bytes.get();
+    }
+
+    public static void reset() {
+        copies.set(0);
+        bytes.set(0);
+    }
+}
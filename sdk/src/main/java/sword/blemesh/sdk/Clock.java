@@ -0,0 +1,19 @@
+package sword.blemesh.sdk;
+
+/**
+ * Source of monotonic time, so that timeouts can run on virtual time in
+ * {@link sword.blemesh.sdk.simulator.MeshSimulator}
+ */
+public interface Clock {
+
+    /** Uses {@link System#nanoTime()}, which unlike wall clock time never jumps */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long elapsedMillis() {
+            return System.nanoTime() / 1000000;
+        }
+    };
+
+    /** @return milliseconds since an arbitrary fixed point */
+    long elapsedMillis();
+}
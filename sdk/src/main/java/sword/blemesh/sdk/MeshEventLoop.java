@@ -0,0 +1,198 @@
+package sword.blemesh.sdk;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import timber.log.Timber;
+
+/**
+ * A single thread running posted events in order, to which all session, routing and forwarding
+ * state is confined, so that none of it needs locking.
+ *
+ * Any thread may post. Events enter a lock-free queue, so that posting from a BLE callback
+ * never waits on the loop. Each tick runs up to {@link #MAX_EVENTS_PER_TICK} queued events,
+ * then the delayed events due. The loop parks while there is nothing to do. An event that
+ * throws is logged and skipped, so that one bad event does not stop the mesh.
+ *
+ * Free of Android framework dependencies. Without a loop, as in
+ * {@link sword.blemesh.sdk.simulator.MeshSimulator}, the caller's thread plays its part.
+ */
+public class MeshEventLoop {
+
+    /** Queued events run per tick before delayed events get a turn */
+    public static final int MAX_EVENTS_PER_TICK = 64;
+
+    private static class Timer implements Comparable<Timer> {
+        final long     dueMillis;
+        final long     order;
+        final Runnable action;
+
+        Timer(long dueMillis, long order, Runnable action) {
+            this.dueMillis = dueMillis;
+            this.order     = order;
+            this.action    = action;
+        }
+
+        @Override
+        public int compareTo(@NonNull Timer another) {
+            if (dueMillis != another.dueMillis) return dueMillis < another.dueMillis ? -1 : 1;
+            return order < another.order ? -1 : order == another.order ? 0 : 1;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Runnable> inbound = new ConcurrentLinkedQueue<>();
+    /** Set by the loop before it parks, so that posting unparks it only then */
+    private final AtomicBoolean                   waiting = new AtomicBoolean();
+    private final Thread                          thread;
+    private final Clock                           clock;
+
+    // Written only by the loop thread
+    private final PriorityQueue<Timer>            timers  = new PriorityQueue<>();
+    private long                                  timerCount;
+    private volatile long                         ticks;
+    private volatile long                         events;
+
+    private volatile boolean                      running;
+
+    public MeshEventLoop(@NonNull String name) {
+        this(name, Clock.SYSTEM);
+    }
+
+    /** @param clock time source for {@link #postDelayed(Runnable, long)} */
+    public MeshEventLoop(@NonNull String name, @NonNull Clock clock) {
+        this.clock  = clock;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+    }
+
+    // <editor-fold desc="Public API">
+
+    public void start() {
+        if (running || thread.getState() != Thread.State.NEW)
+            throw new IllegalStateException("Event loop " + thread.getName() + " was started before");
+
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stop once the events posted so far have run. Delayed events not yet due are dropped
+     */
+    public void quit() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+            }
+        });
+    }
+
+    /** Run action on the loop thread after the events posted before it */
+    public void post(@NonNull Runnable action) {
+        inbound.offer(action);
+        if (waiting.compareAndSet(true, false)) LockSupport.unpark(thread);
+    }
+
+    /** Run action on the loop thread once delayMillis passed */
+    public void postDelayed(@NonNull final Runnable action, final long delayMillis) {
+        final long dueMillis = clock.elapsedMillis() + delayMillis;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                timers.add(new Timer(dueMillis, timerCount++, action));
+            }
+        });
+    }
+
+    /** Cancel delayed runs of action not yet due. Does not affect action posted without delay */
+    public void removeCallbacks(@NonNull final Runnable action) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                List<Timer> removed = new ArrayList<>();
+                for (Timer timer : timers)
+                    if (timer.action == action) removed.add(timer);
+                timers.removeAll(removed);
+            }
+        });
+    }
+
+    /** @return whether the calling thread is the loop thread */
+    public boolean isLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** @return ticks that ran any events so far. Events per tick measure how well events are batched */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /** @return events run so far, including delayed events */
+    public long getEvents() {
+        return events;
+    }
+
+    // </editor-fold desc="Public API">
+
+    private void loop() {
+        while (running) {
+            int ran = 0;
+            Runnable action;
+            while (running && ran < MAX_EVENTS_PER_TICK && (action = inbound.poll()) != null) {
+                runEvent(action);
+                ran++;
+            }
+
+            long now = clock.elapsedMillis();
+            while (running && !timers.isEmpty() && timers.peek().dueMillis <= now) {
+                runEvent(timers.poll().action);
+                ran++;
+            }
+
+            if (ran > 0) {
+                ticks++;
+                events += ran;
+                continue;
+            }
+            park();
+        }
+        inbound.clear();
+        timers.clear();
+    }
+
+    private void runEvent(Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            Timber.e(e, "Event on %s failed", thread.getName());
+        }
+    }
+
+    /** Wait for an event to be posted or the next delayed event to fall due */
+    private void park() {
+        waiting.set(true);
+        // An event posted before waiting was set did not unpark us
+        if (!inbound.isEmpty()) {
+            waiting.set(false);
+            return;
+        }
+
+        if (timers.isEmpty())
+            LockSupport.park(this);
+        else
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(
+                    Math.max(1, timers.peek().dueMillis - clock.elapsedMillis())));
+        waiting.set(false);
+    }
+}
@@ -4,31 +4,27 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.google.common.base.Objects;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 
+import java.io.File;
+import java.io.InputStream;
 import java.util.ArrayDeque;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
-import sword.blemesh.sdk.mesh_graph.LocalGraph;
-import sword.blemesh.sdk.mesh_graph.PeersGraph;
+import sword.blemesh.sdk.MeshEventLoop;
 import sword.blemesh.sdk.session.DataTransferMessage;
 import sword.blemesh.sdk.mesh_graph.LocalPeer;
 import sword.blemesh.sdk.mesh_graph.Peer;
-import sword.blemesh.sdk.session.GraphMessage;
 import sword.blemesh.sdk.session.SessionManager;
 import sword.blemesh.sdk.session.SessionMessage;
 import sword.blemesh.sdk.transport.Transport;
@@ -36,6 +32,9 @@ import timber.log.Timber;
 
 /**
  * Created by davidbrodsky on 11/4/14.
+ *
+ * Session, routing and forwarding run on one {@link MeshEventLoop} thread. Binder calls and
+ * transport callbacks post their work to it rather than take locks.
  */
 public class BleMeshService extends Service implements ActivityRecevingMessagesIndicator,
         SessionManager.SessionManagerCallback {
@@ -49,10 +48,28 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
                             @NonNull Peer sender,
                             @Nullable Exception exception);
 
+        /**
+         * Data too large to hold in memory was received. The body was spooled to file,
+         * which the callback now owns and should move or delete when done.
+         */
+        void onFileReceived(@NonNull ServiceBinder binder,
+                            @NonNull File file,
+                            @NonNull Date date,
+                            @NonNull String sourceAddress,
+                            @NonNull Peer sender,
+                            @Nullable Exception exception);
+
+        /**
+         * Data sent or relayed by the local peer progressed. Data sent while delivery acks are
+         * requested is reported {@link MeshRouter.DeliveryStatus#DELIVERED} or
+         * {@link MeshRouter.DeliveryStatus#FAILED} once its destination acknowledged it or retries
+         * ran out. See {@link ServiceBinder#setRequestDeliveryAcks(boolean)}
+         */
         void onDataSent(@NonNull ServiceBinder binder,
                         @Nullable byte[] data,
                         @NonNull Peer recipient,
                         @NonNull Peer desc,
+                        @NonNull MeshRouter.DeliveryStatus status,
                         @Nullable Exception exception);
 
         void onPeerStatusUpdated(@NonNull ServiceBinder binder,
@@ -70,6 +87,7 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
     private SessionManager sessionManager;
     private Callback callback;
     private boolean activityRecevingMessages;
+    private boolean requestDeliveryAcks;
 
     //TODO: （不确定）考虑删除inPeerTransfers、incomingMessageListeners，因为已经收到的信息不需要对信息的这次传输有什么管理；
     //TODO: （不确定）考虑修改outPeerTransfers、messageDeliveryListeners,向外发出的消息可能需要管理，查看其是否发送成功，但是此处outPeerTransfers等变量的维护存在问题；
@@ -80,12 +98,15 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
 
     private ServiceBinder binder;
 
-    private Looper backgroundLooper;
-    private BackgroundThreadHandler backgroundHandler;
+    private MeshEventLoop eventLoop;
     private Handler foregroundHandler;
 
     private LocalPeer localPeer;
-    private LocalGraph mPeersGraph;
+    private MeshRouter router;
+    /** Published by the event loop for the binder, see {@link ServiceBinder#getDeliveryStats()} */
+    private volatile DeliveryTracker.Snapshot deliveryStats = new DeliveryTracker().getSnapshot();
+    /** Whether {@link #maintainDeliveries} is due to run. Event loop only */
+    private boolean deliveryMaintenanceScheduled;
 
     /**
      * Handler Messages
@@ -95,6 +116,9 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
     public static final int SEND_MESSAGE = 2;
     public static final int SHUTDOWN = 3;
 
+    /** Directory under the app's files dir where messages awaiting a route are persisted */
+    private static final String STORE_AND_FORWARD_DIRECTORY = "store_and_forward";
+
     @Override
     public void onCreate() {
         Timber.d("onCreate");
@@ -102,12 +126,14 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
         // separate thread because the service normally runs in the process's
         // main thread, which we don't want to block.  We also make it
         // background priority so CPU-intensive work will not disrupt our UI.
-        HandlerThread thread = new HandlerThread("BleMeshService", android.os.Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-
-        // Get the HandlerThread's Looper and use it for our Handler
-        backgroundLooper = thread.getLooper();
-        backgroundHandler = new BackgroundThreadHandler(backgroundLooper);
+        eventLoop = new MeshEventLoop("BleMeshService");
+        eventLoop.start();
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            }
+        });
         foregroundHandler = new Handler(Looper.getMainLooper());
     }
 
@@ -115,8 +141,15 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
     public void onDestroy() {
         Timber.d("Service destroyed");
         //TODO: 是否需要删除mPeersGraph?
-        sessionManager.stop();
-        backgroundLooper.quit();
+        eventLoop.removeCallbacks(maintainLinkState);
+        eventLoop.removeCallbacks(maintainDeliveries);
+        eventLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                if (sessionManager != null) sessionManager.stop();
+            }
+        });
+        eventLoop.quit();
 //        mPeersGraph = null;
     }
 
@@ -145,14 +178,25 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
      */
     public class ServiceBinder extends Binder {
 
-        public void registerLocalUserWithService(String userAlias, String serviceName) {
+        public void registerLocalUserWithService(final String userAlias, final String serviceName) {
             //KeyPair keyPair = SodiumShaker.generateKeyPair();
             localPeer = new LocalPeer(getApplicationContext(), userAlias);
-            //initialize graph using local peer.
-            mPeersGraph = new LocalGraph(localPeer);
-            if (sessionManager != null) sessionManager.stop();
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    router = new MeshRouter(localPeer);
+                    router.setListener(routerListener);
+                    router.getStoreAndForwardQueue().setDirectory(new File(getFilesDir(), STORE_AND_FORWARD_DIRECTORY));
+                    if (sessionManager != null) sessionManager.stop();
+
+                    sessionManager = new SessionManager(BleMeshService.this, serviceName, localPeer, BleMeshService.this);
+                    sessionManager.setEventLoop(eventLoop);
+                    router.setSessionManager(sessionManager);
+                }
+            });
 
-            sessionManager = new SessionManager(BleMeshService.this, serviceName, localPeer, BleMeshService.this);
+            eventLoop.removeCallbacks(maintainLinkState);
+            eventLoop.postDelayed(maintainLinkState, MeshRouter.LINK_STATE_MAINTENANCE_MILLIS);
         }
 
         public LocalPeer getLocalPeer() {
@@ -160,28 +204,108 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
         }
 
         public void startTransport(){
-            sessionManager.startTransport();
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    sessionManager.startTransport();
+                }
+            });
         }
 
         public void advertiseLocalUser() {
-            sessionManager.advertiseLocalPeer();
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    sessionManager.advertiseLocalPeer();
+                }
+            });
         }
 
         public void scanForOtherUsers() {
-            sessionManager.scanForPeers();
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    sessionManager.scanForPeers();
+                }
+            });
         }
 
         public void stop() {
-            sessionManager.stop();
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    sessionManager.stop();
+                }
+            });
         }
 
         public void setCallback(Callback callback) {
             BleMeshService.this.callback = callback;
         }
 
+        /**
+         * Send data to recipient. If recipient is unreachable, the data is held until a route appears.
+         * See {@link StoreAndForwardQueue}
+         */
         public void send(byte[] data, Peer recipient) {
-            Peer next_reply_node = getNextReply(recipient);
-            addOutgoingTransfer(new OutgoingTransfer(data, recipient, next_reply_node, localPeer.getMacAddress(), sessionManager));
+            send(DataTransferMessage.createOutgoing(null, recipient, localPeer.getMacAddress(), data), recipient);
+        }
+
+        /**
+         * Send the contents of file to recipient. The file is read chunk by chunk as it is sent,
+         * so it must not be modified or deleted until {@link Callback#onDataSent} is called, with
+         * {@link MeshRouter.DeliveryStatus#DELIVERED} or {@link MeshRouter.DeliveryStatus#FAILED}
+         * if delivery acks are requested.
+         */
+        public void send(File file, Peer recipient) {
+            send(DataTransferMessage.createOutgoing(null, recipient, localPeer.getMacAddress(), file), recipient);
+        }
+
+        /**
+         * Send length bytes read from stream to recipient. The stream is read chunk by chunk
+         * as it is sent and closed once exhausted.
+         */
+        public void send(InputStream stream, int length, Peer recipient) {
+            send(DataTransferMessage.createOutgoing(null, recipient, localPeer.getMacAddress(), stream, length), recipient);
+        }
+
+        /**
+         * Set whether data sent afterwards asks its destination for an end-to-end delivery ack, and
+         * is sent again until one arrives. Bodies sent from an InputStream cannot be sent again, so
+         * are only acknowledged. See {@link DeliveryTracker}
+         */
+        public void setRequestDeliveryAcks(boolean requestDeliveryAcks) {
+            BleMeshService.this.requestDeliveryAcks = requestDeliveryAcks;
+        }
+
+        /**
+         * @return end-to-end latency and delivery ratio of data sent while delivery acks were requested,
+         * as of the last delivery event. The tracker itself is confined to the event loop
+         */
+        public DeliveryTracker.Snapshot getDeliveryStats() {
+            return deliveryStats;
+        }
+
+        private void send(final DataTransferMessage message, final Peer recipient) {
+            if (requestDeliveryAcks) message.requestDeliveryAck();
+            eventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    routeOutgoing(message, recipient);
+                }
+            });
+        }
+
+        /**
+         * Runs on the event loop. The router picks the route, spreading bulk messages over
+         * several, and holds message while there is none
+         */
+        private void routeOutgoing(DataTransferMessage message, Peer recipient) {
+            // Maintenance reschedules itself while any ack is awaited
+            if (message.isDeliveryAckRequested()) scheduleDeliveryMaintenance();
+
+            addOutgoingTransfer(new OutgoingTransfer(recipient, message));
+            router.send(message);
         }
 
         /**
@@ -213,23 +337,6 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
         }
     }
 
-    private void forward(SessionMessage message,Peer recipient){
-        Peer next_reply_node = getNextReply(recipient);
-        addOutgoingTransfer(new OutgoingTransfer(next_reply_node,message,sessionManager));
-    }
-
-    private Peer getNextReply(Peer recipient){
-        Peer next_reply_node;
-        next_reply_node = mPeersGraph.getNextReply(recipient.getMacAddress());
-        if(next_reply_node.equals(recipient))
-            Timber.d("Next hop is destination recipient %s : %s",recipient.getAlias(),recipient.getMacAddress());
-        else
-            Timber.d("Desc is %s : %s, next replay is %s : %s",
-                    recipient.getAlias(), recipient.getMacAddress(),
-                    next_reply_node.getAlias(), next_reply_node.getMacAddress());
-        return next_reply_node;
-    }
-
     private void addIncomingTransfer(IncomingTransfer transfer) {
         Peer recipient = transfer.getSender();
 
@@ -243,7 +350,7 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
     }
 
     private void addOutgoingTransfer(OutgoingTransfer transfer) {
-        Peer recipient = transfer.getNext_reply_node();
+        Peer recipient = transfer.getRecipient();
 
         incomingMessageListeners.add(transfer);
         messageDeliveryListeners.add(transfer);
@@ -254,34 +361,36 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
         outPeerTransfers.get(recipient).add(transfer);
     }
 
-    /**
-     * Handler that processes Messages on a background thread
-     */
-    private final class BackgroundThreadHandler extends Handler {
-        public BackgroundThreadHandler(Looper looper) {
-            super(looper);
+    /** Ages out and refreshes link state, rescheduling itself */
+    private final Runnable maintainLinkState = new Runnable() {
+        @Override
+        public void run() {
+            router.maintainLinkState();
+            eventLoop.postDelayed(this, MeshRouter.LINK_STATE_MAINTENANCE_MILLIS);
         }
+    };
 
+    /** Resends messages whose delivery ack is overdue, rescheduling itself while any are awaited */
+    private final Runnable maintainDeliveries = new Runnable() {
         @Override
-        public void handleMessage(Message msg) {
-//            switch (msg.what) {
-//                case ADVERTISE:
-//                    Log.i(TAG, "handling connect");
-//                    sessionManager.advertiseLocalPeer();
-//                    break;
-//                case SEND_MESSAGEE:
-//                    mApp.sendPublicMessageFromPrimaryIdentity((String) msg.obj);
-//                    break;
-//                case SHUTDOWN:
-//                    Log.i(TAG, "handling shutdown");
-//                    mApp.makeUnavailable();
-//
-//                    // Stop the service using the startId, so that we don't stop
-//                    // the service in the middle of handling another job
-//                    stopSelf(msg.arg1);
-//                    break;
-//            }
+        public void run() {
+            deliveryMaintenanceScheduled = false;
+            router.maintainDeliveries();
+            publishDeliveryStats();
+            if (router.hasPendingDeliveries()) scheduleDeliveryMaintenance();
         }
+    };
+
+    /** Runs on the event loop. Schedules {@link #maintainDeliveries} unless it is due already */
+    private void scheduleDeliveryMaintenance() {
+        if (deliveryMaintenanceScheduled) return;
+        deliveryMaintenanceScheduled = true;
+        eventLoop.postDelayed(maintainDeliveries, MeshRouter.DELIVERY_MAINTENANCE_MILLIS);
+    }
+
+    /** Runs on the event loop */
+    private void publishDeliveryStats() {
+        deliveryStats = router.getDeliveryTracker().getSnapshot();
     }
 
     private
@@ -292,8 +401,7 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
         IncomingTransfer incomingTransfer = null;
         for (IncomingTransfer transfer : inPeerTransfers.get(sender)) {
             if (transferMessage instanceof DataTransferMessage) {
-                // If we only target API 19+, we can move to the java.util.Objects.equals
-                if (Objects.equal(transfer.getTransferId(), transferMessage.getHeaders().get(SessionMessage.HEADER_ID)))
+                if (transfer.getTransferId() == transferMessage.getID())
                     incomingTransfer = transfer;
             } else
                 throw new IllegalStateException("Only DataTransferMessage is supported!");
@@ -302,69 +410,16 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
         return incomingTransfer;
     }
 
-    private
-    @Nullable
-    OutgoingTransfer getOutgoingTransferForFileTransferMessage(SessionMessage transferMessage,
-                                                               Peer recipient) {
-
-        OutgoingTransfer outgoingTransfer = null;
-        for (OutgoingTransfer transfer : outPeerTransfers.get(recipient)) {
-            if (transferMessage instanceof DataTransferMessage) {
-                // If we only target API 19+, we can move to the java.util.Objects.equals
-                if (Objects.equal(transfer.getTransferId(), transferMessage.getHeaders().get(SessionMessage.HEADER_ID)))
-                    outgoingTransfer = transfer;
-            } else
-                throw new IllegalStateException("Only DataTransferMessage is supported!");
-        }
-
-        return outgoingTransfer;
-    }
-
     // <editor-fold desc="SessionManagerCallback">
 
     @Override
     public void directPeerStatusUpdated(@NonNull final Peer peer, @NonNull final Transport.ConnectionStatus newStatus, final boolean isHost) {
-        GraphMessage mGraphMessage;
-        switch (newStatus) {
-            case CONNECTED:
-                Timber.d("New direct remote device alias:%s, MacAddress:%s ", peer.getAlias(), peer.getMacAddress());
-//                synchronized (mPeersGraph.getClass()){
-                    mPeersGraph.newDirectRemote(peer);
-//                    mPeersGraph.displayGraph();
-//                }
-
-                mGraphMessage = GraphMessage.createOutgoing(null, GraphMessage.ACTION_JOIN, GraphMessage.SINGLE_CAST, mPeersGraph);
-                Timber.d("Start sending own graph message to peer %s", peer.getAlias());
-                sessionManager.sendMessage(mGraphMessage, peer);
-
-                break;
-
-            case DISCONNECTED:
-                //TODO: 远端离开后，删除local peer 与 remote peer之间的边
-                //TODO: 删除后的图可以是非连通图，与local peer连通的设备列表由另外的变量处理。
-                Timber.d("Device has disconnected, alias:%s, MacAddress:%s ", peer.getAlias(), peer.getMacAddress());
-
-//                synchronized (mPeersGraph.getClass()) {
-                    mPeersGraph.lostDirectRemote(peer);
-//                    mPeersGraph.displayGraph();
-//                }
-                mGraphMessage = GraphMessage.createOutgoing(null, GraphMessage.ACTION_LEFT, GraphMessage.BROADCAST, mPeersGraph);
-                sessionManager.broadcastMessage(mGraphMessage, peer);
-                updateForeground(mGraphMessage);
-                break;
-        }
+        router.directPeerStatusUpdated(peer, newStatus, isHost);
+    }
 
-     /*   //更新单跳对端设备的变化
-        foregroundHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (callback != null)
-                    callback.onPeerStatusUpdated(binder, peer, newStatus, isHost);
-                else
-                    Timber.w("Could not report peer status update, no callback registered");
-            }
-        });
-        */
+    @Override
+    public void messageHeaderReceivedFromPeer(@NonNull SessionMessage message, @NonNull Peer sender) {
+        router.messageHeaderReceivedFromPeer(message, sender);
     }
 
     @Override
@@ -386,86 +441,7 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
 
         }
 
-        switch (message.getType()) {
-            case GraphMessage.HEADER_TYPE:
-                /** Broadcast merged new graph to all reachable devices; */
-
-                final GraphMessage remoteGraphMessage = (GraphMessage) message;
-//                synchronized (mPeersGraph.getClass()) {
-                    if (remoteGraphMessage.getAction() == GraphMessage.ACTION_JOIN) {
-                        PeersGraph remoteGraph = remoteGraphMessage.getPeersGraph();
-//                        Timber.d("Before merge graph, local graph is:");
-//                        mPeersGraph.displayGraph();
-//                        Timber.d("Before merge graph, remote graph is:");
-//                        remoteGraph.displayGraph();
-                        Timber.d("Merge remote graph to own local graph");
-                        mPeersGraph.mergeGarph(sender, remoteGraph);
-                        callback.onNewLog("After merge "+sender.getAlias() +" the LocalGraph is: \n");
-                        callback.onNewLog(mPeersGraph.displayGraph());
-
-                        remoteGraph.getEdgeMatrix().get(sender.getMacAddress()).put(
-                                localPeer.getMacAddress(),
-                                mPeersGraph.getEdgeMatrix().get(sender.getMacAddress()).get(localPeer.getMacAddress())
-                        );
-                        GraphMessage broadcastGraphMessage = GraphMessage.createOutgoing(null,
-                                GraphMessage.ACTION_JOIN,
-                                GraphMessage.BROADCAST,
-                                remoteGraph);
-                        Timber.d("broadcast graph message ");
-                        sessionManager.broadcastMessage(broadcastGraphMessage,sender);
-                    }
-                    if (remoteGraphMessage.getAction() == GraphMessage.ACTION_LEFT) {
-                        //TODO:处理设备离开的情况
-                        PeersGraph remoteGraph = remoteGraphMessage.getPeersGraph();
-//                        Timber.d("Before replace new  graph, local graph is:");
-//                        mPeersGraph.displayGraph();
-                        Timber.d("replace own local graph with remote new graph ");
-                        mPeersGraph.trimGraph(sender, remoteGraph);
-                        callback.onNewLog("After delete "+sender.getAlias() +" the LocalGraph is: \n");
-                        callback.onNewLog(mPeersGraph.displayGraph());
-                        sessionManager.broadcastMessage(message,sender);
-                    }
-//                }
-                updateForeground(remoteGraphMessage);
-                break;
-
-            case DataTransferMessage.HEADER_TYPE:
-                final DataTransferMessage dataTransferMessage = (DataTransferMessage) message;
-                if(LocalPeer.getLocalMacAddress().equals(dataTransferMessage.getDesc_mac_address())){
-                    // Reach the desc node
-                    final IncomingTransfer incomingTransfer;
-                    incomingTransfer = new IncomingTransfer((DataTransferMessage) message, sender);
-                    // No action is required for DataTransferMessage. Report complete
-                    foregroundHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (callback != null)
-                                callback.onDataRecevied(binder, incomingTransfer.getBodyBytes(),
-                                        incomingTransfer.getDate(), incomingTransfer.getSource(), sender, null);
-                        }
-                    });
-                }
-                else{
-                    forward(message,mPeersGraph.getVertexList().get(dataTransferMessage.getDesc_mac_address()));
-                }
-                break;
-        }
-    }
-
-    public void updateForeground(final GraphMessage remoteGraphMessage) {
-        //更新多跳设备的变化情况
-        foregroundHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (callback != null) {
-                    Map<String,Peer> vertexes = new LinkedHashMap<>(mPeersGraph.getVertexList());
-                    vertexes.remove(localPeer.getMacAddress());
-                    callback.onPeersStatusUpdated(binder, vertexes, remoteGraphMessage.getAction() == GraphMessage.ACTION_JOIN);
-
-                } else
-                    Timber.w("Could not report peer status update, no callback registered");
-            }
-        });
+        router.messageReceivedFromPeer(message, sender);
     }
 
     @Override
@@ -486,23 +462,78 @@ public class BleMeshService extends Service implements ActivityRecevingMessagesI
                 iterator.remove();
         }
 
-        final OutgoingTransfer outgoingTransfer;
-        if (message.getType().equals(DataTransferMessage.HEADER_TYPE)) {
-            outgoingTransfer = getOutgoingTransferForFileTransferMessage(message, recipient);
+        router.messageSentToPeer(message, recipient, exception);
+    }
+
+    // </editor-fold desc="SessionManagerCallback">
+
+    // <editor-fold desc="MeshRouter.Listener">
+
+    /**
+     * Reports routed messages and peer changes to {@link #callback} on the main thread
+     */
+    private final MeshRouter.Listener routerListener = new MeshRouter.Listener() {
+
+        @Override
+        public void onDataReceived(@NonNull DataTransferMessage message, @NonNull final Peer sender) {
+            final IncomingTransfer incomingTransfer = new IncomingTransfer(message, sender);
             // No action is required for DataTransferMessage. Report complete
-            final Peer desc = mPeersGraph.getVertexList().get(((DataTransferMessage)message).getDesc_mac_address());
-            callback.onNewLog("Data forward to " + recipient.getAlias() +", desc is " + desc.getAlias() + "\n");
             foregroundHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    if (callback != null) {
-                        assert outgoingTransfer != null;
-                        callback.onDataSent(binder, outgoingTransfer.getBodyBytes(), recipient, desc, null);
-                    }
+                    if (callback == null) return;
+
+                    File bodyFile = incomingTransfer.getBodyFile();
+                    if (bodyFile != null)
+                        callback.onFileReceived(binder, bodyFile,
+                                incomingTransfer.getDate(), incomingTransfer.getSource(), sender, null);
+                    else
+                        callback.onDataRecevied(binder, incomingTransfer.getBodyBytes(),
+                                incomingTransfer.getDate(), incomingTransfer.getSource(), sender, null);
                 }
             });
         }
-    }
 
-    // </editor-fold desc="SessionManagerCallback">
-}
\ No newline at end of file
+        @Override
+        public void onDataSent(@NonNull DataTransferMessage message, @NonNull final Peer recipient,
+                               @NonNull final Peer desc, @NonNull final MeshRouter.DeliveryStatus status,
+                               @Nullable final Exception exception) {
+            final byte[] data = message.isBodyInMemory() ?
+                    message.getBodyAtOffset(0, message.getBodyLengthBytes()) : null;
+            if (status != MeshRouter.DeliveryStatus.FORWARDED) publishDeliveryStats();
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null)
+                        callback.onDataSent(binder, data, recipient, desc, status, exception);
+                }
+            });
+        }
+
+        @Override
+        public void onPeersUpdated(@NonNull final Map<String, Peer> vertexes, final boolean isJoin) {
+            //更新多跳设备的变化情况
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null)
+                        callback.onPeersStatusUpdated(binder, vertexes, isJoin);
+                    else
+                        Timber.w("Could not report peer status update, no callback registered");
+                }
+            });
+        }
+
+        @Override
+        public void onNewLog(@NonNull final String logText) {
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null) callback.onNewLog(logText);
+                }
+            });
+        }
+    };
+
+    // </editor-fold desc="MeshRouter.Listener">
+}
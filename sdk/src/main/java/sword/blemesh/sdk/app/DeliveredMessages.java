@@ -0,0 +1,88 @@
+package sword.blemesh.sdk.app;
+
+import android.support.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import sword.blemesh.sdk.Clock;
+import timber.log.Timber;
+
+/**
+ * Exact record of the (source, delivery ID) pairs of acknowledged messages delivered here, so
+ * that copies the source sent again are acknowledged without being reported twice.
+ *
+ * Unlike a {@link sword.blemesh.sdk.session.DuplicateFilter}, it never mistakes a new message
+ * for a copy, which would acknowledge a message the app never received. Each pair is kept for
+ * {@link #DEFAULT_EXPIRY_MILLIS}, outlasting the last copy the source sends plus its longest
+ * hold in a relay's {@link StoreAndForwardQueue}. Past capacity the oldest pairs are forgotten.
+ *
+ * Not thread safe.
+ */
+public class DeliveredMessages {
+
+    /** The source's retransmissions span at most every attempt timing out, then a relay may hold the last */
+    public static final long DEFAULT_EXPIRY_MILLIS = DeliveryTracker.DEFAULT_MAX_ATTEMPTS * DeliveryTracker.MAX_TIMEOUT_MILLIS +
+                                                     StoreAndForwardQueue.DEFAULT_TTL_MILLIS;
+    public static final int  DEFAULT_CAPACITY      = 16 * 1024;
+
+    private final long  expiryMillis;
+    private final int   capacity;
+    private       Clock clock = Clock.SYSTEM;
+
+    /** Time each pair was delivered, oldest first */
+    private final LinkedHashMap<String, Long> deliveredMillis = new LinkedHashMap<>();
+
+    public DeliveredMessages() {
+        this(DEFAULT_EXPIRY_MILLIS, DEFAULT_CAPACITY);
+    }
+
+    public DeliveredMessages(long expiryMillis, int capacity) {
+        if (expiryMillis < 1)
+            throw new IllegalArgumentException("Expiry must be at least 1 ms");
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be at least 1");
+
+        this.expiryMillis = expiryMillis;
+        this.capacity     = capacity;
+    }
+
+    /** Time source for expiry. Defaults to {@link Clock#SYSTEM} */
+    public void setClock(@NonNull Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Record the delivery of deliveryId from source
+     *
+     * @return true if it was delivered before, so this is a copy
+     */
+    public boolean checkAndAdd(@NonNull String source, long deliveryId) {
+        long nowMillis = clock.elapsedMillis();
+        expire(nowMillis);
+
+        String key = source + '/' + deliveryId;
+        if (deliveredMillis.containsKey(key)) return true;
+
+        deliveredMillis.put(key, nowMillis);
+        if (deliveredMillis.size() > capacity) {
+            Iterator<String> oldest = deliveredMillis.keySet().iterator();
+            Timber.w("Forgetting delivery of %s before its expiry, over capacity %d", oldest.next(), capacity);
+            oldest.remove();
+        }
+        return false;
+    }
+
+    public int size() {
+        return deliveredMillis.size();
+    }
+
+    private void expire(long nowMillis) {
+        Iterator<Map.Entry<String, Long>> entries = deliveredMillis.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (nowMillis - entries.next().getValue() < expiryMillis) break;
+            entries.remove();
+        }
+    }
+}
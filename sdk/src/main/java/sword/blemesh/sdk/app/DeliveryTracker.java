@@ -0,0 +1,314 @@
+package sword.blemesh.sdk.app;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import sword.blemesh.sdk.Clock;
+import sword.blemesh.sdk.session.DataTransferMessage;
+import sword.blemesh.sdk.session.SessionMessage;
+
+/**
+ * Source side of end-to-end delivery acks. Tracks outgoing {@link DataTransferMessage}s that
+ * requested one, by delivery ID, until their ack arrives, and decides when to send them again.
+ * See {@link DataTransferMessage#requestDeliveryAck()}
+ *
+ * The timer of a transmission starts once the first hop received it. Its timeout is estimated
+ * per destination from measured round trips as TCP does, SRTT + 4 * RTTVAR, and scaled when
+ * the route's hop count changes. Until a round trip to a destination was measured, the
+ * timeout is {@link #INITIAL_HOP_RTT_MILLIS} per hop. Every retransmission doubles the timeout,
+ * and round trips of retransmitted messages are not measured, as their ack may answer any
+ * of the transmissions.
+ *
+ * Only interactive messages are measured, as bulk messages take longer per hop the larger they
+ * are. Timeouts of bulk messages get an allowance of their first hop's duration for each
+ * further hop.
+ *
+ * Not thread safe.
+ */
+public class DeliveryTracker {
+
+    public static final long INITIAL_HOP_RTT_MILLIS = 1000;
+    public static final long MIN_TIMEOUT_MILLIS     = 500;
+    public static final long MAX_TIMEOUT_MILLIS     = 2 * 60 * 1000;
+    /** Transmissions of a message, including the first, before it is reported failed */
+    public static final int  DEFAULT_MAX_ATTEMPTS   = 4;
+
+    private static class Pending {
+        /** The first transmission */
+        final DataTransferMessage message;
+        final long                queuedMillis;
+        long                      attemptQueuedMillis;
+        int                       attempts = 1;
+        int                       hops     = 1;
+        /** When the first hop received the current transmission, or -1 until it has */
+        long                      sentMillis = -1;
+        /** Time the first transmission took to reach the first hop */
+        long                      firstHopMillis;
+        long                      timeoutMillis;
+
+        Pending(DataTransferMessage message, long queuedMillis) {
+            this.message             = message;
+            this.queuedMillis        = queuedMillis;
+            this.attemptQueuedMillis = queuedMillis;
+        }
+
+        boolean isOverdue(long now) {
+            return sentMillis >= 0 && now - sentMillis >= timeoutMillis;
+        }
+    }
+
+    /** Metrics of a DeliveryTracker at one point in time, which any thread may read */
+    public static class Snapshot {
+        public final int    pendingCount;
+        public final long   deliveredCount;
+        public final long   failedCount;
+        public final long   retransmitCount;
+        public final double deliveryRatio;
+        public final long   meanLatencyMillis;
+
+        Snapshot(DeliveryTracker tracker) {
+            pendingCount      = tracker.getPendingCount();
+            deliveredCount    = tracker.getDeliveredCount();
+            failedCount       = tracker.getFailedCount();
+            retransmitCount   = tracker.getRetransmitCount();
+            deliveryRatio     = tracker.getDeliveryRatio();
+            meanLatencyMillis = tracker.getMeanLatencyMillis();
+        }
+    }
+
+    /** Round trip estimate to one destination, over a route of hops */
+    private static class RoundTrip {
+        long smoothedMillis;
+        long varianceMillis;
+        int  hops;
+    }
+
+    private final int maxAttempts;
+
+    private final LinkedHashMap<Long, Pending> pending    = new LinkedHashMap<>();
+    private final HashMap<String, RoundTrip>   roundTrips = new HashMap<>();
+    private Clock                              clock      = Clock.SYSTEM;
+
+    private long delivered;
+    private long failed;
+    private long retransmits;
+    private long totalLatencyMillis;
+
+    public DeliveryTracker() {
+        this(DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public DeliveryTracker(int maxAttempts) {
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("Max attempts must be at least 1");
+
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setClock(@NonNull Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * A transmission of message, the first or a retransmission, was queued for sending
+     */
+    public void queued(@NonNull DataTransferMessage message) {
+        Pending entry = pending.get(message.getDeliveryId());
+        if (entry == null)
+            pending.put(message.getDeliveryId(), new Pending(message, clock.elapsedMillis()));
+        else
+            entry.attemptQueuedMillis = clock.elapsedMillis();
+    }
+
+    /**
+     * The first hop received a transmission of message, which starts its timer
+     *
+     * @param hops hops from here to the destination
+     * @return whether this was the first transmission
+     */
+    public boolean sent(@NonNull DataTransferMessage message, int hops) {
+        long now = clock.elapsedMillis();
+        Pending entry = pending.get(message.getDeliveryId());
+        if (entry == null) {
+            entry = new Pending(message, now);
+            pending.put(message.getDeliveryId(), entry);
+        }
+
+        entry.hops       = Math.max(1, hops);
+        entry.sentMillis = now;
+        if (entry.attempts == 1) entry.firstHopMillis = now - entry.attemptQueuedMillis;
+
+        long timeout = Math.min(MAX_TIMEOUT_MILLIS,
+                getTimeoutMillis(entry.message.getDesc_mac_address(), entry.hops) << (entry.attempts - 1));
+        if (entry.message.getPriority() == SessionMessage.Priority.BULK)
+            timeout += entry.firstHopMillis * (entry.hops - 1);
+        entry.timeoutMillis = timeout;
+        return entry.attempts == 1;
+    }
+
+    /**
+     * The ack of deliveryId arrived
+     *
+     * @return the message acknowledged, or null if it was acknowledged before or not tracked here
+     */
+    public @Nullable DataTransferMessage acknowledged(long deliveryId) {
+        Pending entry = pending.remove(deliveryId);
+        if (entry == null) return null;
+
+        long now = clock.elapsedMillis();
+        if (entry.attempts == 1 && entry.sentMillis >= 0
+                && entry.message.getPriority() != SessionMessage.Priority.BULK)
+            measure(entry.message.getDesc_mac_address(), entry.hops, now - entry.sentMillis);
+
+        delivered++;
+        totalLatencyMillis += now - entry.queuedMillis;
+        return entry.message;
+    }
+
+    /**
+     * Stop tracking deliveryId, whose message was dropped on the way
+     *
+     * @return the message, or null if it was not tracked
+     */
+    public @Nullable DataTransferMessage fail(long deliveryId) {
+        Pending entry = pending.remove(deliveryId);
+        if (entry == null) return null;
+
+        failed++;
+        return entry.message;
+    }
+
+    /**
+     * Stop tracking messages whose last transmission timed out
+     *
+     * @return the messages, which count as failed
+     */
+    public @NonNull List<DataTransferMessage> expire() {
+        List<DataTransferMessage> expired = new ArrayList<>();
+        long now = clock.elapsedMillis();
+
+        Iterator<Pending> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Pending entry = iterator.next();
+            if (!entry.isOverdue(now) || canRetransmit(entry)) continue;
+
+            iterator.remove();
+            failed++;
+            expired.add(entry.message);
+        }
+        return expired;
+    }
+
+    /**
+     * Count another transmission of messages whose timeout elapsed. Callers must send each
+     * again, see {@link DataTransferMessage#createRetransmission(DataTransferMessage)}
+     *
+     * @return the first transmissions of the messages to send again
+     */
+    public @NonNull List<DataTransferMessage> takeRetransmissions() {
+        List<DataTransferMessage> due = new ArrayList<>();
+        long now = clock.elapsedMillis();
+
+        for (Pending entry : pending.values()) {
+            if (!entry.isOverdue(now) || !canRetransmit(entry)) continue;
+
+            entry.attempts++;
+            entry.sentMillis = -1;
+            retransmits++;
+            due.add(entry.message);
+        }
+        return due;
+    }
+
+    /**
+     * @return the timeout of a first transmission to destination over hops, before any allowance
+     * for the message's size
+     */
+    public long getTimeoutMillis(@NonNull String destination, int hops) {
+        hops = Math.max(1, hops);
+        RoundTrip roundTrip = roundTrips.get(destination);
+        long timeout = roundTrip == null ? hops * INITIAL_HOP_RTT_MILLIS :
+                (roundTrip.smoothedMillis + 4 * roundTrip.varianceMillis) * hops / roundTrip.hops;
+        return Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, timeout));
+    }
+
+    // <editor-fold desc="Metrics">
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getDeliveredCount() {
+        return delivered;
+    }
+
+    /** @return messages dropped on the way or not acknowledged after the last attempt */
+    public long getFailedCount() {
+        return failed;
+    }
+
+    public long getRetransmitCount() {
+        return retransmits;
+    }
+
+    /** @return share of finished deliveries that were acknowledged, or 1 if none finished */
+    public double getDeliveryRatio() {
+        long finished = delivered + failed;
+        return finished == 0 ? 1 : (double) delivered / finished;
+    }
+
+    /** @return mean time from queuing the first transmission to receiving the ack, or 0 if none arrived */
+    public long getMeanLatencyMillis() {
+        return delivered == 0 ? 0 : totalLatencyMillis / delivered;
+    }
+
+    /** @return smoothed round trip time to destination, or -1 if none was measured */
+    public long getSmoothedRttMillis(@NonNull String destination) {
+        RoundTrip roundTrip = roundTrips.get(destination);
+        return roundTrip == null ? -1 : roundTrip.smoothedMillis;
+    }
+
+    /** @return the metrics as of now, for reading off the tracker's thread */
+    public Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    // </editor-fold desc="Metrics">
+
+    private boolean canRetransmit(Pending entry) {
+        if (entry.attempts >= maxAttempts) return false;
+
+        // Bodies read from a stream cannot be read again
+        DataTransferMessage message = entry.message;
+        return message.isBodyInMemory() || message.getBodyFile() != null || message.getBodyLengthBytes() == 0;
+    }
+
+    /** Feed a round trip sample, as of RFC 6298 */
+    private void measure(String destination, int hops, long rttMillis) {
+        RoundTrip roundTrip = roundTrips.get(destination);
+        if (roundTrip == null) {
+            roundTrip = new RoundTrip();
+            roundTrip.smoothedMillis = rttMillis;
+            roundTrip.varianceMillis = rttMillis / 2;
+            roundTrip.hops           = hops;
+            roundTrips.put(destination, roundTrip);
+            return;
+        }
+
+        // The route changed length. Carry the estimate over in proportion
+        if (roundTrip.hops != hops) {
+            roundTrip.smoothedMillis = roundTrip.smoothedMillis * hops / roundTrip.hops;
+            roundTrip.varianceMillis = roundTrip.varianceMillis * hops / roundTrip.hops;
+            roundTrip.hops           = hops;
+        }
+
+        roundTrip.varianceMillis = (3 * roundTrip.varianceMillis + Math.abs(roundTrip.smoothedMillis - rttMillis)) / 4;
+        roundTrip.smoothedMillis = (7 * roundTrip.smoothedMillis + rttMillis) / 8;
+    }
+}
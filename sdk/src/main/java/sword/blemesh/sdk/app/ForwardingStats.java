@@ -0,0 +1,95 @@
+package sword.blemesh.sdk.app;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+import sword.blemesh.sdk.mesh_graph.LocalGraph;
+import sword.blemesh.sdk.session.DataTransferMessage;
+
+/**
+ * Counts the {@link DataTransferMessage}s a {@link MeshRouter} delivered, forwarded and dropped,
+ * with the hops delivered messages travelled and why messages were dropped. A rising count of
+ * {@link DropReason#TTL_EXPIRED} points at routing loops, as may form while routes converge.
+ *
+ * Not thread safe.
+ */
+public class ForwardingStats {
+
+    public enum DropReason {
+
+        /** TTL reached 0 before the destination */
+        TTL_EXPIRED,
+
+        /** Held for an unreachable destination for longer than the store and forward TTL */
+        HOLD_EXPIRED,
+
+        /** Dropped from hold to make room for newer messages, as store and forward caps were reached */
+        HOLD_OVER_CAPACITY,
+
+        /** The next hop failed part way through a body read from a stream, which cannot be read again */
+        BODY_NOT_REPLAYABLE
+    }
+
+    /** Messages delivered here, by hops travelled */
+    private final long[] hopCounts = new long[LocalGraph.MAX_HOPS + 1];
+    private final long[] drops     = new long[DropReason.values().length];
+    private long         forwarded;
+
+    void recordDelivered(@NonNull DataTransferMessage message) {
+        hopCounts[Math.max(0, Math.min(hopCounts.length - 1, message.getHopCount()))]++;
+    }
+
+    void recordForwarded() {
+        forwarded++;
+    }
+
+    void recordDropped(@NonNull DropReason reason) {
+        drops[reason.ordinal()]++;
+    }
+
+    public long getDeliveredCount() {
+        long delivered = 0;
+        for (long count : hopCounts)
+            delivered += count;
+        return delivered;
+    }
+
+    /** @return messages delivered here after travelling hops */
+    public long getDeliveredCount(int hops) {
+        return hops < 0 || hops >= hopCounts.length ? 0 : hopCounts[hops];
+    }
+
+    /** @return mean hops travelled by messages delivered here, or 0 if none were */
+    public double getMeanHops() {
+        long delivered = 0;
+        long hops      = 0;
+        for (int i = 0; i < hopCounts.length; i++) {
+            delivered += hopCounts[i];
+            hops      += hopCounts[i] * i;
+        }
+        return delivered == 0 ? 0 : (double) hops / delivered;
+    }
+
+    /** @return messages relayed on towards their destination */
+    public long getForwardedCount() {
+        return forwarded;
+    }
+
+    public long getDroppedCount(@NonNull DropReason reason) {
+        return drops[reason.ordinal()];
+    }
+
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (long count : drops)
+            dropped += count;
+        return dropped;
+    }
+
+    public void reset() {
+        Arrays.fill(hopCounts, 0);
+        Arrays.fill(drops, 0);
+        forwarded = 0;
+    }
+}
@@ -27,8 +27,8 @@ public class IncomingTransfer extends Transfer implements IncomingMessageListene
 
     // </editor-fold desc="Incoming Constructors">
 
-    public String getTransferId() {
-        return (String) transferMessage.getHeaders().get(SessionMessage.HEADER_ID);
+    public long getTransferId() {
+        return transferMessage.getID();
     }
 
     public Peer getSender() {
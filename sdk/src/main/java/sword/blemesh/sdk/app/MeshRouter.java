@@ -0,0 +1,760 @@
+package sword.blemesh.sdk.app;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import sword.blemesh.sdk.Clock;
+import sword.blemesh.sdk.mesh_graph.ForwardingTable;
+import sword.blemesh.sdk.mesh_graph.LocalGraph;
+import sword.blemesh.sdk.mesh_graph.LocalPeer;
+import sword.blemesh.sdk.mesh_graph.Peer;
+import sword.blemesh.sdk.mesh_graph.PeersGraph;
+import sword.blemesh.sdk.session.DataTransferMessage;
+import sword.blemesh.sdk.session.GraphMessage;
+import sword.blemesh.sdk.session.MessageId;
+import sword.blemesh.sdk.session.SessionManager;
+import sword.blemesh.sdk.session.SessionMessage;
+import sword.blemesh.sdk.transport.Transport;
+import timber.log.Timber;
+
+/**
+ * Mesh routing for a {@link LocalPeer}. Maintains the {@link LocalGraph} from direct peer
+ * connection events and {@link GraphMessage}s, forwards {@link DataTransferMessage}s addressed
+ * to other peers and reports the rest to a {@link Listener}.
+ *
+ * Topology is gossiped as link state: each peer floods a sequence numbered delta of its own
+ * links when they change, which others apply and pass on only if newer. Neighbours exchange
+ * their whole graph when they connect, and a peer that misses a delta asks the neighbour
+ * that sent the next one for the origin's complete link state. Link state not refreshed within
+ * {@link LocalGraph#LINK_STATE_MAX_AGE_SECONDS} is dropped by {@link #maintainLinkState()}.
+ *
+ * Link state floods are passed on only by the multipoint relays the peer they came from chose,
+ * neighbours that between them reach all peers two hops away, rather than by every peer
+ * reached. See {@link #setMultipointRelays(boolean)}.
+ *
+ * Messages to unreachable destinations, including those whose next hop disconnected before
+ * delivery, are held in a {@link StoreAndForwardQueue} and sent once a route appears again.
+ *
+ * Relays pass a message on as soon as its header arrives, streaming its body to the next hop as
+ * it arrives, so that a message crosses several hops in little more than the time of one. See
+ * {@link #setCutThrough(boolean)}.
+ *
+ * Bulk messages from the local peer are spread over up to {@link #MULTIPATH_ROUTES} routes to
+ * their destination that share no relay, each taking the route whose first hop has the fewest
+ * bytes queued. The source route travels in the message, see {@link DataTransferMessage#setRoute(List)}.
+ * See {@link #setMultipath(boolean)}.
+ *
+ * Relays drop messages whose TTL ran out, so that a routing loop cannot circulate them. Hops,
+ * forwards and drops are counted in {@link ForwardingStats}.
+ *
+ * Messages requesting a delivery ack are acknowledged end-to-end by their destination, and sent
+ * again by their source until the ack arrives, as decided by a {@link DeliveryTracker}.
+ *
+ * Not thread safe. Like its {@link SessionManager}, confined to one thread, in the app that of
+ * a {@link sword.blemesh.sdk.MeshEventLoop}.
+ *
+ * Free of Android framework dependencies, so that several routers may run in one JVM.
+ * See {@link sword.blemesh.sdk.simulator.MeshSimulator}
+ */
+public class MeshRouter implements SessionManager.SessionManagerCallback {
+
+    /** Interval at which {@link #maintainLinkState()} should be called */
+    public static final long LINK_STATE_MAINTENANCE_MILLIS = 60 * 1000;
+
+    /** Interval at which {@link #maintainDeliveries()} should be called while {@link #hasPendingDeliveries()} */
+    public static final long DELIVERY_MAINTENANCE_MILLIS = 250;
+
+    /** Disjoint routes over which bulk messages to one destination are spread */
+    public static final int MULTIPATH_ROUTES = 3;
+
+    /** Routes longer than the shortest by more hops than this are not used for spreading */
+    public static final int MULTIPATH_MAX_EXTRA_HOPS = 2;
+
+    /** Progress of a sent DataTransferMessage. See {@link Listener#onDataSent} */
+    public enum DeliveryStatus {
+
+        /** The adjacent recipient received it, and forwards it unless it is the destination */
+        FORWARDED,
+
+        /** The destination acknowledged it. Reported only for messages requesting a delivery ack */
+        DELIVERED,
+
+        /** It was dropped on the way, or no delivery ack arrived. Reported with an exception */
+        FAILED
+    }
+
+    public interface Listener {
+
+        /** A DataTransferMessage addressed to the local peer arrived from sender */
+        void onDataReceived(@NonNull DataTransferMessage message,
+                            @NonNull Peer sender);
+
+        /**
+         * A DataTransferMessage sent or forwarded from here progressed
+         * @param recipient the adjacent peer it, or once {@link DeliveryStatus#DELIVERED} its ack,
+         *                  passed through. The local peer if it never left
+         * @param desc its destination, built from the address alone once no longer in the graph
+         */
+        void onDataSent(@NonNull DataTransferMessage message,
+                        @NonNull Peer recipient,
+                        @NonNull Peer desc,
+                        @NonNull DeliveryStatus status,
+                        @Nullable Exception exception);
+
+        /**
+         * The set of reachable peers changed
+         * @param vertexes reachable peers by mac address, excluding the local peer
+         */
+        void onPeersUpdated(@NonNull Map<String, Peer> vertexes,
+                            boolean isJoin);
+
+        void onNewLog(@NonNull String logText);
+    }
+
+    private final LocalPeer      localPeer;
+    private final LocalGraph     graph;
+    private SessionManager       sessionManager;
+    private Listener             listener;
+    private boolean              logGraph = true;
+    private final StoreAndForwardQueue storeAndForwardQueue = new StoreAndForwardQueue();
+    /** Forwarding table held messages were last checked against */
+    private ForwardingTable      storeAndForwardRoutes;
+    private final DeliveryTracker deliveryTracker = new DeliveryTracker();
+    private final ForwardingStats forwardingStats = new ForwardingStats();
+    /** Delivery IDs of acknowledged messages received, so retransmissions are reported once */
+    private final DeliveredMessages deliveredMessages = new DeliveredMessages();
+    private boolean              cutThrough      = true;
+    private boolean              multipath       = true;
+    private boolean              multipointRelays = true;
+    /** Sequence number of the latest link state passed on by origin, so that each is passed on once */
+    private final HashMap<String, Integer> floodedSequences = new HashMap<>();
+
+    public MeshRouter(@NonNull LocalPeer localPeer) {
+        this.localPeer = localPeer;
+        //initialize graph using local peer.
+        graph = new LocalGraph(localPeer);
+    }
+
+    // <editor-fold desc="Public API">
+
+    public void setSessionManager(@Nullable SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set whether the local graph is reported via {@link Listener#onNewLog(String)} after
+     * each change. Rendering the graph is costly for large meshes.
+     */
+    public void setLogGraph(boolean logGraph) {
+        this.logGraph = logGraph;
+    }
+
+    /**
+     * Set whether relayed messages are passed on as soon as their header arrives, rather than
+     * once complete. Only bodies small enough to hold in memory are. Defaults to true
+     */
+    public void setCutThrough(boolean cutThrough) {
+        this.cutThrough = cutThrough;
+    }
+
+    /**
+     * Set whether bulk messages from the local peer are spread over disjoint routes, rather than
+     * all taking the shortest. Defaults to true
+     */
+    public void setMultipath(boolean multipath) {
+        this.multipath = multipath;
+    }
+
+    /**
+     * Set whether link state floods name the neighbours that should pass them on, rather than
+     * all passing them on. Defaults to true
+     */
+    public void setMultipointRelays(boolean multipointRelays) {
+        this.multipointRelays = multipointRelays;
+    }
+
+    /** Time source for link state ages. Defaults to {@link Clock#SYSTEM} */
+    public void setClock(@NonNull Clock clock) {
+        graph.setClock(clock);
+        storeAndForwardQueue.setClock(clock);
+        deliveryTracker.setClock(clock);
+        deliveredMessages.setClock(clock);
+    }
+
+    /**
+     * Drop link state that was not refreshed within {@link LocalGraph#LINK_STATE_MAX_AGE_SECONDS}, and
+     * re-advertise the local peer's links every {@link LocalGraph#LINK_STATE_REFRESH_SECONDS}
+     */
+    public void maintainLinkState() {
+        List<String> expiredOrigins = graph.expireLinkStates();
+        floodedSequences.keySet().removeAll(expiredOrigins);
+        if (!expiredOrigins.isEmpty()) reportPeersUpdated(false);
+        for (DataTransferMessage expired : storeAndForwardQueue.expire())
+            drop(expired, ForwardingStats.DropReason.HOLD_EXPIRED);
+
+        String local = localPeer.getMacAddress();
+        if (graph.getLinkStateSequence(local) > 0
+                && graph.getLinkStateAge(local) >= LocalGraph.LINK_STATE_REFRESH_SECONDS)
+            advertiseLocalLinkState(0);
+    }
+
+    /**
+     * Send again messages whose delivery ack is overdue, and report those out of attempts as failed
+     */
+    public void maintainDeliveries() {
+        for (DataTransferMessage expired : deliveryTracker.expire())
+            reportFailed(expired, new IllegalStateException("No delivery ack from " + expired.getDesc_mac_address()));
+
+        for (DataTransferMessage message : deliveryTracker.takeRetransmissions()) {
+            Timber.d("No delivery ack for %s, sending it again", MessageId.toString(message.getDeliveryId()));
+            send(DataTransferMessage.createRetransmission(message));
+        }
+    }
+
+    /** @return whether messages await a delivery ack, so {@link #maintainDeliveries()} should be called */
+    public boolean hasPendingDeliveries() {
+        return deliveryTracker.getPendingCount() > 0;
+    }
+
+    /** @return counts of DataTransferMessages delivered here, forwarded and dropped */
+    public ForwardingStats getForwardingStats() {
+        return forwardingStats;
+    }
+
+    /** @return delivery acks awaited, with end-to-end latency and delivery ratio metrics */
+    public DeliveryTracker getDeliveryTracker() {
+        return deliveryTracker;
+    }
+
+    public LocalPeer getLocalPeer() {
+        return localPeer;
+    }
+
+    public LocalGraph getGraph() {
+        return graph;
+    }
+
+    /** @return messages held until their destination is reachable. Set its directory to persist them */
+    public StoreAndForwardQueue getStoreAndForwardQueue() {
+        return storeAndForwardQueue;
+    }
+
+    /**
+     * @return the adjacent peer on the path to recipient, or null if recipient is unreachable
+     */
+    public @Nullable Peer getNextReply(@NonNull Peer recipient) {
+        Peer next_reply_node = graph.getForwardingTable().getNextHop(recipient.getMacAddress());
+        if (next_reply_node == null)
+            Timber.w("No route to %s : %s", recipient.getAlias(), recipient.getMacAddress());
+        else if (next_reply_node.equals(recipient))
+            Timber.d("Next hop is destination recipient %s : %s", recipient.getAlias(), recipient.getMacAddress());
+        else
+            Timber.d("Desc is %s : %s, next replay is %s : %s",
+                    recipient.getAlias(), recipient.getMacAddress(),
+                    next_reply_node.getAlias(), next_reply_node.getMacAddress());
+        return next_reply_node;
+    }
+
+    /**
+     * Send message towards its destination peer via the next hop of its source route, or failing
+     * that of the local graph's {@link ForwardingTable}. Does not lock the graph when relaying, so
+     * relaying never waits on graph updates. Bulk messages of the local peer are given a source
+     * route first, see {@link #setMultipath(boolean)}.
+     *
+     * @return false if the destination is unreachable, in which case message is held in the
+     * {@link StoreAndForwardQueue} until it is reachable
+     */
+    public boolean send(@NonNull DataTransferMessage message) {
+        if (isAwaitingAck(message)) deliveryTracker.queued(message);
+        if (multipath && message.getRoute() == null && message.getPriority() == SessionMessage.Priority.BULK
+                && localPeer.getMacAddress().equals(message.getSource()))
+            chooseRoute(message);
+
+        Peer next_reply_node = getNextHop(message);
+        if (next_reply_node != null && sessionManager.sendMessage(message, next_reply_node)) return true;
+
+        Timber.d("No route to %s, holding message %s", message.getDesc_mac_address(), MessageId.toString(message.getID()));
+        for (DataTransferMessage dropped : storeAndForwardQueue.store(message))
+            drop(dropped, ForwardingStats.DropReason.HOLD_OVER_CAPACITY);
+        return false;
+    }
+
+    // </editor-fold desc="Public API">
+
+    /**
+     * Pin message to the disjoint route to its destination whose first hop has the fewest bytes
+     * queued, so that bulk transfers spread over relays rather than queue behind one
+     */
+    private void chooseRoute(DataTransferMessage message) {
+        List<List<Peer>> paths = graph.getDisjointPaths(message.getDesc_mac_address(), MULTIPATH_ROUTES);
+        if (paths.size() < 2) return;
+
+        int maxHops = Math.min(message.getTTL(), paths.get(0).size() + MULTIPATH_MAX_EXTRA_HOPS);
+        List<Peer> best        = null;
+        long       bestBacklog = Long.MAX_VALUE;
+        for (List<Peer> path : paths) {
+            if (path.size() > maxHops) continue;
+            long backlog = sessionManager.getBacklogBytes(path.get(0));
+            if (backlog < bestBacklog) {
+                best        = path;
+                bestBacklog = backlog;
+            }
+        }
+        if (best == null) return;
+
+        List<String> route = new ArrayList<>(best.size());
+        for (Peer hop : best)
+            route.add(hop.getMacAddress());
+        message.setRoute(route);
+        Timber.d("Routing %s via %s, %d bytes queued there", MessageId.toString(message.getID()),
+                best.get(0).getAlias(), bestBacklog);
+    }
+
+    /**
+     * @return the adjacent peer message should go to next: the next hop of its source route while
+     * that is adjacent, otherwise that of the forwarding table. Null if the destination is unreachable
+     */
+    private @Nullable Peer getNextHop(DataTransferMessage message) {
+        ForwardingTable forwardingTable = graph.getForwardingTable();
+        String routeHop = message.getRouteHopAfter(localPeer.getMacAddress());
+        if (routeHop != null) {
+            Peer adjacent = forwardingTable.getNextHop(routeHop);
+            if (adjacent != null && adjacent.getMacAddress().equals(routeHop)) return adjacent;
+        }
+        return forwardingTable.getNextHop(message.getDesc_mac_address());
+    }
+
+    // <editor-fold desc="SessionManagerCallback">
+
+    @Override
+    public void directPeerStatusUpdated(@NonNull Peer peer, @NonNull Transport.ConnectionStatus newStatus, boolean isHost) {
+        GraphMessage mGraphMessage;
+        switch (newStatus) {
+            case CONNECTED:
+                Timber.d("New direct remote device alias:%s, MacAddress:%s ", peer.getAlias(), peer.getMacAddress());
+                graph.newDirectRemote(peer);
+
+                // The new neighbour learns of the link from our graph, everyone else from a delta
+                advertiseLocalLinks(Collections.singletonMap(peer.getMacAddress(), peer.getRssi()),
+                        Collections.<String>emptyList(), peer);
+
+                mGraphMessage = GraphMessage.createOutgoing(null, GraphMessage.ACTION_JOIN, GraphMessage.SINGLE_CAST,
+                        graph.getLinkStateGraph(), graph.getLinkStateSequences(), graph.getLinkStateAges(),
+                        localPeer.getMacAddress());
+                Timber.d("Start sending own graph message to peer %s", peer.getAlias());
+                sessionManager.sendMessage(mGraphMessage, peer);
+                sendHeldMessages();
+                break;
+
+            case DISCONNECTED:
+                //TODO: 删除后的图可以是非连通图，与local peer连通的设备列表由另外的变量处理。
+                Timber.d("Device has disconnected, alias:%s, MacAddress:%s ", peer.getAlias(), peer.getMacAddress());
+                graph.lostDirectRemote(peer);
+
+                advertiseLocalLinks(Collections.<String, Integer>emptyMap(),
+                        Collections.singletonList(peer.getMacAddress()), peer);
+                reportPeersUpdated(false);
+                break;
+        }
+    }
+
+    @Override
+    public void messageHeaderReceivedFromPeer(@NonNull SessionMessage message, @NonNull Peer sender) {
+        if (!cutThrough || !(message instanceof DataTransferMessage)) return;
+
+        DataTransferMessage dataTransferMessage = (DataTransferMessage) message;
+        String desc = dataTransferMessage.getDesc_mac_address();
+        if (localPeer.getMacAddress().equals(desc) || dataTransferMessage.getTTL() <= 0
+                || !dataTransferMessage.canStreamBody()
+                || graph.getForwardingTable().getNextHop(desc) == null) return;
+
+        Timber.d("Relaying %s to %s as it arrives", MessageId.toString(message.getID()), desc);
+        dataTransferMessage.streamBody();
+        forwardingStats.recordForwarded();
+        send(dataTransferMessage);
+    }
+
+    @Override
+    public void messageReceivingFromPeer(@NonNull SessionMessage message, @NonNull Peer recipient, float progress) {
+        // currently unused
+    }
+
+    @Override
+    public void messageReceivedFromPeer(@NonNull SessionMessage message, @NonNull Peer sender) {
+        switch (message.getType()) {
+            case GraphMessage.HEADER_TYPE:
+                GraphMessage remoteGraphMessage = (GraphMessage) message;
+                switch (remoteGraphMessage.getAction()) {
+                    case GraphMessage.ACTION_JOIN:
+                        Map<String, Integer> sequences = remoteGraphMessage.getLinkStateSequences();
+                        if (sequences != null) mergeLinkStates(remoteGraphMessage, sequences, sender);
+                        else mergeGraph(remoteGraphMessage, sender);
+                        reportPeersUpdated(true);
+                        break;
+
+                    case GraphMessage.ACTION_LEFT:
+                        PeersGraph remoteGraph = remoteGraphMessage.getPeersGraph();
+                        Timber.d("replace own local graph with remote new graph ");
+                        graph.trimGraph(sender, remoteGraph);
+                        logGraph("After delete " + sender.getAlias() + " the LocalGraph is: \n");
+                        sessionManager.broadcastMessage(message, sender);
+                        reportPeersUpdated(false);
+                        break;
+
+                    case GraphMessage.ACTION_LINK_DELTA:
+                    case GraphMessage.ACTION_LINK_STATE:
+                        if (applyLinkState(remoteGraphMessage, sender)) reportPeersUpdated(true);
+                        break;
+
+                    case GraphMessage.ACTION_LINK_STATE_REQUEST:
+                        String origin = remoteGraphMessage.getOrigin();
+                        if (origin != null && graph.getLinkStateSequence(origin) > 0)
+                            sessionManager.sendMessage(createLinkState(origin), sender);
+                        break;
+                }
+                break;
+
+            case DataTransferMessage.HEADER_TYPE:
+                DataTransferMessage dataTransferMessage = (DataTransferMessage) message;
+                if (localPeer.getMacAddress().equals(dataTransferMessage.getDesc_mac_address())) {
+                    // Reach the desc node
+                    if (dataTransferMessage.isDeliveryAck()) {
+                        deliveryAcknowledged(dataTransferMessage, sender);
+                        break;
+                    }
+                    if (dataTransferMessage.isDeliveryAckRequested() && !acknowledgeDelivery(dataTransferMessage))
+                        break;
+                    forwardingStats.recordDelivered(dataTransferMessage);
+                    if (listener != null) listener.onDataReceived(dataTransferMessage, sender);
+                } else if (dataTransferMessage.isBodyStreamed()) {
+                    Timber.d("Received %s, relayed as it arrived", MessageId.toString(message.getID()));
+                } else if (dataTransferMessage.getTTL() <= 0) {
+                    Timber.w("Dropping %s to %s, TTL ran out after %d hops", MessageId.toString(message.getID()),
+                            dataTransferMessage.getDesc_mac_address(), dataTransferMessage.getHopCount());
+                    forwardingStats.recordDropped(ForwardingStats.DropReason.TTL_EXPIRED);
+                    deleteRelayedBodyFile(dataTransferMessage);
+                } else {
+                    forwardingStats.recordForwarded();
+                    send(dataTransferMessage);
+                }
+                break;
+        }
+    }
+
+    @Override
+    public void messageSendingToPeer(@NonNull SessionMessage message, @NonNull Peer recipient, float progress) {
+        // currently unused
+    }
+
+    @Override
+    public void messageSentToPeer(@NonNull SessionMessage message, @NonNull Peer recipient, @Nullable Exception exception) {
+        if (!message.getType().equals(DataTransferMessage.HEADER_TYPE)) return;
+
+        DataTransferMessage dataTransferMessage = (DataTransferMessage) message;
+
+        // The next hop left before delivery. Reroute the message, or hold it until we can
+        if (exception != null) {
+            // Its body stopped arriving. The previous hop sends it again if it can
+            if (dataTransferMessage.isAborted()) return;
+
+            if (!dataTransferMessage.canReplayBody()) {
+                drop(dataTransferMessage, ForwardingStats.DropReason.BODY_NOT_REPLAYABLE);
+                return;
+            }
+
+            Timber.d("Message %s not delivered to %s, resending", MessageId.toString(message.getID()), recipient.getAlias());
+            send(dataTransferMessage);
+            return;
+        }
+
+        deleteRelayedBodyFile(dataTransferMessage);
+        if (dataTransferMessage.isDeliveryAck()) return;
+
+        Peer desc = graph.getVertexList().get(dataTransferMessage.getDesc_mac_address());
+        // Retransmissions were reported forwarded the first time
+        List<String> route = dataTransferMessage.getRoute();
+        int hops = route != null ? route.size() : desc == null ? 1 : desc.getHops();
+        if (isAwaitingAck(dataTransferMessage) && !deliveryTracker.sent(dataTransferMessage, hops)) return;
+
+        if (listener != null) {
+            listener.onNewLog("Data forward to " + recipient.getAlias() + ", desc is " +
+                    (desc != null ? desc.getAlias() : dataTransferMessage.getDesc_mac_address()) + "\n");
+            listener.onDataSent(dataTransferMessage, recipient, getDesc(dataTransferMessage), DeliveryStatus.FORWARDED, null);
+        }
+    }
+
+    // </editor-fold desc="SessionManagerCallback">
+
+    private void logGraph(String title) {
+        if (listener == null || !logGraph) return;
+
+        listener.onNewLog(title);
+        listener.onNewLog(graph.displayGraph());
+    }
+
+    // <editor-fold desc="Link state">
+
+    /**
+     * A peer that does not version link state sent its whole graph. Merge it and flood it on
+     */
+    private void mergeGraph(GraphMessage remoteGraphMessage, Peer sender) {
+        PeersGraph remoteGraph = remoteGraphMessage.getPeersGraph();
+        Timber.d("Merge remote graph to own local graph");
+        boolean changed = graph.mergeGarph(sender, remoteGraph);
+        logGraph("After merge " + sender.getAlias() + " the LocalGraph is: \n");
+
+        // On a cycle the graph comes back round. Passing it on again would flood it forever
+        if (!changed) {
+            Timber.d("Remote graph held nothing new, not passing it on");
+            return;
+        }
+
+        // A graph relayed from further away may not include the sender
+        LinkedHashMap<String, Integer> senderEdges = remoteGraph.getEdgeMatrix().get(sender.getMacAddress());
+        Integer senderRssi = graph.getEdgeMatrix().get(sender.getMacAddress()).get(localPeer.getMacAddress());
+        if (senderEdges != null && senderRssi != null)
+            senderEdges.put(localPeer.getMacAddress(), senderRssi);
+
+        GraphMessage broadcastGraphMessage = GraphMessage.createOutgoing(null,
+                GraphMessage.ACTION_JOIN,
+                GraphMessage.BROADCAST,
+                remoteGraph,
+                localPeer.getMacAddress());
+        Timber.d("broadcast graph message ");
+        sessionManager.broadcastMessage(broadcastGraphMessage, sender);
+    }
+
+    /**
+     * A new neighbour sent its graph. Adopt the link states it holds newer versions of, and
+     * pass those on to the other neighbours
+     */
+    private void mergeLinkStates(GraphMessage remoteGraphMessage, Map<String, Integer> sequences, Peer sender) {
+        List<String> adopted = graph.mergeLinkStates(sender, remoteGraphMessage.getPeersGraph(), sequences,
+                remoteGraphMessage.getLinkStateAges());
+        Timber.d("Adopted %d link states from %s", adopted.size(), sender.getAlias());
+        logGraph("After merge " + sender.getAlias() + " the LocalGraph is: \n");
+
+        for (String origin : adopted)
+            floodLinkState(createLinkState(origin), sender);
+
+        // Our link state from before a restart outlived us. Supersede it
+        Integer ownSequence = sequences.get(localPeer.getMacAddress());
+        if (ownSequence != null && ownSequence >= graph.getLinkStateSequence(localPeer.getMacAddress()))
+            advertiseLocalLinkState(ownSequence);
+    }
+
+    /**
+     * Apply a flooded link state advertisement and pass it on if it was new
+     *
+     * @return true if the graph changed
+     */
+    private boolean applyLinkState(GraphMessage message, Peer sender) {
+        String origin = message.getOrigin();
+        if (origin == null) return false;
+
+        if (localPeer.getMacAddress().equals(origin)) {
+            if (message.getSequence() >= graph.getLinkStateSequence(origin))
+                advertiseLocalLinkState(message.getSequence());
+            return false;
+        }
+
+        LocalGraph.LinkStateUpdate update = graph.applyLinkState(origin, message.getSequence(),
+                message.getLinkStateAge(), message.getAction() == GraphMessage.ACTION_LINK_STATE,
+                message.getLinks(), message.getRemovedLinks(), message.getPeers());
+        switch (update) {
+            case APPLIED:
+                if (message.isRelay(localPeer.getMacAddress())) floodLinkState(message, sender);
+                else passOnToUncovered(message, sender);
+                return true;
+
+            case STALE:
+                // First heard from a peer that did not choose us as relay, now from one that did
+                Integer flooded = floodedSequences.get(origin);
+                if (message.getSequence() == graph.getLinkStateSequence(origin)
+                        && message.isRelay(localPeer.getMacAddress())
+                        && (flooded == null || flooded != message.getSequence()))
+                    floodLinkState(message, sender);
+                return false;
+
+            case MISSING_PREDECESSOR:
+                Timber.d("Missed link state of %s before %d, requesting it from %s",
+                        origin, message.getSequence(), sender.getAlias());
+                sessionManager.sendMessage(GraphMessage.createLinkStateRequest(origin, localPeer.getMacAddress()), sender);
+                return false;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Flood a change of the local peer's links to all neighbours but except
+     */
+    private void advertiseLocalLinks(Map<String, Integer> links, List<String> removed, Peer except) {
+        String local = localPeer.getMacAddress();
+        int sequence = graph.nextLocalLinkStateSequence(0);
+        GraphMessage delta = GraphMessage.createLinkState(GraphMessage.ACTION_LINK_DELTA, local, sequence, 0,
+                graph.getLinkStatePeers(local), links, removed, local);
+        floodLinkState(delta, except);
+    }
+
+    /**
+     * Flood all of the local peer's links with a sequence number above after
+     */
+    private void advertiseLocalLinkState(int after) {
+        graph.nextLocalLinkStateSequence(after);
+        floodLinkState(createLinkState(localPeer.getMacAddress()), null);
+    }
+
+    /**
+     * Send a link state to all neighbours but except, naming the multipoint relays that should
+     * pass it on. See {@link LocalGraph#getMultipointRelays()}
+     */
+    private void floodLinkState(GraphMessage message, @Nullable Peer except) {
+        if (multipointRelays) message.setRelays(graph.getMultipointRelays());
+        floodedSequences.put(message.getOrigin(), message.getSequence());
+        sessionManager.broadcastMessage(message, except);
+    }
+
+    /**
+     * Pass a flood this peer was not chosen to relay on to those neighbours no relay is linked to,
+     * as sender chose relays before it knew of their links
+     */
+    private void passOnToUncovered(GraphMessage message, Peer sender) {
+        List<String> uncovered = graph.getUncoveredNeighbours(sender.getMacAddress(), message.getRelays());
+        if (uncovered.isEmpty()) return;
+
+        for (Peer adjacent : sessionManager.getAvailablePeers()) {
+            if (uncovered.contains(adjacent.getMacAddress())) sessionManager.sendMessage(message, adjacent);
+        }
+    }
+
+    /** @return origin's complete link state as known here */
+    private GraphMessage createLinkState(String origin) {
+        LinkedHashMap<String, Integer> links = graph.getLinkState(origin);
+        return GraphMessage.createLinkState(GraphMessage.ACTION_LINK_STATE, origin,
+                graph.getLinkStateSequence(origin), graph.getLinkStateAge(origin),
+                graph.getLinkStatePeers(origin), links, null, localPeer.getMacAddress());
+    }
+
+    // </editor-fold desc="Link state">
+
+    // <editor-fold desc="Store and forward">
+
+    /**
+     * Send held messages whose destination became reachable. Checks only when the
+     * forwarding table was replaced since the last call
+     */
+    private void sendHeldMessages() {
+        ForwardingTable routes = graph.getForwardingTable();
+        if (routes == storeAndForwardRoutes) return;
+        storeAndForwardRoutes = routes;
+
+        for (String destination : storeAndForwardQueue.getDestinations()) {
+            if (!routes.isReachable(destination)) continue;
+
+            List<DataTransferMessage> held = storeAndForwardQueue.take(destination);
+            Timber.d("Route to %s appeared, sending %d held messages", destination, held.size());
+            for (DataTransferMessage message : held)
+                send(message);
+        }
+    }
+
+    /** Drop a message that will not reach its destination, reporting it failed if it originated here */
+    private void drop(DataTransferMessage message, ForwardingStats.DropReason reason) {
+        Timber.w("Dropping message %s to %s, %s", MessageId.toString(message.getID()),
+                message.getDesc_mac_address(), reason);
+        forwardingStats.recordDropped(reason);
+        deleteRelayedBodyFile(message);
+        if (message.isDeliveryAck()) return;
+
+        // Report the message the client sent, rather than a retransmission of it
+        if (isAwaitingAck(message)) {
+            DataTransferMessage original = deliveryTracker.fail(message.getDeliveryId());
+            if (original != null) message = original;
+        }
+        reportFailed(message, new IllegalStateException("Could not deliver to " + message.getDesc_mac_address() + ", " + reason));
+    }
+
+    // </editor-fold desc="Store and forward">
+
+    // <editor-fold desc="Delivery acks">
+
+    /** @return whether message originates here and awaits a delivery ack */
+    private boolean isAwaitingAck(DataTransferMessage message) {
+        return message.isDeliveryAckRequested() && localPeer.getMacAddress().equals(message.getSource());
+    }
+
+    /**
+     * Acknowledge a message addressed here. The source sends it again if the ack is lost, so
+     * every copy is acknowledged
+     *
+     * @return false if a copy was received before, so message should not be reported
+     */
+    private boolean acknowledgeDelivery(DataTransferMessage message) {
+        send(DataTransferMessage.createDeliveryAck(message, localPeer.getMacAddress()));
+
+        if (deliveredMessages.checkAndAdd(message.getSource(), message.getDeliveryId())) {
+            Timber.d("Received %s again, acknowledged it again", MessageId.toString(message.getDeliveryId()));
+            return false;
+        }
+        return true;
+    }
+
+    private void deliveryAcknowledged(DataTransferMessage ack, Peer sender) {
+        DataTransferMessage message = deliveryTracker.acknowledged(ack.getAckedDeliveryId());
+        if (message == null) {
+            Timber.d("Ignoring ack of %s, not awaited", MessageId.toString(ack.getAckedDeliveryId()));
+            return;
+        }
+        if (listener != null)
+            listener.onDataSent(message, sender, getDesc(message), DeliveryStatus.DELIVERED, null);
+    }
+
+    private void reportFailed(DataTransferMessage message, Exception exception) {
+        if (listener != null)
+            listener.onDataSent(message, localPeer, getDesc(message), DeliveryStatus.FAILED, exception);
+    }
+
+    /** @return the destination of message, or a peer known only by its address if it left the graph */
+    private Peer getDesc(DataTransferMessage message) {
+        String address = message.getDesc_mac_address();
+        Peer desc = graph.getVertexList().get(address);
+        return desc != null ? desc : new Peer(address, address, null, 0);
+    }
+
+    // </editor-fold desc="Delivery acks">
+
+    private void reportPeersUpdated(boolean isJoin) {
+        sendHeldMessages();
+        if (listener == null) return;
+
+        Map<String, Peer> vertexes = new LinkedHashMap<>(graph.getVertexList());
+        vertexes.remove(localPeer.getMacAddress());
+        listener.onPeersUpdated(vertexes, isJoin);
+    }
+
+    /**
+     * A large message we relayed was spooled to disk on receipt. Once forwarded, nobody
+     * else will read the spool file. Files of messages originating here belong to the client.
+     */
+    private void deleteRelayedBodyFile(DataTransferMessage message) {
+        File bodyFile = message.getBodyFile();
+        if (bodyFile == null || localPeer.getMacAddress().equals(message.getSource())) return;
+
+        if (!bodyFile.delete())
+            Timber.w("Failed to delete relayed body file %s", bodyFile.getAbsolutePath());
+    }
+}
@@ -3,13 +3,13 @@ package sword.blemesh.sdk.app;
 import sword.blemesh.sdk.session.DataTransferMessage;
 import sword.blemesh.sdk.mesh_graph.Peer;
 import sword.blemesh.sdk.session.SessionMessage;
-import sword.blemesh.sdk.session.SessionMessageScheduler;
 
 /**
- * An OutgoingTransfer wraps an outgoing data transfer.
+ * An OutgoingTransfer tracks the delivery of an outgoing data transfer.
  *
- * 1. Constructed with a byte[]
- * 2. Sends a DataTransferMessage
+ * It does not send: handing a message straight to the session layer would drop it whenever
+ * the next hop cannot take it. The {@link MeshRouter} sends it, holding it in its
+ * {@link StoreAndForwardQueue} while there is no route.
  *
  * Created by davidbrodsky on 3/13/15.
  */
@@ -24,51 +24,33 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
         COMPLETE
     }
 
-    private Peer next_reply_node;
-    private SessionMessageScheduler messageSender;
+    private Peer recipient;
     private State state;
 
     // <editor-fold desc="Outgoing Constructors">
 
-    public OutgoingTransfer(byte[] data,
-                            Peer recipient,
-                            Peer next_reply_node,
-                            String sourceAddress,
-                            SessionMessageScheduler messageSender) {
-
-        init(next_reply_node, messageSender);
-
-        transferMessage = DataTransferMessage.createOutgoing(null, recipient, sourceAddress, data);
-        messageSender.sendMessage(transferMessage, next_reply_node);
-
-        state = State.AWAITING_DATA_ACK;
-    }
-
-    public OutgoingTransfer(Peer next_reply_node,
-                            SessionMessage message,
-                            SessionMessageScheduler messageSender){
-        init(next_reply_node, messageSender);
+    /**
+     * Track the delivery of message, which a {@link MeshRouter} sends towards recipient over
+     * the route it picks, holding it while there is none
+     */
+    public OutgoingTransfer(Peer recipient,
+                            DataTransferMessage message) {
+        this.recipient = recipient;
         this.transferMessage = message;
-        messageSender.sendMessage(transferMessage, next_reply_node);
 
         state = State.AWAITING_DATA_ACK;
     }
 
-
     // </editor-fold desc="Outgoing Constructors">
 
-    private void init(Peer recipient, SessionMessageScheduler sender) {
-        this.next_reply_node = recipient;
-        this.messageSender = sender;
+    /** @return the {@link sword.blemesh.sdk.session.MessageId} of the transfer, or 0 if none was sent */
+    public long getTransferId() {
+        if (transferMessage == null) return 0;
+        return transferMessage.getID();
     }
 
-    public String getTransferId() {
-        if (transferMessage == null) return null;
-        return (String) transferMessage.getHeaders().get(SessionMessage.HEADER_ID);
-    }
-
-    public Peer getNext_reply_node() {
-        return next_reply_node;
+    public Peer getRecipient() {
+        return recipient;
     }
 
     @Override
@@ -83,6 +65,9 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
     @Override
     public boolean onMessageDelivered(SessionMessage message, Peer recipient, Exception exception) {
 
+        // A failed hop is not the end of the transfer. The router sends it again or holds it
+        if (exception != null) return true;
+
         if (state == State.AWAITING_DATA_ACK && transferMessage != null && message.equals(transferMessage)) {
 
             state = State.COMPLETE;
@@ -0,0 +1,314 @@
+package sword.blemesh.sdk.app;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import sword.blemesh.sdk.Clock;
+import sword.blemesh.sdk.session.DataTransferMessage;
+import sword.blemesh.sdk.session.SessionMessage;
+import sword.blemesh.sdk.session.SessionMessageDeserializer;
+import timber.log.Timber;
+
+/**
+ * Holds {@link DataTransferMessage}s whose destination is unreachable, keyed by destination,
+ * until a route to it appears again. See {@link MeshRouter}.
+ *
+ * Messages are dropped once older than the TTL. When the total serialized size or count of
+ * held messages would exceed its cap, the oldest messages are dropped first.
+ *
+ * If a directory is set via {@link #setDirectory(File)}, each held message is also written
+ * there, so that messages survive a restart. Messages whose body is read from a stream can
+ * only be serialized once, so they are held in memory only. Persisted messages are read back
+ * into memory, so the size cap should stay well below the disk spooling threshold of
+ * {@link SessionMessageDeserializer}.
+ *
+ * Not thread safe.
+ */
+public class StoreAndForwardQueue {
+
+    public static final long DEFAULT_TTL_MILLIS   = 30 * 60 * 1000;
+    public static final long DEFAULT_MAX_BYTES    = 1024 * 1024;
+    public static final int  DEFAULT_MAX_MESSAGES = 256;
+
+    private static final String FILE_SUFFIX = ".msg";
+    private static final int    COPY_BYTES  = 4 * 1024;
+
+    private static class Entry {
+        final DataTransferMessage message;
+        final long                storedMillis;
+        @Nullable File            file;
+
+        Entry(DataTransferMessage message, long storedMillis) {
+            this.message      = message;
+            this.storedMillis = storedMillis;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long maxBytes;
+    private final int  maxMessages;
+
+    /** Held messages by destination mac address, each oldest first */
+    private final LinkedHashMap<String, ArrayDeque<Entry>> destinations = new LinkedHashMap<>();
+    private long   storedBytes;
+    private int    storedCount;
+    private Clock  clock = Clock.SYSTEM;
+    private File   directory;
+
+    public StoreAndForwardQueue() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_BYTES, DEFAULT_MAX_MESSAGES);
+    }
+
+    /**
+     * @param ttlMillis   age at which a held message is dropped
+     * @param maxBytes    cap on the total serialized length of held messages
+     * @param maxMessages cap on the number of held messages
+     */
+    public StoreAndForwardQueue(long ttlMillis, long maxBytes, int maxMessages) {
+        if (ttlMillis < 1)
+            throw new IllegalArgumentException("TTL must be at least 1 ms");
+        if (maxBytes < 1 || maxMessages < 1)
+            throw new IllegalArgumentException("Caps must be at least 1");
+
+        this.ttlMillis   = ttlMillis;
+        this.maxBytes    = maxBytes;
+        this.maxMessages = maxMessages;
+    }
+
+    public void setClock(@NonNull Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Persist held messages in directory, and hold those persisted there before. Messages
+     * read back keep the age they had, judged by their file's modification time.
+     */
+    public void setDirectory(@Nullable File directory) {
+        this.directory = directory;
+        if (directory == null) return;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Timber.e("Cannot create store and forward directory %s", directory.getAbsolutePath());
+            this.directory = null;
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            if (!file.getName().endsWith(FILE_SUFFIX)) continue;
+
+            DataTransferMessage message = read(file);
+            long ageMillis = Math.max(0, System.currentTimeMillis() - file.lastModified());
+            if (message == null || ageMillis >= ttlMillis) {
+                delete(file);
+                continue;
+            }
+            Entry entry = new Entry(message, clock.elapsedMillis() - ageMillis);
+            entry.file = file;
+            add(entry);
+        }
+        Timber.d("Read %d held messages from %s", storedCount, directory.getAbsolutePath());
+    }
+
+    /**
+     * Hold message until {@link #take(String)} is called for its destination
+     *
+     * @return messages dropped to make room, including message itself if it exceeds the size cap
+     */
+    public @NonNull List<DataTransferMessage> store(@NonNull DataTransferMessage message) {
+        List<DataTransferMessage> dropped = expire();
+
+        if (message.getTotalLengthBytes() > maxBytes) {
+            Timber.w("Message %d of %d bytes exceeds store and forward cap", message.getID(), message.getTotalLengthBytes());
+            dropped.add(message);
+            return dropped;
+        }
+
+        while (storedCount >= maxMessages || storedBytes + message.getTotalLengthBytes() > maxBytes)
+            dropped.add(remove(oldestDestination()).message);
+
+        Entry entry = new Entry(message, clock.elapsedMillis());
+        if (directory != null && (message.isBodyInMemory() || message.getBodyFile() != null))
+            entry.file = write(message);
+        add(entry);
+        return dropped;
+    }
+
+    /**
+     * Remove the messages held for destination
+     *
+     * @return the messages, oldest first
+     */
+    public @NonNull List<DataTransferMessage> take(@NonNull String destination) {
+        expire();
+
+        List<DataTransferMessage> messages = new ArrayList<>();
+        while (destinations.containsKey(destination))
+            messages.add(remove(destination).message);
+        return messages;
+    }
+
+    /**
+     * Drop messages held longer than the TTL
+     *
+     * @return the dropped messages
+     */
+    public @NonNull List<DataTransferMessage> expire() {
+        List<DataTransferMessage> expired = new ArrayList<>();
+        long now = clock.elapsedMillis();
+
+        for (String destination : new ArrayList<>(destinations.keySet())) {
+            while (destinations.containsKey(destination)
+                    && now - destinations.get(destination).peek().storedMillis >= ttlMillis)
+                expired.add(remove(destination).message);
+        }
+        return expired;
+    }
+
+    /** @return destinations messages are held for */
+    public @NonNull List<String> getDestinations() {
+        return new ArrayList<>(destinations.keySet());
+    }
+
+    /** @return number of messages held */
+    public int size() {
+        return storedCount;
+    }
+
+    /** @return total serialized length of messages held */
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    // <editor-fold desc="Private API">
+
+    private void add(Entry entry) {
+        String destination = entry.message.getDesc_mac_address();
+        ArrayDeque<Entry> entries = destinations.get(destination);
+        if (entries == null) {
+            entries = new ArrayDeque<>();
+            destinations.put(destination, entries);
+        }
+        entries.offer(entry);
+        storedBytes += entry.message.getTotalLengthBytes();
+        storedCount++;
+    }
+
+    /** Remove the oldest message held for destination */
+    private Entry remove(String destination) {
+        ArrayDeque<Entry> entries = destinations.get(destination);
+        Entry entry = entries.poll();
+        if (entries.isEmpty()) destinations.remove(destination);
+
+        storedBytes -= entry.message.getTotalLengthBytes();
+        storedCount--;
+        if (entry.file != null) delete(entry.file);
+        return entry;
+    }
+
+    private String oldestDestination() {
+        String oldest = null;
+        long oldestMillis = Long.MAX_VALUE;
+        for (Map.Entry<String, ArrayDeque<Entry>> entries : destinations.entrySet()) {
+            long storedMillis = entries.getValue().peek().storedMillis;
+            if (storedMillis < oldestMillis) {
+                oldest       = entries.getKey();
+                oldestMillis = storedMillis;
+            }
+        }
+        return oldest;
+    }
+
+    private @Nullable File write(DataTransferMessage message) {
+        File file = new File(directory, String.format("%016x%s", message.getID(), FILE_SUFFIX));
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            byte[] buffer = new byte[COPY_BYTES];
+            int offset = 0;
+            int length;
+            while ((length = message.serialize(offset, buffer, 0, buffer.length)) > 0) {
+                out.write(buffer, 0, length);
+                offset += length;
+            }
+            return file;
+        } catch (IOException e) {
+            Timber.e(e, "Failed to persist held message %d", message.getID());
+            delete(file);
+            return null;
+        } finally {
+            close(out);
+        }
+    }
+
+    private static @Nullable DataTransferMessage read(File file) {
+        final SessionMessage[] result = new SessionMessage[1];
+        SessionMessageDeserializer deserializer = new SessionMessageDeserializer(null,
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        if (e == null) result[0] = message;
+                    }
+                });
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[COPY_BYTES];
+            int length;
+            while ((length = in.read(buffer)) > 0)
+                deserializer.dataReceived(buffer, 0, length);
+        } catch (IOException e) {
+            Timber.e(e, "Failed to read held message %s", file.getName());
+            return null;
+        } finally {
+            close(in);
+        }
+
+        if (!(result[0] instanceof DataTransferMessage)) {
+            Timber.w("Held message file %s is not a complete DataTransferMessage", file.getName());
+            return null;
+        }
+        // Read back as if received, which cost it a hop
+        DataTransferMessage message = (DataTransferMessage) result[0];
+        message.restoreStoredTTL();
+        return message;
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete())
+            Timber.w("Failed to delete held message file %s", file.getAbsolutePath());
+    }
+
+    private static void close(@Nullable Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Timber.w(e, "Failed to close held message file");
+        }
+    }
+
+    // </editor-fold desc="Private API">
+}
@@ -3,12 +3,16 @@ package sword.blemesh.sdk.app;
 import android.support.annotation.Nullable;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.util.Date;
 import java.util.Map;
 
 import sword.blemesh.sdk.session.DataTransferMessage;
 import sword.blemesh.sdk.session.SessionMessage;
+import timber.log.Timber;
 
 /**
  * Created by davidbrodsky on 3/14/15.
@@ -20,24 +24,48 @@ public abstract class Transfer {
     public abstract boolean isComplete();
 
     public @Nullable InputStream getBody() {
-        if (transferMessage instanceof DataTransferMessage)
-            return new ByteArrayInputStream(getBodyBytes());
-        else
+        if (transferMessage instanceof DataTransferMessage) {
+            File bodyFile = getBodyFile();
+            if (bodyFile != null) {
+                try {
+                    return new FileInputStream(bodyFile);
+                } catch (FileNotFoundException e) {
+                    Timber.e(e, "Body file missing: %s", bodyFile.getAbsolutePath());
+                    return null;
+                }
+            }
+            byte[] body = getBodyBytes();
+            return body == null ? null : new ByteArrayInputStream(body);
+        } else
             throw new IllegalStateException("Only DataTransferMessage is supported!");
     }
 
+    /**
+     * @return the body, if it is held in memory. Large bodies are stored on disk, see {@link #getBodyFile()}.
+     * Bodies of outgoing transfers created from a File or InputStream are never held in memory.
+     */
     public @Nullable byte[] getBodyBytes() {
         if (transferMessage == null) return null;
 
         byte[] body = null;
 
         if (transferMessage instanceof DataTransferMessage) {
-            body = transferMessage.getBodyAtOffset(0, transferMessage.getBodyLengthBytes());
+            if (((DataTransferMessage) transferMessage).isBodyInMemory())
+                body = transferMessage.getBodyAtOffset(0, transferMessage.getBodyLengthBytes());
         } else
             throw new IllegalStateException("Only DataTransferMessage is supported!");
         return body;
     }
 
+    /**
+     * @return the file holding the body, or null if the body is not stored on disk
+     */
+    public @Nullable File getBodyFile() {
+        if (transferMessage == null || !(transferMessage instanceof DataTransferMessage))
+            return null;
+        return ((DataTransferMessage) transferMessage).getBodyFile();
+    }
+
     public @Nullable Map<String, Object> getHeaderExtras() {
         if (transferMessage == null || !(transferMessage instanceof DataTransferMessage))
             return null;
@@ -11,6 +11,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
@@ -18,6 +19,7 @@ import java.util.Map;
 
 import sword.blemesh.sdk.R;
 import sword.blemesh.sdk.app.BleMeshService;
+import sword.blemesh.sdk.app.MeshRouter;
 import sword.blemesh.sdk.app.adapter.PeerAdapter;
 import sword.blemesh.sdk.mesh_graph.Peer;
 import sword.blemesh.sdk.transport.Transport;
@@ -233,8 +235,23 @@ public class PeerFragment extends BleMeshFragment implements BleMeshService.Call
     }
 
     @Override
-    public void onDataSent(@NonNull BleMeshService.ServiceBinder binder, byte[] data, @NonNull Peer recipient, @NonNull Peer desc, Exception exception) {
+    public void onFileReceived(@NonNull BleMeshService.ServiceBinder binder, @NonNull File file, @NonNull Date date, @NonNull String sourceAddress, @NonNull Peer sender, Exception exception) {
         if (callback == null) return; // Fragment was detached but not destroyed
+
+        // PeerFragmentListener deals in in-memory payloads. Report large transfers by location
+        callback.onNewLog("Received " + file.length() + " bytes from " + sourceAddress + " at " + file.getAbsolutePath() + "\n");
+    }
+
+    @Override
+    public void onDataSent(@NonNull BleMeshService.ServiceBinder binder, byte[] data, @NonNull Peer recipient, @NonNull Peer desc,
+                           @NonNull MeshRouter.DeliveryStatus status, Exception exception) {
+        if (callback == null) return; // Fragment was detached but not destroyed
+
+        // PeerFragmentListener reports sends only. Report end-to-end outcomes as log
+        if (status != MeshRouter.DeliveryStatus.FORWARDED) {
+            callback.onNewLog("Data to " + desc.getAlias() + " " + status + "\n");
+            return;
+        }
         callback.onDataSent(this, data, recipient, desc);
 
 /*        if (mode == Mode.SEND)
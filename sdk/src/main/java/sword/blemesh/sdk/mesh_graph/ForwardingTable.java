@@ -0,0 +1,47 @@
+package sword.blemesh.sdk.mesh_graph;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The adjacent peer to forward to for each reachable destination, as of one route calculation
+ * of a {@link LocalGraph}. Immutable, so it may be read from any thread while the graph changes.
+ */
+public final class ForwardingTable {
+
+    public static final ForwardingTable EMPTY = new ForwardingTable(Collections.<String, Peer>emptyMap());
+
+    private final Map<String, Peer> nextHops;
+
+    /**
+     * @param nextHops next hop by destination mac address. Must not be modified afterwards
+     */
+    ForwardingTable(@NonNull Map<String, Peer> nextHops) {
+        this.nextHops = Collections.unmodifiableMap(nextHops);
+    }
+
+    /**
+     * @return the adjacent peer on the route to desc, or null if desc is the local peer or unreachable
+     */
+    @Nullable
+    public Peer getNextHop(@NonNull String desc) {
+        return nextHops.get(desc);
+    }
+
+    public boolean isReachable(@NonNull String desc) {
+        return nextHops.containsKey(desc);
+    }
+
+    /** @return next hop by destination mac address, excluding the local peer */
+    @NonNull
+    public Map<String, Peer> getNextHops() {
+        return nextHops;
+    }
+
+    public int size() {
+        return nextHops.size();
+    }
+}
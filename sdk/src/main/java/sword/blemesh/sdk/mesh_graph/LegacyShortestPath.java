@@ -0,0 +1,156 @@
+package sword.blemesh.sdk.mesh_graph;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+/**
+ * The route computation {@link LocalGraph} used before {@link RoutingEngine}: a linear scan for
+ * the next node to visit, copying each route's metric queue per relaxed link. Kept as the
+ * reference for tests and benchmarks.
+ */
+final class LegacyShortestPath {
+
+    private static final int MAX_HOPS   = RoutingEngine.MAX_HOPS;
+    private static final int MAX_RSSI   = 200;
+    private static final int MAX_Metric = RoutingEngine.MAX_METRIC;
+
+    private static final Comparator<Integer> cmp = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer e1, Integer e2) {
+            return e2 - e1;
+        }
+    };
+
+    static class Shortest_Path_Info {
+        private String prev_node_address;
+        private int rssi;
+        private Queue<Integer> rssiMetricPriorityQueue;
+        private int hops;
+
+        Shortest_Path_Info(){
+            rssi = 0;
+            rssiMetricPriorityQueue = new PriorityQueue<>(5, cmp);
+            hops = MAX_HOPS;
+            prev_node_address = null;
+        }
+
+        Shortest_Path_Info setRssiMetricQueue(Queue<Integer> rmq){rssiMetricPriorityQueue = rmq; return this;}
+        Queue<Integer> getRssiMetricQueue(){return rssiMetricPriorityQueue;}
+
+        Shortest_Path_Info setPrevNode(String prev){
+            this.prev_node_address = prev;
+            return this;
+        }
+
+        Shortest_Path_Info setHops(int hops){
+            this.hops = hops;
+            return this;
+        }
+        int getHops(){
+            return this.hops;
+        }
+        Shortest_Path_Info setRssi(int r){
+            rssi = r;
+            return this;
+        }
+        String getPrev_node_address(){return this.prev_node_address;}
+        int getRssi() {return this.rssi;}
+    }
+
+    private LegacyShortestPath() {}
+
+    /**
+     * @return route info by mac address for every vertex. Unreachable vertices have {@link #MAX_HOPS} hops
+     */
+    static LinkedHashMap<String, Shortest_Path_Info> calculate(Map<String, ? extends Peer> vertexList,
+                                                                Map<String, ? extends Map<String, Integer>> edgeMatrix,
+                                                                String localAddress) {
+        LinkedHashMap<String,Shortest_Path_Info> Shortest_Path_Info_Map = new LinkedHashMap<>();
+        HashSet<String> unVisited = new HashSet<>();
+        for (String key : vertexList.keySet()) {
+            Shortest_Path_Info_Map.put(key,new Shortest_Path_Info());
+            unVisited.add(key);
+        }
+
+        //initialization
+        Shortest_Path_Info_Map.get(localAddress).setHops(0).setRssi(0);
+        String this_visit, next_visit;
+        next_visit = localAddress;
+
+        //core function to get shortest path
+        while(!unVisited.isEmpty()){
+            this_visit = next_visit;
+            Map<String,Integer> edgeRow = edgeMatrix.containsKey(this_visit)
+                    ? edgeMatrix.get(this_visit) : new HashMap<String, Integer>();
+            Shortest_Path_Info this_node = Shortest_Path_Info_Map.get(this_visit);
+            Shortest_Path_Info adjacent;
+
+            int worst_rssi_this_route = MAX_RSSI;
+            int min_hops_these_nodes = MAX_HOPS;
+            Queue<Integer> min_metricQueue = new PriorityQueue<>(5, cmp);
+
+            for (String desc : edgeRow.keySet()) {
+                //松弛
+                adjacent = Shortest_Path_Info_Map.get(desc);
+                if (adjacent == null) continue;
+                worst_rssi_this_route = Math.max(this_node.getRssi(),edgeRow.get(desc));
+                Queue<Integer> tempQueue1 = new PriorityQueue<>(5,cmp);
+                tempQueue1.addAll(this_node.getRssiMetricQueue());
+                tempQueue1.add(RoutingEngine.metricForRssi(edgeRow.get(desc)));
+
+                if(needToLoose(adjacent.getHops(),this_node.getHops()+1,adjacent.getRssiMetricQueue(),tempQueue1))
+                {
+                    adjacent.setPrevNode(this_visit)
+                            .setHops(this_node.getHops() + 1)
+                            .setRssi(worst_rssi_this_route)
+                            .setRssiMetricQueue(tempQueue1);
+                }
+            }
+
+            unVisited.remove(this_visit);
+
+            for (String key : unVisited) {
+                adjacent = Shortest_Path_Info_Map.get(key);
+                if (needToLoose(min_hops_these_nodes,adjacent.getHops(),min_metricQueue,adjacent.getRssiMetricQueue())){
+                    next_visit = key;
+                    min_hops_these_nodes = adjacent.getHops();
+                    min_metricQueue = adjacent.getRssiMetricQueue();
+                }
+            }
+
+            if(next_visit.equals(this_visit)) break;
+            // Remaining nodes are unreachable. Relaxing edges among them would give them routes
+            if(Shortest_Path_Info_Map.get(next_visit).getHops() >= MAX_HOPS) break;
+        }
+        return Shortest_Path_Info_Map;
+    }
+
+    private static boolean needToLoose(int hops, int hops1, Queue<Integer> rssiMetricQueue, Queue<Integer> rssiMetricQueue1) {
+        if(hops == 20) return true;
+        if(hops == 0 || hops1==20) return false;
+        int rssiMetric = rssiMetricQueue.peek();
+        int rssiMetric1 = rssiMetricQueue1.peek();
+        if(rssiMetric==MAX_Metric && rssiMetric1<MAX_Metric) return true;
+        if(rssiMetric==MAX_Metric && rssiMetric1==MAX_Metric) return hops > hops1;
+        if(rssiMetric<MAX_Metric && rssiMetric<MAX_Metric)
+            if (hops > hops1) return true;
+            else if(hops == hops1){
+                return compareQueue(rssiMetricQueue,rssiMetricQueue1);
+            }
+        return false;
+    }
+
+    private static boolean compareQueue(Queue<Integer> q1, Queue<Integer> q2){
+        Integer[] a1 = q1.toArray(new Integer[0]);
+        Integer[] a2 = q2.toArray(new Integer[0]);
+        for (int i = a1.length-1;i>=0;i--) {
+            if(a1[i] > a2[i]) return true;
+        }
+        return false;
+    }
+}
@@ -1,120 +1,54 @@
 package sword.blemesh.sdk.mesh_graph;
 
-import java.lang.reflect.Array;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Stack;
 
+import sword.blemesh.sdk.Clock;
 import timber.log.Timber;
 
 /**
  * Created by 力 on 2016/6/2.
+ *
+ * Not thread safe. Confined to the thread of its {@link sword.blemesh.sdk.app.MeshRouter},
+ * see {@link sword.blemesh.sdk.MeshEventLoop}, except for {@link #getForwardingTable()}
  */
 public class LocalGraph extends PeersGraph {
 
-    private static final int MAX_HOPS = 20;
-    private static final int MAX_RSSI = 200;
-    private static final int MAX_Metric = 20;
-    private Comparator cmp = new Comparator<Integer>() {
-        @Override
-        public int compare(Integer e1, Integer e2) {
-            return e2 - e1;
-        }
-    };
-    private class Shortest_Path_Info {
-        private String prev_node_address;
-        private int rssi;
-        private Queue<Integer> rssiMetricPriorityQueue;
-        private int hops;
-
-        Shortest_Path_Info(){
-            rssi = 0;
-            rssiMetricPriorityQueue = new PriorityQueue<>(5,new Comparator<Integer>() {
-                @Override
-                public int compare(Integer e1, Integer e2) {
-                    return e2 - e1;
-                }
-            });
-            hops = MAX_HOPS;
-            prev_node_address = null;
-        }
+    private static final boolean VERBOSE = false;
 
-        Shortest_Path_Info setRssiMetricQueue(Queue<Integer> rmq){rssiMetricPriorityQueue = rmq; return this;}
-        Queue<Integer> getRssiMetricQueue(){return rssiMetricPriorityQueue;}
-        void addRssiMetrictoQueue(int rm){rssiMetricPriorityQueue.add(rm);}
+    /** Beyond this many changed links, computing all routes afresh is cheaper than repairing them */
+    private static final int MAX_REPAIRED_LINKS = 16;
 
-        Shortest_Path_Info setPrevNode(String prev){
-            this.prev_node_address = prev;
-            return this;
-        }
+    /** Destinations this many hops away or more are unreachable */
+    public static final int MAX_HOPS = RoutingEngine.MAX_HOPS;
 
-        Shortest_Path_Info setHops(int hops){
-            this.hops = hops;
-            return this;
-        }
-        void increaseHops(){
-            hops++;
-        }
-        int getHops(){
-            return this.hops;
-        }
-        Shortest_Path_Info setRssi(int r){
-            rssi = r;
-            return this;
-        }
-        Shortest_Path_Info newRssi(int rssi){
-            this.rssi = this.rssi > rssi ? this.rssi : rssi;
-            return this;
-        }
-        String getPrev_node_address(){return this.prev_node_address;}
-        public int getRssi() {return this.rssi;}
-    }
-
-    private int calMetricbyRSSI(int r){
-        if(r<=30)
-            return 1;
-        if(r<=40)
-            return 2;
-        if(r<=50)
-            return 3;
-        if(r<=55)
-            return 4;
-        if(r<=60)
-            return 5;
-        if(r<=65)
-            return 6;
-        if(r<=70)
-            return 7;
-        if(r<=75)
-            return 8;
-        if(r<=80)
-            return 9;
-        if(r<=85)
-            return 10;
-        if(r<=90)
-            return 11;
-        return MAX_Metric;
-    }
-
-    private boolean compareQueue(Queue<Integer> q1, Queue<Integer> q2){
-        Integer[] a1 = q1.toArray(new Integer[0]);
-        Integer[] a2 = q2.toArray(new Integer[0]);
-        for (int i = a1.length-1;i>=0;i--) {
-            if(a1[i] > a2[i]) return true;
-        }
-        return false;
-    }
+    /** Link state of an origin not heard from for this long is dropped */
+    public static final int LINK_STATE_MAX_AGE_SECONDS = 30 * 60;
+    /** Interval at which the local peer should re-advertise its links, well within the max age */
+    public static final int LINK_STATE_REFRESH_SECONDS = 10 * 60;
 
     private Peer localNode;
-    private LinkedHashMap<String,Shortest_Path_Info> Shortest_Path_Info_Map;
+    private final RoutingEngine routes = new RoutingEngine();
+    /** Set when vertexes change, which requires computing all routes afresh */
+    private boolean needsFullCalculation = true;
+    /** Links changed since routes were last calculated, as {src, desc} */
+    private final ArrayList<String[]> changedLinks = new ArrayList<>();
+    /** Sequence number of the latest link state applied by origin, including the local peer */
+    private final HashMap<String, Integer> linkStateSequences = new HashMap<>();
+    /** Vertex of each origin with link state, kept while the origin is unreachable and pruned */
+    private final HashMap<String, Peer> linkStateOrigins = new HashMap<>();
+    /** Time by origin at which it advertised the link state applied, per {@link #clock} */
+    private final HashMap<String, Long> linkStateTimes = new HashMap<>();
+    private Clock clock = Clock.SYSTEM;
+    /** Replaced, never modified, by each route calculation */
+    private volatile ForwardingTable forwardingTable = ForwardingTable.EMPTY;
     private LinkedHashSet<String> unMergedNewNodes = new LinkedHashSet<>();
     //存储以用来显示
     private LinkedHashMap<String,Peer> removedPeers;
@@ -123,6 +57,7 @@ public class LocalGraph extends PeersGraph {
     public LocalGraph(Peer LocalNode) {
         super();
         this.localNode = LocalNode;
+        routes.setRequireTwoWayLinks(true);
         insertVertex(LocalNode);
         addMatrixRow(LocalNode.getMacAddress());
 //        insertEdge(new PeersEdge(LocalNode.getAddress(),LocalNode.getAddress(),0));
@@ -140,7 +75,7 @@ public class LocalGraph extends PeersGraph {
         return null;
     }
 
-    synchronized public void newDirectRemote(Peer remoteNode) {
+    public void newDirectRemote(Peer remoteNode) {
         Timber.d("New direct remote peer: %s  %s", remoteNode.getAlias(), remoteNode.getMacAddress());
         if (!hasVertex(remoteNode)) {
             insertVertex(remoteNode);
@@ -154,7 +89,7 @@ public class LocalGraph extends PeersGraph {
         unMergedNewNodes.add(remoteNode.getMacAddress());
     }
 
-    synchronized public void lostDirectRemote(Peer remoteNode){
+    public void lostDirectRemote(Peer remoteNode){
         Timber.d("Lost direct remote peer: %s  %s", remoteNode.getAlias(), remoteNode.getMacAddress());
         deleteEdge(localNode.getMacAddress(),remoteNode.getMacAddress());
         if(unMergedNewNodes.contains(remoteNode.getMacAddress()))
@@ -168,20 +103,27 @@ public class LocalGraph extends PeersGraph {
      * 2. or when received graph from other node's broadcast, merge it.
      * @param remoteNode remote peer that broadcast this graph message
      * @param otherGraph graph of new connected node
+     * @return false if otherGraph held nothing new, so that it need not be passed on
      */
-    synchronized public void mergeGarph(Peer remoteNode, PeersGraph otherGraph) {
+    public boolean mergeGarph(Peer remoteNode, PeersGraph otherGraph) {
+        boolean changed = false;
         for(Peer node : otherGraph.getVertexList().values()){
             if (!hasVertex(node)) {
                 insertVertex(node);
                 addMatrixRow(node.getMacAddress());
+                changed = true;
             }
         }
         for(String src : otherGraph.getEdgeMatrix().keySet()){
-            mergeRow(src,otherGraph.getEdgeMatrix().get(src));
+            LinkedHashMap<String, Integer> row = otherGraph.getEdgeMatrix().get(src);
+            if (!hasMatrixRow(src)) addMatrixRow(src);
+            if (!edgeMatrix.get(src).entrySet().containsAll(row.entrySet())) changed = true;
+            mergeRow(src, row);
         }
         unMergedNewNodes.remove(remoteNode.getMacAddress());
         if(unMergedNewNodes.isEmpty())
             calCluateShortestPath();
+        return changed;
     }
 
     /**
@@ -190,7 +132,7 @@ public class LocalGraph extends PeersGraph {
      * @param remoteNode remote peer that broadcast this graph message
      * @param otherGraph graph after some remote node disconnect, used to replace loace one
      */
-    synchronized public void trimGraph(Peer remoteNode, PeersGraph otherGraph){
+    public void trimGraph(Peer remoteNode, PeersGraph otherGraph){
         for (String vertex : otherGraph.getVertexList().keySet()) {
             Peer updatedPeer = otherGraph.getVertexList().get(vertex);
             if(!this.vertexList.containsKey(vertex)){
@@ -201,179 +143,504 @@ public class LocalGraph extends PeersGraph {
             }
         }
         this.edgeMatrix = otherGraph.getEdgeMatrix();
+        needsFullCalculation = true;
         calCluateShortestPath();
     }
 
-    //TODO: design Shortest path method;
     //TODO: 计算最短路径后，同时更新各个节点的连通状态，并对应的修改vertexList
     public void calCluateShortestPath(){
-
-        Shortest_Path_Info_Map = new LinkedHashMap<>();
-        HashSet<String> unVisited = new HashSet<>();
-        for (String key : vertexList.keySet()) {
-            Shortest_Path_Info_Map.put(key,new Shortest_Path_Info());
-            unVisited.add(key);
+        if(needsFullCalculation){
+            routes.compute(vertexList, edgeMatrix, localNode.getMacAddress());
         }
-
-        //initialization
-        Shortest_Path_Info_Map.get(localNode.getMacAddress()).setHops(0).setRssi(0);
-        String this_visit, next_visit;
-        next_visit = localNode.getMacAddress();
-
-        //core function to get shortest path
-        while(!unVisited.isEmpty()){
-            this_visit = next_visit;
-            HashMap<String,Integer> edgeRow = edgeMatrix.get(this_visit);
-            Shortest_Path_Info this_node = Shortest_Path_Info_Map.get(this_visit);
-            Shortest_Path_Info adjacent;
-
-            int worst_rssi_this_route = MAX_RSSI;
-            int min_hops_these_nodes = MAX_HOPS;
-            Queue<Integer> min_metricQueue = new PriorityQueue<>(5,
-                    new Comparator<Integer>() {
-                        public int compare(Integer e1, Integer e2) {
-                            return e2 - e1;
-                        }}
-            );
-
-            for (String desc : edgeRow.keySet()) {
-                //松弛
-                adjacent = Shortest_Path_Info_Map.get(desc);
-                worst_rssi_this_route = Math.max(this_node.getRssi(),edgeRow.get(desc));
-                Queue<Integer> tempQueue1 = new PriorityQueue<>(5,cmp);
-                tempQueue1.addAll(this_node.getRssiMetricQueue());
-                tempQueue1.add(calMetricbyRSSI(edgeRow.get(desc)));
-
-                if(needToLoose(adjacent.getHops(),this_node.getHops()+1,adjacent.getRssiMetricQueue(),tempQueue1))
-                {
-                    adjacent.setPrevNode(this_visit)
-                            .setHops(this_node.getHops() + 1)
-                            .setRssi(worst_rssi_this_route)
-                            .setRssiMetricQueue(tempQueue1);
-                }
-            }
-
-            unVisited.remove(this_visit);
-
-            for (String key : unVisited) {
-                adjacent = Shortest_Path_Info_Map.get(key);
-                if (needToLoose(min_hops_these_nodes,adjacent.getHops(),min_metricQueue,adjacent.getRssiMetricQueue())){
-                    next_visit = key;
-                    min_hops_these_nodes = adjacent.getHops();
-                    min_metricQueue = adjacent.getRssiMetricQueue();
-                }
-            }
-
-            System.out.println("this_visit: " + this_visit);
-            for(String desc : Shortest_Path_Info_Map.keySet()){
-                Shortest_Path_Info node = Shortest_Path_Info_Map.get(desc);
-                System.out.println(desc + ": " + node.getHops() + " " + node.getPrev_node_address() + " " + node.getRssi()
-                + " " + node.getRssiMetricQueue() + " ");
-                Queue<Integer> temp = new PriorityQueue<>(5,cmp);
-                while(!temp.isEmpty()){
-                    System.out.println(temp.poll());
-                }
+        else{
+            // Only two way links are routed over, so a change affects both directions
+            for (String[] link : changedLinks) {
+                routes.updateLink(link[0], link[1], twoWayLink(link[0], link[1]));
+                routes.updateLink(link[1], link[0], twoWayLink(link[1], link[0]));
             }
-            System.out.println();
-
-            if(next_visit.equals(this_visit)) break;
         }
+        needsFullCalculation = false;
+        changedLinks.clear();
 
         //delete vertex that cannot reach
-        Iterator it = vertexList.entrySet().iterator();
+        HashMap<String, Peer> nextHops = new HashMap<>();
+        Iterator<Map.Entry<String, Peer>> it = vertexList.entrySet().iterator();
         while(it.hasNext()){
-            Map.Entry e = (Map.Entry)it.next();
-            String node = (String)e.getKey();
-            if(Shortest_Path_Info_Map.get(node).getHops() == MAX_HOPS){
+            Map.Entry<String, Peer> e = it.next();
+            String node = e.getKey();
+            if(!routes.isReachable(node)){
                 it.remove();
+                needsFullCalculation = true;
             }
             else{
-                vertexList.get(node).setHops(Shortest_Path_Info_Map.get(node).getHops());
-                vertexList.get(node).setRssi(Shortest_Path_Info_Map.get(node).getRssi());
+                e.getValue().setHops(routes.getHops(node));
+                e.getValue().setRssi(routes.getWorstRssi(node));
                 //if changed, modified it's time
-                vertexList.get(node).updateTime();
+                e.getValue().updateTime();
+                String nextHop = routes.getNextHop(node);
+                if(nextHop != null) nextHops.put(node, vertexList.get(nextHop));
+            }
+        }
+        forwardingTable = new ForwardingTable(nextHops);
+    }
+
+    /**
+     * Routes as of the last calculation. Safe to read from any thread without locking the graph.
+     */
+    public ForwardingTable getForwardingTable() {
+        return forwardingTable;
+    }
+
+    /**
+     * Up to k routes to desc that share no relay, as of the last route calculation, best first.
+     * See {@link RoutingEngine#getDisjointPaths(String, int)}
+     *
+     * @return each route as the peers after the local peer, up to and including desc. Empty
+     * if desc is the local peer or unreachable
+     */
+    public List<List<Peer>> getDisjointPaths(String desc, int k) {
+        List<List<Peer>> paths = new ArrayList<>();
+        for (List<String> addresses : routes.getDisjointPaths(desc, k)) {
+            List<Peer> path = new ArrayList<>(addresses.size());
+            for (String address : addresses)
+                path.add(vertexList.get(address));
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    /**
+     * Choose multipoint relays: a small set of neighbours that between them link to every peer
+     * two hops away, so that a flood passed on only by them still reaches all peers. Neighbours
+     * with no known link but the one to the local peer might lead anywhere, so are always chosen.
+     *
+     * @return mac addresses of the chosen neighbours
+     */
+    public List<String> getMultipointRelays() {
+        String local = localNode.getMacAddress();
+        LinkedHashSet<String> neighbours = new LinkedHashSet<>();
+        for (String vertex : vertexList.keySet())
+            if (!vertex.equals(local) && anyWayLink(local, vertex)) neighbours.add(vertex);
+
+        // Peers two hops away, by the neighbours linked to them
+        LinkedHashMap<String, List<String>> coveredBy = new LinkedHashMap<>();
+        LinkedHashMap<String, List<String>> covers    = new LinkedHashMap<>();
+        List<String> relays = new ArrayList<>();
+        for (String neighbour : neighbours) {
+            List<String> reached = new ArrayList<>();
+            covers.put(neighbour, reached);
+            boolean linked = false;
+            for (String other : vertexList.keySet()) {
+                if (other.equals(local) || other.equals(neighbour) || !anyWayLink(neighbour, other)) continue;
+                linked = true;
+                if (neighbours.contains(other)) continue;
+                reached.add(other);
+                if (!coveredBy.containsKey(other)) coveredBy.put(other, new ArrayList<String>());
+                coveredBy.get(other).add(neighbour);
             }
+            if (!linked) relays.add(neighbour);
         }
 
-//        for (String node : vertexList.entrySet().iterator()) {
-//            if(Shortest_Path_Info_Map.get(node).getRssi_pow() == MAX_RSSI_POW){
-//                deleteVertex(node);
-//            }
-//            else{
-//                vertexList.get(node).setHops(Shortest_Path_Info_Map.get(node).getHops());
-//                vertexList.get(node).setRssi(Shortest_Path_Info_Map.get(node).getRssi());
-//            }
-//        }
-
-    }
-
-    private boolean needToLoose(int hops, int hops1, Queue<Integer> rssiMetricQueue, Queue<Integer> rssiMetricQueue1) {
-        if(hops == 20) return true;
-        if(hops == 0 || hops1==20) return false;
-        int rssiMetric = rssiMetricQueue.peek();
-        int rssiMetric1 = rssiMetricQueue1.peek();
-        if(rssiMetric==MAX_Metric && rssiMetric1<MAX_Metric) return true;
-        if(rssiMetric==MAX_Metric && rssiMetric1==MAX_Metric) return hops > hops1;
-        if(rssiMetric<MAX_Metric && rssiMetric<MAX_Metric)
-            if (hops > hops1) return true;
-            else if(hops == hops1){
-                return compareQueue(rssiMetricQueue,rssiMetricQueue1);
+        // Neighbours that alone reach some peer, then whichever reaches most of those left
+        for (List<String> candidates : coveredBy.values()) {
+            if (candidates.size() == 1 && !relays.contains(candidates.get(0))) relays.add(candidates.get(0));
+        }
+        for (String relay : relays)
+            coveredBy.keySet().removeAll(covers.get(relay));
+        while (!coveredBy.isEmpty()) {
+            String best      = null;
+            int    bestCount = 0;
+            for (Map.Entry<String, List<String>> candidate : covers.entrySet()) {
+                int count = 0;
+                for (String twoHop : candidate.getValue())
+                    if (coveredBy.containsKey(twoHop)) count++;
+                if (count > bestCount) {
+                    best      = candidate.getKey();
+                    bestCount = count;
+                }
             }
-        return false;
+            relays.add(best);
+            coveredBy.keySet().removeAll(covers.get(best));
+        }
+        return relays;
     }
 
+    /**
+     * Neighbours a flood from sender, passed on by relays, might miss because sender did not
+     * yet know of their links when it chose relays
+     *
+     * @return mac addresses of the local peer's neighbours linked neither to sender nor any of relays
+     */
+    public List<String> getUncoveredNeighbours(String sender, Collection<String> relays) {
+        String local = localNode.getMacAddress();
+        List<String> uncovered = new ArrayList<>();
+        for (String neighbour : vertexList.keySet()) {
+            if (neighbour.equals(local) || neighbour.equals(sender) || relays.contains(neighbour)
+                    || !anyWayLink(local, neighbour) || anyWayLink(neighbour, sender)) continue;
+
+            boolean covered = false;
+            for (String relay : relays)
+                covered |= anyWayLink(neighbour, relay);
+            if (!covered) uncovered.add(neighbour);
+        }
+        return uncovered;
+    }
+
+    /**
+     * @return the adjacent peer on the shortest path to desc, or null if desc
+     * is the local node or no path to desc is known
+     */
     public Peer getNextReply(String desc){
-        if(LocalPeer.getLocalMacAddress().equals(desc)){
+        if(localNode.getMacAddress().equals(desc)){
             return null;
         }
-        Stack<String> shortestPath = new Stack<>();
-        String address = desc;
-        Shortest_Path_Info this_info;
-        while(address!=null){
-            shortestPath.push(address);
-            this_info = Shortest_Path_Info_Map.get(address);
-            address = this_info.getPrev_node_address();
-        }
-        shortestPath.pop(); // pop the local node;
-        Peer next_reply = vertexList.get(shortestPath.peek());
-        Timber.d("getNextReply desc is %s, next replay is %s : %s",
-                desc,
-                next_reply.getAlias(),
-                next_reply.getMacAddress());
+        Peer next_reply = forwardingTable.getNextHop(desc);
+        if(next_reply == null) Timber.w("getNextReply no path known to desc %s", desc);
         return next_reply;
     }
 
+    //</editor-fold>
+
+    //<editor-fold desc="Graph changes">
+
+    @Override
+    public void insertVertex(Peer node) {
+        if (!vertexList.containsKey(node.getMacAddress())) needsFullCalculation = true;
+        super.insertVertex(node);
+    }
+
+    @Override
+    public void deleteVertex(Peer node) {
+        deleteVertex(node.getMacAddress());
+    }
+
+    @Override
+    public void deleteVertex(String nodeAddress) {
+        if (vertexList.containsKey(nodeAddress)) needsFullCalculation = true;
+        super.deleteVertex(nodeAddress);
+    }
+
+    @Override
+    public void insertEdge(PeersEdge edge) {
+        Integer previous = edgeMatrix.get(edge.getSrc()).get(edge.getDesc());
+        super.insertEdge(edge);
+        if (previous == null || previous != edge.getWeight()) linkChanged(edge.getSrc(), edge.getDesc());
+    }
+
+    @Override
+    public void deleteEdge(String address_1, String address_2) {
+        super.deleteEdge(address_1, address_2);
+        linkChanged(address_1, address_2);
+        linkChanged(address_2, address_1);
+    }
+
+    @Override
+    public void mergeRow(String src, LinkedHashMap<String, Integer> matrixRow) {
+        LinkedHashMap<String, Integer> row = edgeMatrix.get(src);
+        for (String desc : matrixRow.keySet()) {
+            Integer rssi = matrixRow.get(desc);
+            if (rssi == null || !rssi.equals(row.get(desc))) linkChanged(src, desc);
+        }
+        super.mergeRow(src, matrixRow);
+    }
+
+    /** @return rssi of the link from src to desc if its reverse exists too, otherwise null */
+    private Integer twoWayLink(String src, String desc) {
+        LinkedHashMap<String, Integer> row = edgeMatrix.get(src);
+        LinkedHashMap<String, Integer> reverseRow = edgeMatrix.get(desc);
+        if (row == null || reverseRow == null || reverseRow.get(src) == null) return null;
+        return row.get(desc);
+    }
+
+    /** @return whether either a or b advertised a link to the other */
+    private boolean anyWayLink(String a, String b) {
+        LinkedHashMap<String, Integer> row        = edgeMatrix.get(a);
+        LinkedHashMap<String, Integer> reverseRow = edgeMatrix.get(b);
+        return (row != null && row.containsKey(b)) || (reverseRow != null && reverseRow.containsKey(a));
+    }
+
+    /**
+     * Record a link change, for the next route calculation to repair only the routes it affects
+     */
+    private void linkChanged(String src, String desc) {
+        if (needsFullCalculation) return;
+        if (changedLinks.size() == MAX_REPAIRED_LINKS) {
+            needsFullCalculation = true;
+            changedLinks.clear();
+            return;
+        }
+        changedLinks.add(new String[] {src, desc});
+    }
+
+    //</editor-fold>
+
+    //<editor-fold desc="Link state">
+
+    /** Outcome of {@link #applyLinkState} */
+    public enum LinkStateUpdate {
+        /** Applied, so neighbours should be told */
+        APPLIED,
+        /** Not newer than the link state of origin applied already */
+        STALE,
+        /** A delta whose predecessor was not applied. Origin's complete link state is needed */
+        MISSING_PREDECESSOR
+    }
+
+    /** Time source for link state ages. Defaults to {@link Clock#SYSTEM} */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @return sequence number of the latest link state of origin applied, or 0 if none
+     */
+    public int getLinkStateSequence(String origin) {
+        Integer sequence = linkStateSequences.get(origin);
+        return sequence == null ? 0 : sequence;
+    }
+
+    /**
+     * @return sequence number of the latest link state applied by origin, including the local peer's
+     */
+    public HashMap<String, Integer> getLinkStateSequences() {
+        return new HashMap<>(linkStateSequences);
+    }
+
+    /**
+     * Advance the local peer's link state sequence number, once its links changed
+     * @param after a sequence number the result must exceed, such as one from before a restart
+     * @return the sequence number to advertise the local peer's links with
+     */
+    public int nextLocalLinkStateSequence(int after) {
+        int sequence = Math.max(after, getLinkStateSequence(localNode.getMacAddress())) + 1;
+        linkStateSequences.put(localNode.getMacAddress(), sequence);
+        linkStateTimes.put(localNode.getMacAddress(), clock.elapsedMillis());
+        return sequence;
+    }
+
+    /**
+     * @return seconds since origin advertised the link state applied, or 0 if none
+     */
+    public int getLinkStateAge(String origin) {
+        Long time = linkStateTimes.get(origin);
+        return time == null ? 0 : (int) ((clock.elapsedMillis() - time) / 1000);
+    }
+
+    /**
+     * @return age in seconds of each link state applied, including the local peer's
+     */
+    public HashMap<String, Integer> getLinkStateAges() {
+        HashMap<String, Integer> ages = new HashMap<>();
+        for (String origin : linkStateTimes.keySet())
+            ages.put(origin, getLinkStateAge(origin));
+        return ages;
+    }
+
+    /**
+     * @return links of origin as origin advertises them: the rssi origin measured of each
+     * neighbour, being the edges from each neighbour to origin
+     */
+    public LinkedHashMap<String, Integer> getLinkState(String origin) {
+        return linkState(edgeMatrix, origin);
+    }
+
+    /**
+     * @return the vertex of origin, to advertise with origin's links. Neighbours are left out, as
+     * links are only routed over once both ends advertised them, each with its own vertex
+     */
+    public LinkedHashMap<String, Peer> getLinkStatePeers(String origin) {
+        LinkedHashMap<String, Peer> peers = new LinkedHashMap<>();
+        Peer peer = vertexList.containsKey(origin) ? vertexList.get(origin) : linkStateOrigins.get(origin);
+        if (peer != null) peers.put(origin, peer);
+        return peers;
+    }
+
+    /**
+     * @return this graph including the vertexes of unreachable origins, whose link state is kept.
+     * Shares the edge matrix, so must be serialized before the graph changes
+     */
+    public PeersGraph getLinkStateGraph() {
+        PeersGraph graph = new PeersGraph();
+        for (Peer origin : linkStateOrigins.values())
+            graph.insertVertex(origin);
+        for (Peer vertex : vertexList.values())
+            graph.insertVertex(vertex);
+        graph.edgeMatrix = edgeMatrix;
+        return graph;
+    }
+
+    /**
+     * Apply a link state advertisement of origin, if it is newer than the applied one
+     * @param ageSeconds time since origin advertised sequence
+     * @param complete true if links holds all of origin's links, false if only those added or changed
+     * @param removed  neighbours origin lost, if not complete
+     * @param peers    vertexes of origin and its neighbours
+     */
+    public LinkStateUpdate applyLinkState(String origin, int sequence, int ageSeconds, boolean complete,
+                                                       Map<String, Integer> links, Collection<String> removed,
+                                                       Map<String, Peer> peers) {
+        int applied = getLinkStateSequence(origin);
+        if (origin.equals(localNode.getMacAddress()) || sequence <= applied
+                || ageSeconds >= LINK_STATE_MAX_AGE_SECONDS)
+            return LinkStateUpdate.STALE;
+        if (!complete && sequence != applied + 1)
+            return LinkStateUpdate.MISSING_PREDECESSOR;
+
+        if (complete)
+            replaceLinkState(origin, links, peers);
+        else {
+            for (String neighbour : removed)
+                removeLink(neighbour, origin);
+            putLinks(origin, links, peers);
+        }
+        linkStateSequences.put(origin, sequence);
+        linkStateTimes.put(origin, clock.elapsedMillis() - ageSeconds * 1000L);
+
+        if (unMergedNewNodes.isEmpty())
+            calculateLinkStateRoutes();
+        return LinkStateUpdate.APPLIED;
+    }
+
+    /**
+     * Adopt the link state of each origin for which a neighbour's graph is newer. Used in place
+     * of {@link #mergeGarph(Peer, PeersGraph)} when the neighbour versions link state.
+     * @param sequences link state sequence number by origin that otherGraph reflects
+     * @param ages      link state age in seconds by origin. Missing ones are taken as new
+     * @return origins whose link state was adopted
+     */
+    public List<String> mergeLinkStates(Peer remoteNode, PeersGraph otherGraph,
+                                                     Map<String, Integer> sequences, Map<String, Integer> ages) {
+        ArrayList<String> adopted = new ArrayList<>();
+        for (Map.Entry<String, Integer> sequence : sequences.entrySet()) {
+            String origin = sequence.getKey();
+            int ageSeconds = ages.containsKey(origin) ? ages.get(origin) : 0;
+            if (origin.equals(localNode.getMacAddress()) || sequence.getValue() <= getLinkStateSequence(origin)
+                    || ageSeconds >= LINK_STATE_MAX_AGE_SECONDS)
+                continue;
+
+            replaceLinkState(origin, linkState(otherGraph.getEdgeMatrix(), origin), otherGraph.getVertexList());
+            linkStateSequences.put(origin, sequence.getValue());
+            linkStateTimes.put(origin, clock.elapsedMillis() - ageSeconds * 1000L);
+            adopted.add(origin);
+        }
+        unMergedNewNodes.remove(remoteNode.getMacAddress());
+        if (unMergedNewNodes.isEmpty())
+            calculateLinkStateRoutes();
+        return adopted;
+    }
+
+    /**
+     * Drop the link state of each origin that was not refreshed within {@link #LINK_STATE_MAX_AGE_SECONDS},
+     * such as that of a peer switched off out of reach of the local peer
+     * @return origins whose link state was dropped
+     */
+    public List<String> expireLinkStates() {
+        ArrayList<String> expired = new ArrayList<>();
+        for (String origin : linkStateTimes.keySet()) {
+            if (!origin.equals(localNode.getMacAddress()) && getLinkStateAge(origin) >= LINK_STATE_MAX_AGE_SECONDS)
+                expired.add(origin);
+        }
+        for (String origin : expired) {
+            Timber.d("Link state of %s expired", origin);
+            for (String neighbour : linkState(edgeMatrix, origin).keySet())
+                removeLink(neighbour, origin);
+            linkStateSequences.remove(origin);
+            linkStateTimes.remove(origin);
+            linkStateOrigins.remove(origin);
+        }
+        if (!expired.isEmpty() && unMergedNewNodes.isEmpty())
+            calculateLinkStateRoutes();
+        return expired;
+    }
+
+    /**
+     * Calculate routes after restoring the vertexes of origins pruned while unreachable, as their
+     * link state may have just connected them again. Their links were kept in the edge matrix
+     */
+    private void calculateLinkStateRoutes() {
+        for (Map.Entry<String, Peer> origin : linkStateOrigins.entrySet()) {
+            if (!vertexList.containsKey(origin.getKey())) insertVertex(origin.getValue());
+        }
+        calCluateShortestPath();
+    }
+
+    private static LinkedHashMap<String, Integer> linkState(Map<String, ? extends Map<String, Integer>> matrix,
+                                                            String origin) {
+        LinkedHashMap<String, Integer> links = new LinkedHashMap<>();
+        for (Map.Entry<String, ? extends Map<String, Integer>> row : matrix.entrySet()) {
+            Integer rssi = row.getValue().get(origin);
+            if (rssi != null && !row.getKey().equals(origin)) links.put(row.getKey(), rssi);
+        }
+        return links;
+    }
+
+    private void replaceLinkState(String origin, Map<String, Integer> links, Map<String, Peer> peers) {
+        for (String neighbour : linkState(edgeMatrix, origin).keySet()) {
+            if (!links.containsKey(neighbour)) removeLink(neighbour, origin);
+        }
+        putLinks(origin, links, peers);
+    }
+
+    /**
+     * Insert the edge from each neighbour to origin, adding vertexes from peers as known. Edges
+     * to a neighbour not known as a vertex yet are kept for when its own link state arrives
+     */
+    private void putLinks(String origin, Map<String, Integer> links, Map<String, Peer> peers) {
+        Peer originPeer = peers.containsKey(origin) ? peers.get(origin) : vertexList.get(origin);
+        if (originPeer != null) linkStateOrigins.put(origin, originPeer);
+        ensureVertex(origin, originPeer);
+
+        for (Map.Entry<String, Integer> link : links.entrySet()) {
+            ensureVertex(link.getKey(), peers.get(link.getKey()));
+            insertEdge(new PeersEdge(link.getKey(), origin, link.getValue()));
+        }
+    }
+
+    private void ensureVertex(String address, Peer peer) {
+        if (!vertexList.containsKey(address)) {
+            if (peer == null) peer = linkStateOrigins.get(address);
+            if (peer != null) insertVertex(peer);
+        }
+        if (!hasMatrixRow(address)) addMatrixRow(address);
+    }
+
+    private void removeLink(String src, String desc) {
+        LinkedHashMap<String, Integer> row = edgeMatrix.get(src);
+        if (row != null && row.remove(desc) != null) linkChanged(src, desc);
+    }
+
+    //</editor-fold>
+
+    //<editor-fold desc="Display">
+
     public String displayAllShortestPath(){
         String all_shortest_path = "";
-        System.out.println("displayAllShortestPath");
+        if (VERBOSE) System.out.println("displayAllShortestPath");
         for (String node : vertexList.keySet()) {
             all_shortest_path+=displayShortestPath(node);
         }
         all_shortest_path+="\n";
-        System.out.println();
+        if (VERBOSE) System.out.println();
         return all_shortest_path;
     }
 
     public String displayShortestPath(String desc){
         Stack<String> shortestPath = new Stack<>();
         String address = desc;
-        Shortest_Path_Info this_info;
         while(address!=null){
             shortestPath.push(address);
-            this_info = Shortest_Path_Info_Map.get(address);
-            address = this_info.getPrev_node_address();
+            address = routes.getPrevious(address);
         }
         if(shortestPath.size() == 1)
             return "";
-        int rssiMetric = Shortest_Path_Info_Map.get(desc).getRssiMetricQueue().peek();
-        String shortest_path = "desc:" + desc + " metric:" + rssiMetric + " wrost rssi:" + Shortest_Path_Info_Map.get(desc).getRssi() + " ";
+        String shortest_path = "desc:" + desc + " metric:" + routes.getWorstMetric(desc) + " wrost rssi:" + routes.getWorstRssi(desc) + " ";
         while(!shortestPath.isEmpty()){
             shortest_path+=shortestPath.peek();
             shortestPath.pop();
             if(shortestPath.size() > 0)  shortest_path+="-->";
         }
         shortest_path+="\n";
-        System.out.print(shortest_path);
+        if (VERBOSE) System.out.print(shortest_path);
         return shortest_path;
     }
     //</editor-fold>
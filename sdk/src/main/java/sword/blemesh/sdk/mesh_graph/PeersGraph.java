@@ -11,6 +11,8 @@ import java.util.LinkedHashMap;
  */
 public class PeersGraph{
 
+    private static final boolean VERBOSE = false;
+
     protected LinkedHashMap<String, Peer> vertexList;
     protected LinkedHashMap<String, LinkedHashMap<String, Integer>> edgeMatrix;
 
@@ -131,7 +133,7 @@ public class PeersGraph{
                         "(address:" + desc + " rssi:" + getEdgeMatrix().get(src).get(desc) + "); \n";
             }
         }
-        System.out.println(graph_str);
+        if (VERBOSE) System.out.println(graph_str);
         return graph_str;
     }
 
@@ -0,0 +1,547 @@
+package sword.blemesh.sdk.mesh_graph;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single source shortest paths over a {@link PeersGraph} edge matrix.
+ *
+ * Mac addresses are mapped to dense int ids, adjacency is held in primitive arrays and
+ * the frontier in an indexed binary heap, so one computation costs O(E log V) without boxing.
+ * Arrays are reused across computations while the graph does not grow.
+ *
+ * After a full {@link #compute(Map, Map, String)}, single link changes may be applied with
+ * {@link #updateLink(String, String, Integer)}, which repairs only the routes the change affects.
+ *
+ * With {@link #setRequireTwoWayLinks(boolean)}, a link is used only if the edge matrix also holds
+ * its reverse, so that a link one end has dropped is not routed over.
+ *
+ * Routes are ordered as {@link LocalGraph} has always preferred them: a route without
+ * unusable links (metric {@link #MAX_METRIC}) beats one with, then fewer hops win, then
+ * the route whose link metrics, compared worst first, are lexicographically smaller.
+ * Destinations {@link #MAX_HOPS} or more hops away are unreachable.
+ *
+ * Alternatives to a route, sharing no node with it, are found on demand by
+ * {@link #getDisjointPaths(String, int)}.
+ */
+final class RoutingEngine {
+
+    static final int MAX_HOPS   = 20;
+    static final int MAX_METRIC = 20;
+
+    /** Metric classes are 1 to 11 and {@link #MAX_METRIC} */
+    private static final int METRIC_CLASSES = 12;
+
+    /**
+     * A route's link metrics are counted per class in fields of a long, the worst class most
+     * significant. Routes with equal hops then compare by value. Counts stay below MAX_HOPS.
+     */
+    private static final int METRIC_COUNT_BITS = 5;
+
+    /** Set in a route's rank when it crosses an unusable link. The hop count fills the low bits */
+    private static final int RANK_UNUSABLE = 1 << 8;
+
+    private static final int UNREACHED = RANK_UNUSABLE | MAX_HOPS;
+
+    private static final int NOT_QUEUED = -1;
+    private static final int SETTLED    = -2;
+
+    private static final int INITIAL_DEGREE = 4;
+
+    private boolean requireTwoWayLinks;
+
+    private final HashMap<String, Integer> ids = new HashMap<>();
+    private String[] addresses = new String[0];
+    private int      nodeCount;
+    private int      source    = -1;
+
+    // Links leaving and entering each node. Unordered, removal swaps in the last link
+    private int[]   outDegree = new int[0];
+    private int[][] outTarget = new int[0][];
+    private int[][] outRssi   = new int[0][];
+    private int[]   inDegree  = new int[0];
+    private int[][] inSource  = new int[0][];
+    private int[][] inRssi    = new int[0][];
+
+    private int[]  rank      = new int[0];
+    private long[] metrics   = new long[0];
+    private int[]  worstRssi = new int[0];
+    private int[]  prev      = new int[0];
+    private int[]  firstHop  = new int[0];
+
+    private int[] heap      = new int[0];
+    private int[] heapIndex = new int[0];
+    private int   heapSize;
+
+    /** Nodes whose routes are being repaired */
+    private int[] invalidated = new int[0];
+
+    // <editor-fold desc="Computation">
+
+    /**
+     * Set whether {@link #compute(Map, Map, String)} ignores links whose reverse is missing.
+     * Callers of {@link #updateLink(String, String, Integer)} must then pass null for such links.
+     */
+    void setRequireTwoWayLinks(boolean requireTwoWayLinks) {
+        this.requireTwoWayLinks = requireTwoWayLinks;
+    }
+
+    /**
+     * Compute routes from source to every vertex. Links to or from addresses that are not
+     * vertices are ignored.
+     *
+     * @param edgeMatrix rssi of each link by source then destination mac address, as positive values
+     */
+    void compute(@NonNull Map<String, ? extends Peer> vertexList,
+                 @NonNull Map<String, ? extends Map<String, Integer>> edgeMatrix,
+                 @NonNull String sourceAddress) {
+
+        assignIds(vertexList);
+        Integer sourceId = ids.get(sourceAddress);
+        if (sourceId == null)
+            throw new IllegalArgumentException("Source " + sourceAddress + " is not a vertex");
+        source = sourceId;
+
+        Arrays.fill(outDegree, 0, nodeCount, 0);
+        Arrays.fill(inDegree, 0, nodeCount, 0);
+        for (Map.Entry<String, ? extends Map<String, Integer>> row : edgeMatrix.entrySet()) {
+            Integer from = ids.get(row.getKey());
+            if (from == null) continue;
+            for (Map.Entry<String, Integer> link : row.getValue().entrySet()) {
+                Integer to = ids.get(link.getKey());
+                if (to == null || to == from.intValue() || link.getValue() == null) continue;
+                if (requireTwoWayLinks && !hasLink(edgeMatrix, link.getKey(), row.getKey())) continue;
+                addLink(from, to, link.getValue());
+            }
+        }
+
+        Arrays.fill(rank, 0, nodeCount, UNREACHED);
+        Arrays.fill(metrics, 0, nodeCount, 0);
+        Arrays.fill(worstRssi, 0, nodeCount, 0);
+        Arrays.fill(prev, 0, nodeCount, -1);
+        Arrays.fill(firstHop, 0, nodeCount, -1);
+        Arrays.fill(heapIndex, 0, nodeCount, NOT_QUEUED);
+        heapSize = 0;
+
+        rank[source] = 0;
+        push(source);
+        settleQueued();
+    }
+
+    /**
+     * Apply a change to the link from one vertex to another, as given to the last
+     * {@link #compute(Map, Map, String)}, and repair the routes it affects.
+     * Links to or from addresses that were not vertices are ignored.
+     *
+     * A link on the route tree invalidates the routes of its destination and their descendants,
+     * which are then rebuilt from their unaffected neighbours. A link that improves a route
+     * does the same for the improved node.
+     *
+     * @param rssi new rssi of the link as a positive value, or null if it was removed
+     */
+    void updateLink(@NonNull String fromAddress, @NonNull String toAddress, @Nullable Integer rssi) {
+        if (source < 0)
+            throw new IllegalStateException("Routes have not been computed");
+
+        Integer from = ids.get(fromAddress);
+        Integer to   = ids.get(toAddress);
+        if (from == null || to == null || from.intValue() == to) return;
+
+        removeLink(from, to);
+        if (rssi != null) addLink(from, to, rssi);
+
+        Arrays.fill(heapIndex, 0, nodeCount, SETTLED);
+        heapSize = 0;
+
+        if (prev[to] == from || (rssi != null && improves(from, to, rssi)))
+            invalidate(to);
+
+        settleQueued();
+    }
+
+    /**
+     * Dijkstra from the queued nodes. A settled node improved upon is invalidated and
+     * queued again with its descendants.
+     */
+    private void settleQueued() {
+        while (heapSize > 0) {
+            int node = pop();
+            heapIndex[node] = SETTLED;
+            if (node != source)
+                firstHop[node] = prev[node] == source ? node : firstHop[prev[node]];
+
+            int hops = rank[node] & ~RANK_UNUSABLE;
+            if (hops + 1 >= MAX_HOPS) continue;
+
+            for (int i = 0; i < outDegree[node]; i++) {
+                int adjacent = outTarget[node][i];
+                int rssi     = outRssi[node][i];
+                if (!improves(node, adjacent, rssi)) continue;
+
+                if (heapIndex[adjacent] == SETTLED) invalidate(adjacent);
+                else relax(node, adjacent, rssi);
+            }
+        }
+    }
+
+    /** @return true if the route to node via link from prevNode would beat node's route */
+    private boolean improves(int prevNode, int node, int rssi) {
+        if (rank[prevNode] == UNREACHED || (rank[prevNode] & ~RANK_UNUSABLE) + 1 >= MAX_HOPS) return false;
+
+        int candidateRank = candidateRank(prevNode, rssi);
+        return candidateRank < rank[node]
+                || (candidateRank == rank[node] && candidateMetrics(prevNode, rssi) < metrics[node]);
+    }
+
+    /** Route node via prevNode if that is better, and queue it */
+    private void relax(int prevNode, int node, int rssi) {
+        if (!improves(prevNode, node, rssi)) return;
+
+        rank[node]      = candidateRank(prevNode, rssi);
+        metrics[node]   = candidateMetrics(prevNode, rssi);
+        worstRssi[node] = Math.max(worstRssi[prevNode], rssi);
+        prev[node]      = prevNode;
+
+        if (heapIndex[node] == NOT_QUEUED) push(node);
+        else siftUp(heapIndex[node]);
+    }
+
+    private int candidateRank(int prevNode, int rssi) {
+        int candidateRank = rank[prevNode] + 1;
+        return metricForRssi(rssi) == MAX_METRIC ? candidateRank | RANK_UNUSABLE : candidateRank;
+    }
+
+    private long candidateMetrics(int prevNode, int rssi) {
+        return metrics[prevNode] + (1L << (metricClass(metricForRssi(rssi)) * METRIC_COUNT_BITS));
+    }
+
+    /**
+     * Forget the routes of root and its descendants on the route tree, then route each
+     * of them via its settled neighbours
+     */
+    private void invalidate(int root) {
+        int count = 0;
+        invalidated[count++] = root;
+        for (int i = 0; i < count; i++) {
+            int node = invalidated[i];
+            for (int j = 0; j < outDegree[node]; j++) {
+                int child = outTarget[node][j];
+                if (prev[child] == node) invalidated[count++] = child;
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            int node = invalidated[i];
+            if (heapIndex[node] >= 0) removeQueued(heapIndex[node]);
+            rank[node]      = UNREACHED;
+            metrics[node]   = 0;
+            worstRssi[node] = 0;
+            prev[node]      = -1;
+            firstHop[node]  = -1;
+            heapIndex[node] = NOT_QUEUED;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int node = invalidated[i];
+            for (int j = 0; j < inDegree[node]; j++) {
+                if (heapIndex[inSource[node][j]] == SETTLED) relax(inSource[node][j], node, inRssi[node][j]);
+            }
+        }
+    }
+
+    private static boolean hasLink(Map<String, ? extends Map<String, Integer>> edgeMatrix, String from, String to) {
+        Map<String, Integer> row = edgeMatrix.get(from);
+        return row != null && row.get(to) != null;
+    }
+
+    private void assignIds(Map<String, ? extends Peer> vertexList) {
+        ids.clear();
+        nodeCount = vertexList.size();
+        if (addresses.length < nodeCount) {
+            addresses   = new String[nodeCount];
+            rank        = new int[nodeCount];
+            metrics     = new long[nodeCount];
+            worstRssi   = new int[nodeCount];
+            prev        = new int[nodeCount];
+            firstHop    = new int[nodeCount];
+            heap        = new int[nodeCount];
+            heapIndex   = new int[nodeCount];
+            invalidated = new int[nodeCount];
+            outDegree   = new int[nodeCount];
+            inDegree    = new int[nodeCount];
+            outTarget   = Arrays.copyOf(outTarget, nodeCount);
+            outRssi     = Arrays.copyOf(outRssi, nodeCount);
+            inSource    = Arrays.copyOf(inSource, nodeCount);
+            inRssi      = Arrays.copyOf(inRssi, nodeCount);
+        }
+        int id = 0;
+        for (String address : vertexList.keySet()) {
+            addresses[id] = address;
+            ids.put(address, id++);
+        }
+    }
+
+    // </editor-fold desc="Computation">
+
+    // <editor-fold desc="Adjacency">
+
+    private void addLink(int from, int to, int rssi) {
+        if (outTarget[from] == null || outDegree[from] == outTarget[from].length) {
+            int capacity = Math.max(INITIAL_DEGREE, 2 * outDegree[from]);
+            outTarget[from] = outTarget[from] == null ? new int[capacity] : Arrays.copyOf(outTarget[from], capacity);
+            outRssi[from]   = outRssi[from] == null ? new int[capacity] : Arrays.copyOf(outRssi[from], capacity);
+        }
+        outTarget[from][outDegree[from]] = to;
+        outRssi[from][outDegree[from]++] = rssi;
+
+        if (inSource[to] == null || inDegree[to] == inSource[to].length) {
+            int capacity = Math.max(INITIAL_DEGREE, 2 * inDegree[to]);
+            inSource[to] = inSource[to] == null ? new int[capacity] : Arrays.copyOf(inSource[to], capacity);
+            inRssi[to]   = inRssi[to] == null ? new int[capacity] : Arrays.copyOf(inRssi[to], capacity);
+        }
+        inSource[to][inDegree[to]] = from;
+        inRssi[to][inDegree[to]++] = rssi;
+    }
+
+    private void removeLink(int from, int to) {
+        for (int i = 0; i < outDegree[from]; i++) {
+            if (outTarget[from][i] != to) continue;
+            int last = --outDegree[from];
+            outTarget[from][i] = outTarget[from][last];
+            outRssi[from][i]   = outRssi[from][last];
+            break;
+        }
+        for (int i = 0; i < inDegree[to]; i++) {
+            if (inSource[to][i] != from) continue;
+            int last = --inDegree[to];
+            inSource[to][i] = inSource[to][last];
+            inRssi[to][i]   = inRssi[to][last];
+            break;
+        }
+    }
+
+    // </editor-fold desc="Adjacency">
+
+    // <editor-fold desc="Results">
+
+    /** @return true if address was a vertex of the last full computation */
+    boolean hasNode(@NonNull String address) {
+        return ids.containsKey(address);
+    }
+
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    /** @return hops from the source to address, or {@link #MAX_HOPS} if it is unreachable */
+    int getHops(@NonNull String address) {
+        Integer id = ids.get(address);
+        return id == null || rank[id] == UNREACHED ? MAX_HOPS : rank[id] & ~RANK_UNUSABLE;
+    }
+
+    boolean isReachable(@NonNull String address) {
+        return getHops(address) < MAX_HOPS;
+    }
+
+    /** @return the largest rssi along the route to address, 0 for the source */
+    int getWorstRssi(@NonNull String address) {
+        Integer id = ids.get(address);
+        return id == null ? 0 : worstRssi[id];
+    }
+
+    /** @return the largest link metric along the route to address, 0 for the source */
+    int getWorstMetric(@NonNull String address) {
+        Integer id = ids.get(address);
+        if (id == null) return 0;
+        for (int metricClass = METRIC_CLASSES - 1; metricClass >= 0; metricClass--) {
+            if ((metrics[id] >>> (metricClass * METRIC_COUNT_BITS) & ((1 << METRIC_COUNT_BITS) - 1)) != 0)
+                return metricClass == METRIC_CLASSES - 1 ? MAX_METRIC : metricClass + 1;
+        }
+        return 0;
+    }
+
+    /** @return the node before address on its route, or null for the source and unreachable nodes */
+    @Nullable
+    String getPrevious(@NonNull String address) {
+        Integer id = ids.get(address);
+        return id == null || prev[id] < 0 ? null : addresses[prev[id]];
+    }
+
+    /** @return the source's neighbour on the route to address, or null for the source and unreachable nodes */
+    @Nullable
+    String getNextHop(@NonNull String address) {
+        Integer id = ids.get(address);
+        return id == null || firstHop[id] < 0 ? null : addresses[firstHop[id]];
+    }
+
+    // </editor-fold desc="Results">
+
+    // <editor-fold desc="Disjoint paths">
+
+    /**
+     * Find up to k routes from the source to address which share no node but their ends, best
+     * first. Each is the best route avoiding the nodes of the routes before it, so a later route
+     * may be longer. Alternatives crossing unusable links are left out.
+     *
+     * Costs O(k V^2), so it is meant for occasional use rather than every route calculation.
+     *
+     * @return each route as the addresses after the source, up to and including address.
+     * Empty if address is the source or unreachable
+     */
+    @NonNull
+    List<List<String>> getDisjointPaths(@NonNull String address, int k) {
+        Integer target = ids.get(address);
+        if (target == null || target == source || !isReachable(address)) return Collections.emptyList();
+
+        List<List<String>> paths = new ArrayList<>();
+        boolean[] excluded = new boolean[nodeCount];
+        boolean directUsed = false;
+        while (paths.size() < k) {
+            int[] pathPrev = new int[nodeCount];
+            int pathRank = findPathAvoiding(target, excluded, directUsed, pathPrev);
+            if (pathRank == UNREACHED || (!paths.isEmpty() && (pathRank & RANK_UNUSABLE) != 0)) break;
+
+            ArrayList<String> path = new ArrayList<>();
+            for (int node = target; node != source; node = pathPrev[node]) {
+                path.add(addresses[node]);
+                if (node != target) excluded[node] = true;
+            }
+            Collections.reverse(path);
+            if (path.size() == 1) directUsed = true;
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    /**
+     * Dijkstra from the source to target over nodes not excluded, ordering routes as
+     * {@link #compute(Map, Map, String)} does
+     *
+     * @param pathPrev filled with the node before each node on its route
+     * @return the rank of the route to target, or {@link #UNREACHED}
+     */
+    private int findPathAvoiding(int target, boolean[] excluded, boolean skipDirect, int[] pathPrev) {
+        int[]     pathRank    = new int[nodeCount];
+        long[]    pathMetrics = new long[nodeCount];
+        boolean[] settled     = new boolean[nodeCount];
+        Arrays.fill(pathRank, UNREACHED);
+        Arrays.fill(pathPrev, -1);
+        pathRank[source] = 0;
+
+        while (true) {
+            int node = -1;
+            for (int i = 0; i < nodeCount; i++) {
+                if (settled[i] || pathRank[i] == UNREACHED) continue;
+                if (node < 0 || pathRank[i] < pathRank[node]
+                        || (pathRank[i] == pathRank[node] && pathMetrics[i] < pathMetrics[node])) node = i;
+            }
+            if (node < 0) return UNREACHED;
+            if (node == target) return pathRank[target];
+
+            settled[node] = true;
+            if ((pathRank[node] & ~RANK_UNUSABLE) + 1 >= MAX_HOPS) continue;
+
+            for (int i = 0; i < outDegree[node]; i++) {
+                int adjacent = outTarget[node][i];
+                if (settled[adjacent] || excluded[adjacent] || (skipDirect && node == source && adjacent == target))
+                    continue;
+
+                int  metric           = metricForRssi(outRssi[node][i]);
+                int  candidateRank    = metric == MAX_METRIC ? (pathRank[node] + 1) | RANK_UNUSABLE : pathRank[node] + 1;
+                long candidateMetrics = pathMetrics[node] + (1L << (metricClass(metric) * METRIC_COUNT_BITS));
+                if (candidateRank < pathRank[adjacent]
+                        || (candidateRank == pathRank[adjacent] && candidateMetrics < pathMetrics[adjacent])) {
+                    pathRank[adjacent]    = candidateRank;
+                    pathMetrics[adjacent] = candidateMetrics;
+                    pathPrev[adjacent]    = node;
+                }
+            }
+        }
+    }
+
+    // </editor-fold desc="Disjoint paths">
+
+    static int metricForRssi(int r) {
+        if (r <= 30) return 1;
+        if (r <= 40) return 2;
+        if (r <= 50) return 3;
+        if (r <= 55) return 4;
+        if (r <= 60) return 5;
+        if (r <= 65) return 6;
+        if (r <= 70) return 7;
+        if (r <= 75) return 8;
+        if (r <= 80) return 9;
+        if (r <= 85) return 10;
+        if (r <= 90) return 11;
+        return MAX_METRIC;
+    }
+
+    private static int metricClass(int metric) {
+        return metric == MAX_METRIC ? METRIC_CLASSES - 1 : metric - 1;
+    }
+
+    // <editor-fold desc="Indexed heap">
+
+    private boolean precedes(int node, int other) {
+        return rank[node] < rank[other] || (rank[node] == rank[other] && metrics[node] < metrics[other]);
+    }
+
+    private void push(int node) {
+        heap[heapSize] = node;
+        heapIndex[node] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private int pop() {
+        int top = heap[0];
+        removeQueued(0);
+        return top;
+    }
+
+    private void removeQueued(int position) {
+        int last = heap[--heapSize];
+        if (position == heapSize) return;
+
+        heap[position] = last;
+        heapIndex[last] = position;
+        siftDown(position);
+        siftUp(heapIndex[last]);
+    }
+
+    private void siftUp(int position) {
+        int node = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!precedes(node, heap[parent])) break;
+            heap[position] = heap[parent];
+            heapIndex[heap[position]] = position;
+            position = parent;
+        }
+        heap[position] = node;
+        heapIndex[node] = position;
+    }
+
+    private void siftDown(int position) {
+        int node = heap[position];
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && precedes(heap[child + 1], heap[child])) child++;
+            if (!precedes(heap[child], node)) break;
+            heap[position] = heap[child];
+            heapIndex[heap[position]] = position;
+            position = child;
+        }
+        heap[position] = node;
+        heapIndex[node] = position;
+    }
+
+    // </editor-fold desc="Indexed heap">
+}
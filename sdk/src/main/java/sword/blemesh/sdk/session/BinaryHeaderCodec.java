@@ -0,0 +1,397 @@
+package sword.blemesh.sdk.session;
+
+import android.support.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary representation of {@link SessionMessage} headers, used when the
+ * header version is {@link SessionMessage#HEADER_VERSION_BINARY}.
+ *
+ * Each header entry is written as a varint field key followed by its value. The field key
+ * packs a numeric tag identifying a well-known header name (see {@link #KNOWN_KEYS})
+ * and a wire type describing how the value is laid out:
+ *
+ * wire type         | layout
+ * ------------------|-------
+ * {@link #WIRE_VARINT}   | zig-zag varint, read back as Integer
+ * {@link #WIRE_VARINT64} | zig-zag varint, read back as Long
+ * {@link #WIRE_STRING}   | varint length + UTF-8 bytes
+ * {@link #WIRE_MAC}      | 6 raw bytes of a "AA:BB:CC:DD:EE:FF" address
+ * {@link #WIRE_JSON}     | varint length + UTF-8 JSON object, read back as a Map
+ * {@link #WIRE_FIXED64}  | 8 raw bytes, big endian, read back as Long
+ * {@link #WIRE_MAC_LIST} | varint count + 6 raw bytes per address, read back as a List of Strings
+ *
+ * Long values of {@link SessionMessage#HEADER_ID} and the delivery ack IDs of
+ * {@link DataTransferMessage} use {@link #WIRE_FIXED64}, as a {@link MessageId} carries its originator in the top bits and so rarely packs as a varint.
+ *
+ * Header names without a tag use {@link #TAG_NAMED}, in which case the name itself is
+ * written as a length-prefixed UTF-8 string right after the field key.
+ */
+public class BinaryHeaderCodec {
+
+    static final int WIRE_VARINT   = 0;
+    static final int WIRE_VARINT64 = 1;
+    static final int WIRE_STRING   = 2;
+    static final int WIRE_MAC      = 3;
+    static final int WIRE_JSON     = 4;
+    static final int WIRE_FIXED64  = 5;
+    static final int WIRE_MAC_LIST = 6;
+
+    private static final int WIRE_TYPE_BITS = 3;
+    private static final int WIRE_TYPE_MASK = (1 << WIRE_TYPE_BITS) - 1;
+
+    private static final int MAC_ADDRESS_BYTES  = 6;
+    private static final int MAC_ADDRESS_LENGTH = 17;
+
+    static final int TAG_NAMED = 0;
+
+    /** Header names indexed by their field tag. Append only, tags are part of the wire format */
+    static final String[] KNOWN_KEYS = {
+            null,                                   // TAG_NAMED
+            SessionMessage.HEADER_TYPE,
+            SessionMessage.HEADER_BODY_LENGTH,
+            SessionMessage.HEADER_ID,
+            SessionMessage.HEADER_MAC_ADDRESS,
+            IdentityMessage.HEADER_ALIAS,
+            DataTransferMessage.HEADER_DESC,
+            DataTransferMessage.HEADER_SOURCE,
+            DataTransferMessage.HEADER_TTL,
+            DataTransferMessage.HEADER_SEND_DATE,
+            GraphMessage.HEADER_REMOTE_ACTION,
+            GraphMessage.HEADER_CAST_FORM,
+            DataTransferMessage.HEADER_EXTRA,
+            GraphMessage.HEADER_ORIGIN,
+            GraphMessage.HEADER_SEQUENCE,
+            DataTransferMessage.HEADER_DELIVERY_ID,
+            DataTransferMessage.HEADER_ACK_ID,
+            DataTransferMessage.HEADER_ROUTE,
+            GraphMessage.HEADER_RELAYS
+    };
+
+    /** Values of {@link SessionMessage#HEADER_TYPE} indexed by their type code. Append only */
+    static final String[] KNOWN_TYPES = {
+            null,
+            IdentityMessage.HEADER_TYPE,
+            DataTransferMessage.HEADER_TYPE,
+            GraphMessage.HEADER_TYPE
+    };
+
+    private static final int TAG_TYPE        = indexOf(KNOWN_KEYS, SessionMessage.HEADER_TYPE);
+    private static final int TAG_ID          = indexOf(KNOWN_KEYS, SessionMessage.HEADER_ID);
+    private static final int TAG_DELIVERY_ID = indexOf(KNOWN_KEYS, DataTransferMessage.HEADER_DELIVERY_ID);
+    private static final int TAG_ACK_ID      = indexOf(KNOWN_KEYS, DataTransferMessage.HEADER_ACK_ID);
+
+    private static final HashMap<String, Integer> KEY_TAGS = new HashMap<>();
+
+    static {
+        for (int tag = 1; tag < KNOWN_KEYS.length; tag++)
+            KEY_TAGS.put(KNOWN_KEYS[tag], tag);
+    }
+
+    // <editor-fold desc="Encoding">
+
+    /**
+     * Encode a header map. Entries with null values are skipped, matching the
+     * behaviour of the JSON representation.
+     *
+     * @throws IllegalArgumentException if a value is not an Integer, Long, String, Map or
+     * List of packable mac addresses
+     */
+    public static @NonNull byte[] encode(@NonNull Map<String, Object> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+        for (Map.Entry<String, Object> entry : headers.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) continue;
+
+            Integer knownTag = KEY_TAGS.get(entry.getKey());
+            int tag = knownTag == null ? TAG_NAMED : knownTag;
+
+            if (tag == TAG_TYPE && value instanceof String) {
+                int typeCode = indexOf(KNOWN_TYPES, (String) value);
+                if (typeCode > 0) {
+                    writeKey(out, tag, WIRE_VARINT);
+                    writeVarint(out, zigZag(typeCode));
+                    continue;
+                }
+            }
+
+            boolean messageId = tag == TAG_ID || tag == TAG_DELIVERY_ID || tag == TAG_ACK_ID;
+            int wireType = messageId && value instanceof Long ? WIRE_FIXED64 : wireTypeOf(value);
+            writeKey(out, tag, wireType);
+            if (tag == TAG_NAMED)
+                writeString(out, entry.getKey());
+
+            switch (wireType) {
+                case WIRE_VARINT:
+                    writeVarint(out, zigZag((Integer) value));
+                    break;
+                case WIRE_VARINT64:
+                    writeVarint(out, zigZag((Long) value));
+                    break;
+                case WIRE_MAC:
+                    writeMacAddress(out, (String) value);
+                    break;
+                case WIRE_STRING:
+                    writeString(out, (String) value);
+                    break;
+                case WIRE_JSON:
+                    writeString(out, new JSONObject((Map) value).toString());
+                    break;
+                case WIRE_FIXED64:
+                    writeFixed64(out, (Long) value);
+                    break;
+                case WIRE_MAC_LIST:
+                    List list = (List) value;
+                    writeVarint(out, list.size());
+                    for (Object macAddress : list)
+                        writeMacAddress(out, (String) macAddress);
+                    break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static int wireTypeOf(Object value) {
+        if (value instanceof Integer) return WIRE_VARINT;
+        if (value instanceof Long)    return WIRE_VARINT64;
+        if (value instanceof String)  return isPackableMacAddress((String) value) ? WIRE_MAC : WIRE_STRING;
+        if (value instanceof Map)     return WIRE_JSON;
+        if (value instanceof List && isPackableMacAddressList((List) value)) return WIRE_MAC_LIST;
+        throw new IllegalArgumentException("Unsupported header value type " + value.getClass().getSimpleName());
+    }
+
+    private static void writeKey(ByteArrayOutputStream out, int tag, int wireType) {
+        writeVarint(out, ((long) tag << WIRE_TYPE_BITS) | wireType);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = utf8(value);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeFixed64(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8)
+            out.write((int) (value >>> shift));
+    }
+
+    private static void writeMacAddress(ByteArrayOutputStream out, String macAddress) {
+        for (int i = 0; i < MAC_ADDRESS_BYTES; i++)
+            out.write(Integer.parseInt(macAddress.substring(i * 3, i * 3 + 2), 16));
+    }
+
+    /**
+     * Only upper case, colon separated addresses are packed so that decoding
+     * reproduces the exact same String.
+     */
+    static boolean isPackableMacAddress(String value) {
+        if (value.length() != MAC_ADDRESS_LENGTH) return false;
+        for (int i = 0; i < MAC_ADDRESS_LENGTH; i++) {
+            char c = value.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') return false;
+            } else if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPackableMacAddressList(List list) {
+        for (Object value : list) {
+            if (!(value instanceof String) || !isPackableMacAddress((String) value)) return false;
+        }
+        return true;
+    }
+
+    private static long zigZag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    // </editor-fold desc="Encoding">
+
+    // <editor-fold desc="Decoding">
+
+    /**
+     * Decode headers previously produced by {@link #encode(Map)}
+     *
+     * @throws IllegalArgumentException if data is truncated or malformed
+     */
+    public static @NonNull HashMap<String, Object> decode(@NonNull byte[] data, int offset, int length) {
+        HashMap<String, Object> headers = new HashMap<>();
+        Reader reader = new Reader(data, offset, offset + length);
+
+        while (reader.hasRemaining()) {
+            long key = reader.readVarint();
+            int wireType = (int) (key & WIRE_TYPE_MASK);
+            int tag = (int) (key >>> WIRE_TYPE_BITS);
+
+            String name;
+            if (tag == TAG_NAMED)
+                name = reader.readString();
+            else if (tag < KNOWN_KEYS.length)
+                name = KNOWN_KEYS[tag];
+            else
+                throw new IllegalArgumentException("Unknown header tag " + tag);
+
+            Object value;
+            switch (wireType) {
+                case WIRE_VARINT:
+                    int intValue = unZigZag32(reader.readVarint());
+                    if (tag == TAG_TYPE) {
+                        if (intValue <= 0 || intValue >= KNOWN_TYPES.length)
+                            throw new IllegalArgumentException("Unknown message type code " + intValue);
+                        value = KNOWN_TYPES[intValue];
+                    } else
+                        value = intValue;
+                    break;
+                case WIRE_VARINT64:
+                    value = unZigZag64(reader.readVarint());
+                    break;
+                case WIRE_FIXED64:
+                    value = reader.readFixed64();
+                    break;
+                case WIRE_STRING:
+                    value = reader.readString();
+                    break;
+                case WIRE_MAC:
+                    value = reader.readMacAddress();
+                    break;
+                case WIRE_MAC_LIST:
+                    long count = reader.readVarint();
+                    if (count < 0 || count > length / MAC_ADDRESS_BYTES)
+                        throw new IllegalArgumentException("Address list overruns header");
+                    ArrayList<String> addresses = new ArrayList<>((int) count);
+                    for (int i = 0; i < count; i++)
+                        addresses.add(reader.readMacAddress());
+                    value = addresses;
+                    break;
+                case WIRE_JSON:
+                    try {
+                        value = SessionMessageDeserializer.toMap(new JSONObject(reader.readString()));
+                    } catch (JSONException e) {
+                        throw new IllegalArgumentException("Malformed JSON value for header " + name, e);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown wire type " + wireType);
+            }
+            headers.put(name, value);
+        }
+        return headers;
+    }
+
+    private static int unZigZag32(long value) {
+        int n = (int) value;
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static long unZigZag64(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class Reader {
+        private final byte[] data;
+        private final int    limit;
+        private       int    position;
+
+        Reader(byte[] data, int position, int limit) {
+            this.data     = data;
+            this.position = position;
+            this.limit    = limit;
+        }
+
+        boolean hasRemaining() {
+            return position < limit;
+        }
+
+        long readVarint() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return result;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        String readString() {
+            long length = readVarint();
+            if (length < 0 || length > limit - position)
+                throw new IllegalArgumentException("Header string overruns header");
+            String result;
+            try {
+                result = new String(data, position, (int) length, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            position += length;
+            return result;
+        }
+
+        long readFixed64() {
+            long result = 0;
+            for (int i = 0; i < 8; i++)
+                result = (result << 8) | (readByte() & 0xFF);
+            return result;
+        }
+
+        String readMacAddress() {
+            char[] chars = new char[MAC_ADDRESS_LENGTH];
+            for (int i = 0; i < MAC_ADDRESS_BYTES; i++) {
+                int b = readByte() & 0xFF;
+                chars[i * 3]     = HEX[b >>> 4];
+                chars[i * 3 + 1] = HEX[b & 0x0F];
+                if (i < MAC_ADDRESS_BYTES - 1) chars[i * 3 + 2] = ':';
+            }
+            return new String(chars);
+        }
+
+        private int readByte() {
+            if (position >= limit)
+                throw new IllegalArgumentException("Truncated header");
+            return data[position++];
+        }
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    // </editor-fold desc="Decoding">
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int indexOf(String[] values, String value) {
+        for (int i = 1; i < values.length; i++) {
+            if (values[i].equals(value)) return i;
+        }
+        return -1;
+    }
+}
@@ -3,12 +3,22 @@ package sword.blemesh.sdk.session;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import sword.blemesh.sdk.mesh_graph.LocalGraph;
 import sword.blemesh.sdk.mesh_graph.Peer;
+import timber.log.Timber;
 
 /**
  * Created by davidbrodsky on 2/22/15.
@@ -16,34 +26,73 @@ import sword.blemesh.sdk.mesh_graph.Peer;
  */
 public class DataTransferMessage extends SessionMessage {
 
-    public static final int TTL_INITIAL_VALUE = 6;
+    /**
+     * Hops a message may travel, as far as any reachable destination. Relays drop messages whose
+     * TTL reached 0 on receipt
+     */
+    public static final int TTL_INITIAL_VALUE = LocalGraph.MAX_HOPS;
     public static final String HEADER_TYPE = "datatransfer";
     public static final String HEADER_DESC = "message_destination";
     public static final String HEADER_TTL = "TTL";
     public static final String HEADER_EXTRA = "extra";
     public static final String HEADER_SEND_DATE = "sendTime";
     public static final String HEADER_SOURCE ="source";
+    /** Present if the source wants an end-to-end delivery ack. The ID acks refer to */
+    public static final String HEADER_DELIVERY_ID = "delivery_id";
+    /** Present on delivery acks. The delivery ID acknowledged */
+    public static final String HEADER_ACK_ID = "ack_id";
+    /** Present if the source chose the route. Mac addresses of the hops after the source, up to the destination */
+    public static final String HEADER_ROUTE = "route";
+
+    /** Largest body sent as {@link Priority#INTERACTIVE}. Larger bodies are {@link Priority#BULK} */
+    public static final int INTERACTIVE_MAX_BODY_BYTES = 1024;
 
     private ByteBuffer dataBuffer;
+    /** Body stored on disk. Set for large incoming bodies or outgoing File transfers */
+    private File bodyFile;
+    private RandomAccessFile bodyFileReader;
+    /** Outgoing body read sequentially as the message is serialized */
+    private InputStream bodyStream;
+    private int bodyStreamPosition;
     private String source_mac_address;
     private String desc_mac_address;
     private Map<String, Object> extraHeaders;
-    private int TTL; //Like TTL in internet, initial value is 10 and when TTL == 0, drop this message.
+    private int TTL; //Like TTL in internet, decremented on each receipt. When TTL == 0, drop this message.
     private Date date;
+    /** ID of the first transmission, if a delivery ack was requested */
+    private Long deliveryId;
+    /** Delivery ID acknowledged, if this is a delivery ack */
+    private Long ackedDeliveryId;
+    /** Hops after the source, if the source chose the route */
+    private List<String> route;
+    /** Body bytes arrived so far of an incoming body taken as it arrives, or -1. See {@link #streamBody()} */
+    private int bodyBytesStreamed = -1;
+    private boolean aborted;
     // <editor-fold desc="Incoming Constructors">
 
     DataTransferMessage(@NonNull Map<String, Object> headers,
                         @Nullable byte[] body) {
 
         super((String)headers.get(SessionMessage.HEADER_MAC_ADDRESS),
-                (String) headers.get(SessionMessage.HEADER_ID));
+                MessageId.parse(headers.get(SessionMessage.HEADER_ID)));
         init();
-        this.headers      = headers;
+        // Relays send this message on as is, so its headers must carry the decremented TTL
+        this.headers      = new HashMap<>(headers);
         this.bodyLengthBytes   = (int) headers.get(HEADER_BODY_LENGTH);
         this.desc_mac_address = (String) headers.get(HEADER_DESC);
         this.source_mac_address = (String) headers.get(HEADER_SOURCE);
         this.TTL = (int)headers.get(HEADER_TTL) - 1;
+        this.headers.put(HEADER_TTL, TTL);
         this.date = new Date((long)headers.get(HEADER_SEND_DATE));
+        if (headers.get(HEADER_DELIVERY_ID) != null)
+            this.deliveryId = MessageId.parse(headers.get(HEADER_DELIVERY_ID));
+        if (headers.get(HEADER_ACK_ID) != null)
+            this.ackedDeliveryId = MessageId.parse(headers.get(HEADER_ACK_ID));
+        if (headers.get(HEADER_ROUTE) != null) {
+            this.route = new ArrayList<>();
+            for (Object hop : (List) headers.get(HEADER_ROUTE))
+                this.route.add((String) hop);
+        }
         status            = body == null ? Status.HEADER_ONLY : Status.COMPLETE;
 
         if (body != null)
@@ -62,23 +111,94 @@ public class DataTransferMessage extends SessionMessage {
                                                      @NonNull String sourceAddress,
                                                      @Nullable byte[] data) {
 
-        return new DataTransferMessage(data, recipient,sourceAddress,extraHeaders);
+        return new DataTransferMessage(data, recipient.getMacAddress(), sourceAddress, extraHeaders);
+    }
+
+    /**
+     * Create the end-to-end ack of a message which requested one, addressed to its source.
+     * See {@link #requestDeliveryAck()}
+     */
+    public static DataTransferMessage createDeliveryAck(@NonNull DataTransferMessage message,
+                                                        @NonNull String sourceAddress) {
+
+        if (!message.isDeliveryAckRequested())
+            throw new IllegalArgumentException("Message " + MessageId.toString(message.getID()) + " requested no ack");
+
+        DataTransferMessage ack = new DataTransferMessage(message.getSource(), sourceAddress, null);
+        ack.ackedDeliveryId = message.deliveryId;
+        ack.status = Status.COMPLETE;
+        ack.serializeAndCacheHeaders();
+        return ack;
+    }
+
+    /**
+     * Create a copy of an outgoing message awaiting a delivery ack, to be sent again. The copy has
+     * a new ID, so that relays which saw the original pass it on, and the original's delivery ID.
+     *
+     * @throws IllegalStateException if the body was read from a stream, and so cannot be read again
+     */
+    public static DataTransferMessage createRetransmission(@NonNull DataTransferMessage message) {
+        if (!message.isDeliveryAckRequested())
+            throw new IllegalArgumentException("Message " + MessageId.toString(message.getID()) + " requested no ack");
+        if (message.dataBuffer == null && message.bodyFile == null && message.bodyLengthBytes > 0)
+            throw new IllegalStateException("Cannot resend a body read from a stream");
+
+        DataTransferMessage copy = new DataTransferMessage(message.desc_mac_address, message.source_mac_address,
+                message.extraHeaders);
+        copy.date       = message.date;
+        copy.deliveryId = message.deliveryId;
+        copy.dataBuffer = message.dataBuffer;
+        copy.bodyFile   = message.bodyFile;
+        copy.setBodyLength(message.bodyLengthBytes);
+        return copy;
+    }
+
+    /**
+     * Create a DataTransferMessage whose body is read from file lazily, chunk by chunk,
+     * as the message is serialized.
+     */
+    public static DataTransferMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
+                                                     @NonNull Peer recipient,
+                                                     @NonNull String sourceAddress,
+                                                     @NonNull File file) {
+
+        if (!file.isFile() || file.length() > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Cannot send " + file.getAbsolutePath());
+
+        DataTransferMessage message = new DataTransferMessage(recipient.getMacAddress(), sourceAddress, extraHeaders);
+        message.bodyFile = file;
+        message.setBodyLength((int) file.length());
+        return message;
+    }
+
+    /**
+     * Create a DataTransferMessage whose body is read from stream lazily, chunk by chunk,
+     * as the message is serialized. Exactly length bytes will be read. The stream is closed
+     * once the body has been read.
+     */
+    public static DataTransferMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
+                                                     @NonNull Peer recipient,
+                                                     @NonNull String sourceAddress,
+                                                     @NonNull InputStream stream,
+                                                     int length) {
+
+        if (length < 0)
+            throw new IllegalArgumentException("Body length may not be negative");
+
+        DataTransferMessage message = new DataTransferMessage(recipient.getMacAddress(), sourceAddress, extraHeaders);
+        message.bodyStream = stream;
+        message.setBodyLength(length);
+        return message;
     }
 
     // To avoid confusion between the incoming constructor which takes a
     // Map of the completely deserialized headers and byte payload, we hide
     // this contstructor behind the static creator 'createOutgoing'
     private DataTransferMessage(@Nullable byte[] data,
-                                @NonNull Peer recipient,
+                                @NonNull String descAddress,
                                 @NonNull String sourceAddress,
                                 @Nullable Map<String, Object> extraHeaders) {
-        super();
-        this.desc_mac_address = recipient.getMacAddress();
-        this.source_mac_address = sourceAddress;
-        this.extraHeaders = extraHeaders;
-        this.TTL = TTL_INITIAL_VALUE;
-        this.date = new Date();
-        init();
+        this(descAddress, sourceAddress, extraHeaders);
         if (data != null) {
             setBody(data);
             bodyLengthBytes = data.length;
@@ -87,6 +207,22 @@ public class DataTransferMessage extends SessionMessage {
 
     }
 
+    /**
+     * Outgoing message without body. Callers must provide one, if any,
+     * then call {@link #serializeAndCacheHeaders()}
+     */
+    private DataTransferMessage(@NonNull String descAddress,
+                                @NonNull String sourceAddress,
+                                @Nullable Map<String, Object> extraHeaders) {
+        super(sourceAddress);
+        this.desc_mac_address = descAddress;
+        this.source_mac_address = sourceAddress;
+        this.extraHeaders = extraHeaders;
+        this.TTL = TTL_INITIAL_VALUE;
+        this.date = new Date();
+        init();
+    }
+
     // </editor-fold desc="Outgoing Constructors">
 
     private void init() {
@@ -102,6 +238,12 @@ public class DataTransferMessage extends SessionMessage {
         headerMap.put(HEADER_SEND_DATE,date.getTime());
         if (extraHeaders != null)
             headerMap.put(HEADER_EXTRA, extraHeaders);
+        if (deliveryId != null)
+            headerMap.put(HEADER_DELIVERY_ID, deliveryId);
+        if (ackedDeliveryId != null)
+            headerMap.put(HEADER_ACK_ID, ackedDeliveryId);
+        if (route != null)
+            headerMap.put(HEADER_ROUTE, route);
 
         // The following three lines should be deleted
 //        headerMap.put(HEADER_TYPE,        type);
@@ -111,32 +253,291 @@ public class DataTransferMessage extends SessionMessage {
         return headerMap;
     }
 
+    /** Complete an outgoing message whose body is read lazily, caching headers reflecting its length */
+    private void setBodyLength(int length) {
+        bodyLengthBytes = length;
+        status = Status.COMPLETE;
+        serializeAndCacheHeaders();
+    }
+
     public void setBody(@NonNull byte[] body) {
-        if (dataBuffer != null)
+        if (dataBuffer != null || bodyFile != null)
             throw new IllegalStateException("Attempted to set existing message body");
 
         dataBuffer = ByteBuffer.wrap(body);
         status = Status.COMPLETE;
     }
 
+    /**
+     * Set the body of an incoming message which was too large to hold in memory.
+     * file must contain exactly {@link #getBodyLengthBytes()} bytes.
+     */
+    public void setBodyFile(@NonNull File file) {
+        if (dataBuffer != null || bodyFile != null)
+            throw new IllegalStateException("Attempted to set existing message body");
+
+        bodyFile = file;
+        status = Status.COMPLETE;
+    }
+
+    /**
+     * @return the file holding this message's body, or null if the body is held in memory
+     * or read from an InputStream
+     */
+    public @Nullable File getBodyFile() {
+        return bodyFile;
+    }
+
+    /**
+     * @return whether the body may be serialized again from the start, as a message rerouted
+     * after a failed hop is. Not so for a body read from an InputStream once reading began
+     */
+    public boolean canReplayBody() {
+        return dataBuffer != null || bodyFile != null || bodyLengthBytes == 0
+                || (bodyStream != null && bodyStreamPosition == 0);
+    }
+
+    /**
+     * @return whether the body is held in memory, and so may be retrieved whole via
+     * {@link #getBodyAtOffset(int, int)} without risk of exhausting memory
+     */
+    public boolean isBodyInMemory() {
+        return dataBuffer != null && status == Status.COMPLETE;
+    }
+
+    // <editor-fold desc="Streamed Body">
+
+    /**
+     * @return whether the body of this incoming message may be taken as it arrives, see
+     * {@link #streamBody()}. Only bodies held in memory may
+     */
+    public boolean canStreamBody() {
+        return status == Status.HEADER_ONLY && bodyBytesStreamed < 0
+                && bodyLengthBytes <= SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES;
+    }
+
+    /**
+     * Take the body of this incoming message as it arrives, rather than once complete, so that
+     * a relay may send it on while it arrives. Serialization then stops short at the body bytes
+     * arrived so far, see {@link #isBodyArriving()}. Should the rest never arrive,
+     * the message is {@link #isAborted()}.
+     */
+    public void streamBody() {
+        if (!canStreamBody())
+            throw new IllegalStateException("Cannot stream body of message " + MessageId.toString(id));
+
+        dataBuffer        = ByteBuffer.wrap(new byte[bodyLengthBytes]);
+        bodyBytesStreamed = 0;
+        if (bodyLengthBytes == 0) status = Status.COMPLETE;
+    }
+
+    /** @return whether the body was taken as it arrived. See {@link #streamBody()} */
+    public boolean isBodyStreamed() {
+        return bodyBytesStreamed >= 0;
+    }
+
+    @Override
+    public boolean isBodyArriving() {
+        return isBodyStreamed() && status != Status.COMPLETE && !aborted;
+    }
+
+    @Override
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /** Append the next length body bytes from data. The message is complete with the last */
+    void appendBody(@NonNull byte[] data, int offset, int length) {
+        if (!isBodyArriving() || length > bodyLengthBytes - bodyBytesStreamed)
+            throw new IllegalStateException("Unexpected body bytes for message " + MessageId.toString(id));
+
+        System.arraycopy(data, offset, dataBuffer.array(), bodyBytesStreamed, length);
+        bodyBytesStreamed += length;
+        if (bodyBytesStreamed == bodyLengthBytes) status = Status.COMPLETE;
+    }
+
+    /** The rest of a streamed body will never arrive */
+    void abort() {
+        if (isBodyArriving()) aborted = true;
+    }
+
+    @Override
+    protected int getAvailableBodyBytes() {
+        return isBodyStreamed() ? bodyBytesStreamed : super.getAvailableBodyBytes();
+    }
+
+    // </editor-fold desc="Streamed Body">
+
+    /**
+     * Ask the destination to acknowledge delivery end-to-end. Must be called on an outgoing
+     * message before it is sent. See {@link sword.blemesh.sdk.app.DeliveryTracker}
+     */
+    public void requestDeliveryAck() {
+        if (deliveryId != null) return;
+
+        deliveryId = id;
+        recacheHeaders();
+    }
+
+    public boolean isDeliveryAckRequested() {
+        return deliveryId != null;
+    }
+
+    /** @return the ID delivery acks refer to, that of the first transmission. 0 if no ack was requested */
+    public long getDeliveryId() {
+        return deliveryId == null ? 0 : deliveryId;
+    }
+
+    /** @return whether this is the end-to-end ack of another message, see {@link #getAckedDeliveryId()} */
+    public boolean isDeliveryAck() {
+        return ackedDeliveryId != null;
+    }
+
+    /** @return the delivery ID this ack acknowledges, or 0 if this is not an ack */
+    public long getAckedDeliveryId() {
+        return ackedDeliveryId == null ? 0 : ackedDeliveryId;
+    }
+
+    /**
+     * Have relays follow route rather than their own forwarding tables, as far as its hops stay
+     * adjacent. Must be called on an outgoing message before it is sent
+     *
+     * @param route mac addresses of the hops after the source, ending with the destination
+     */
+    public void setRoute(@NonNull List<String> route) {
+        if (route.isEmpty() || !desc_mac_address.equals(route.get(route.size() - 1)))
+            throw new IllegalArgumentException("Route must end at " + desc_mac_address);
+
+        this.route = new ArrayList<>(route);
+        recacheHeaders();
+    }
+
+    /** @return hops after the source up to the destination, if the source chose the route, otherwise null */
+    public @Nullable List<String> getRoute() {
+        return route == null ? null : Collections.unmodifiableList(route);
+    }
+
+    /**
+     * @return the hop following address on the route, or its first hop if address is not on it.
+     * Null if the source did not choose the route or address is the destination
+     */
+    public @Nullable String getRouteHopAfter(@NonNull String address) {
+        if (route == null) return null;
+
+        int index = route.indexOf(address);
+        return index + 1 < route.size() ? route.get(index + 1) : null;
+    }
+
+    @Override
+    public @NonNull Priority getPriority() {
+        if (ackedDeliveryId != null) return Priority.CONTROL;
+        return bodyLengthBytes <= INTERACTIVE_MAX_BODY_BYTES ? Priority.INTERACTIVE : Priority.BULK;
+    }
+
     @Override
     public byte[] getBodyAtOffset(int offset, int length) {
 
         if (offset > bodyLengthBytes - 1) return null;
 
+        byte[] result = new byte[Math.min(length, bodyLengthBytes - offset)];
+        int bytesRead = getBodyAtOffset(offset, result, 0, result.length);
+
+        return bytesRead == result.length ? result : Arrays.copyOf(result, bytesRead);
+    }
+
+    /**
+     * Bodies read from an InputStream must be read sequentially.
+     *
+     * @throws IllegalStateException if a disk or stream backed body cannot be read
+     */
+    @Override
+    public int getBodyAtOffset(int offset, @NonNull byte[] destination, int destinationOffset, int length) {
+
+        if (offset > bodyLengthBytes - 1 || length <= 0) return 0;
+
         int bytesToRead = Math.min(length, bodyLengthBytes - offset);
-        byte[] result = new byte[bytesToRead];
 
-        dataBuffer.position(offset);
-        dataBuffer.get(result, 0, bytesToRead);
+        if (dataBuffer != null) {
+            System.arraycopy(dataBuffer.array(), dataBuffer.arrayOffset() + offset,
+                             destination, destinationOffset, bytesToRead);
+            return bytesToRead;
+        }
+
+        try {
+            if (bodyFile != null)
+                readBodyFile(offset, destination, destinationOffset, bytesToRead);
+            else if (bodyStream != null)
+                readBodyStream(offset, destination, destinationOffset, bytesToRead);
+            else
+                return 0;
+        } catch (IOException e) {
+            releaseBody();
+            throw new IllegalStateException("Failed to read message body", e);
+        }
 
-        return result;
+        // Release the file handle or stream once the last body byte is read
+        if (offset + bytesToRead == bodyLengthBytes) releaseBody();
+
+        return bytesToRead;
+    }
+
+    private void readBodyFile(int offset, byte[] destination, int destinationOffset, int length) throws IOException {
+        if (bodyFileReader == null) bodyFileReader = new RandomAccessFile(bodyFile, "r");
+
+        bodyFileReader.seek(offset);
+        bodyFileReader.readFully(destination, destinationOffset, length);
+    }
+
+    private void readBodyStream(int offset, byte[] destination, int destinationOffset, int length) throws IOException {
+        if (offset < bodyStreamPosition)
+            throw new IllegalStateException("Cannot re-read InputStream body at " + offset);
+
+        while (bodyStreamPosition < offset) {
+            long skipped = bodyStream.skip(offset - bodyStreamPosition);
+            if (skipped <= 0) throw new IOException("Body stream ended early");
+            bodyStreamPosition += skipped;
+        }
+
+        int bytesRead = 0;
+        while (bytesRead < length) {
+            int read = bodyStream.read(destination, destinationOffset + bytesRead, length - bytesRead);
+            if (read == -1) throw new IOException("Body stream ended early");
+            bytesRead += read;
+        }
+        bodyStreamPosition += bytesRead;
+    }
+
+    /** Close any file handle or stream used to read the body */
+    private void releaseBody() {
+        try {
+            if (bodyFileReader != null) bodyFileReader.close();
+            if (bodyStream != null) bodyStream.close();
+        } catch (IOException e) {
+            Timber.w(e, "Failed to close message body");
+        }
+        bodyFileReader = null;
+        bodyStream     = null;
     }
 
     public int getTTL(){
         return this.TTL;
     }
 
+    /**
+     * Undo the TTL decrement of a message read back from storage rather than received from a
+     * peer, so that it keeps the TTL it was stored with. Must not be called once serialization began
+     */
+    public void restoreStoredTTL() {
+        TTL++;
+        headers.put(HEADER_TTL, TTL);
+        reserializeHeaders();
+    }
+
+    /** @return hops an incoming message travelled, assuming its source set {@link #TTL_INITIAL_VALUE} */
+    public int getHopCount() {
+        return TTL_INITIAL_VALUE - TTL;
+    }
+
     public String getDesc_mac_address(){
         return this.desc_mac_address;
     }
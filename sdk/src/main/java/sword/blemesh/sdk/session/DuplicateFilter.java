@@ -0,0 +1,227 @@
+package sword.blemesh.sdk.session;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+import sword.blemesh.sdk.Clock;
+
+/**
+ * Remembers the (source, message ID) pairs of recently received messages in fixed memory, so
+ * that messages flooded back round the mesh are handled once.
+ *
+ * A pair of Bloom filters, each sized for {@link #getCapacity()} IDs. IDs are added to the
+ * current filter and looked up in both. Once the current filter holds capacity IDs or is
+ * older than the expiry, it becomes the previous filter and the old previous one is cleared
+ * to take its place. So each ID is remembered for at least the expiry or capacity IDs, and
+ * forgotten after at most twice that unless it arrives again meanwhile.
+ *
+ * Bloom filters have no false negatives, but report an ID not seen before as a duplicate
+ * with a small probability. See {@link #getEstimatedFalsePositiveRate()}.
+ *
+ * Not thread safe.
+ */
+public final class DuplicateFilter {
+
+    public static final int    DEFAULT_CAPACITY            = 16 * 1024;
+    public static final long   DEFAULT_EXPIRY_MILLIS       = 10 * 60 * 1000;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 1e-6;
+
+    private final int    capacity;
+    private final long   expiryMillis;
+    private final Clock  clock;
+    /** Bits per filter */
+    private final int    bitCount;
+    private final int    hashCount;
+
+    private long[] current;
+    private long[] previous;
+    private int    currentCount;
+    private long   currentStartMillis;
+
+    private long checks;
+    private long duplicates;
+    private long rotations;
+
+    public DuplicateFilter() {
+        this(DEFAULT_CAPACITY, DEFAULT_EXPIRY_MILLIS, DEFAULT_FALSE_POSITIVE_RATE, Clock.SYSTEM);
+    }
+
+    /**
+     * @param capacity          IDs each filter holds before rotating
+     * @param expiryMillis      age at which the current filter rotates however few IDs it holds
+     * @param falsePositiveRate probability that a full filter reports an unseen ID
+     */
+    public DuplicateFilter(int capacity, long expiryMillis, double falsePositiveRate, @NonNull Clock clock) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        if (expiryMillis < 1)
+            throw new IllegalArgumentException("Expiry must be at least 1 ms");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("False positive rate must be in (0, 1)");
+
+        this.capacity     = capacity;
+        this.expiryMillis = expiryMillis;
+        this.clock        = clock;
+
+        double ln2 = Math.log(2);
+        long bits  = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        if (bits > Integer.MAX_VALUE - 63)
+            throw new IllegalArgumentException("Capacity and false positive rate need too many bits");
+        bitCount  = (int) Math.max(64, bits);
+        hashCount = (int) Math.max(1, Math.round((double) bitCount / capacity * ln2));
+
+        current            = new long[(bitCount + 63) / 64];
+        previous           = new long[current.length];
+        currentStartMillis = clock.elapsedMillis();
+    }
+
+    /**
+     * Record the message ID of source
+     *
+     * @return true if it was probably recorded before, so the message is a duplicate
+     */
+    public boolean checkAndAdd(@NonNull String source, long id) {
+        rotateIfDue();
+        checks++;
+
+        long hash  = hash(source, id);
+        long hash1 = mix(hash);
+        long hash2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        boolean duplicate = contains(current, hash1, hash2);
+        if (duplicate) {
+            duplicates++;
+            return true;
+        }
+
+        // A duplicate found only in the previous filter is carried over, so IDs that keep
+        // arriving are not forgotten when it is cleared
+        duplicate = contains(previous, hash1, hash2);
+        if (duplicate) duplicates++;
+        add(current, hash1, hash2);
+        currentCount++;
+        return duplicate;
+    }
+
+    /**
+     * @return true if the message ID of source was probably recorded before. Unlike
+     * {@link #checkAndAdd}, neither records it nor counts towards the metrics
+     */
+    public boolean mightContain(@NonNull String source, long id) {
+        rotateIfDue();
+
+        long hash  = hash(source, id);
+        long hash1 = mix(hash);
+        long hash2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        return contains(current, hash1, hash2) || contains(previous, hash1, hash2);
+    }
+
+    public void clear() {
+        Arrays.fill(current, 0);
+        Arrays.fill(previous, 0);
+        currentCount       = 0;
+        currentStartMillis = clock.elapsedMillis();
+    }
+
+    // <editor-fold desc="Metrics">
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return bytes held by both filters, which never changes */
+    public long getMemoryBytes() {
+        return (current.length + previous.length) * 8L;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * @return probability that an ID not seen before is currently reported as a duplicate,
+     * estimated from the share of bits set in each filter
+     */
+    public double getEstimatedFalsePositiveRate() {
+        double currentRate  = Math.pow((double) bitsSet(current) / bitCount, hashCount);
+        double previousRate = Math.pow((double) bitsSet(previous) / bitCount, hashCount);
+        return 1 - (1 - currentRate) * (1 - previousRate);
+    }
+
+    /** @return number of {@link #checkAndAdd} calls */
+    public long getCheckCount() {
+        return checks;
+    }
+
+    /** @return number of {@link #checkAndAdd} calls that reported a duplicate, true or false */
+    public long getDuplicateCount() {
+        return duplicates;
+    }
+
+    public long getRotationCount() {
+        return rotations;
+    }
+
+    // </editor-fold desc="Metrics">
+
+    private void rotateIfDue() {
+        long now = clock.elapsedMillis();
+        if (currentCount < capacity && now - currentStartMillis < expiryMillis) return;
+
+        long[] cleared = previous;
+        Arrays.fill(cleared, 0);
+        // A quiet spell longer than two expiries outlives both filters
+        if (now - currentStartMillis >= 2 * expiryMillis) Arrays.fill(current, 0);
+        previous           = current;
+        current            = cleared;
+        currentCount       = 0;
+        currentStartMillis = now;
+        rotations++;
+    }
+
+    private boolean contains(long[] bits, long hash1, long hash2) {
+        for (int i = 0; i < hashCount; i++) {
+            int bit = index(hash1 + i * hash2);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private void add(long[] bits, long hash1, long hash2) {
+        for (int i = 0; i < hashCount; i++) {
+            int bit = index(hash1 + i * hash2);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private int index(long hash) {
+        return (int) ((hash >>> 1) % bitCount);
+    }
+
+    private static int bitsSet(long[] bits) {
+        int count = 0;
+        for (long word : bits)
+            count += Long.bitCount(word);
+        return count;
+    }
+
+    /** FNV-1a over the source then the eight bytes of the ID */
+    private static long hash(String source, long id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < source.length(); i++)
+            hash = (hash ^ source.charAt(i)) * 0x100000001b3L;
+        for (int shift = 0; shift < 64; shift += 8)
+            hash = (hash ^ ((id >>> shift) & 0xFF)) * 0x100000001b3L;
+        return hash;
+    }
+
+    /** Murmur3 finalizer, spreading FNV's weak low bits over the whole word */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
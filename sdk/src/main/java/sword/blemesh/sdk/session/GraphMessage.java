@@ -3,25 +3,47 @@ package sword.blemesh.sdk.session;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+import sword.blemesh.sdk.mesh_graph.LocalPeer;
+import sword.blemesh.sdk.mesh_graph.Peer;
 import sword.blemesh.sdk.mesh_graph.PeersGraph;
 
 /**
  * Created by 力 on 2016/6/15.
  * Message for graph infomation
+ *
+ * Link state actions carry the links of one origin peer, versioned by a sequence number
+ * the origin increments on each change. A link is advertised by the peer that measured it,
+ * so origin's links are the edges from each neighbour to origin. Link states carry their age
+ * in seconds, so that peers age out those of origins gone silent at about the same time.
  */
 public class GraphMessage extends SessionMessage{
 
+    private static final boolean VERBOSE = false;
+
     public static final int ACTION_JOIN = 0x01;
     public static final int ACTION_LEFT = 0x02;
     public static final int SINGLE_CAST = 0x03;
     public static final int BROADCAST   = 0x04;
+    /** Links origin gained, changed or lost since its previous sequence number */
+    public static final int ACTION_LINK_DELTA         = 0x05;
+    /** All of origin's links */
+    public static final int ACTION_LINK_STATE         = 0x06;
+    /** Ask a neighbour for its {@link #ACTION_LINK_STATE} of origin */
+    public static final int ACTION_LINK_STATE_REQUEST = 0x07;
     public static final String HEADER_TYPE = "graph_info";
     public static final String HEADER_EXTRA = "extra";
     public static final String HEADER_LOCAL_MACADDRESS = "local_mac_address";
@@ -29,13 +51,25 @@ public class GraphMessage extends SessionMessage{
     public static final String HEADER_CAST_FORM = "cast";
     public static final String BODY_VERTEX = "body_vertex";
     public static final String BODT_EDGES = "body_edges";
+    public static final String HEADER_ORIGIN = "origin";
+    public static final String HEADER_SEQUENCE = "sequence";
+    public static final String BODY_REMOVED = "body_removed";
+    public static final String BODY_SEQUENCES = "body_sequences";
+    public static final String BODY_AGE = "body_age";
+    public static final String BODY_AGES = "body_ages";
+    /** Present on floods whose sender chose which neighbours pass them on. Mac addresses of those neighbours */
+    public static final String HEADER_RELAYS = "relays";
 
     private Map<String, Object> extraHeaders;
     private int action;
     private int cast;
     private String localMacAddress;
+    private String origin;
+    private int sequence;
+    private List<String> relays;
 
     private byte[] dataBytes;
+    private JSONObject bodyJSONObject;
 
     // <editor-fold desc="Incoming Constructors">
 
@@ -43,13 +77,20 @@ public class GraphMessage extends SessionMessage{
                         @Nullable byte[] body) {
 
         super((String)headers.get(SessionMessage.HEADER_MAC_ADDRESS),
-                (String) headers.get(SessionMessage.HEADER_ID));
+                MessageId.parse(headers.get(SessionMessage.HEADER_ID)));
         init();
         this.headers      = headers;
         bodyLengthBytes   = (int) headers.get(HEADER_BODY_LENGTH);
         status            = body == null ? Status.HEADER_ONLY : Status.COMPLETE;
         action            = (int) headers.get(HEADER_REMOTE_ACTION);
         cast              = (int) headers.get(HEADER_CAST_FORM);
+        origin            = (String) headers.get(HEADER_ORIGIN);
+        sequence          = headers.containsKey(HEADER_SEQUENCE) ? (int) headers.get(HEADER_SEQUENCE) : 0;
+        if (headers.get(HEADER_RELAYS) != null) {
+            relays = new ArrayList<>();
+            for (Object relay : (List) headers.get(HEADER_RELAYS))
+                relays.add((String) relay);
+        }
         if (body != null){
             setDataBody(body);
         }
@@ -64,26 +105,102 @@ public class GraphMessage extends SessionMessage{
     public static GraphMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
                                               int action,int cast, @Nullable PeersGraph peersGraph) {
 
-        return new GraphMessage(peersGraph, action, cast, extraHeaders);
+        return createOutgoing(extraHeaders, action, cast, peersGraph, LocalPeer.getLocalMacAddress());
+    }
+
+    /**
+     * @param localMacAddress address of the peer sending this message
+     */
+    public static GraphMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
+                                              int action, int cast, @Nullable PeersGraph peersGraph,
+                                              @NonNull String localMacAddress) {
+
+        return createOutgoing(extraHeaders, action, cast, peersGraph, null, null, localMacAddress);
+    }
+
+    /**
+     * @param sequences link state sequence number by origin the graph reflects. See {@link #getLinkStateSequences()}
+     * @param ages      link state age in seconds by origin. See {@link #getLinkStateAges()}
+     * @param localMacAddress address of the peer sending this message
+     */
+    public static GraphMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
+                                              int action, int cast, @Nullable PeersGraph peersGraph,
+                                              @Nullable Map<String, Integer> sequences,
+                                              @Nullable Map<String, Integer> ages,
+                                              @NonNull String localMacAddress) {
+
+        GraphMessage message = new GraphMessage(action, cast, extraHeaders, null, 0, localMacAddress);
+        if (peersGraph != null) message.setPeersGraph(peersGraph, sequences, ages);
+        message.serializeAndCacheHeaders();
+        return message;
+    }
+
+    /**
+     * Advertise origin's links
+     *
+     * @param action   {@link #ACTION_LINK_DELTA} if links holds only the links added or changed since
+     *                 sequence - 1 and removed those lost, or {@link #ACTION_LINK_STATE} if links holds all
+     * @param ageSeconds time since origin advertised this sequence number
+     * @param links    rssi measured by origin by neighbour mac address
+     * @param peers    vertexes of origin and the neighbours in links
+     */
+    public static GraphMessage createLinkState(int action,
+                                               @NonNull String origin,
+                                               int sequence,
+                                               int ageSeconds,
+                                               @NonNull Map<String, Peer> peers,
+                                               @NonNull Map<String, Integer> links,
+                                               @Nullable Collection<String> removed,
+                                               @NonNull String localMacAddress) {
+
+        if (action != ACTION_LINK_DELTA && action != ACTION_LINK_STATE)
+            throw new IllegalArgumentException("Not a link state action " + action);
+
+        JSONObject body = new JSONObject();
+        try {
+            JSONObject vertexJSONObject = new JSONObject();
+            for (Peer peer : peers.values())
+                vertexJSONObject.put(peer.getMacAddress(), peer.toJSONObject());
+            body.put(BODY_VERTEX, vertexJSONObject);
+            body.put(BODT_EDGES, new JSONObject(links));
+            if (removed != null && !removed.isEmpty())
+                body.put(BODY_REMOVED, new JSONArray(removed));
+            if (ageSeconds > 0)
+                body.put(BODY_AGE, ageSeconds);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Cannot encode link state of " + origin, e);
+        }
+
+        GraphMessage message = new GraphMessage(action, BROADCAST, null, origin, sequence, localMacAddress);
+        message.setBody(body);
+        message.serializeAndCacheHeaders();
+        return message;
+    }
+
+    /** Ask the recipient for its {@link #ACTION_LINK_STATE} of origin */
+    public static GraphMessage createLinkStateRequest(@NonNull String origin, @NonNull String localMacAddress) {
+        GraphMessage message = new GraphMessage(ACTION_LINK_STATE_REQUEST, SINGLE_CAST, null, origin, 0, localMacAddress);
+        message.serializeAndCacheHeaders();
+        return message;
     }
 
     // To avoid confusion between the incoming constructor which takes a
     // Map of the completely deserialized headers and byte payload, we hide
-    // this contstructor behind the static creator 'createOutgoing'
-    private GraphMessage(@Nullable PeersGraph peersGraph,
-                         int action,
+    // this contstructor behind the static creators. Callers set the body, then cache headers
+    private GraphMessage(int action,
                          int cast,
-                         @Nullable Map<String, Object> extraHeaders) {
-        super();
+                         @Nullable Map<String, Object> extraHeaders,
+                         @Nullable String origin,
+                         int sequence,
+                         @NonNull String localMacAddress) {
+        super(localMacAddress);
+        this.localMacAddress = localMacAddress;
         this.action = action;
         this.cast = cast;
         this.extraHeaders = extraHeaders;
+        this.origin = origin;
+        this.sequence = sequence;
         init();
-        if (peersGraph != null) {
-            setPeersGraph(peersGraph);
-            bodyLengthBytes = dataBytes.length;
-        }
-        serializeAndCacheHeaders();
     }
 
     // </editor-fold desc="Outgoing Constructors">
@@ -94,34 +211,42 @@ public class GraphMessage extends SessionMessage{
 
     public void setDataBody(@NonNull byte[] body) {
         dataBytes = body;
+        bodyJSONObject = null;
         status = Status.COMPLETE;
     }
 
     public void setPeersGraph(@Nullable PeersGraph peersGraph) {
+        setPeersGraph(peersGraph, null, null);
+    }
+
+    public void setPeersGraph(@Nullable PeersGraph peersGraph,
+                              @Nullable Map<String, Integer> sequences,
+                              @Nullable Map<String, Integer> ages) {
         assert peersGraph != null;
 
         JSONObject graphJSONObject = new JSONObject();
         try {
             graphJSONObject.put(BODT_EDGES,peersGraph.toEdgeJSONOBject());
             graphJSONObject.put(BODY_VERTEX,peersGraph.toVertexJSONObject());
+            if (sequences != null)
+                graphJSONObject.put(BODY_SEQUENCES, new JSONObject(sequences));
+            if (ages != null)
+                graphJSONObject.put(BODY_AGES, new JSONObject(ages));
         } catch (JSONException e) {
             e.printStackTrace();
         }
-        dataBytes = graphJSONObject.toString().getBytes();
+        setBody(graphJSONObject);
+    }
+
+    private void setBody(JSONObject body) {
+        bodyJSONObject = body;
+        dataBytes = body.toString().getBytes();
+        bodyLengthBytes = dataBytes.length;
         status = Status.COMPLETE;
     }
 
     public PeersGraph getPeersGraph(){
-        byte[] body = getBodyAtOffset(0,getBodyLengthBytes());
-        JSONObject remoteGraphJSONObject = null;
-        try {
-            assert body != null;
-            System.out.println(new String(body));
-            remoteGraphJSONObject = new JSONObject(new String(body));
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
-        assert (remoteGraphJSONObject!=null);
+        JSONObject remoteGraphJSONObject = getBodyJSONObject();
 
         JSONObject vertexJSONObject = remoteGraphJSONObject.optJSONObject(BODY_VERTEX);
         JSONObject edgesJSONObject = remoteGraphJSONObject.optJSONObject(BODT_EDGES);
@@ -129,6 +254,119 @@ public class GraphMessage extends SessionMessage{
         return new PeersGraph(vertexJSONObject,edgesJSONObject);
     }
 
+    /**
+     * @return the link state sequence number by origin that a graph of {@link #ACTION_JOIN} reflects,
+     * or null if the sender does not version link state
+     */
+    @Nullable
+    public Map<String, Integer> getLinkStateSequences() {
+        JSONObject sequencesJSONObject = getBodyJSONObject().optJSONObject(BODY_SEQUENCES);
+        return sequencesJSONObject == null ? null : toIntegerMap(sequencesJSONObject);
+    }
+
+    /**
+     * @return the link state age in seconds by origin that a graph of {@link #ACTION_JOIN} reflects.
+     * Origins missing were just advertised
+     */
+    public Map<String, Integer> getLinkStateAges() {
+        JSONObject agesJSONObject = getBodyJSONObject().optJSONObject(BODY_AGES);
+        return agesJSONObject == null ? new LinkedHashMap<String, Integer>() : toIntegerMap(agesJSONObject);
+    }
+
+    // <editor-fold desc="Link state">
+
+    /** @return the peer whose links a link state action carries, or null for other actions */
+    @Nullable
+    public String getOrigin() {
+        return origin;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    /** @return seconds between origin advertising this sequence number and this message being sent */
+    public int getLinkStateAge() {
+        return getBodyJSONObject().optInt(BODY_AGE, 0);
+    }
+
+    /** @return rssi measured by origin by neighbour mac address */
+    public LinkedHashMap<String, Integer> getLinks() {
+        JSONObject edgesJSONObject = getBodyJSONObject().optJSONObject(BODT_EDGES);
+        return edgesJSONObject == null ? new LinkedHashMap<String, Integer>() : toIntegerMap(edgesJSONObject);
+    }
+
+    /** @return neighbours origin lost, for {@link #ACTION_LINK_DELTA} */
+    public List<String> getRemovedLinks() {
+        ArrayList<String> removed = new ArrayList<>();
+        JSONArray removedJSONArray = getBodyJSONObject().optJSONArray(BODY_REMOVED);
+        for (int i = 0; removedJSONArray != null && i < removedJSONArray.length(); i++)
+            removed.add(removedJSONArray.optString(i));
+        return removed;
+    }
+
+    /** @return vertexes of origin and its advertised neighbours by mac address */
+    public LinkedHashMap<String, Peer> getPeers() {
+        LinkedHashMap<String, Peer> peers = new LinkedHashMap<>();
+        JSONObject vertexJSONObject = getBodyJSONObject().optJSONObject(BODY_VERTEX);
+        if (vertexJSONObject == null) return peers;
+
+        Iterator keys = vertexJSONObject.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            peers.put(key, new Peer(vertexJSONObject.optJSONObject(key)));
+        }
+        return peers;
+    }
+
+    /**
+     * Have only relays pass this flood on. Recipients not among them just apply it.
+     * Must be called before the message is sent
+     *
+     * @param relays mac addresses of neighbours of the sender
+     */
+    public void setRelays(@NonNull Collection<String> relays) {
+        this.relays = new ArrayList<>(relays);
+        recacheHeaders();
+    }
+
+    /** @return neighbours the sender chose to pass this flood on, or null if all should */
+    @Nullable
+    public List<String> getRelays() {
+        return relays == null ? null : Collections.unmodifiableList(relays);
+    }
+
+    /** @return whether the peer at address should pass this flood on */
+    public boolean isRelay(@NonNull String address) {
+        return relays == null || relays.contains(address);
+    }
+
+    // </editor-fold desc="Link state">
+
+    private JSONObject getBodyJSONObject() {
+        if (bodyJSONObject != null) return bodyJSONObject;
+
+        byte[] body = getBodyLengthBytes() == 0 ? null : getBodyAtOffset(0, getBodyLengthBytes());
+        try {
+            if (body != null && VERBOSE) System.out.println(new String(body));
+            bodyJSONObject = body == null ? new JSONObject() : new JSONObject(new String(body));
+        } catch (JSONException e) {
+            e.printStackTrace();
+            bodyJSONObject = new JSONObject();
+        }
+        return bodyJSONObject;
+    }
+
+    private static LinkedHashMap<String, Integer> toIntegerMap(JSONObject jsonObject) {
+        LinkedHashMap<String, Integer> map = new LinkedHashMap<>();
+        Iterator keys = jsonObject.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            map.put(key, jsonObject.optInt(key));
+        }
+        return map;
+    }
+
     public int getAction(){return action;}
 
     @Override
@@ -139,21 +377,37 @@ public class GraphMessage extends SessionMessage{
         if (extraHeaders != null) {
             headerMap.put(HEADER_EXTRA, extraHeaders);
         }
+        if (origin != null) {
+            headerMap.put(HEADER_ORIGIN, origin);
+            headerMap.put(HEADER_SEQUENCE, sequence);
+        }
+        if (relays != null) {
+            headerMap.put(HEADER_RELAYS, relays);
+        }
         return headerMap;
     }
 
+    @Override
+    public @NonNull Priority getPriority() {
+        return Priority.CONTROL;
+    }
+
     @Nullable
     @Override
     public byte[] getBodyAtOffset(int offset, int length) {
         if (offset > bodyLengthBytes - 1) return null;
 
         int bytesToRead = Math.min(length, bodyLengthBytes - offset);
-        byte[] result = new byte[bytesToRead];
+        return Arrays.copyOfRange(dataBytes, offset, offset + bytesToRead);
+    }
+
+    @Override
+    public int getBodyAtOffset(int offset, @NonNull byte[] destination, int destinationOffset, int length) {
+        if (dataBytes == null || offset > bodyLengthBytes - 1) return 0;
 
-        ByteBuffer dataBuffer = ByteBuffer.wrap(dataBytes);
-        dataBuffer.position(offset);
-        dataBuffer.get(result, 0, bytesToRead);
+        int bytesToRead = Math.min(length, bodyLengthBytes - offset);
+        System.arraycopy(dataBytes, offset, destination, destinationOffset, bytesToRead);
 
-        return result;
+        return bytesToRead;
     }
 }
@@ -1,6 +1,7 @@
 package sword.blemesh.sdk.session;
 
 import android.content.Context;
+import android.support.annotation.NonNull;
 
 import com.google.common.base.Objects;
 
@@ -36,11 +37,11 @@ public class IdentityMessage extends SessionMessage {
                              -1,
                              0);
 
-        return new IdentityMessage((String) headers.get(SessionMessage.HEADER_ID),
+        return new IdentityMessage(MessageId.parse(headers.get(SessionMessage.HEADER_ID)),
                                    peer);
     }
 
-    public IdentityMessage(String id, Peer peer) {
+    public IdentityMessage(long id, Peer peer) {
         super(peer.getMacAddress(),id);
         this.peer = peer;
         init();
@@ -53,7 +54,7 @@ public class IdentityMessage extends SessionMessage {
      * @param peer    peer to provide keypair, alias
      */
     public IdentityMessage(Context context, Peer peer) {
-        super();
+        super(peer.getMacAddress());
         this.peer = peer;
         init();
         serializeAndCacheHeaders();
@@ -76,6 +77,11 @@ public class IdentityMessage extends SessionMessage {
         return headerMap;
     }
 
+    @Override
+    public @NonNull Priority getPriority() {
+        return Priority.CONTROL;
+    }
+
     @Override
     public byte[] getBodyAtOffset(int offset, int length) {
         return null;
@@ -0,0 +1,87 @@
+package sword.blemesh.sdk.session;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 64-bit {@link SessionMessage} identifiers, carried as a primitive long.
+ *
+ * bits  | description
+ * ------|------------
+ * 63-40 | Originator short ID, the low three bytes of its MAC address
+ * 39-0  | Counter, incremented for every message created in this process
+ *
+ * The counter starts from the current time in seconds times 256 so that IDs created
+ * after a restart do not repeat those receivers still remember, unless more than
+ * 256 messages a second were created on average before it.
+ */
+public final class MessageId {
+
+    public static final int  COUNTER_BITS = 40;
+    public static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    public static final int  ORIGIN_MASK  = 0xFFFFFF;
+
+    private static final AtomicLong counter =
+            new AtomicLong((System.currentTimeMillis() / 1000 * 256) & COUNTER_MASK);
+
+    private MessageId() {}
+
+    /** @return a new ID for a message created by the peer with the given MAC address */
+    public static long next(@NonNull String macAddress) {
+        return create(originOf(macAddress), counter.getAndIncrement());
+    }
+
+    public static long create(int origin, long count) {
+        return ((long) (origin & ORIGIN_MASK) << COUNTER_BITS) | (count & COUNTER_MASK);
+    }
+
+    public static int getOrigin(long id) {
+        return (int) (id >>> COUNTER_BITS);
+    }
+
+    public static long getCounter(long id) {
+        return id & COUNTER_MASK;
+    }
+
+    /**
+     * @return the short ID of a MAC address, the value of its last three bytes.
+     * Addresses not in "AA:BB:CC:DD:EE:FF" form fall back to their hash
+     */
+    public static int originOf(@NonNull String macAddress) {
+        int length = macAddress.length();
+        if (length == 17) {
+            int origin = 0;
+            for (int i = 9; i < length; i++) {
+                if (i % 3 == 2) continue;
+                int digit = Character.digit(macAddress.charAt(i), 16);
+                if (digit < 0) return macAddress.hashCode() & ORIGIN_MASK;
+                origin = (origin << 4) | digit;
+            }
+            return origin;
+        }
+        return macAddress.hashCode() & ORIGIN_MASK;
+    }
+
+    /**
+     * Read an ID header value. Peers predating 64-bit IDs send a hex string, which is
+     * accepted as its value
+     *
+     * @throws IllegalArgumentException if value is neither a number nor a hex string
+     */
+    public static long parse(Object value) {
+        if (value instanceof Number) return ((Number) value).longValue();
+        if (value instanceof String) {
+            try {
+                return Long.parseLong((String) value, 16);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed message id " + value, e);
+            }
+        }
+        throw new IllegalArgumentException("Malformed message id " + value);
+    }
+
+    public static @NonNull String toString(long id) {
+        return String.format("%06x:%d", getOrigin(id), getCounter(id));
+    }
+}
@@ -0,0 +1,144 @@
+package sword.blemesh.sdk.session;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outgoing {@link SessionMessage}s to one identifier, interleaved by {@link SessionMessage.Priority}
+ *
+ * Each priority class is a separate {@link SessionMessageSerializer} stream whose chunks carry
+ * the class ordinal as a channel byte. {@link #getNextChunk(int)} always serves the highest class
+ * with data, so a large {@link SessionMessage.Priority#BULK} message yields to control and interactive
+ * messages at every chunk. Messages are delivered in order within a class only.
+ *
+ * The window of chunks in flight is shared by all classes. Bulk chunks may take all but one
+ * slot of it, so a higher class always finds room.
+ */
+public class PriorityMessageQueue {
+
+    public static final int CHANNEL_COUNT = SessionMessage.Priority.values().length;
+
+    private final SessionMessageSerializer[] serializers = new SessionMessageSerializer[CHANNEL_COUNT];
+    private final int windowSize;
+
+    public PriorityMessageQueue(int windowSize) {
+        if (windowSize < 1)
+            throw new IllegalArgumentException("Window size must be at least 1");
+
+        this.windowSize = windowSize;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            serializers[channel] = new SessionMessageSerializer(new ArrayList<SessionMessage>());
+            serializers[channel].setWindowSize(windowSize);
+            serializers[channel].setChannel(channel);
+        }
+    }
+
+    public void queueMessage(@NonNull SessionMessage message) {
+        serializers[message.getPriority().ordinal()].queueMessage(message);
+    }
+
+    /** @return the message being sent in the highest class with messages queued */
+    public @Nullable SessionMessage getCurrentMessage() {
+        for (SessionMessageSerializer serializer : serializers) {
+            if (serializer.getCurrentMessage() != null) return serializer.getCurrentMessage();
+        }
+        return null;
+    }
+
+    /** @return messages with chunks in flight or yet to be sent, highest class first */
+    public @NonNull List<SessionMessage> getUndeliveredMessages() {
+        List<SessionMessage> undelivered = new ArrayList<>();
+        for (SessionMessageSerializer serializer : serializers)
+            undelivered.addAll(serializer.getUndeliveredMessages());
+        return undelivered;
+    }
+
+    /** @return the number of chunks sent but not yet acknowledged, over all classes */
+    public int getInFlightCount() {
+        int inFlight = 0;
+        for (SessionMessageSerializer serializer : serializers)
+            inFlight += serializer.getInFlightCount();
+        return inFlight;
+    }
+
+    /** @return bytes queued or in flight but not yet acknowledged, over all classes */
+    public long getBacklogBytes() {
+        long backlog = 0;
+        for (SessionMessageSerializer serializer : serializers)
+            backlog += serializer.getBacklogBytes();
+        return backlog;
+    }
+
+    /**
+     * @return the next chunk to send, of the highest class with data, or null if no data remains
+     * or the window is full. See {@link SessionMessageSerializer#getNextChunk(int)}
+     */
+    public @Nullable byte[] getNextChunk(int length) {
+        for (SessionMessageSerializer serializer : serializers) {
+            if (serializer.hasRetransmits()) return serializer.getNextChunk(length);
+        }
+
+        int inFlight = getInFlightCount();
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            int window = channel == SessionMessage.Priority.BULK.ordinal() ? Math.max(1, windowSize - 1) : windowSize;
+            if (inFlight >= window) continue;
+
+            byte[] chunk = serializers[channel].getNextChunk(length);
+            if (chunk != null) return chunk;
+        }
+        return null;
+    }
+
+    /**
+     * Acknowledge the in-flight chunk with the given contents. See {@link SessionMessageSerializer#ackChunkDelivery(byte[])}
+     */
+    public @Nullable SessionMessageSerializer.ChunkAck ackChunkDelivery(@NonNull byte[] data) {
+        SessionMessageSerializer serializer = getSerializer(data);
+        return serializer == null ? null : serializer.ackChunkDelivery(data);
+    }
+
+    /**
+     * Report the in-flight chunk with the given contents failed to send. The transport discarded
+     * every chunk queued behind it, whatever its class, so all chunks in flight are sent again.
+     *
+     * @return false if the chunk was unknown or has exhausted its retransmissions.
+     * See {@link SessionMessageSerializer#nackChunkDelivery(byte[])}
+     */
+    public boolean nackChunkDelivery(@NonNull byte[] data) {
+        SessionMessageSerializer failed = getSerializer(data);
+        if (failed == null || !failed.nackChunkDelivery(data)) return false;
+
+        for (SessionMessageSerializer serializer : serializers) {
+            if (serializer != failed) serializer.requeueInFlight();
+        }
+        return true;
+    }
+
+    /**
+     * Give up on the message of the in-flight chunk with the given contents, which exhausted its
+     * retransmissions. Chunks in flight in other classes are sent again, as the transport
+     * discarded them. See {@link SessionMessageSerializer#abandonMessage(byte[])}
+     *
+     * @return the message given up, or null if there was none to give up
+     */
+    public @Nullable SessionMessage abandonMessage(@NonNull byte[] data) {
+        SessionMessageSerializer failed = getSerializer(data);
+        SessionMessage abandoned = failed == null ? null : failed.abandonMessage(data);
+        if (abandoned == null) return null;
+
+        for (SessionMessageSerializer serializer : serializers) {
+            if (serializer != failed) serializer.requeueInFlight();
+        }
+        return abandoned;
+    }
+
+    private @Nullable SessionMessageSerializer getSerializer(byte[] chunk) {
+        if (chunk.length == 0) return null;
+
+        int channel = SessionMessageSerializer.getChannel(chunk);
+        return channel < CHANNEL_COUNT ? serializers[channel] : null;
+    }
+}
@@ -3,23 +3,28 @@ package sword.blemesh.sdk.session;
 import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Pair;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.SetMultimap;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import hugo.weaving.DebugLog;
+import sword.blemesh.sdk.MeshEventLoop;
 import sword.blemesh.sdk.mesh_graph.LocalPeer;
 import sword.blemesh.sdk.mesh_graph.Peer;
+import sword.blemesh.sdk.transport.ReceiveBatch;
 import sword.blemesh.sdk.transport.Transport;
 import sword.blemesh.sdk.transport.TransportState;
 import sword.blemesh.sdk.transport.ble.BLETransport;
@@ -27,6 +32,15 @@ import timber.log.Timber;
 
 /**
  * Created by davidbrodsky on 2/21/15.
+ *
+ * Not thread safe. Its state is confined to one thread, the {@link MeshEventLoop} if one is set.
+ * Transport callbacks arriving on other threads are queued for the loop rather than run there,
+ * so that transports never wait on the session layer. Without a loop, callers must share one thread.
+ *
+ * Received chunks are processed in passes: a {@link ReceiveBatch}, or the chunks queued for the
+ * loop since it last ran. A pass looks up the deserializers of an identifier once for a run of
+ * its chunks, and reports the progress of each message received, and streams relayed bodies on,
+ * once at its end rather than after every chunk.
  */
 public class SessionManager implements Transport.TransportCallback,
                                        SessionMessageDeserializer.SessionMessageDeserializerCallback,
@@ -34,12 +48,23 @@ public class SessionManager implements Transport.TransportCallback,
 
     private static final boolean VERBOSE = true;
 
+    /** Transport events queued from other threads that one run on the event loop handles */
+    private static final int TRANSPORT_EVENTS_PER_DRAIN = 64;
+
     public interface SessionManagerCallback {
 
         void directPeerStatusUpdated(@NonNull Peer peer,
                                      @NonNull Transport.ConnectionStatus newStatus,
                                      boolean isHost);
 
+        /**
+         * The header of a message not received before arrived from sender, ahead of its body.
+         * A {@link DataTransferMessage} may take its body as it arrives and be sent on meanwhile,
+         * see {@link DataTransferMessage#streamBody()}
+         */
+        void messageHeaderReceivedFromPeer(@NonNull SessionMessage message,
+                                           @NonNull Peer sender);
+
         void messageReceivingFromPeer(@NonNull SessionMessage message,
                                       @NonNull Peer recipient,
                                       float progress);
@@ -65,16 +90,68 @@ public class SessionManager implements Transport.TransportCallback,
     private SessionManagerCallback                    callback;
     private HashMap<String, Transport>                identifierTransports       = new HashMap<>();
     private HashMap<Peer, SortedSet<Transport>>       peerTransports             = new HashMap<>();
-    private BiMap<String, SessionMessageDeserializer> identifierReceivers        = HashBiMap.create();
-    private BiMap<String, SessionMessageSerializer>   identifierSenders          = HashBiMap.create();
+    /** Deserializers of each identifier, indexed by {@link SessionMessage.Priority} channel */
+    private HashMap<String, SessionMessageDeserializer[]> identifierReceivers    = new HashMap<>();
+    private HashMap<SessionMessageDeserializer, String> receiverIdentifiers      = new HashMap<>();
+    /** Identifiers of peers predating priority channels, whose chunks carry no channel byte */
+    private Set<String>                               unprefixedIdentifiers      = new HashSet<>();
+    private HashMap<String, PriorityMessageQueue>     identifierSenders          = new HashMap<>();
     private HashMap<String, Integer>                  identifierRssis             = new HashMap<>();
     private final HashMap<String, Peer>               identifiedPeers            = new HashMap<>();
     private final SetMultimap<Peer, String>           peerIdentifiers            = HashMultimap.create();
-    private final SetMultimap<String,String>          senderAddressMessageIDs = HashMultimap.create();
+    private DuplicateFilter                           duplicateFilter            = new DuplicateFilter();
     private Set<String>                               identifyingPeers           = new HashSet<>();
     private Set<String>                               hostIdentifiers            = new HashSet<>();
 //    private HashMap<Peer, Transport>                  peerUpgradeRequests        = new HashMap<>();
     private TransportState                            baseTransportState         = new TransportState(false, false, false);
+    private int                                       chunkWindowSize            = SessionMessageSerializer.DEFAULT_WINDOW_SIZE;
+    private MeshEventLoop                             eventLoop;
+
+    // Transport callbacks from threads other than the event loop, in order of arrival
+    private final ConcurrentLinkedQueue<TransportEvent> transportEvents       = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean                       transportEventsPosted      = new AtomicBoolean();
+    private final Runnable                            drainTransportEvents       = new Runnable() {
+        @Override
+        public void run() {
+            drainTransportEvents();
+        }
+    };
+
+    // State of the receive pass in progress, see beginReceiving()
+    private int                                       receiveDepth;
+    /** Identifier the previous chunk of the pass came from, and its deserializers */
+    private String                                    lastReceivedIdentifier;
+    private SessionMessageDeserializer[]              lastReceivers;
+    private boolean                                   lastUnprefixed;
+    /** Latest progress of each message the pass received body of, reported at its end */
+    private final LinkedHashMap<SessionMessageDeserializer, Float> receivedProgress = new LinkedHashMap<>();
+    /** Whether the pass received body of a message sent on as it arrives */
+    private boolean                                   receivedStreamedBody;
+
+    /**
+     * A transport callback made on another thread than the event loop. Either received data,
+     * which is processed in a pass with the data queued next to it, or any other callback
+     */
+    private static class TransportEvent {
+        final Transport transport;
+        final String    identifier;
+        final byte[]    data;
+        final Runnable  action;
+
+        TransportEvent(Transport transport, String identifier, byte[] data) {
+            this.transport  = transport;
+            this.identifier = identifier;
+            this.data       = data;
+            this.action     = null;
+        }
+
+        TransportEvent(Runnable action) {
+            this.transport  = null;
+            this.identifier = null;
+            this.data       = null;
+            this.action     = action;
+        }
+    }
 
     // <editor-fold desc="Public API">
 
@@ -93,6 +170,41 @@ public class SessionManager implements Transport.TransportCallback,
         initializeTransports(serviceName);
     }
 
+    /**
+     * Construct a SessionManager over the given transports instead of the platform transports.
+     * The transport with the smallest {@link Transport#getLongWriteBytes()} is considered the base transport.
+     * Transports hold their callback weakly, so the caller must retain the SessionManager.
+     */
+    public SessionManager(Context context,
+                          String serviceName,
+                          LocalPeer localPeer,
+                          SessionManagerCallback callback,
+                          Collection<? extends Transport> transports) {
+
+        if (transports.size() == 0)
+            throw new IllegalArgumentException("At least one transport is required");
+
+        this.context     = context;
+        this.serviceName = serviceName;
+        this.localPeer   = localPeer;
+        this.callback    = callback;
+
+        localIdentityMessage = new IdentityMessage(this.context, this.localPeer);
+
+        this.transports = new TreeSet<>();
+        for (Transport transport : transports) {
+            transport.setTransportCallback(this);
+            this.transports.add(transport);
+        }
+    }
+
+    /**
+     * Run transport callbacks on eventLoop. Public methods must then be called on it too
+     */
+    public void setEventLoop(@Nullable MeshEventLoop eventLoop) {
+        this.eventLoop = eventLoop;
+    }
+
     public String getServiceName() {
         return serviceName;
     }
@@ -114,7 +226,8 @@ public class SessionManager implements Transport.TransportCallback,
         baseTransportState = new TransportState(baseTransportState.isStopped, baseTransportState.wasAdvertising, true);
     }
     @DebugLog
-    public synchronized void stop() {
+    public void stop() {
+        checkEventLoop();
         // Stop all running transports
         for (Transport transport : transports)
             transport.stop();
@@ -143,27 +256,31 @@ public class SessionManager implements Transport.TransportCallback,
     }
 
     /**
-     * Send a message to the given recipient. If the recipient is not currently available,
-     * delivery will occur next time the peer is available
+     * Send a message to the given recipient. Messages not delivered by the time the recipient
+     * disconnects are reported to {@link SessionManagerCallback#messageSentToPeer} with an exception.
+     *
+     * @return false if the recipient has no identifier on an available transport, in which
+     * case message is dropped
      */
     // TODO : This  method needs to be re-evaluated to be more robust
     // If preferred transport not available, queue on base transport?
     @DebugLog
-    public synchronized void sendMessage(SessionMessage message, Peer recipient) {
+    public boolean sendMessage(SessionMessage message, Peer recipient) {
+        checkEventLoop();
 
         Set<String> recipientIdentifiers = peerIdentifiers.get(recipient);
         String targetRecipientIdentifier = null;
 
         if (recipientIdentifiers == null || recipientIdentifiers.size() == 0) { // TODO: Does HashMultiMap return null or empty collection?
             Timber.e("No Identifiers for peer %s", recipient.getAlias());
-            return;
+            return false;
         }
 
         Transport transport = getBaseTransportForPeer(recipient);
 
         if (transport == null) {
             Timber.e("No transport for %s", recipient.getAlias());
-            return;
+            return false;
         }
 
         for (String recipientIdentifier : recipientIdentifiers) {
@@ -173,23 +290,50 @@ public class SessionManager implements Transport.TransportCallback,
 
         if (targetRecipientIdentifier == null) {
             Timber.e("Could not find identifier for %s on preferred transport %d", recipient.getAlias(), transport.getTransportCode());
-            return;
+            return false;
             // TODO : Fall back to base transport
         }
 
-        if (!identifierSenders.containsKey(targetRecipientIdentifier))
-            identifierSenders.put(targetRecipientIdentifier, new SessionMessageSerializer(message));
-        else
-            identifierSenders.get(targetRecipientIdentifier).queueMessage(message);
+        queueMessage(targetRecipientIdentifier, message);
 
-        SessionMessageSerializer sender = identifierSenders.get(targetRecipientIdentifier);
+        sendChunks(transport, targetRecipientIdentifier);
+        return true;
+    }
 
-        transport.sendData(sender.getNextChunk(transport.getLongWriteBytes()),
-                               targetRecipientIdentifier);
-//        else
-//            Timber.d("Send queued. No transport available for identifier %s", targetRecipientIdentifier);
+    /**
+     * Set the number of chunks that may be in flight to each identifier at once.
+     * Takes effect for identifiers without messages in progress.
+     */
+    public void setChunkWindowSize(int windowSize) {
+        if (windowSize < 1)
+            throw new IllegalArgumentException("Window size must be at least 1");
 
-        // If no transport for the peer is available, data will be sent next time peer is available
+        chunkWindowSize = windowSize;
+    }
+
+    /**
+     * Replace the filter of messages received before, such as to change its capacity or expiry
+     */
+    public void setDuplicateFilter(@NonNull DuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    /** @return the filter of messages received before, for its metrics */
+    public DuplicateFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    /**
+     * @return bytes queued or in flight to recipient but not yet acknowledged, over all its
+     * identifiers. A measure of how far behind the link to recipient is
+     */
+    public long getBacklogBytes(@NonNull Peer recipient) {
+        long backlog = 0;
+        for (String identifier : peerIdentifiers.get(recipient)) {
+            PriorityMessageQueue sender = identifierSenders.get(identifier);
+            if (sender != null) backlog += sender.getBacklogBytes();
+        }
+        return backlog;
     }
 
     public Set<Peer> getAvailablePeers() {
@@ -213,20 +357,234 @@ public class SessionManager implements Transport.TransportCallback,
 
     // <editor-fold desc="Private API">
 
+    private void checkEventLoop() {
+        if (eventLoop != null && !eventLoop.isLoopThread())
+            throw new IllegalStateException("Must be called on the event loop, not " + Thread.currentThread().getName());
+    }
+
     private void reset() {
 
+        lastReceivedIdentifier = null;
+        lastReceivers = null;
         identifierTransports.clear();
         peerTransports.clear();
         identifierReceivers.clear();
+        receiverIdentifiers.clear();
+        unprefixedIdentifiers.clear();
         identifierSenders.clear();
         identifiedPeers.clear();
         identifyingPeers.clear();
         hostIdentifiers.clear();
         peerIdentifiers.clear();
-        senderAddressMessageIDs.clear();
+        duplicateFilter.clear();
         baseTransportState = new TransportState(false, false, false);
     }
 
+    private void queueMessage(String identifier, SessionMessage message) {
+        PriorityMessageQueue sender = identifierSenders.get(identifier);
+        if (sender == null) {
+            sender = new PriorityMessageQueue(chunkWindowSize);
+            identifierSenders.put(identifier, sender);
+        }
+        sender.queueMessage(message);
+    }
+
+    /**
+     * Hand the transport as many chunks for identifier as the sender's window allows
+     */
+    private void sendChunks(Transport transport, String identifier) {
+        PriorityMessageQueue sender = identifierSenders.get(identifier);
+        if (sender == null) return;
+
+        byte[] toSend;
+        int chunkBytes = transport.getLongWriteBytes(identifier);
+        while ((toSend = sender.getNextChunk(chunkBytes)) != null) {
+            if (!transport.sendData(toSend, identifier)) {
+                Timber.w("Transport did not accept %d byte chunk for %s", toSend.length, identifier);
+                break;
+            }
+            // The transport may have reported this chunk's delivery synchronously, discarding the sender
+            if (identifierSenders.get(identifier) != sender) break;
+        }
+    }
+
+    /**
+     * Hand each transport the chunks a message whose body is arriving can now fill
+     */
+    private void sendStreamedChunks() {
+        for (String identifier : new ArrayList<>(identifierSenders.keySet())) {
+            Transport transport = identifierTransports.get(identifier);
+            if (transport != null) sendChunks(transport, identifier);
+        }
+    }
+
+    /**
+     * Discard the message receiver was receiving, whose rest will never arrive. If it was
+     * being sent on as it arrived, abort it everywhere, so that peers which got part of it
+     * discard that part too
+     */
+    private void abortReceiving(SessionMessageDeserializer receiver) {
+        receivedProgress.remove(receiver);
+        SessionMessage partial = receiver.getCurrentMessage();
+        receiver.reset(true);
+        abortStreamed(partial);
+    }
+
+    private void abortStreamed(@Nullable SessionMessage message) {
+        if (!(message instanceof DataTransferMessage) || !message.isBodyArriving()) return;
+
+        Timber.d("Aborting %s message %s relayed as it arrived", message.getType(), MessageId.toString(message.getID()));
+        ((DataTransferMessage) message).abort();
+        sendStreamedChunks();
+    }
+
+    /** Queue a transport callback made off the event loop, posting a drain unless one is pending */
+    private void queueTransportEvent(TransportEvent event) {
+        transportEvents.offer(event);
+        if (transportEventsPosted.compareAndSet(false, true)) eventLoop.post(drainTransportEvents);
+    }
+
+    /**
+     * Run queued transport callbacks in order. Data received back to back is processed
+     * in one pass
+     */
+    private void drainTransportEvents() {
+        // Events queued from here on post another drain, which may find them gone
+        transportEventsPosted.set(false);
+
+        beginReceiving();
+        TransportEvent event;
+        for (int drained = 0; drained < TRANSPORT_EVENTS_PER_DRAIN && (event = transportEvents.poll()) != null; drained++) {
+            if (event.action == null) {
+                receive(event.transport, event.identifier, event.data);
+                continue;
+            }
+            // Report what was received before anything else happens
+            endReceiving();
+            event.action.run();
+            beginReceiving();
+        }
+        endReceiving();
+
+        if (!transportEvents.isEmpty() && transportEventsPosted.compareAndSet(false, true))
+            eventLoop.post(drainTransportEvents);
+    }
+
+    /** Begin a receive pass. Passes may nest, the outermost reports at its end */
+    private void beginReceiving() {
+        receiveDepth++;
+    }
+
+    /**
+     * End a receive pass, reporting the progress of each message it received body of, and
+     * sending on the chunks of bodies relayed as they arrive
+     */
+    private void endReceiving() {
+        if (--receiveDepth > 0) return;
+
+        lastReceivedIdentifier = null;
+        lastReceivers = null;
+        boolean streamed = receivedStreamedBody;
+        receivedStreamedBody = false;
+
+        // Callbacks may receive more, so report from a copy
+        List<Map.Entry<SessionMessageDeserializer, Float>> reports = null;
+        if (!receivedProgress.isEmpty()) {
+            reports = new ArrayList<>(receivedProgress.entrySet());
+            receivedProgress.clear();
+        }
+
+        if (reports != null) for (Map.Entry<SessionMessageDeserializer, Float> report : reports) {
+            SessionMessage message = report.getKey().getCurrentMessage();
+            if (message == null) continue;
+
+            String senderIdentifier = receiverIdentifiers.get(report.getKey());
+            if (VERBOSE) Timber.d("Received %s message with progress %f from %s", message.getType(), report.getValue(), senderIdentifier);
+
+            callback.messageReceivingFromPeer(message, identifiedPeers.get(senderIdentifier), report.getValue());
+        }
+        if (streamed) sendStreamedChunks();
+    }
+
+    /** Process a chunk received from identifier, within a receive pass */
+    private void receive(Transport transport, String identifier, byte[] data) {
+        SessionMessageDeserializer[] receivers;
+        boolean unprefixed;
+        if (identifier.equals(lastReceivedIdentifier)) {
+            receivers = lastReceivers;
+            unprefixed = lastUnprefixed;
+        } else {
+            // An asymmetric transport may not receive connection events
+            // so we use this opportunity to associate the identifier with its transport
+            registerTransportForIdentifier(transport, identifier);
+            receivers = identifierReceivers.get(identifier);
+            unprefixed = unprefixedIdentifiers.contains(identifier);
+            lastReceivedIdentifier = identifier;
+            lastReceivers = receivers;
+            lastUnprefixed = unprefixed;
+        }
+
+        // The first chunk of a link is an identity, on the CONTROL channel if prefixed. Older
+        // peers send it as is, leading with its header version instead
+        if (receivers == null && !unprefixed && data.length > 0 && isHeaderVersion(data[0])) {
+            Timber.d("%s sends no channel prefix, reading its messages in order", identifier);
+            unprefixedIdentifiers.add(identifier);
+            unprefixed = lastUnprefixed = true;
+        }
+
+        int channel;
+        int prefixLength;
+        if (unprefixed) {
+            // One message after another, so a single deserializer reads them in order
+            channel = SessionMessage.Priority.CONTROL.ordinal();
+            prefixLength = 0;
+        } else {
+            // Each chunk leads with the channel of its priority class
+            channel = data.length == 0 ? -1 : SessionMessageSerializer.getChannel(data);
+            if (channel < 0 || channel >= PriorityMessageQueue.CHANNEL_COUNT) {
+                Timber.w("Dropping %d bytes on unknown channel %d from %s", data.length, channel, identifier);
+                return;
+            }
+
+            // The sender gave up on the message in progress on this channel
+            if (SessionMessageSerializer.isAbort(data)) {
+                Timber.d("%s aborted message on channel %d", identifier, channel);
+                if (receivers != null && receivers[channel] != null) abortReceiving(receivers[channel]);
+                return;
+            }
+            prefixLength = 1;
+        }
+
+        if (receivers == null) {
+            receivers = new SessionMessageDeserializer[PriorityMessageQueue.CHANNEL_COUNT];
+            identifierReceivers.put(identifier, receivers);
+            lastReceivers = receivers;
+        }
+        if (receivers[channel] == null) {
+            receivers[channel] = new SessionMessageDeserializer(context, this);
+            receiverIdentifiers.put(receivers[channel], identifier);
+        }
+
+        //process received data in SessionMessageDeserializer
+        receivers[channel].dataReceived(data, prefixLength, data.length - prefixLength);
+    }
+
+    private static boolean isHeaderVersion(byte lead) {
+        return lead == SessionMessage.HEADER_VERSION_JSON || lead == SessionMessage.HEADER_VERSION_BINARY;
+    }
+
+    /**
+     * Report messages to a peer that disconnected before they were delivered, so that
+     * upper layers may send them another way
+     */
+    private void reportUndelivered(PriorityMessageQueue sender, Peer peer, String identifier) {
+        Exception disconnected = new IllegalStateException("Disconnected from " + identifier + " before delivery");
+        for (SessionMessage message : sender.getUndeliveredMessages()) {
+            if (message instanceof IdentityMessage) continue;
+            callback.messageSentToPeer(message, peer, disconnected);
+        }
+    }
+
     private void initializeTransports(String serviceName) {
         // First transport is considered "base" transport
         // Additional transports are considered supplementary and
@@ -293,46 +651,82 @@ public class SessionManager implements Transport.TransportCallback,
 
     @Override
     @DebugLog
-    public synchronized void dataReceivedFromIdentifier(Transport transport, byte[] data, String identifier) {
+    public void dataReceivedFromIdentifier(Transport transport, byte[] data, String identifier) {
+        if (eventLoop != null && !eventLoop.isLoopThread()) {
+            queueTransportEvent(new TransportEvent(transport, identifier, data));
+            return;
+        }
 
-        // An asymmetric transport may not receive connection events
-        // so we use this opportunity to associate the identifier with its transport
-        registerTransportForIdentifier(transport, identifier);
+        beginReceiving();
+        receive(transport, identifier, data);
+        endReceiving();
+    }
 
-        if (!identifierReceivers.containsKey(identifier))
-            identifierReceivers.put(identifier, new SessionMessageDeserializer(context, this));
+    @Override
+    @DebugLog
+    public void dataReceivedFromIdentifiers(Transport transport, ReceiveBatch batch) {
+        if (eventLoop != null && !eventLoop.isLoopThread()) {
+            for (int i = 0; i < batch.size(); i++)
+                queueTransportEvent(new TransportEvent(transport, batch.getIdentifier(i), batch.getData(i)));
+            return;
+        }
 
-        //process received data in SessionMessageDeserializer
-        identifierReceivers.get(identifier)
-                           .dataReceived(data);
+        beginReceiving();
+        for (int i = 0; i < batch.size(); i++)
+            receive(transport, batch.getIdentifier(i), batch.getData(i));
+        endReceiving();
     }
 
     @Override
     @DebugLog
-    public synchronized void dataSentToIdentifier(Transport transport, byte[] data, String identifier, Exception exception) {
-
-        if (exception != null) {
-            Timber.w("Data failed to send to %s", identifier);
+    public void dataSentToIdentifier(final Transport transport, final byte[] data, final String identifier,
+                                     final Exception exception) {
+        if (eventLoop != null && !eventLoop.isLoopThread()) {
+            queueTransportEvent(new TransportEvent(new Runnable() {
+                @Override
+                public void run() {
+                    dataSentToIdentifier(transport, data, identifier, exception);
+                }
+            }));
             return;
         }
 
-        SessionMessageSerializer sender = identifierSenders.get(identifier);
+        PriorityMessageQueue sender = identifierSenders.get(identifier);
 
         if (sender == null) {
             Timber.w("No sender for dataSentToIdentifier to %s", identifier);
             return;
         }
 
-        Pair<SessionMessage, Float> messagePair = sender.ackChunkDelivery();
+        if (exception != null) {
+            Timber.w("Data failed to send to %s", identifier);
+            if (sender.nackChunkDelivery(data)) {
+                sendChunks(transport, identifier);
+                return;
+            }
+
+            // Out of retransmissions. Give the message up rather than stall the link's window
+            SessionMessage abandoned = sender.abandonMessage(data);
+            if (abandoned == null) return;
+
+            Timber.e("Gave up sending %s message to %s", abandoned.getType(), identifier);
+            sendChunks(transport, identifier);
+            Peer recipient = identifiedPeers.get(identifier);
+            if (recipient != null && !(abandoned instanceof IdentityMessage))
+                callback.messageSentToPeer(abandoned, recipient, new IllegalStateException(
+                        "Gave up sending to " + identifier + " after " + SessionMessageSerializer.MAX_CHUNK_RETRANSMITS + " retransmissions"));
+            return;
+        }
 
-        if (messagePair != null) {
+        SessionMessageSerializer.ChunkAck ack = sender.ackChunkDelivery(data);
 
-            byte[] toSend = sender.getNextChunk(transport.getLongWriteBytes());
-            if (toSend != null)
-                transport.sendData(toSend, identifier);
+        if (ack != null) {
 
-            SessionMessage message = messagePair.first;
-            float progress = messagePair.second;
+            // Refill the window before reporting progress
+            sendChunks(transport, identifier);
+
+            SessionMessage message = ack.message;
+            float progress = ack.progress;
 
             if (VERBOSE) Timber.d("%d %s bytes (%.0f pct) sent to %s",
                                   data.length,
@@ -383,11 +777,20 @@ public class SessionManager implements Transport.TransportCallback,
 
     @Override
     @DebugLog
-    public synchronized void identifierUpdated(Transport transport,
-                                  String identifier,
-                                  Transport.ConnectionStatus status,
-                                  boolean peerIsHost,
-                                  Map<String, Object> extraInfo) {
+    public void identifierUpdated(final Transport transport,
+                                  final String identifier,
+                                  final Transport.ConnectionStatus status,
+                                  final boolean peerIsHost,
+                                  final Map<String, Object> extraInfo) {
+        if (eventLoop != null && !eventLoop.isLoopThread()) {
+            queueTransportEvent(new TransportEvent(new Runnable() {
+                @Override
+                public void run() {
+                    identifierUpdated(transport, identifier, status, peerIsHost, extraInfo);
+                }
+            }));
+            return;
+        }
         switch(status) {
             case CONNECTED:
                 Timber.d("Connected to %s", identifier);
@@ -402,7 +805,7 @@ public class SessionManager implements Transport.TransportCallback,
                 if (peerIsHost && shouldIdentifyPeer(identifier)) {
                     Timber.d("Queuing identity to %s", identifier);
                     if (!identifierSenders.containsKey(identifier)) {
-                        identifierSenders.put(identifier, new SessionMessageSerializer(localIdentityMessage));
+                        queueMessage(identifier, localIdentityMessage);
                     } else
                         Timber.w("Outgoing messages already exist for unidentified peer %s", identifier);
                 }
@@ -410,23 +813,14 @@ public class SessionManager implements Transport.TransportCallback,
                 registerTransportForIdentifier(transport, identifier);
 
                 // Send outgoing messages to peer
-                SessionMessageSerializer sender = identifierSenders.get(identifier);
+                PriorityMessageQueue sender = identifierSenders.get(identifier);
 
                 if (sender != null && sender.getCurrentMessage() != null) {
 
-                    boolean sendingIdentity = sender.getCurrentMessage() instanceof IdentityMessage;
-
-                    byte[] toSend = sender.getNextChunk(transport.getLongWriteBytes());
-                    if (toSend == null) return;
+                    if (sender.getCurrentMessage() instanceof IdentityMessage)
+                        Timber.d("Sending identity to %s", identifier);
 
-                    if (transport.sendData(toSend, identifier)) {
-                        if (sendingIdentity) {
-                            Timber.d("Sent identity to %s", identifier);
-                        }
-                    } else
-                        Timber.w("Failed to send %s message to new peer %s",
-                                sender.getCurrentMessage().getType(),
-                                identifier);
+                    sendChunks(transport, identifier);
                 }
 
                 break;
@@ -463,8 +857,21 @@ public class SessionManager implements Transport.TransportCallback,
                 identifierTransports.remove(identifier);
                 identifyingPeers.remove(identifier);
                 identifiedPeers.remove(identifier);
-                identifierSenders.remove(identifier);
-                identifierReceivers.remove(identifier);
+                PriorityMessageQueue undelivered = identifierSenders.remove(identifier);
+                if (peer != null && undelivered != null) reportUndelivered(undelivered, peer, identifier);
+                SessionMessageDeserializer[] receivers = identifierReceivers.remove(identifier);
+                unprefixedIdentifiers.remove(identifier);
+                if (identifier.equals(lastReceivedIdentifier)) {
+                    lastReceivedIdentifier = null;
+                    lastReceivers = null;
+                }
+                if (receivers != null) {
+                    for (SessionMessageDeserializer receiver : receivers) {
+                        if (receiver == null) continue;
+                        receiverIdentifiers.remove(receiver);
+                        abortReceiving(receiver);
+                    }
+                }
                 identifierRssis.remove(identifier);
                 break;
         }
@@ -477,17 +884,23 @@ public class SessionManager implements Transport.TransportCallback,
     @Override
     public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {
 
-        String senderIdentifier = identifierReceivers.inverse().get(receiver);
+        String senderIdentifier = receiverIdentifiers.get(receiver);
         Timber.d("Received header for %s message from %s", message.getType(), senderIdentifier);
+
+        // Duplicates are only recorded once complete, as this one may yet fail to arrive
+        Peer sender = identifiedPeers.get(senderIdentifier);
+        if (sender == null || message instanceof IdentityMessage
+                || duplicateFilter.mightContain(message.getMac_address(), message.getID())) return;
+
+        callback.messageHeaderReceivedFromPeer(message, sender);
     }
 
     @Override
     public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {
-
-        String senderIdentifier = identifierReceivers.inverse().get(receiver);
-        if (VERBOSE) Timber.d("Received %s message with progress %f from %s", message.getType(), progress, senderIdentifier);
-
-        callback.messageReceivingFromPeer(message, identifiedPeers.get(senderIdentifier), progress);
+        // Reported once the receive pass ends
+        receivedProgress.put(receiver, progress);
+        if (message instanceof DataTransferMessage && ((DataTransferMessage) message).isBodyStreamed())
+            receivedStreamedBody = true;
     }
 
     @Override
@@ -497,7 +910,8 @@ public class SessionManager implements Transport.TransportCallback,
         // Process messages belonging to the BleMesh framework and propagate
         // application level messages via our callback
 
-        String senderIdentifier = identifierReceivers.inverse().get(receiver);
+        receivedProgress.remove(receiver);
+        String senderIdentifier = receiverIdentifiers.get(receiver);
 
         if (e == null) {
 
@@ -532,21 +946,21 @@ public class SessionManager implements Transport.TransportCallback,
                         callback.directPeerStatusUpdated(peer, Transport.ConnectionStatus.CONNECTED, hostIdentifiers.contains(senderIdentifier));
                 }
 
-            } else if (identifiedPeers.containsKey(senderIdentifier) && !senderAddressMessageIDs.get(message.getMac_address()).contains(message.getID())) {
-                // This message is not involved in the Session layer, so we notify the next layer up
-                senderAddressMessageIDs.put(message.getMac_address(),message.getID());
-                callback.messageReceivedFromPeer(message, identifiedPeers.get(senderIdentifier));
+            } else if (!identifiedPeers.containsKey(senderIdentifier)) {
+                Timber.w("Received complete non-identity message from unidentified peer");
+
+            } else if (duplicateFilter.checkAndAdd(message.getMac_address(), message.getID())) {
+                Timber.d("Had received this message with id %s before", message.getID());
 
             } else {
-                if(!identifiedPeers.containsKey(senderIdentifier))
-                    Timber.w("Received complete non-identity message from unidentified peer");
-                if(senderAddressMessageIDs.get(message.getMac_address()).contains(message.getID()))
-                    Timber.d("Had received this message with id %s before", message.getID());
+                // This message is not involved in the Session layer, so we notify the next layer up
+                callback.messageReceivedFromPeer(message, identifiedPeers.get(senderIdentifier));
             }
 
         } else {
             Timber.d("Incoming message from %s failed with error '%s'", senderIdentifier, e.getLocalizedMessage());
             e.printStackTrace();
+            abortStreamed(message);
         }
     }
 
@@ -6,13 +6,10 @@ import android.support.annotation.Nullable;
 import org.json.JSONObject;
 import com.google.common.base.Objects;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
 
 import sword.blemesh.sdk.mesh_graph.LocalPeer;
 import timber.log.Timber;
@@ -32,8 +29,20 @@ public abstract class SessionMessage {
 
     public static enum Status { HEADER_ONLY, COMPLETE }
 
+    /**
+     * Scheduling class, highest first. Each class is serialized as its own stream on a link,
+     * so a lower class delays a higher one by at most a chunk window, never a whole message
+     */
+    public static enum Priority { CONTROL, INTERACTIVE, BULK }
+
+    /** Header version whose header is a UTF-8 JSON object */
+    public static final int HEADER_VERSION_JSON    = 1;
+
+    /** Header version whose header is encoded by {@link BinaryHeaderCodec} */
+    public static final int HEADER_VERSION_BINARY  = 2;
+
     /** SessionMessage version. Must be representable by {@link #HEADER_VERSION_BYTES} bytes */
-    public static final int CURRENT_HEADER_VERSION = 1;
+    public static final int CURRENT_HEADER_VERSION = HEADER_VERSION_BINARY;
 
     /** Leading byte specifies header format version */
     public static final int HEADER_VERSION_BYTES   = 1;
@@ -50,7 +59,7 @@ public abstract class SessionMessage {
     protected          int                     version;
     protected @NonNull String                  type;
     protected          int                     bodyLengthBytes;
-    protected @NonNull String                  id;
+    protected          long                    id;
     protected @NonNull Status                  status;
     protected          Map<String, Object>     headers;
     protected @NonNull String                  mac_address;
@@ -61,7 +70,7 @@ public abstract class SessionMessage {
      * This constructor should be used for deserialization of
      * incoming SessionMessages.
      */
-    public SessionMessage(@NonNull String src_mac_address, @NonNull String id) {
+    public SessionMessage(@NonNull String src_mac_address, long id) {
         this.id         = id;
         this.mac_address = src_mac_address;
         type            = getClass().getSimpleName();
@@ -82,7 +91,16 @@ public abstract class SessionMessage {
      */
     public SessionMessage() {
         //TODO: LocalPeer.getLocalMacAddress()考虑改为使用Preference等方式存储，作为static方法不是很好
-        this(LocalPeer.getLocalMacAddress(),UUID.randomUUID().toString().substring(28));
+        this(LocalPeer.getLocalMacAddress());
+    }
+
+    /**
+     * Construct a new SessionMessage with a unique identifier, sent from src_mac_address.
+     * Prefer this to {@link #SessionMessage()} where the local peer is known, as several
+     * local peers may share a process. e.g: {@link sword.blemesh.sdk.simulator.MeshSimulator}
+     */
+    public SessionMessage(@NonNull String src_mac_address) {
+        this(src_mac_address, MessageId.next(src_mac_address));
     }
 
 
@@ -101,7 +119,8 @@ public abstract class SessionMessage {
         return headerMap;
     }
 
-    public @NonNull String getID(){return id;}
+    /** @return the {@link MessageId} of this message */
+    public long getID(){return id;}
 
     public @NonNull String getMac_address(){return mac_address;}
 
@@ -109,6 +128,10 @@ public abstract class SessionMessage {
         return type;
     }
 
+    public @NonNull Priority getPriority() {
+        return Priority.INTERACTIVE;
+    }
+
     /**
      * @return the length of the serialized headers
      */
@@ -129,6 +152,21 @@ public abstract class SessionMessage {
 
     public abstract @Nullable byte[] getBodyAtOffset(int offset, int length);
 
+    /**
+     * Copy up to length bytes of the body, starting at offset, into destination.
+     * Child classes holding their body in memory should override this to avoid
+     * the intermediate allocation made by {@link #getBodyAtOffset(int, int)}.
+     *
+     * @return the number of bytes copied. 0 if no body remains at offset
+     */
+    public int getBodyAtOffset(int offset, @NonNull byte[] destination, int destinationOffset, int length) {
+        byte[] body = getBodyAtOffset(offset, length);
+        if (body == null) return 0;
+
+        System.arraycopy(body, 0, destination, destinationOffset, body.length);
+        return body.length;
+    }
+
     /**
      * Serialize this SessionMessage for transport. Note that when the returned byte[]
      * has length less than given length or is null (data ended precisely on the last call),
@@ -140,88 +178,140 @@ public abstract class SessionMessage {
      * ---------|------------
      * [0]      | SessionMessage version
      * [1-2]    | Header length
-     * [3-X]    | Header JSON. 'X' is value specified by Header length
-     * [X-Y]    | Body. 'Y' is value specified in 'body-length' entry of Header JSON.
+     * [3-X]    | Header. JSON or {@link BinaryHeaderCodec} depending on version. 'X' is value specified by Header length
+     * [X-Y]    | Body. 'Y' is value specified in 'body-length' entry of Header.
+     *
+     * This allocates a new byte[] per call. Callers serializing many chunks should prefer
+     * {@link #serialize(int, byte[], int, int)} with a reusable buffer.
      *
      * @param length should never be less than {@link #HEADER_LENGTH_BYTES} + {@link #HEADER_VERSION_BYTES}
      *
      */
     public @Nullable byte[] serialize(int offset, int length) {
-        if (offset < 0)
-            throw new IllegalArgumentException("Serialization offset may not be negative");
+        checkSerializable(offset);
 
-        if (serializedHeaders == null)
-            throw new IllegalStateException("Must call serializeAndCacheHeaders() before serialization");
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        long bytesRemaining = getSerializableLengthBytes() - offset;
+        // Do not return zero length byte[]. Use null to represent no more data
+        if (bytesRemaining <= 0 || length <= 0) return null;
 
-        try {
-            int bytesWritten = 0;
+        byte[] result = new byte[(int) Math.min(length, bytesRemaining)];
+        int bytesWritten = serialize(offset, result, 0, result.length);
 
-            // Write SessionMessage header version if offset dictates
-            if (offset + bytesWritten < HEADER_LENGTH_BYTES) {
+        if (bytesWritten == 0) return null;
+        return bytesWritten == result.length ? result : Arrays.copyOf(result, bytesWritten);
+    }
 
-                outputStream.write((byte) CURRENT_HEADER_VERSION);
+    /**
+     * Serialize up to length bytes of this SessionMessage, beginning at offset within
+     * the serialized bytestream described in {@link #serialize(int, int)}, into destination.
+     *
+     * @return the number of bytes written. 0 indicates serialization is complete
+     */
+    public int serialize(int offset, @NonNull byte[] destination, int destinationOffset, int length) {
+        checkSerializable(offset);
+
+        int prefixLength = HEADER_VERSION_BYTES + HEADER_LENGTH_BYTES;
+        int headerEnd    = prefixLength + serializedHeaders.length;
+        int position     = offset;
+        int bytesWritten = 0;
+
+        // Write SessionMessage header version and header length if offset dictates
+        while (position < prefixLength && bytesWritten < length) {
+            destination[destinationOffset + bytesWritten] = getPrefixByte(position);
+            bytesWritten++;
+            position++;
+        }
 
-                bytesWritten += HEADER_VERSION_BYTES;
-            }
+        // Write SessionMessage header if offset dictates
+        if (position < headerEnd && bytesWritten < length) {
+            int headerBytesToCopy = Math.min(length - bytesWritten, headerEnd - position);
 
-            // Write SessionMessage header length if offset dictates
-            if (offset + bytesWritten < HEADER_LENGTH_BYTES) {
+            System.arraycopy(serializedHeaders, position - prefixLength,
+                             destination, destinationOffset + bytesWritten,
+                             headerBytesToCopy);
 
-                ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.SIZE / 8)
-                                                    .order(ByteOrder.LITTLE_ENDIAN)
-                                                    .putInt(serializedHeaders.length);
+            bytesWritten += headerBytesToCopy;
+            position     += headerBytesToCopy;
+        }
 
-                byte[] truncatedLength = new byte[HEADER_LENGTH_BYTES];
-                lengthBuffer.rewind();
-                // limit little endian value by ignoring last (most significant) bits
-                lengthBuffer.get(truncatedLength);
-                outputStream.write(truncatedLength);
+        // Write raw body if offset dictates, as far as it is available
+        int bodyAvailable = getAvailableBodyBytes();
+        if (bytesWritten < length && position >= headerEnd && position - headerEnd < bodyAvailable) {
+            bytesWritten += getBodyAtOffset(position - headerEnd,
+                                            destination, destinationOffset + bytesWritten,
+                                            Math.min(length - bytesWritten, bodyAvailable - (position - headerEnd)));
+        }
 
-                bytesWritten += HEADER_LENGTH_BYTES;
-            }
+        return bytesWritten;
+    }
 
-            // Write SessionMessage HashMap header if offset dictates
-            if (offset + bytesWritten >= HEADER_LENGTH_BYTES + HEADER_VERSION_BYTES &&
-                offset + bytesWritten < serializedHeaders.length) {
+    /**
+     * Serialize as many bytes as destination has remaining, beginning at offset, advancing
+     * the position of destination accordingly. destination must be backed by an accessible array.
+     *
+     * @return the number of bytes written. 0 indicates serialization is complete
+     */
+    public int serialize(int offset, @NonNull ByteBuffer destination) {
+        if (!destination.hasArray())
+            throw new IllegalArgumentException("Serialization destination must be backed by an accessible array");
 
-                int headerBytesToCopy = Math.min(length - bytesWritten,
-                                                 serializedHeaders.length - (bytesWritten + offset - (HEADER_LENGTH_BYTES + HEADER_VERSION_BYTES)));
+        int bytesWritten = serialize(offset,
+                                     destination.array(),
+                                     destination.arrayOffset() + destination.position(),
+                                     destination.remaining());
 
-                outputStream.write(serializedHeaders,
-                                   offset + bytesWritten - (HEADER_LENGTH_BYTES + HEADER_VERSION_BYTES),
-                                   headerBytesToCopy);
+        destination.position(destination.position() + bytesWritten);
+        return bytesWritten;
+    }
 
-                bytesWritten += headerBytesToCopy;
-            }
+    private void checkSerializable(int offset) {
+        if (offset < 0)
+            throw new IllegalArgumentException("Serialization offset may not be negative");
 
-            // Write raw body if offset dictates
-            if (bytesWritten < length && status == Status.COMPLETE) {
-                // If no non-body data was written and there is no body, return null
-                if (getBodyLengthBytes() == 0 && bytesWritten == 0)
-                    return null;
+        if (serializedHeaders == null)
+            throw new IllegalStateException("Must call serializeAndCacheHeaders() before serialization");
+    }
 
-                int bodyOffset = Math.max(0,
-                                          offset - (HEADER_LENGTH_BYTES +
-                                                    HEADER_VERSION_BYTES +
-                                                    serializedHeaders.length)
-                );
+    /** @return the byte at index of the version and header length prefix */
+    private byte getPrefixByte(int index) {
+        switch (index) {
+            case 0:
+                return (byte) CURRENT_HEADER_VERSION;
+            case 1:
+                // Header length is a little endian uint16
+                return (byte) (serializedHeaders.length & 0xFF);
+            default:
+                return (byte) ((serializedHeaders.length >> 8) & 0xFF);
+        }
+    }
 
-                byte[] body = getBodyAtOffset(bodyOffset, length - bytesWritten);
+    /**
+     * @return the number of bytes available to {@link #serialize(int, byte[], int, int)},
+     * which excludes the body bytes not yet available. See {@link #getAvailableBodyBytes()}
+     */
+    long getSerializableLengthBytes() {
+        return getTotalLengthBytes() - getBodyLengthBytes() + getAvailableBodyBytes();
+    }
 
-                if (body != null)
-                    outputStream.write(body);
-            }
+    /**
+     * @return the number of body bytes that may be serialized now. The whole body once this
+     * message's {@link #status} is {@link Status#COMPLETE}, otherwise none
+     */
+    protected int getAvailableBodyBytes() {
+        return status == Status.COMPLETE ? getBodyLengthBytes() : 0;
+    }
 
-        } catch (IOException e) {
-            Timber.e(e, "IOException while serializing SessionMessage");
-        }
+    /**
+     * @return whether body bytes not yet available to {@link #serialize(int, byte[], int, int)}
+     * will become available, so serialization should wait for them rather than end
+     */
+    public boolean isBodyArriving() {
+        return false;
+    }
 
-        byte[] result = outputStream.toByteArray();
-        //Timber.d(String.format("Serialized %d SessionMessage bytes", result.length));
-        // Do not return zero length byte[]. Use null to represent no more data
-        return result.length == 0 ? null : result;
+    /** @return whether the body will never be complete, so this message must not be sent */
+    public boolean isAborted() {
+        return false;
     }
 
     /**
@@ -252,12 +342,31 @@ public abstract class SessionMessage {
     protected void serializeAndCacheHeaders() {
         if (serializedHeaders == null) {
             if (headers == null) headers = populateHeaders();
-            JSONObject jsonHeaders = new JSONObject(headers);
-            serializedHeaders = jsonHeaders.toString().getBytes();
+            if (CURRENT_HEADER_VERSION == HEADER_VERSION_BINARY) {
+                serializedHeaders = BinaryHeaderCodec.encode(headers);
+            } else {
+                JSONObject jsonHeaders = new JSONObject(headers);
+                serializedHeaders = jsonHeaders.toString().getBytes();
+            }
 
         }
     }
 
+    /**
+     * Discard cached headers and cache them again from {@link #populateHeaders()}, after an
+     * outgoing message's header fields changed. Must not be called once serialization began.
+     */
+    protected void recacheHeaders() {
+        headers = null;
+        reserializeHeaders();
+    }
+
+    /** Serialize {@link #headers} again after they were changed in place. Must not be called once serialization began */
+    protected void reserializeHeaders() {
+        serializedHeaders = null;
+        serializeAndCacheHeaders();
+    }
+
     @Override
     public int hashCode() {
         // If we only target API 19+, we can move to java.util.Objects.hash
@@ -13,10 +13,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -38,6 +36,17 @@ import timber.log.Timber;
  * {@link #reset(boolean)}. A call to {@link #reset(boolean)} with true argument will result
  * in the loss of any partially accumulated SessionMessage.
  *
+ * Incoming data is held in a compacting buffer: bytes are released as soon as the message they
+ * belong to is delivered, and the buffer is compacted before it is ever grown. Bodies larger than
+ * {@link #BODY_SIZE_CUTOFF_BYTES} are streamed to disk as they arrive, and DataTransferMessages
+ * carrying them are delivered backed by that file. See {@link DataTransferMessage#getBodyFile()}.
+ * Memory use is therefore bounded by the largest header plus {@link #BODY_SIZE_CUTOFF_BYTES}
+ * (plus one incoming chunk), however long the data stream lasts.
+ *
+ * A DataTransferMessage may take its body as it arrives, see {@link DataTransferMessage#streamBody()}.
+ * If the stream then fails, {@link SessionMessageDeserializerCallback#onComplete} reports the
+ * partial message along with the exception, so that whoever relays it may abort it.
+ *
  * Created by davidbrodsky on 2/24/15.
  */
 public class SessionMessageDeserializer {
@@ -53,77 +62,72 @@ public class SessionMessageDeserializer {
     }
 
     /** Bodies over this size will be stored on disk */
-    private static final int BODY_SIZE_CUTOFF_BYTES = 2 * 1000 * 1000; // 2 MB
+    static final int BODY_SIZE_CUTOFF_BYTES = 2 * 1000 * 1000; // 2 MB
+
+    /** Messages declaring a larger body are rejected */
+    static final int MAX_BODY_BYTES = 500 * 1000 * 1000; // 500 MB
+
+    /** Buffer capacity on construction, and the capacity we shrink back to between messages */
+    static final int INITIAL_BUFFER_BYTES = 5 * 1000;
+
+    private static final int PREFIX_BYTES = SessionMessage.HEADER_VERSION_BYTES +
+                                            SessionMessage.HEADER_LENGTH_BYTES;
 
     private Context                            context;
-    private ByteBuffer                         buffer;
     private SessionMessageDeserializerCallback callback;
     private File                               bodyFile;
     private OutputStream                       bodyStream;
     private HashMap<String, Object>            headers;
-    private ByteBuffer                         headerLengthBuffer;
     private SessionMessage                     sessionMessage;
 
-    private boolean gotVersion;
-    private boolean gotHeaderLength;
+    /** Unprocessed bytes live in buffer[readIndex, writeIndex) */
+    private byte[] buffer;
+    private int    readIndex;
+    private int    writeIndex;
+
     private boolean gotHeader;
-    private boolean gotBody;
-    private boolean gotBodyBoundary;
 
+    private int headerVersion;
     private int headerLength;
     private int bodyLength;
     private int bodyBytesReceived;
-    private int dataBytesReceived;  //use dataBytesReceived and dataBytesProcessed these two global variety instead of local
-    private int dataBytesProcessed; //use dataBytesReceived and dataBytesProcessed these two global variety instead of local
-    private int bufferOffset;
+    /** Whether the body of the current message is skipped, the message having failed */
+    private boolean skipBody;
 
     public SessionMessageDeserializer(Context context, SessionMessageDeserializerCallback callback) {
-        buffer = ByteBuffer.allocate(5 * 1000);
+        buffer = new byte[INITIAL_BUFFER_BYTES];
         this.callback = callback;
         this.context = context;
-
-        init();
     }
 
     /**
      * Reset the state of the receiver in preparation for a new SessionMessage.
      *
      * @param clear whether to delete unprocessed data in {@link #buffer}. If the data stream
-     *              is interrupted and not resumable we'd want to do this. If we want to
-     *              process the next message in stream, we do not.
-     * losing any
-     * partially accumulated SessionMessage. Call this if the incoming data stream is interrupted
-     * and not expected to be immediately resumed.
-     * e.g: the source of incoming data becomes unavailable.
+     *              is interrupted and not resumable we'd want to do this, losing any
+     *              partially accumulated SessionMessage. e.g: the source of incoming data
+     *              becomes unavailable. If we want to process the next message in stream, we do not.
      */
     public void reset(boolean clear) {
-        gotVersion      = false;
-        gotHeaderLength = false;
-        gotHeader       = false;
-        gotBody         = false;
-        gotBodyBoundary = false;
-
+        gotHeader         = false;
+        headers           = null;
+        sessionMessage    = null;
+        headerVersion     = 0;
         headerLength      = 0;
         bodyLength        = 0;
         bodyBytesReceived = 0;
-        dataBytesReceived = 0;
-        dataBytesProcessed = 0;
+        skipBody          = false;
 
         if (clear) {
-            bufferOffset  = 0;
-            buffer.clear();
-
-            bodyFile = null;
+            readIndex  = 0;
+            writeIndex = 0;
+            if (buffer.length > INITIAL_BUFFER_BYTES) buffer = new byte[INITIAL_BUFFER_BYTES];
 
-            if (bodyStream != null) {
-                try {
-                    bodyStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                bodyStream = null;
-            }
+            closeBodyStream();
+            if (bodyFile != null && bodyFile.exists() && !bodyFile.delete())
+                Timber.w("Failed to delete partial body file %s", bodyFile.getAbsolutePath());
         }
+        bodyFile = null;
     }
 
     /**
@@ -134,246 +138,284 @@ public class SessionMessageDeserializer {
      * @param data sequential chunk of a serialized {@link sword.blemesh.sdk.session.SessionMessage}
      */
     public void dataReceived(byte[] data) {
-        if (data.length > buffer.capacity() - buffer.position())
-            resizeBuffer(data.length);
+        dataReceived(data, 0, data.length);
+    }
 
+    /**
+     * Process length bytes of data, beginning at offset. See {@link #dataReceived(byte[])}
+     */
+    public void dataReceived(byte[] data, int offset, int length) {
         try {
-
-            /** Write incoming data to memory buffer if accumulated bytes received (since construction
-             * or call to {@link #reset()}) indicates we are still receiving the SessionMessage prefix
-             * or header. If accumulated bytes received indicates we are receiving body, write to body OutputStream
-             */
-            if (gotHeaderLength && getMessageIndex() >= getPrefixAndHeaderLengthBytes()) {
-
-                if (bodyLength > BODY_SIZE_CUTOFF_BYTES) {
-
-                    if (bodyStream == null) prepareBodyOutputStream();
-
-                    bodyStream.write(data);
-                } else
-                    buffer.put(data);
-
-                bodyBytesReceived += Math.min(bodyLength - bodyBytesReceived, data.length);
-
-                if (callback != null && bodyLength > 0)
-                    callback.onBodyProgress(this, sessionMessage, bodyBytesReceived / (float) bodyLength);
-            }
-            else {
-                buffer.put(data);
+            // A disk-backed body with nothing buffered ahead of it can skip the memory buffer entirely
+            if (isReceivingDiskBody() && getBufferedBytes() == 0) {
+                int bodyBytes = Math.min(length, bodyLength - bodyBytesReceived);
+                writeBody(data, offset, bodyBytes);
+                offset += bodyBytes;
+                length -= bodyBytes;
+                if (bodyBytes > 0) reportBodyProgress();
             }
-
         } catch (IOException e) {
-            Timber.e(e, "Failed to write data to body outputStream");
+            failMessage(e);
+            return;
         }
 
-        processData(data.length);
+        if (length > 0) append(data, offset, length);
 
+        processData();
+    }
 
-        if (!gotBody && gotHeader) {
-            Timber.d(String.format("Read %d / %d body bytes", bodyBytesReceived, bodyLength));
-        }
+    /** @return the message whose header arrived but whose body has not yet, or null */
+    public @Nullable SessionMessage getCurrentMessage() {
+        return gotHeader ? sessionMessage : null;
+    }
+
+    /** @return the current capacity of the in-memory buffer. For tests */
+    int getBufferCapacity() {
+        return buffer.length;
+    }
 
+    private int getBufferedBytes() {
+        return writeIndex - readIndex;
     }
 
-    /** @return the current index into the message currently being deserialized */
-    private int getMessageIndex() {
-        return buffer.position() - bufferOffset;
+    private boolean isReceivingDiskBody() {
+        return gotHeader && bodyLength > BODY_SIZE_CUTOFF_BYTES && bodyBytesReceived < bodyLength;
     }
 
-    private void processData(int bytesJustReceived) {
-        dataBytesReceived += bytesJustReceived;
-        Timber.d("Received %d bytes this time, so far has received overall %s bytes", bytesJustReceived, dataBytesReceived);
-
-        /** Deserialize SessionMessage Header version byte, if not yet done since construction
-         * or last call to {@link #reset()}
-         */
-        if (!gotVersion && getMessageIndex() >= SessionMessage.HEADER_VERSION_BYTES) {
-            // Get version int from first byte
-            // Check we can deserialize this version
-            int version = new BigInteger(new byte[]{buffer.get(bufferOffset)}).intValue();
-            Timber.d("Deserialized header version %d at idx %d", version, bufferOffset);
-            if (version != SessionMessage.CURRENT_HEADER_VERSION) {
-                Timber.e("Unknown SessionMessage version");
-                if (callback != null)
-                    callback.onComplete(this, null, new UnsupportedOperationException("Unknown SessionMessage version " + version));
-                return;
+    /**
+     * Copy data to the tail of {@link #buffer}, compacting already processed bytes
+     * away before resorting to growing the buffer.
+     */
+    private void append(byte[] data, int offset, int length) {
+        if (buffer.length - writeIndex < length) {
+            int buffered = getBufferedBytes();
+
+            if (buffer.length - buffered >= length) {
+                System.arraycopy(buffer, readIndex, buffer, 0, buffered);
+            } else {
+                int newLength = Math.max(buffered + length, (int) (buffer.length * 1.5));
+                byte[] newBuffer = new byte[newLength];
+                System.arraycopy(buffer, readIndex, newBuffer, 0, buffered);
+                Timber.d("Buffer resized from %d (%d used) to %d", buffer.length, buffered, newLength);
+                buffer = newBuffer;
             }
-            dataBytesProcessed += SessionMessage.HEADER_VERSION_BYTES;
-            gotVersion = true;
+            readIndex  = 0;
+            writeIndex = buffered;
         }
+        System.arraycopy(data, offset, buffer, writeIndex, length);
+        writeIndex += length;
+    }
 
-        /** Deserialize SessionMessage Header length bytes, if not yet done since construction
-         * or last call to {@link #reset()}
-         */
-        if (!gotHeaderLength && getMessageIndex() >= SessionMessage.HEADER_VERSION_BYTES +
-                                                     SessionMessage.HEADER_LENGTH_BYTES) {
-
-            // Get header length and store. Deserialize header when possible
-            byte[] headerLengthBytes = new byte[SessionMessage.HEADER_LENGTH_BYTES];
-            int originalPosition = buffer.position();
-            buffer.position(bufferOffset + dataBytesProcessed);
-            buffer.get(headerLengthBytes, 0, headerLengthBytes.length);
-            buffer.position(originalPosition);
-
-            headerLengthBuffer.clear();
-            headerLengthBuffer.put(headerLengthBytes);
-            headerLengthBuffer.rewind();
-
-            headerLength = headerLengthBuffer.getInt();
-            Timber.d("Deserialized header length " + headerLength);
-            gotHeaderLength = true;
-            dataBytesProcessed += SessionMessage.HEADER_LENGTH_BYTES;
+    private void consume(int length) {
+        readIndex += length;
+        if (readIndex == writeIndex) {
+            readIndex  = 0;
+            writeIndex = 0;
         }
+    }
 
-        /** Deserialize SessionMessage Header content, if not yet done since construction
-         * or last call to {@link #reset()}
-         */
-        if (!gotHeader && gotHeaderLength && getMessageIndex() >= getPrefixAndHeaderLengthBytes()) {
+    private void processData() {
+        while (true) {
 
-            byte[] headerString = new byte[headerLength];
-            int originalBufferPosition = buffer.position();
-            buffer.position(bufferOffset + SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES);
-            buffer.get(headerString, 0, headerLength);
-            buffer.position(originalBufferPosition);
+            /** Deserialize SessionMessage version, header length and header, if not yet done since
+             * construction or last call to {@link #reset(boolean)}
+             */
+            if (!gotHeader) {
+                if (getBufferedBytes() < PREFIX_BYTES) return;
+
+                int version = buffer[readIndex];
+                if (version != SessionMessage.HEADER_VERSION_JSON &&
+                    version != SessionMessage.HEADER_VERSION_BINARY) {
+                    Timber.e("Unknown SessionMessage version %d", version);
+                    failMessage(new UnsupportedOperationException("Unknown SessionMessage version " + version));
+                    return;
+                }
 
-            try {
-                JSONObject jsonHeader = new JSONObject(new String(headerString, "UTF-8"));
-                headers = toMap(jsonHeader);
-                bodyLength = (int) headers.get(SessionMessage.HEADER_BODY_LENGTH);
-                sessionMessage = sessionMessageFromHeaders(headers);
-                Timber.d("Deserialized %s header indicating body length %d", headers.get(SessionMessage.HEADER_TYPE), headers.get(SessionMessage.HEADER_BODY_LENGTH));
-                if (sessionMessage != null && callback != null)
-                    callback.onHeaderReady(this, sessionMessage);
-            } catch (JSONException | UnsupportedEncodingException e) {
-                // TODO : We should reset or otherwise abort this message
-                e.printStackTrace();
-            }
+                // Header length is a little endian uint16
+                int length = (buffer[readIndex + 1] & 0xFF) | ((buffer[readIndex + 2] & 0xFF) << 8);
+                if (getBufferedBytes() < PREFIX_BYTES + length) return;
 
-            gotHeader = true;
-            dataBytesProcessed += headerLength;
-        }
-//        else if (!gotHeader)
-//            Timber.d(String.format("Got %d / %d header bytes", buffer.position(), SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES + headerLength));
-
-        /** If the boundary between header content and body content occurred within {@link data},
-         * update {@link #bodyBytesReceived} appropriately. Additionally, if this SessionMessage
-         * requires off-memory body storage we remove body data from {@link buffer} and insert it into
-         * the {@link bodyStream}. Must be performed before determining body completion.
-         *
-         * Performed at most once per SessionMessage
-         */
-        if (!gotBodyBoundary &&
-                gotHeader &&
-                bodyLength > 0 &&
-                getMessageIndex() >= getPrefixAndHeaderLengthBytes()) {
+                headerVersion = version;
+                headerLength  = length;
 
-            try {
-                int bodyBytesJustReceived = dataBytesReceived - dataBytesProcessed;
+                try {
+                    headers = decodeHeaders(headerVersion, buffer, readIndex + PREFIX_BYTES, headerLength);
+                    bodyLength = getBodyLength(headers);
+                    sessionMessage = sessionMessageFromHeaders(headers);
+                } catch (JSONException | UnsupportedEncodingException | IllegalArgumentException |
+                         ClassCastException | NullPointerException e) {
+                    // Malformed headers or missing required entries
+                    Timber.e(e, "Failed to deserialize SessionMessage header");
+                    failMessage(e);
+                    return;
+                }
+                consume(PREFIX_BYTES + headerLength);
+                gotHeader = true;
 
-                if (bodyLength > BODY_SIZE_CUTOFF_BYTES) {
+                Timber.d("Deserialized %s header indicating body length %d", headers.get(SessionMessage.HEADER_TYPE), bodyLength);
+                if (sessionMessage != null && callback != null)
+                    callback.onHeaderReady(this, sessionMessage);
+            }
 
-                    if (bodyStream == null) prepareBodyOutputStream();
+            /** Account for body bytes received, moving them to disk if this
+             * SessionMessage requires off-memory body storage
+             */
+            int previousBodyBytesReceived = bodyBytesReceived;
+            if (bodyLength > BODY_SIZE_CUTOFF_BYTES) {
+                int bodyBytes = Math.min(getBufferedBytes(), bodyLength - bodyBytesReceived);
+                try {
+                    writeBody(buffer, readIndex, bodyBytes);
+                } catch (IOException e) {
+                    failMessage(e);
+                    return;
+                }
+                consume(bodyBytes);
+            } else {
+                bodyBytesReceived = Math.min(getBufferedBytes(), bodyLength);
 
-                    byte[] bodyBytes = new byte[bodyBytesJustReceived];
-                    buffer.position(buffer.position() - bodyBytesJustReceived);
-                    buffer.get(bodyBytes, 0, bodyBytesJustReceived);
-                    buffer.position(buffer.position() - bodyBytesJustReceived);
-                    bodyStream.write(bodyBytes, 0, bodyBytesJustReceived);
+                if (bodyBytesReceived > previousBodyBytesReceived && sessionMessage instanceof DataTransferMessage
+                        && ((DataTransferMessage) sessionMessage).isBodyArriving()) {
+                    ((DataTransferMessage) sessionMessage).appendBody(buffer, readIndex + previousBodyBytesReceived,
+                            bodyBytesReceived - previousBodyBytesReceived);
                 }
+            }
 
-                bodyBytesReceived += bodyBytesJustReceived;
+            if (bodyBytesReceived > previousBodyBytesReceived) reportBodyProgress();
 
-                if (callback != null && bodyLength > 0)
-                    callback.onBodyProgress(this, sessionMessage, bodyBytesReceived / (float) bodyLength);
+            if (bodyBytesReceived < bodyLength) return;
 
-                Timber.d(String.format("Splitting received data between header (%d bytes) and body (%d bytes)", dataBytesProcessed, bodyBytesJustReceived));
-                gotBodyBoundary = true;
+            completeMessage();
+        }
+    }
 
-            } catch (IOException e) {
-                Timber.d(e, "IOException");
+    /** Construct and deliver complete SessionMessage. Header and body must be received */
+    private void completeMessage() {
+        Timber.d("Got body!");
+        SessionMessage message = sessionMessage;
+        // Failure was reported once its body could not be stored
+        if (skipBody) message = null;
+
+        // Construct appropriate SessionMessage or child object
+        if (bodyLength > BODY_SIZE_CUTOFF_BYTES) {
+            closeBodyStream();
+
+            if (message instanceof DataTransferMessage) {
+                // Ownership of the body file passes to the message
+                ((DataTransferMessage) message).setBodyFile(bodyFile);
+            } else if (bodyFile != null && !bodyFile.delete()) {
+                Timber.w("Failed to delete unused body file %s", bodyFile.getAbsolutePath());
             }
-        }
+        } else if (message instanceof DataTransferMessage && ((DataTransferMessage) message).isBodyStreamed()) {
+            // The message already holds its body
+            consume(bodyLength);
+        } else {
+            byte[] body = Arrays.copyOfRange(buffer, readIndex, readIndex + bodyLength);
+            consume(bodyLength);
 
-        /** Construct and deliver complete SessionMessage if deserialized header and body are received */
-        if (gotHeader && !gotBody && bodyBytesReceived == bodyLength) {
+            if (message instanceof DataTransferMessage) {
+                ((DataTransferMessage) message).setBody(body);
+            }
+            if (message instanceof GraphMessage) {
+                ((GraphMessage) message).setDataBody(body);
+            }
+        }
 
-            Timber.d("Got body!");
-            // Construct appropriate SessionMessage or child object
-            if (bodyLength > BODY_SIZE_CUTOFF_BYTES) {
+        // Prepare for next incoming message, releasing memory held for a large body
+        reset(false);
+        if (getBufferedBytes() == 0 && buffer.length > INITIAL_BUFFER_BYTES) {
+            buffer     = new byte[INITIAL_BUFFER_BYTES];
+            readIndex  = 0;
+            writeIndex = 0;
+        }
 
-                if (sessionMessage instanceof DataTransferMessage) {
-                    // TODO This shouldn't happen. We should enforce an upper limit on DataTransferMessage
-                    throw new UnsupportedOperationException("Cannot have a disk-backed DataTransferMessage");
-                }
-            } else {
-                byte[] body = new byte[bodyLength];
-                int originalPos = buffer.position();
-                buffer.position(bufferOffset + getPrefixAndHeaderLengthBytes());
-                buffer.get(body, 0, bodyLength);
-                buffer.position(originalPos);
-
-                if (sessionMessage instanceof DataTransferMessage) {
-                    ((DataTransferMessage) sessionMessage).setBody(body);
-                }
-                if (sessionMessage instanceof GraphMessage){
-                    ((GraphMessage) sessionMessage).setDataBody(body);
-                }
-                dataBytesProcessed += bodyLength;
-            }
+        // Messages of an unknown type are skipped
+        if (message != null && callback != null) callback.onComplete(this, message, null);
+    }
 
-            if (callback != null) callback.onComplete(this, sessionMessage, null);
+    /**
+     * Report the failure of the current message, along with the message if its header arrived.
+     * The remaining data stream cannot be interpreted, so all buffered data is discarded.
+     */
+    private void failMessage(Exception e) {
+        SessionMessage partial = getCurrentMessage();
+        reset(true);
+        if (callback != null) callback.onComplete(this, partial, e);
+    }
 
-            gotBody = true;
+    private void reportBodyProgress() {
+        if (!skipBody && sessionMessage != null && callback != null)
+            callback.onBodyProgress(this, sessionMessage, bodyBytesReceived / (float) bodyLength);
+    }
 
-            // Prepare for next incoming message
-            bufferOffset += (getPrefixAndHeaderLengthBytes() + bodyLength); // The next message begins at this offset. We can't simply use dataBytesProcessed because this message may have been processed over prior calls to this method
-            Timber.d("Message complete. Buffer offset %d, dataBytes processed %d", bufferOffset, dataBytesProcessed);
-            if (dataBytesProcessed < dataBytesReceived) {
-                Timber.d("%d / %d bytes deserialized in complete msg. Proceeding to next msg", dataBytesProcessed, dataBytesReceived);
-                processData(dataBytesReceived - dataBytesProcessed);
+    private void writeBody(byte[] data, int offset, int length) throws IOException {
+        if (length <= 0) return;
+        if (bodyStream == null && !skipBody) {
+            try {
+                prepareBodyOutputStream();
+            } catch (IOException e) {
+                skipMessageBody(e);
             }
-            reset(false);
         }
+
+        if (!skipBody) bodyStream.write(data, offset, length);
+        bodyBytesReceived += length;
     }
 
-    private void init() {
-        headerLengthBuffer = ByteBuffer.allocate(Integer.SIZE / 8).order(ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Report the failure of the current message, whose body cannot be stored. Unlike
+     * {@link #failMessage(Exception)} the stream remains intact, so the body is read past
+     * and the messages following it are delivered
+     */
+    private void skipMessageBody(Exception e) {
+        skipBody = true;
+        bodyFile = null;
+        if (sessionMessage != null && callback != null) callback.onComplete(this, sessionMessage, e);
     }
 
-    private void resizeBuffer(int minLength) {
-        int curLen = buffer.capacity();
-        int curOccupied = buffer.position();
-        int newLen = Math.max(minLength, (int) (curLen * 1.5));
-        ByteBuffer newBuffer = ByteBuffer.allocate(newLen);
-        buffer.limit(buffer.position());
-        buffer.position(0);
-        newBuffer.put(buffer);
-        buffer = newBuffer;
-        Timber.d("Buffer resized from %d (%d used) to %d. %d bytes avail", curLen, curOccupied, newLen, buffer.capacity() - buffer.position());
+    private void closeBodyStream() {
+        if (bodyStream != null) {
+            try {
+                bodyStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            bodyStream = null;
+        }
     }
 
-    private void prepareBodyOutputStream() {
-        bodyFile = new File(context.getExternalFilesDir(null), UUID.randomUUID().toString().replace("-","") + ".body");
+    private void prepareBodyOutputStream() throws IOException {
+        File directory = context == null ? null : context.getExternalFilesDir(null);
+        // External storage may be unavailable
+        if (directory == null) directory = context == null ? new File(System.getProperty("java.io.tmpdir")) : context.getCacheDir();
+
+        bodyFile = new File(directory, UUID.randomUUID().toString().replace("-","") + ".body");
         try {
             bodyStream = new FileOutputStream(bodyFile);
         } catch (FileNotFoundException e) {
-            String msg = "Failed to open body File: " + bodyFile.getAbsolutePath();
-            Timber.e(e, msg);
-            throw new IllegalArgumentException(msg);
+            Timber.e(e, "Failed to open body File: %s", bodyFile.getAbsolutePath());
+            throw e;
         }
     }
 
-    private float getCurrentMessageProgress() {
-        if (bodyLength == 0) return 0;
-        return bodyBytesReceived / (float) bodyLength;
-    }
-
     /**
-     * @return the number of bytes which the prefix and header occupy
-     * This method only returns a valid value if {@link #gotHeaderLength} is {@code true}
+     * @return the body length declared by headers
+     * @throws IllegalArgumentException if it is missing, negative or over {@link #MAX_BODY_BYTES}
      */
-    private int getPrefixAndHeaderLengthBytes() {
-        return SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES + headerLength;
+    private static int getBodyLength(HashMap<String, Object> headers) {
+        Object length = headers.get(SessionMessage.HEADER_BODY_LENGTH);
+        if (!(length instanceof Integer) || (Integer) length < 0 || (Integer) length > MAX_BODY_BYTES)
+            throw new IllegalArgumentException("Invalid body length " + length);
+
+        return (Integer) length;
+    }
+
+    private static HashMap<String, Object> decodeHeaders(int version, byte[] data, int offset, int length)
+            throws JSONException, UnsupportedEncodingException {
+
+        if (version == SessionMessage.HEADER_VERSION_BINARY)
+            return BinaryHeaderCodec.decode(data, offset, length);
+
+        return toMap(new JSONObject(new String(data, offset, length, "UTF-8")));
     }
 
     private static @Nullable SessionMessage sessionMessageFromHeaders(HashMap<String, Object> headers) {
@@ -10,6 +10,9 @@ import sword.blemesh.sdk.mesh_graph.Peer;
  */
 public interface SessionMessageScheduler {
 
-    public void sendMessage(SessionMessage message, Peer recipient);
+    /**
+     * @return false if recipient cannot currently be reached, in which case message was dropped
+     */
+    public boolean sendMessage(SessionMessage message, Peer recipient);
 
 }
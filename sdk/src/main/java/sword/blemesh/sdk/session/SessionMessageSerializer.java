@@ -1,30 +1,114 @@
 package sword.blemesh.sdk.session;
 
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Pair;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
 
+import sword.blemesh.sdk.ByteCopyCounter;
 import timber.log.Timber;
 
 /**
  * This class facilitates queuing {@link sword.blemesh.sdk.session.SessionMessage}s
  * for sequential serialization
  *
+ * Up to {@link #getWindowSize()} chunks may be in flight at once. Each chunk returned by
+ * {@link #getNextChunk(int)} is assigned a sequence number and held until acknowledged via
+ * {@link #ackChunkDelivery(byte[])}, {@link #ackChunkDelivery(int)} or {@link #ackChunksThrough(int)},
+ * in any order, or returned for retransmission via {@link #nackChunkDelivery(byte[])}. A message
+ * with a chunk out of retransmissions is given up via {@link #abandonMessage(byte[])}.
+ *
+ * If a channel is set via {@link #setChannel(int)}, each chunk begins with the channel byte
+ * so that the streams of several serializers may be interleaved over one link.
+ *
+ * A message whose body is still arriving ({@link SessionMessage#isBodyArriving()}) is sent as
+ * far as it is available, after which {@link #getNextChunk(int)} returns null until more arrives.
+ * Should it be {@link SessionMessage#isAborted()} part way, a one byte abort chunk, the channel
+ * with {@link #ABORT_FLAG} set, tells the receiver to discard the part it holds.
+ *
  * Created by davidbrodsky on 3/12/15.
  */
 public class SessionMessageSerializer {
 
     private static final boolean VERBOSE = false;
 
-    private ArrayList<Pair<Integer, SessionMessage>> completedMessages;
+    /** Upper bound on a single chunk, regardless of the length requested */
+    private static final int MAX_CHUNK_BYTES = 500 * 1024;
+
+    /** Chunks in flight when no window size is specified */
+    public static final int DEFAULT_WINDOW_SIZE = 4;
+
+    /** Set in the channel byte of a chunk aborting the message in progress on that channel */
+    public static final int ABORT_FLAG = 0x80;
+
+    /** Times a chunk will be retransmitted before the serializer gives up on it */
+    static final int MAX_CHUNK_RETRANSMITS = 3;
+
+    /**
+     * Reports the acknowledgement of a chunk
+     */
+    public static class ChunkAck {
+
+        /** The message the acknowledged chunk belongs to */
+        public final SessionMessage message;
+
+        /** Fraction of message acknowledged, including this chunk. 1 when message is delivered */
+        public final float progress;
+
+        /** Sequence number of the acknowledged chunk */
+        public final int sequence;
+
+        ChunkAck(SessionMessage message, float progress, int sequence) {
+            this.message  = message;
+            this.progress = progress;
+            this.sequence = sequence;
+        }
+    }
+
+    /** Delivery state of a message with chunks in flight */
+    private static class MessageProgress {
+        final SessionMessage message;
+        long ackedBytes;
+        boolean abandoned;
+
+        MessageProgress(SessionMessage message) {
+            this.message = message;
+        }
+
+        float getProgress() {
+            return ((float) ackedBytes) / message.getTotalLengthBytes();
+        }
+    }
+
+    private static class Chunk {
+        final int             sequence;
+        final byte[]          data;
+        final MessageProgress progress;
+        int                   retransmits;
+
+        Chunk(int sequence, byte[] data, MessageProgress progress) {
+            this.sequence = sequence;
+            this.data     = data;
+            this.progress = progress;
+        }
+    }
+
     private ArrayDeque<SessionMessage> messages;
-    private byte[] lastChunk;
+    /** Chunks sent and awaiting acknowledgement, in sequence order */
+    private ArrayList<Chunk> inFlightChunks = new ArrayList<>();
+    /** Chunks awaiting retransmission. These remain in {@link #inFlightChunks} */
+    private ArrayDeque<Chunk> retransmitChunks = new ArrayDeque<>();
+    /** Progress of the message at the head of {@link #messages} */
+    private MessageProgress currentProgress;
     private int marker;
-    private int serializeCount;
-    private int ackCount;
+    private int nextSequence;
+    private int lastChunkSequence = -1;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int channel    = -1;
 
     public SessionMessageSerializer(final SessionMessage message) {
         this(new ArrayList<SessionMessage>() {{ add(message); }});
@@ -33,10 +117,8 @@ public class SessionMessageSerializer {
     public SessionMessageSerializer(List<SessionMessage> messages) {
         this.messages = new ArrayDeque<>();
         this.messages.addAll(messages);
-        this.completedMessages = new ArrayList<>();
         marker = 0;
-        serializeCount = 0;
-        ackCount = 0;
+        nextSequence = 0;
     }
 
     public @Nullable SessionMessage getCurrentMessage() {
@@ -47,12 +129,92 @@ public class SessionMessageSerializer {
         messages.offer(message);
     }
 
+    /** @return messages with chunks in flight or yet to be sent, in order */
+    public @NonNull List<SessionMessage> getUndeliveredMessages() {
+        LinkedHashSet<SessionMessage> undelivered = new LinkedHashSet<>();
+        for (Chunk chunk : inFlightChunks)
+            undelivered.add(chunk.progress.message);
+        undelivered.addAll(messages);
+        return new ArrayList<>(undelivered);
+    }
+
     public float getCurrentMessageProgress() {
         if (getCurrentMessage() == null) return 1;
 
         return ((float)marker) / getCurrentMessage().getTotalLengthBytes();
     }
 
+    /**
+     * Set the number of chunks that may await acknowledgement at once. A window of 1
+     * sends each chunk only after the previous is acknowledged.
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1)
+            throw new IllegalArgumentException("Window size must be at least 1");
+
+        this.windowSize = windowSize;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Prefix each chunk with channel, read back by {@link #getChannel(byte[])}
+     *
+     * @param channel in [0, 127], or -1 for no prefix
+     */
+    public void setChannel(int channel) {
+        if (channel < -1 || channel >= ABORT_FLAG)
+            throw new IllegalArgumentException("Channel must be in [0, 127] or -1");
+        if (nextSequence > 0)
+            throw new IllegalStateException("Channel must be set before the first chunk");
+
+        this.channel = channel;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    /** @return the channel of a chunk produced by a serializer with a channel set */
+    public static int getChannel(@NonNull byte[] chunk) {
+        return chunk[0] & ~ABORT_FLAG & 0xFF;
+    }
+
+    /**
+     * @return whether chunk, produced by a serializer with a channel set, aborts the message
+     * in progress on its channel
+     */
+    public static boolean isAbort(@NonNull byte[] chunk) {
+        return (chunk[0] & ABORT_FLAG) != 0;
+    }
+
+    /** @return whether chunks await retransmission, which {@link #getNextChunk(int)} returns regardless of the window */
+    public boolean hasRetransmits() {
+        return retransmitChunks.size() > 0;
+    }
+
+    /** @return the number of chunks sent but not yet acknowledged */
+    public int getInFlightCount() {
+        return inFlightChunks.size();
+    }
+
+    /** @return bytes queued or in flight but not yet acknowledged */
+    public long getBacklogBytes() {
+        long backlog = -marker;
+        for (SessionMessage message : messages)
+            backlog += message.getTotalLengthBytes();
+        for (Chunk chunk : inFlightChunks)
+            backlog += chunk.data.length;
+        return backlog;
+    }
+
+    /** @return the sequence number of the chunk last returned by {@link #getNextChunk(int)} */
+    public int getLastChunkSequence() {
+        return lastChunkSequence;
+    }
+
     /**
      * Read up to length bytes of the current outgoing SessionMessage.
      * If length is 0, a fixed memory-safe size will be read.
@@ -60,63 +222,235 @@ public class SessionMessageSerializer {
      * If {@param length} extends beyond the bytes left in the current message,
      * the result will be a byte[] of lesser length containing the completion of the current message.
      *
-     * The chunk returned will not advance until a corresponding call to {@link #ackChunkDelivery()}
+     * Chunks awaiting retransmission are returned first, unaltered.
+     *
+     * @return the next chunk to send, or null if no data remains, the window is full or the
+     * current message's body has not arrived yet.
+     * Each chunk must eventually be acknowledged or nacked.
      */
-    public byte[] getNextChunk(int length) {
-        if (lastChunk != null) return lastChunk;
-
-        if (messages.size() == 0) return null;
-        length = Math.min(length, 500 * 1024);
-        byte[] result = messages.peek().serialize(marker, length);
-
-        if (result == null) {
-            Timber.d("Completed %s message (%d / %d bytes)", messages.peek().getType(),
-                    marker, messages.peek().getTotalLengthBytes());
-            completedMessages.add(new Pair<>(serializeCount, messages.poll()));
-            marker = 0;
-            return getNextChunk(length);
-
-        } else {
-            marker += result.length;
-            serializeCount++;
-            //Timber.d("getNextChunk");
+    public @Nullable byte[] getNextChunk(int length) {
+        Chunk retransmit = retransmitChunks.poll();
+        if (retransmit != null) {
+            lastChunkSequence = retransmit.sequence;
+            return retransmit.data;
         }
 
-        lastChunk = result;
-        return result;
+        if (inFlightChunks.size() >= windowSize) return null;
+
+        int prefixLength = channel < 0 ? 0 : 1;
+        while (messages.size() > 0) {
+            SessionMessage message = messages.peek();
+            length = length <= 0 ? MAX_CHUNK_BYTES : Math.min(length, MAX_CHUNK_BYTES);
+            if (length <= prefixLength)
+                throw new IllegalArgumentException("Chunk length must exceed the channel prefix");
+
+            if (currentProgress == null) currentProgress = new MessageProgress(message);
+
+            if (message.isAborted() && marker == 0) {
+                completeCurrentMessage();
+                continue;
+            }
+
+            // Serialize straight into a frame of the size the transport will write, which
+            // then takes ownership of it
+            int frameBytes = (int) Math.min(length - prefixLength,
+                                            Math.max(0, message.getSerializableLengthBytes() - marker));
+            byte[] frame = new byte[prefixLength + frameBytes];
+            int bytesWritten = frameBytes == 0 ? 0 : message.serialize(marker, frame, prefixLength, frameBytes);
+
+            if (bytesWritten > 0) {
+                marker += bytesWritten;
+                if (prefixLength > 0) frame[0] = (byte) channel;
+                if (bytesWritten < frameBytes) {
+                    // The body source returned less than it had available
+                    frame = Arrays.copyOf(frame, prefixLength + bytesWritten);
+                    ByteCopyCounter.count(frame.length);
+                }
+
+                Chunk chunk = new Chunk(nextSequence++, frame, currentProgress);
+                inFlightChunks.add(chunk);
+                lastChunkSequence = chunk.sequence;
+
+                if (marker >= message.getTotalLengthBytes()) completeCurrentMessage();
+                return chunk.data;
+            }
+
+            // Wait for more of the body
+            if (message.isBodyArriving()) return null;
+
+            // Message exhausted without reaching its total length. e.g: Missing or aborted body.
+            // The receiver must discard what it got, or it would take the next message for the rest
+            if (marker > 0 && prefixLength > 0) {
+                Chunk abort = new Chunk(nextSequence++, new byte[] { (byte) (channel | ABORT_FLAG) }, currentProgress);
+                inFlightChunks.add(abort);
+                lastChunkSequence = abort.sequence;
+                completeCurrentMessage();
+                return abort.data;
+            }
+            completeCurrentMessage();
+        }
+        return null;
+    }
+
+    private void completeCurrentMessage() {
+        SessionMessage message = messages.poll();
+        Timber.d("Completed %s message (%d / %d bytes)", message.getType(),
+                marker, message.getTotalLengthBytes());
+        marker = 0;
+        currentProgress = null;
     }
 
     /**
-     * @return a Pair containing the message delivery progress and the
-     * {@link sword.blemesh.sdk.session.SessionMessage} corresponding
-     * to the chunk being acknowledged. Assumes sequential delivery of chunks returned
+     * Acknowledge the oldest chunk in flight. Assumes sequential delivery of chunks returned
      * by {@link #getNextChunk(int)}
+     *
+     * @return a ChunkAck describing the delivery progress and the
+     * {@link sword.blemesh.sdk.session.SessionMessage} corresponding
+     * to the chunk being acknowledged. null if no chunk is in flight
      */
-    public @Nullable Pair<SessionMessage, Float> ackChunkDelivery() {
-        ackCount++;
-        if (VERBOSE) Timber.d("Ack");
-        SessionMessage message = null;
-        float progress = 0;
-
-        for (Pair<Integer, SessionMessage> messagePair : completedMessages) {
-            if (messagePair.first >= ackCount) {
-                message = messagePair.second;
-                progress = ((float) ackCount) / messagePair.first;
-                if (VERBOSE) Timber.d("ackChunkDelivery reporting prev msg progress %f", progress);
-                break;
+    public @Nullable ChunkAck ackChunkDelivery() {
+        if (inFlightChunks.size() == 0) return null;
+
+        return acknowledge(inFlightChunks.get(0));
+    }
+
+    /**
+     * Acknowledge the in-flight chunk with the given contents. Chunks may be acknowledged
+     * in any order. Where several chunks in flight have equal contents, the oldest is acknowledged.
+     *
+     * @return see {@link #ackChunkDelivery()}. null if no chunk in flight matches data
+     */
+    public @Nullable ChunkAck ackChunkDelivery(@NonNull byte[] data) {
+        Chunk chunk = findChunk(data);
+        if (chunk == null) {
+            if (VERBOSE) Timber.d("Ack for %d bytes matches no chunk in flight", data.length);
+            return null;
+        }
+        return acknowledge(chunk);
+    }
+
+    /**
+     * Acknowledge the in-flight chunk with the given sequence number.
+     *
+     * @return see {@link #ackChunkDelivery()}. null if no chunk with sequence is in flight
+     */
+    public @Nullable ChunkAck ackChunkDelivery(int sequence) {
+        for (Chunk chunk : inFlightChunks) {
+            if (chunk.sequence == sequence) return acknowledge(chunk);
+        }
+        return null;
+    }
+
+    /**
+     * Acknowledge all chunks in flight with sequence up to and including sequence.
+     *
+     * @return an acknowledgement for each chunk, in sequence order
+     */
+    public @NonNull List<ChunkAck> ackChunksThrough(int sequence) {
+        ArrayList<ChunkAck> acks = new ArrayList<>();
+        while (inFlightChunks.size() > 0 && inFlightChunks.get(0).sequence <= sequence) {
+            acks.add(acknowledge(inFlightChunks.get(0)));
+        }
+        return acks;
+    }
+
+    /**
+     * Report the in-flight chunk with the given contents failed to send.
+     * It will be returned again by {@link #getNextChunk(int)}, followed by every chunk sent
+     * after it. Transports discard chunks queued behind a failed write, as delivering them
+     * would break the order of the stream.
+     *
+     * @return false if the chunk was unknown or has exhausted its retransmissions, in which
+     * case its message should be given up via {@link #abandonMessage(byte[])}
+     */
+    public boolean nackChunkDelivery(@NonNull byte[] data) {
+        Chunk chunk = findChunk(data);
+        if (chunk == null || retransmitChunks.contains(chunk)) return false;
+
+        if (chunk.retransmits >= MAX_CHUNK_RETRANSMITS) {
+            Timber.e("Chunk %d of %s message failed %d times. Giving up",
+                    chunk.sequence, chunk.progress.message.getType(), chunk.retransmits + 1);
+            return false;
+        }
+
+        chunk.retransmits++;
+
+        ArrayDeque<Chunk> resend = new ArrayDeque<>();
+        for (Chunk inFlight : inFlightChunks) {
+            if (inFlight.sequence >= chunk.sequence || retransmitChunks.contains(inFlight))
+                resend.offer(inFlight);
+        }
+        retransmitChunks = resend;
+        return true;
+    }
+
+    /**
+     * Give up on the message of the in-flight chunk with the given contents, which exhausted
+     * its retransmissions. The message's chunks in flight are dropped and the rest of it is not
+     * sent. An abort chunk tells the receiver to discard the part it got, then the chunks sent
+     * after the failed one are sent again, so that the window does not stall.
+     *
+     * @return the message given up, or null if no chunk in flight matches data, it has
+     * retransmissions left, or its message was given up before
+     */
+    public @Nullable SessionMessage abandonMessage(@NonNull byte[] data) {
+        Chunk failed = findChunk(data);
+        if (failed == null || failed.retransmits < MAX_CHUNK_RETRANSMITS) return null;
+
+        MessageProgress progress = failed.progress;
+        if (progress == currentProgress) completeCurrentMessage();
+
+        ArrayList<Chunk> kept = new ArrayList<>(inFlightChunks.size());
+        ArrayDeque<Chunk> resend = new ArrayDeque<>();
+        for (Chunk inFlight : inFlightChunks) {
+            if (inFlight.sequence == failed.sequence && channel >= 0 && !progress.abandoned) {
+                // Takes the failed chunk's place in the stream
+                Chunk abort = new Chunk(failed.sequence, new byte[] { (byte) (channel | ABORT_FLAG) }, progress);
+                kept.add(abort);
+                resend.offer(abort);
             }
+            if (inFlight.progress == progress) continue;
+
+            kept.add(inFlight);
+            if (inFlight.sequence > failed.sequence || retransmitChunks.contains(inFlight))
+                resend.offer(inFlight);
         }
+        inFlightChunks   = kept;
+        retransmitChunks = resend;
+
+        if (progress.abandoned) return null;
+        progress.abandoned = true;
+        return progress.message;
+    }
 
-        if (message == null) {
-            message = messages.peek();
-            progress = getCurrentMessageProgress();
-            if (VERBOSE) Timber.d("ackChunkDelivery reporting current progress %f", progress);
+    /**
+     * Return every chunk in flight for retransmission, in order, without counting it against
+     * {@link #MAX_CHUNK_RETRANSMITS}. For use when a transport discarded them behind another
+     * serializer's failed write
+     */
+    public void requeueInFlight() {
+        retransmitChunks = new ArrayDeque<>(inFlightChunks);
+    }
+
+    private @Nullable Chunk findChunk(byte[] data) {
+        // Transports usually report the very array they were given
+        for (Chunk chunk : inFlightChunks) {
+            if (chunk.data == data) return chunk;
         }
+        for (Chunk chunk : inFlightChunks) {
+            if (Arrays.equals(chunk.data, data)) return chunk;
+        }
+        return null;
+    }
+
+    private ChunkAck acknowledge(Chunk chunk) {
+        inFlightChunks.remove(chunk);
+        retransmitChunks.remove(chunk);
 
-        if (message == null) return null; // Acknowledgements have fallen out of sync!
+        chunk.progress.ackedBytes += chunk.data.length - (channel < 0 ? 0 : 1);
+        if (VERBOSE) Timber.d("Ack chunk %d, %d in flight", chunk.sequence, inFlightChunks.size());
 
-        lastChunk = null;
-        return new Pair<>(message, progress);
+        return new ChunkAck(chunk.progress.message, chunk.progress.getProgress(), chunk.sequence);
     }
 
 }
@@ -0,0 +1,555 @@
+package sword.blemesh.sdk.simulator;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import sword.blemesh.sdk.Clock;
+import sword.blemesh.sdk.app.MeshRouter;
+import sword.blemesh.sdk.mesh_graph.LocalPeer;
+import sword.blemesh.sdk.mesh_graph.Peer;
+import sword.blemesh.sdk.session.DataTransferMessage;
+import sword.blemesh.sdk.session.DuplicateFilter;
+import sword.blemesh.sdk.session.SessionManager;
+import sword.blemesh.sdk.transport.ReceiveBatch;
+import sword.blemesh.sdk.transport.loopback.LoopbackTransport;
+
+/**
+ * Runs a mesh of virtual nodes in one JVM. Each {@link Node} is a real {@link SessionManager}
+ * and {@link MeshRouter} over a {@link LoopbackTransport}, and the simulator is the medium
+ * carrying writes between connected nodes.
+ *
+ * Time is virtual and advances only as scheduled events run, so runs are deterministic for
+ * a given seed and independent of the host's speed. Links may be given a latency, bandwidth,
+ * loss rate and MTU, and may be connected and disconnected at any point of a run.
+ *
+ * Chunks arriving at a node may be gathered and delivered as one {@link ReceiveBatch}, see
+ * {@link #setReceiveBatchMicros(long)}.
+ *
+ * Not thread safe. All calls must be made from one thread.
+ */
+public class MeshSimulator implements LoopbackTransport.Medium {
+
+    public static final String SERVICE_NAME = "MeshSimulator";
+
+    /** Events a single {@link #runUntilIdle()} may run before the mesh is considered unstable */
+    public static final int DEFAULT_MAX_EVENTS = 10 * 1000 * 1000;
+
+    /**
+     * Properties of a connection between two nodes. Applies in both directions
+     */
+    public static class LinkConfig {
+
+        long latencyMicros  = 5 * 1000;
+        long bytesPerSecond = 0;
+        double lossRate     = 0;
+        int mtuBytes        = Integer.MAX_VALUE;
+        int rssi            = -60;
+
+        /** One-way propagation delay of each write */
+        public LinkConfig setLatencyMillis(long latencyMillis) {
+            latencyMicros = latencyMillis * 1000;
+            return this;
+        }
+
+        /** @param bytesPerSecond link throughput, or 0 for unlimited */
+        public LinkConfig setBytesPerSecond(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /** Probability in [0, 1) that a write is lost and reported failed */
+        public LinkConfig setLossRate(double lossRate) {
+            if (lossRate < 0 || lossRate >= 1)
+                throw new IllegalArgumentException("Loss rate must be in [0, 1)");
+            this.lossRate = lossRate;
+            return this;
+        }
+
+        /** Writes larger than mtuBytes are refused. Reported to both ends on connection */
+        public LinkConfig setMtuBytes(int mtuBytes) {
+            this.mtuBytes = mtuBytes;
+            return this;
+        }
+
+        /** Signal strength reported on connection, as a negative dBm value. Feeds route metrics */
+        public LinkConfig setRssi(int rssi) {
+            this.rssi = rssi;
+            return this;
+        }
+    }
+
+    /**
+     * A virtual peer
+     */
+    public class Node implements MeshRouter.Listener {
+
+        public final LocalPeer         peer;
+        public final LoopbackTransport transport;
+        public final SessionManager    sessionManager;
+        public final MeshRouter        router;
+
+        private final List<DataTransferMessage> received = new ArrayList<>();
+        private final List<Long>                receivedMicros = new ArrayList<>();
+        private final List<DataTransferMessage> failed = new ArrayList<>();
+        private final List<Peer>                failedDescs = new ArrayList<>();
+        private int                             sentCount;
+        private boolean                         blackhole;
+        private boolean                         deliveryMaintenanceScheduled;
+        /** Chunks arrived within the current receive window, see {@link #setReceiveBatchMicros(long)} */
+        private final ReceiveBatch              pendingReceived = new ReceiveBatch();
+        private final ReceiveBatch              deliveredReceived = new ReceiveBatch();
+
+        Node(String alias, String macAddress, int longWriteBytes) {
+            peer           = new LocalPeer(alias, macAddress);
+            transport      = new LoopbackTransport(SERVICE_NAME, null, MeshSimulator.this, longWriteBytes);
+            router         = new MeshRouter(peer);
+            sessionManager = new SessionManager(null, SERVICE_NAME, peer, router,
+                                                Collections.singletonList(transport));
+            sessionManager.setDuplicateFilter(new DuplicateFilter(DuplicateFilter.DEFAULT_CAPACITY,
+                    DuplicateFilter.DEFAULT_EXPIRY_MILLIS, DuplicateFilter.DEFAULT_FALSE_POSITIVE_RATE, clock));
+            router.setSessionManager(sessionManager);
+            router.setListener(this);
+            router.setClock(clock);
+            router.setLogGraph(false);
+        }
+
+        public String getMacAddress() {
+            return peer.getMacAddress();
+        }
+
+        /**
+         * Send data to destination via the current route
+         *
+         * @return false if this node knows no route to destination
+         */
+        public boolean send(@NonNull byte[] data, @NonNull Node destination) {
+            return router.send(DataTransferMessage.createOutgoing(null, destination.peer, getMacAddress(), data));
+        }
+
+        /**
+         * Send data to destination, which acknowledges it end-to-end. It is sent again until the
+         * ack arrives. See {@link sword.blemesh.sdk.app.DeliveryTracker}
+         *
+         * @return false if this node knows no route to destination
+         */
+        public boolean sendWithAck(@NonNull byte[] data, @NonNull Node destination) {
+            DataTransferMessage message = DataTransferMessage.createOutgoing(null, destination.peer, getMacAddress(), data);
+            message.requestDeliveryAck();
+            scheduleDeliveryMaintenance();
+            return router.send(message);
+        }
+
+        /**
+         * While set, writes to this node are reported delivered but discarded, as if it
+         * crashed after receiving them
+         */
+        public void setBlackhole(boolean blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        /** @return messages addressed to this node, in order of arrival */
+        public List<DataTransferMessage> getReceived() {
+            return received;
+        }
+
+        /** @return virtual time at which each of {@link #getReceived()} arrived */
+        public List<Long> getReceivedMicros() {
+            return receivedMicros;
+        }
+
+        /** @return messages reported {@link MeshRouter.DeliveryStatus#FAILED}, in order */
+        public List<DataTransferMessage> getFailed() {
+            return failed;
+        }
+
+        /** @return the destinations reported with {@link #getFailed()}, in order */
+        public List<Peer> getFailedDescs() {
+            return failedDescs;
+        }
+
+        /** @return number of DataTransferMessages this node has sent or forwarded */
+        public int getSentCount() {
+            return sentCount;
+        }
+
+        /** @return whether this node's graph holds every node in nodes */
+        public boolean knows(@NonNull Iterable<Node> nodes) {
+            for (Node node : nodes) {
+                if (!router.getGraph().getVertexList().containsKey(node.getMacAddress())) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void onDataReceived(@NonNull DataTransferMessage message, @NonNull Peer sender) {
+            received.add(message);
+            receivedMicros.add(nowMicros);
+        }
+
+        @Override
+        public void onDataSent(@NonNull DataTransferMessage message, @NonNull Peer recipient,
+                               @NonNull Peer desc, @NonNull MeshRouter.DeliveryStatus status,
+                               @Nullable Exception exception) {
+            if (status == MeshRouter.DeliveryStatus.FORWARDED) sentCount++;
+            else if (status == MeshRouter.DeliveryStatus.FAILED) {
+                failed.add(message);
+                failedDescs.add(desc);
+            }
+        }
+
+        /** Run delivery maintenance at its interval of virtual time while acks are awaited */
+        private void scheduleDeliveryMaintenance() {
+            if (deliveryMaintenanceScheduled) return;
+            deliveryMaintenanceScheduled = true;
+
+            schedule(MeshRouter.DELIVERY_MAINTENANCE_MILLIS * 1000, new Runnable() {
+                @Override
+                public void run() {
+                    deliveryMaintenanceScheduled = false;
+                    router.maintainDeliveries();
+                    if (router.hasPendingDeliveries()) scheduleDeliveryMaintenance();
+                }
+            });
+        }
+
+        /** Hand data that arrived from identifier to the transport, at once or at the end of the receive window */
+        private void receive(String identifier, byte[] data) {
+            if (receiveBatchMicros == 0) {
+                transport.dataReceived(identifier, data);
+                return;
+            }
+
+            if (pendingReceived.size() == 0) {
+                schedule(receiveBatchMicros, new Runnable() {
+                    @Override
+                    public void run() {
+                        // Chunks from nodes disconnected meanwhile are lost with the link
+                        for (int i = 0; i < pendingReceived.size(); i++) {
+                            if (links.containsKey(linkKey(getMacAddress(), pendingReceived.getIdentifier(i))))
+                                deliveredReceived.add(pendingReceived.getIdentifier(i), pendingReceived.getData(i));
+                        }
+                        pendingReceived.clear();
+
+                        receiveBatches++;
+                        transport.dataReceived(deliveredReceived);
+                        deliveredReceived.clear();
+                    }
+                });
+            }
+            pendingReceived.add(identifier, data);
+        }
+
+        @Override
+        public void onPeersUpdated(@NonNull Map<String, Peer> vertexes, boolean isJoin) {
+            // Tests inspect the graph directly
+        }
+
+        @Override
+        public void onNewLog(@NonNull String logText) {
+            // Logged via Timber by the router
+        }
+    }
+
+    /** A connection between two nodes. Replaced, not reused, on reconnection */
+    private static class Link {
+        final Node       central;
+        final Node       peripheral;
+        final LinkConfig config;
+
+        Link(Node central, Node peripheral, LinkConfig config) {
+            this.central    = central;
+            this.peripheral = peripheral;
+            this.config     = config;
+        }
+
+        Node other(Node node) {
+            return node == central ? peripheral : central;
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long     time;
+        final long     sequence;
+        final Runnable action;
+
+        Event(long time, long sequence, Runnable action) {
+            this.time     = time;
+            this.sequence = sequence;
+            this.action   = action;
+        }
+
+        @Override
+        public int compareTo(@NonNull Event another) {
+            if (time != another.time) return time < another.time ? -1 : 1;
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    private final Random                                 random;
+    private final PriorityQueue<Event>                   events        = new PriorityQueue<>();
+    private final LinkedHashMap<String, Node>            nodes         = new LinkedHashMap<>();
+    /** Transports are equal by transport code, so are mapped by identity */
+    private final IdentityHashMap<LoopbackTransport, Node> transportNodes = new IdentityHashMap<>();
+    private final HashMap<String, Link>                  links         = new HashMap<>();
+    private long                                         nowMicros;
+    private long                                         nextSequence;
+    private int                                          maxEvents     = DEFAULT_MAX_EVENTS;
+    private long                                         receiveBatchMicros;
+    /** Virtual time, for link state ages */
+    private final Clock                                  clock         = new Clock() {
+        @Override
+        public long elapsedMillis() {
+            return nowMicros / 1000;
+        }
+    };
+
+    private long bytesWritten;
+    private long writes;
+    private long lostWrites;
+    private long receiveBatches;
+
+    public MeshSimulator(long seed) {
+        random = new Random(seed);
+    }
+
+    // <editor-fold desc="Topology">
+
+    public Node addNode(@NonNull String alias) {
+        return addNode(alias, LoopbackTransport.DEFAULT_LONG_WRITE_BYTES);
+    }
+
+    /**
+     * @param longWriteBytes chunk size the node's session layer writes with
+     */
+    public Node addNode(@NonNull String alias, int longWriteBytes) {
+        int index = nodes.size();
+        String macAddress = String.format("02:00:00:%02X:%02X:%02X",
+                (index >> 16) & 0xFF, (index >> 8) & 0xFF, index & 0xFF);
+
+        Node node = new Node(alias, macAddress, longWriteBytes);
+        nodes.put(macAddress, node);
+        transportNodes.put(node.transport, node);
+        return node;
+    }
+
+    public List<Node> getNodes() {
+        return new ArrayList<>(nodes.values());
+    }
+
+    /**
+     * Connect central to peripheral now. The central identifies itself first, as a BLE central would.
+     */
+    public void connect(@NonNull final Node central, @NonNull final Node peripheral, @NonNull LinkConfig config) {
+        if (central == peripheral)
+            throw new IllegalArgumentException("Cannot connect a node to itself");
+        if (links.containsKey(linkKey(central, peripheral)))
+            throw new IllegalStateException(central.peer.getAlias() + " already connected to " + peripheral.peer.getAlias());
+
+        final Link link = new Link(central, peripheral, config);
+        links.put(linkKey(central, peripheral), link);
+
+        schedule(0, new Runnable() {
+            @Override
+            public void run() {
+                if (!isCurrent(link)) return;
+                if (link.config.mtuBytes != Integer.MAX_VALUE) {
+                    central.transport.mtuChanged(peripheral.getMacAddress(), link.config.mtuBytes);
+                    peripheral.transport.mtuChanged(central.getMacAddress(), link.config.mtuBytes);
+                }
+                central.transport.connected(peripheral.getMacAddress(), true, link.config.rssi);
+                peripheral.transport.connected(central.getMacAddress(), false, link.config.rssi);
+            }
+        });
+    }
+
+    /**
+     * Disconnect a from b now. Writes in flight over the link are lost.
+     */
+    public void disconnect(@NonNull Node a, @NonNull Node b) {
+        final Link link = links.remove(linkKey(a, b));
+        if (link == null) return;
+
+        schedule(0, new Runnable() {
+            @Override
+            public void run() {
+                link.central.transport.disconnected(link.peripheral.getMacAddress(), true);
+                link.peripheral.transport.disconnected(link.central.getMacAddress(), false);
+            }
+        });
+    }
+
+    public boolean isConnected(@NonNull Node a, @NonNull Node b) {
+        return links.containsKey(linkKey(a, b));
+    }
+
+    /**
+     * @return whether every node's graph holds every node. Assumes a connected topology
+     */
+    public boolean isConverged() {
+        for (Node node : nodes.values()) {
+            if (!node.knows(nodes.values())) return false;
+        }
+        return true;
+    }
+
+    // </editor-fold desc="Topology">
+
+    // <editor-fold desc="Event loop">
+
+    /** Run action delayMicros after the current virtual time */
+    public void schedule(long delayMicros, @NonNull Runnable action) {
+        events.add(new Event(nowMicros + delayMicros, nextSequence++, action));
+    }
+
+    /**
+     * Run events until none remain
+     *
+     * @throws IllegalStateException if {@link #setMaxEvents(int)} events run without the mesh going idle
+     */
+    public void runUntilIdle() {
+        int eventCount = 0;
+        Event event;
+        while ((event = events.poll()) != null) {
+            if (++eventCount > maxEvents)
+                throw new IllegalStateException("Mesh did not go idle within " + maxEvents + " events");
+
+            nowMicros = event.time;
+            event.action.run();
+        }
+    }
+
+    /**
+     * Run events scheduled within the next durationMicros, then advance the clock to its end
+     */
+    public void runFor(long durationMicros) {
+        long end = nowMicros + durationMicros;
+        while (events.size() > 0 && events.peek().time <= end) {
+            Event event = events.poll();
+            nowMicros = event.time;
+            event.action.run();
+        }
+        nowMicros = end;
+    }
+
+    public void setMaxEvents(int maxEvents) {
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * Gather the chunks arriving at a node within receiveBatchMicros of the first, and deliver
+     * them together as a BLE stack hands over the notifications of one connection event.
+     * 0, the default, delivers each chunk as it arrives
+     */
+    public void setReceiveBatchMicros(long receiveBatchMicros) {
+        if (receiveBatchMicros < 0)
+            throw new IllegalArgumentException("Receive batch window must not be negative");
+        this.receiveBatchMicros = receiveBatchMicros;
+    }
+
+    /** @return virtual time elapsed since construction */
+    public long getNowMicros() {
+        return nowMicros;
+    }
+
+    // </editor-fold desc="Event loop">
+
+    // <editor-fold desc="Statistics">
+
+    /** @return bytes handed to links by all nodes, including lost writes */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getLostWrites() {
+        return lostWrites;
+    }
+
+    /** @return batches delivered while {@link #setReceiveBatchMicros(long)} is set */
+    public long getReceiveBatches() {
+        return receiveBatches;
+    }
+
+    public void resetStatistics() {
+        bytesWritten   = 0;
+        writes         = 0;
+        lostWrites     = 0;
+        receiveBatches = 0;
+    }
+
+    // </editor-fold desc="Statistics">
+
+    // <editor-fold desc="LoopbackTransport.Medium">
+
+    @Override
+    public boolean write(@NonNull LoopbackTransport transport, @NonNull final String identifier, @NonNull final byte[] data) {
+        final Node from = transportNodes.get(transport);
+        final Link link = links.get(linkKey(from.getMacAddress(), identifier));
+        if (link == null || data.length > link.config.mtuBytes) return false;
+
+        final Node to = link.other(from);
+        writes++;
+        bytesWritten += data.length;
+
+        long transmitMicros = link.config.bytesPerSecond == 0 ? 0 :
+                (data.length * 1000L * 1000L) / link.config.bytesPerSecond;
+        final long arrivalMicros = transmitMicros + link.config.latencyMicros;
+        final boolean lost = random.nextDouble() < link.config.lossRate;
+
+        if (lost) {
+            lostWrites++;
+        } else if (!to.blackhole) {
+            schedule(arrivalMicros, new Runnable() {
+                @Override
+                public void run() {
+                    if (isCurrent(link)) to.receive(from.getMacAddress(), data);
+                }
+            });
+        }
+
+        // The write response takes another trip back over the link
+        schedule(arrivalMicros + link.config.latencyMicros, new Runnable() {
+            @Override
+            public void run() {
+                if (!isCurrent(link)) return;
+                from.transport.writeComplete(identifier, data,
+                        lost ? new IllegalStateException("Write to " + identifier + " lost") : null);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void disconnect(@NonNull LoopbackTransport transport, @NonNull String identifier) {
+        Node from = transportNodes.get(transport);
+        Node to   = nodes.get(identifier);
+        if (from != null && to != null) disconnect(from, to);
+    }
+
+    // </editor-fold desc="LoopbackTransport.Medium">
+
+    private boolean isCurrent(Link link) {
+        return links.get(linkKey(link.central, link.peripheral)) == link;
+    }
+
+    private static String linkKey(Node a, Node b) {
+        return linkKey(a.getMacAddress(), b.getMacAddress());
+    }
+
+    private static String linkKey(String a, String b) {
+        return a.compareTo(b) < 0 ? a + "-" + b : b + "-" + a;
+    }
+}
@@ -0,0 +1,81 @@
+package sword.blemesh.sdk.transport;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Chunks a {@link Transport} received from one or more identifiers, handed to the session layer
+ * together so that it processes them in one pass. See
+ * {@link Transport.TransportCallback#dataReceivedFromIdentifiers(Transport, ReceiveBatch)}
+ *
+ * Reused between batches. Not thread safe.
+ */
+public class ReceiveBatch {
+
+    private String[] identifiers;
+    private byte[][] chunks;
+    private int      size;
+    private long     bytes;
+
+    public ReceiveBatch() {
+        this(16);
+    }
+
+    public ReceiveBatch(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        identifiers = new String[capacity];
+        chunks      = new byte[capacity][];
+    }
+
+    /** Append data received from identifier. Chunks of one identifier must be added in order of arrival */
+    public void add(@NonNull String identifier, @NonNull byte[] data) {
+        if (size == chunks.length) {
+            identifiers = Arrays.copyOf(identifiers, size * 2);
+            chunks      = Arrays.copyOf(chunks, size * 2);
+        }
+        identifiers[size] = identifier;
+        chunks[size]      = data;
+        size++;
+        bytes += data.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getIdentifier(int index) {
+        checkIndex(index);
+        return identifiers[index];
+    }
+
+    public byte[] getData(int index) {
+        checkIndex(index);
+        return chunks[index];
+    }
+
+    /** @return bytes of all chunks in the batch */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** Empty the batch for reuse, releasing its chunks */
+    public void clear() {
+        Arrays.fill(identifiers, 0, size, null);
+        Arrays.fill(chunks, 0, size, null);
+        size  = 0;
+        bytes = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ReceiveBatch{" + size + " chunks, " + bytes + " bytes}";
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " of batch of " + size);
+    }
+}
@@ -0,0 +1,139 @@
+package sword.blemesh.sdk.transport;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import timber.log.Timber;
+
+/**
+ * Frames awaiting a write to each identifier of a link that takes one write at a time, as a
+ * GATT connection does. Frames are held by reference and written back to back, each as soon as
+ * the previous write completes.
+ *
+ * Writes are sent from the event loop while their completions arrive on a binder thread, so
+ * all state is guarded by one lock. Writes are never started while it is held.
+ */
+public class SerialWriteQueue {
+
+    public interface Writer {
+
+        /** @return whether identifier is connected, so that a write to it may start */
+        boolean isWritable(@NonNull String identifier);
+
+        /**
+         * Start writing frame to identifier. {@link #writeCompleted(String, boolean)} must
+         * be called once it completes
+         *
+         * @return false if the write did not start
+         */
+        boolean write(@NonNull byte[] frame, @NonNull String identifier);
+
+        /** A write of frame to identifier did not start. The frames queued behind it were dropped */
+        void writeFailed(@NonNull byte[] frame, @NonNull String identifier);
+    }
+
+    private final Writer writer;
+    private final Object lock = new Object();
+
+    // Guarded by lock
+    private final HashMap<String, ArrayDeque<byte[]>> queued  = new HashMap<>();
+    /** Identifiers with a write awaiting completion */
+    private final HashSet<String>                     writing = new HashSet<>();
+
+    public SerialWriteQueue(@NonNull Writer writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Write frame to identifier at once if nothing is outstanding or queued ahead of it,
+     * otherwise queue it
+     *
+     * @return false if identifier is not writable, in which case frame is written once
+     * {@link #flush(String)} is called, or the write did not start
+     */
+    public boolean send(@NonNull byte[] frame, @NonNull String identifier) {
+        synchronized (lock) {
+            boolean writable = writer.isWritable(identifier);
+            if (!writable || writing.contains(identifier) || getQueuedCount(identifier) > 0) {
+                ArrayDeque<byte[]> frames = queued.get(identifier);
+                if (frames == null) {
+                    frames = new ArrayDeque<>();
+                    queued.put(identifier, frames);
+                }
+                frames.add(frame);
+                return writable;
+            }
+            writing.add(identifier);
+        }
+        return start(frame, identifier);
+    }
+
+    /**
+     * The outstanding write to identifier completed. Starts the next queued frame, unless the
+     * write failed, in which case the frames queued behind it are dropped: they would arrive
+     * out of order
+     */
+    public void writeCompleted(@NonNull String identifier, boolean failed) {
+        byte[] next;
+        synchronized (lock) {
+            writing.remove(identifier);
+            ArrayDeque<byte[]> frames = queued.get(identifier);
+            if (failed && frames != null && !frames.isEmpty()) {
+                Timber.w("Dropping %d frames queued behind failed write to %s", frames.size(), identifier);
+                frames.clear();
+            }
+            next = takeNext(identifier);
+        }
+        if (next != null) start(next, identifier);
+    }
+
+    /** Start writing the frames queued for identifier, which became writable */
+    public void flush(@NonNull String identifier) {
+        byte[] next;
+        synchronized (lock) {
+            next = takeNext(identifier);
+        }
+        if (next != null) start(next, identifier);
+    }
+
+    /** Drop the frames queued for identifier, which disconnected, and forget its outstanding write */
+    public void clear(@NonNull String identifier) {
+        synchronized (lock) {
+            queued.remove(identifier);
+            writing.remove(identifier);
+        }
+    }
+
+    /** @return frames queued for identifier behind its outstanding write */
+    public int getQueuedCount(@NonNull String identifier) {
+        synchronized (lock) {
+            ArrayDeque<byte[]> frames = queued.get(identifier);
+            return frames == null ? 0 : frames.size();
+        }
+    }
+
+    /** @return the next frame for identifier, marking its write outstanding, or null if none may start */
+    private byte[] takeNext(String identifier) {
+        ArrayDeque<byte[]> frames = queued.get(identifier);
+        if (frames == null || writing.contains(identifier) || !writer.isWritable(identifier)) return null;
+
+        byte[] next = frames.poll();
+        if (next != null) writing.add(identifier);
+        return next;
+    }
+
+    private boolean start(byte[] frame, String identifier) {
+        if (writer.write(frame, identifier)) return true;
+
+        synchronized (lock) {
+            writing.remove(identifier);
+            ArrayDeque<byte[]> frames = queued.get(identifier);
+            if (frames != null) frames.clear();
+        }
+        writer.writeFailed(frame, identifier);
+        return false;
+    }
+}
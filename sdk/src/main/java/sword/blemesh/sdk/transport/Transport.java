@@ -27,6 +27,13 @@ public abstract class Transport implements Comparable<Transport> {
                                                byte[] data,
                                                String identifier);
 
+        /**
+         * Chunks received together, processed in one pass. batch is reused by the transport
+         * once this returns
+         */
+        public void dataReceivedFromIdentifiers(Transport transport,
+                                                ReceiveBatch batch);
+
         public void dataSentToIdentifier(Transport transport,
                                          byte[] data,
                                          String identifier,
@@ -78,8 +85,17 @@ public abstract class Transport implements Comparable<Transport> {
     public abstract int getTransportCode();
 
 
+    /** @return the largest chunk the session layer should hand to a single write */
     public abstract int getLongWriteBytes();
 
+    /**
+     * @return the largest chunk the session layer should hand to a single write to identifier,
+     * which may depend on what its link negotiated. {@link #getLongWriteBytes()} by default
+     */
+    public int getLongWriteBytes(String identifier) {
+        return getLongWriteBytes();
+    }
+
     @Override
     public int compareTo(@NonNull Transport another) {
         return getLongWriteBytes() - another.getLongWriteBytes();
@@ -57,6 +57,16 @@ public class BLEGattClients implements BLECentral.CentralCallback, BLEGattServer
      */
     private final Set<String> peripheralReceivedDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
+    /**
+     * Peripheral MAC Address -> ATT MTU negotiated. Read by the transport off the GATT callback thread
+     */
+    private final ConcurrentHashMap<String, Integer> negotiatedMtus = new ConcurrentHashMap<>();
+
+    /**
+     * Peripherals that failed a prepared write, so are sent no more
+     */
+    private final Set<String> longWriteRefusedDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     private Context context;
     private UUID serviceUUID;
     private BLETransportCallback transportCallback;
@@ -127,6 +137,8 @@ public class BLEGattClients implements BLECentral.CentralCallback, BLEGattServer
 
                             connectedDevices.remove(gatt.getDevice().getAddress());
                             centralScannedDevices.remove(gatt.getDevice().getAddress());
+                            negotiatedMtus.remove(gatt.getDevice().getAddress());
+                            longWriteRefusedDevices.remove(gatt.getDevice().getAddress());
 
                             characteristicSet = discoveredCharacteristics.get(gatt.getDevice().getAddress());
                             if (characteristicSet != null) { // Have we handled unsubscription on DISCONNECTING?
@@ -145,6 +157,12 @@ public class BLEGattClients implements BLECentral.CentralCallback, BLEGattServer
                             break;
 
                         case BluetoothProfile.STATE_CONNECTED:
+                            // Services are discovered once the MTU is settled, see onMtuChanged
+                            if (gatt.requestMtu(BLETransport.REQUESTED_MTU_BYTES)) {
+                                Timber.d("Connected to %s. Requesting MTU %d", gatt.getDevice().getAddress(),
+                                        BLETransport.REQUESTED_MTU_BYTES);
+                                break;
+                            }
                             boolean discovering = gatt.discoverServices();
                             Timber.d("Connected to %s. Discovering services %b", gatt.getDevice().getAddress(), discovering);
                             break;
@@ -160,6 +178,15 @@ public class BLEGattClients implements BLECentral.CentralCallback, BLEGattServer
                         mtu,
                         gatt.getDevice().getAddress(),
                         status == BluetoothGatt.GATT_SUCCESS);
+
+                String address = gatt.getDevice().getAddress();
+                // Without a negotiated MTU the link keeps the default one
+                negotiatedMtus.put(address, status == BluetoothGatt.GATT_SUCCESS ? mtu : BLETransport.DEFAULT_ATT_MTU_BYTES);
+
+                if (!discoveredCharacteristics.containsKey(address)) {
+                    boolean discovering = gatt.discoverServices();
+                    Timber.d("Discovering services of %s %b", address, discovering);
+                }
             }
 
             @Override
@@ -263,6 +290,13 @@ public class BLEGattClients implements BLECentral.CentralCallback, BLEGattServer
                     String msg = "Write was not successful with code " + status;
                     Timber.w(msg);
                     exception = new UnknownServiceException(msg);
+
+                    // A value longer than a packet went as a prepared write, which the peer may not support
+                    int mtu = getMtu(gatt.getDevice().getAddress());
+                    if (mtu == 0) mtu = BLETransport.DEFAULT_ATT_MTU_BYTES;
+                    if (characteristic.getValue().length > mtu - BLETransport.ATT_WRITE_HEADER_BYTES
+                            && longWriteRefusedDevices.add(gatt.getDevice().getAddress()))
+                        Timber.w("Sending %s no more prepared writes", gatt.getDevice().getAddress());
                 }
 
                 if (transportCallback != null)
@@ -358,6 +392,21 @@ public class BLEGattClients implements BLECentral.CentralCallback, BLEGattServer
     public boolean isConnectedTo(String deviceAddress) {
         return connectedDevices.containsKey(deviceAddress);
     }
+
+    /**
+     * @return the ATT MTU negotiated with deviceAddress, or 0 if negotiation has not completed
+     */
+    public int getMtu(String deviceAddress) {
+        Integer mtu = negotiatedMtus.get(deviceAddress);
+        return mtu == null ? 0 : mtu;
+    }
+
+    /**
+     * @return whether a prepared write to deviceAddress failed, so that writes to it must fit a packet
+     */
+    public boolean isLongWriteRefused(String deviceAddress) {
+        return longWriteRefusedDevices.contains(deviceAddress);
+    }
 //</editor-fold>
 
     // <editor-fold desc="Private API">
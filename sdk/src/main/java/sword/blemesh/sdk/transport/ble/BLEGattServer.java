@@ -10,6 +10,7 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
@@ -18,6 +19,7 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import timber.log.Timber;
 
@@ -37,6 +39,10 @@ public class BLEGattServer {
      */
     private BiMap<String, BluetoothDevice> connectedDevices = HashBiMap.create();
     private BiMap<String, byte[]> receivedDatas = HashBiMap.create();
+    /**
+     * Central MAC Address -> ATT MTU it negotiated. Read by the transport off the GATT callback thread
+     */
+    private final ConcurrentHashMap<String, Integer> negotiatedMtus = new ConcurrentHashMap<>();
 
     private Context context;
     private UUID serviceUUID;
@@ -76,6 +82,15 @@ public class BLEGattServer {
         return gattServer;
     }
 
+    /**
+     * @return the ATT MTU a connected central negotiated, or 0 if negotiation has not completed.
+     * Before API 22 the server is not told, so centrals are taken to keep {@link BLETransport#DEFAULT_ATT_MTU_BYTES}
+     */
+    public int getMtu(String deviceAddress) {
+        Integer mtu = negotiatedMtus.get(deviceAddress);
+        return mtu == null ? 0 : mtu;
+    }
+
     private void startGattServer() {
         BluetoothManager manager = BLEUtil.getManager(context);
         if (gattServerCallback == null)
@@ -93,6 +108,8 @@ public class BLEGattServer {
                             // Allow connection to proceed. Mark device connected
                             Timber.d("Accepted connection to " + device.getAddress());
                             connectedDevices.put(device.getAddress(), device);
+                            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1)
+                                negotiatedMtus.put(device.getAddress(), BLETransport.DEFAULT_ATT_MTU_BYTES);
                             mServerCallback.onConnectionStateChange(device, newState);
                         }
                     } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
@@ -100,6 +117,7 @@ public class BLEGattServer {
                         Timber.d("Disconnected from " + device.getAddress());
                         connectedDevices.remove(device.getAddress());
                         receivedDatas.remove(device.getAddress());
+                        negotiatedMtus.remove(device.getAddress());
                         //TODO:
                         mServerCallback.onConnectionStateChange(device, newState);
                     }
@@ -191,6 +209,13 @@ public class BLEGattServer {
                 public void onNotificationSent(BluetoothDevice device, int status) {
                     Timber.d("onNotificationSent");
                 }
+
+                /** Called from API 22 only */
+                @Override
+                public void onMtuChanged(BluetoothDevice device, int mtu) {
+                    Timber.d("Central %s negotiated MTU %d bytes", device.getAddress(), mtu);
+                    negotiatedMtus.put(device.getAddress(), mtu);
+                }
             };
 
         Timber.d("Start opening GATT Server");
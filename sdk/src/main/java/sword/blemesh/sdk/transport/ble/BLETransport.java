@@ -12,14 +12,12 @@ import android.widget.Toast;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 
-import java.io.ByteArrayOutputStream;
-import java.util.ArrayDeque;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import sword.blemesh.sdk.R;
+import sword.blemesh.sdk.transport.SerialWriteQueue;
 import sword.blemesh.sdk.transport.Transport;
 import timber.log.Timber;
 
@@ -34,8 +32,9 @@ import timber.log.Timber;
  */
 
 /**
- * Every Identifier gets a ByteBuffer that all outgoing data gets copied to, and
- * is read from in DEFAULT_MTU_BYTES increments for the actual sendData call.
+ * The session layer sizes each frame to {@link #getLongWriteBytes(String)}, so every frame is
+ * handed to the GATT layer as it is, in one write. A connection takes one write at a time, so
+ * frames sent while a write is outstanding wait in a {@link SerialWriteQueue}, by reference.
  *
  * *** THOUGHTS ***
  *
@@ -62,14 +61,50 @@ public class BLETransport extends Transport implements BLETransportCallback {
     @Deprecated
     public static final int DEFAULT_MTU_BYTES = 155;
 
+    /** ATT MTU requested on connection, leaving room for a whole attribute value per packet */
+    public static final int REQUESTED_MTU_BYTES = 517;
+
+    /** ATT MTU of a link that did not negotiate one */
+    public static final int DEFAULT_ATT_MTU_BYTES = 23;
+
+    /** Bytes of each ATT write packet taken by its opcode and attribute handle */
+    public static final int ATT_WRITE_HEADER_BYTES = 3;
+
+    /** Largest attribute value, so largest write */
+    public static final int MAX_ATTRIBUTE_BYTES = 512;
+
     public static final int TRANSPORT_CODE = 1;
     public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     private final UUID serviceUUID;
     private final UUID dataUUID = UUID.fromString("72A7700C-859D-4317-9E35-D7F5A93005B1");
 
-    /** Identifier -> Queue of outgoing buffers */
-    private HashMap<String, ArrayDeque<byte[]>> outBuffers = new HashMap<>();
+    /** Frames awaiting a GATT write. Sent on the event loop, completed on a binder thread */
+    private final SerialWriteQueue writeQueue = new SerialWriteQueue(new SerialWriteQueue.Writer() {
+        @Override
+        public boolean isWritable(@NonNull String identifier) {
+            return gattClients.isConnectedTo(identifier);
+        }
+
+        @Override
+        public boolean write(@NonNull byte[] frame, @NonNull String identifier) {
+            // The GATT layer keeps a reference to frame rather than a copy
+            if (gattClients.write(frame, dataCharacteristic.getUuid(), identifier)) {
+                Timber.d("Sent %d byte chunk to %s. %d more chunks in queue", frame.length, identifier,
+                        writeQueue.getQueuedCount(identifier));
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void writeFailed(@NonNull byte[] frame, @NonNull String identifier) {
+            Timber.w("Failed to send %d bytes to %s, dropping it", frame.length, identifier);
+            if (callback.get() != null)
+                callback.get().dataSentToIdentifier(BLETransport.this, frame, identifier,
+                        new IllegalStateException("Failed to write to " + identifier));
+        }
+    });
 
     private final BluetoothGattCharacteristic dataCharacteristic
             = new BluetoothGattCharacteristic(dataUUID,
@@ -150,15 +185,20 @@ public class BLETransport extends Transport implements BLETransportCallback {
         return didSendAll;
     }
 
+    /**
+     * Write data to identifier, or queue it behind the outstanding write. Queued frames are
+     * written back to back, each as soon as the previous write completes, so callers may send
+     * several frames ahead. data should not exceed {@link #getLongWriteBytes(String)}
+     *
+     * @return false if the data could not be queued or written
+     */
     @Override
     public boolean sendData(@NonNull byte[] data, String identifier) {
+        if (data.length > getLongWriteBytes(identifier))
+            Timber.w("%d byte frame exceeds the %d bytes written to %s at once", data.length,
+                     getLongWriteBytes(identifier), identifier);
 
-        queueOutgoingData(data, identifier);
-
-        if (gattClients.isConnectedTo(identifier))
-            return transmitOutgoingDataForConnectedPeer(identifier);
-
-        return false;
+        return writeQueue.send(data, identifier);
     }
 
     /**
@@ -209,6 +249,33 @@ public class BLETransport extends Transport implements BLETransportCallback {
         return DEFAULT_LONG_WRITE_BYTES;
     }
 
+    /**
+     * Writes to a peer that negotiated an MTU fill one packet of it, up to a whole attribute
+     * value once {@link #REQUESTED_MTU_BYTES} was granted. Peers granting less get writes of a
+     * packet rather than prepared writes fragmented over several, which older stacks handle poorly.
+     *
+     * Frames to every peer go as GATT client writes, to a central over the connection made back
+     * to it. The MTU is the one this client negotiated, or else the one a central negotiated with
+     * the local GATT server, see {@link BLEGattServer#getMtu(String)}.
+     * Until the MTU is known, long writes are used unless one to identifier failed
+     */
+    @Override
+    public int getLongWriteBytes(String identifier) {
+        int mtu = gattClients.getMtu(identifier);
+        if (mtu == 0) mtu = gattServer.getMtu(identifier);
+        return getWriteBytes(mtu, !gattClients.isLongWriteRefused(identifier));
+    }
+
+    /**
+     * @param attMtu     the ATT MTU negotiated with a peer, or 0 if not known
+     * @param longWrites whether the peer accepts prepared writes
+     * @return the largest write to the peer
+     */
+    static int getWriteBytes(int attMtu, boolean longWrites) {
+        if (attMtu > 0) return Math.min(attMtu - ATT_WRITE_HEADER_BYTES, MAX_ATTRIBUTE_BYTES);
+        return longWrites ? DEFAULT_LONG_WRITE_BYTES : DEFAULT_ATT_MTU_BYTES - ATT_WRITE_HEADER_BYTES;
+    }
+
     // </editor-fold desc="Transport">
 
     // <editor-fold desc="BLETransportCallback">
@@ -222,6 +289,9 @@ public class BLETransport extends Transport implements BLETransportCallback {
     @Override
     public void dataSentToIdentifier(DeviceType deviceType, byte[] data, String identifier, Exception exception) {
         Timber.d("Got receipt for %d sent bytes", data.length);
+        // Start on the next queued chunk without waiting for the session layer to queue more.
+        // Chunks queued behind a failed write are dropped. The session layer resends them
+        writeQueue.writeCompleted(identifier, exception != null);
 
         if (callback.get() != null)
             callback.get().dataSentToIdentifier(this, data, identifier, exception);
@@ -245,65 +315,13 @@ public class BLETransport extends Transport implements BLETransportCallback {
 
         //TODO: does it needed?
         if (status == ConnectionStatus.CONNECTED)
-            transmitOutgoingDataForConnectedPeer(identifier);
+            writeQueue.flush(identifier);
+        else if (status == ConnectionStatus.DISCONNECTED)
+            writeQueue.clear(identifier);
     }
 
     // </editor-fold desc="BLETransportCallback">
 
-    /**
-     * Queue data for transmission to identifier
-     */
-    private void queueOutgoingData(byte[] data, String identifier) {
-        if (!outBuffers.containsKey(identifier)) {
-            outBuffers.put(identifier, new ArrayDeque<byte[]>());
-        }
-
-        int longWriteBytes = getLongWriteBytes();
-
-        int readIdx = 0;
-        while (readIdx < data.length) {
-
-            if (data.length - readIdx > longWriteBytes) {
-                ByteArrayOutputStream bos = new ByteArrayOutputStream(longWriteBytes);
-                bos.write(data, readIdx, longWriteBytes);
-                Timber.d("Adding %d byte chunk to queue", bos.size());
-                outBuffers.get(identifier).add(bos.toByteArray());
-                readIdx += longWriteBytes;
-            } else {
-                Timber.d("Adding %d byte chunk to queue", data.length);
-                outBuffers.get(identifier).add(data);
-                break;
-            }
-        }
-    }
-
-    // TODO: Don't think the boolean return type is meaningful here as partial success can't be handled
-    private boolean transmitOutgoingDataForConnectedPeer(String identifier) {
-        if (!outBuffers.containsKey(identifier)) return false;
-
-        byte[] toSend;
-        boolean didSendAll = true;
-        while ((toSend = outBuffers.get(identifier).peek()) != null) {
-            boolean didSend = false;
-            if (gattClients.isConnectedTo(identifier)) {
-                didSend = gattClients.write(toSend, dataCharacteristic.getUuid(), identifier);
-            }
-
-            //Whatever sent successful or failed, both drop this data.
-            //If failed, sessionMessageSerializer will queue this data again so don't worry
-            outBuffers.get(identifier).poll();
-            if (didSend) {
-                Timber.d("Sent %d byte chunk to %s. %d more chunks in queue", toSend.length, identifier, outBuffers.get(identifier).size());
-            } else {
-                Timber.w("Failed to send %d bytes to %s, drop it and now %s chunks in queue", toSend.length, identifier,outBuffers.get(identifier).size());
-                didSendAll = false;
-                break;
-            }
-            break; // For now, only attempt one data chunk at a time. Wait delivery before proceeding
-        }
-        return didSendAll;
-    }
-
     private static boolean isLollipop() {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
     }
@@ -0,0 +1,244 @@
+package sword.blemesh.sdk.transport.loopback;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import sword.blemesh.sdk.transport.ReceiveBatch;
+import sword.blemesh.sdk.transport.Transport;
+import timber.log.Timber;
+
+/**
+ * An in-memory {@link Transport} whose writes are carried by a {@link Medium} rather than a radio.
+ *
+ * Like {@link sword.blemesh.sdk.transport.ble.BLETransport}, data sent to an identifier is queued
+ * and written one chunk at a time, each write starting once the previous is reported complete.
+ * Identifiers are the remote peer's mac address. Chunks to an identifier whose link reported an
+ * MTU via {@link #mtuChanged(String, int)} are sized to fit it.
+ *
+ * The medium reports connection changes, incoming data and write completion via
+ * {@link #connected(String, boolean, int)}, {@link #disconnected(String, boolean)},
+ * {@link #dataReceived(String, byte[])} or {@link #dataReceived(ReceiveBatch)}, and
+ * {@link #writeComplete(String, byte[], Exception)}.
+ */
+public class LoopbackTransport extends Transport {
+
+    public static final int TRANSPORT_CODE = 2;
+
+    public static final int DEFAULT_LONG_WRITE_BYTES = 512;
+
+    /**
+     * Carries writes between LoopbackTransports. e.g: {@link sword.blemesh.sdk.simulator.MeshSimulator}
+     */
+    public interface Medium {
+
+        /**
+         * Begin writing data from transport to identifier. Unless this returns false,
+         * the medium must eventually call {@link #writeComplete(String, byte[], Exception)} on transport.
+         *
+         * @return false if the write could not be started
+         */
+        boolean write(@NonNull LoopbackTransport transport, @NonNull String identifier, @NonNull byte[] data);
+
+        /** Request disconnection of transport from identifier */
+        void disconnect(@NonNull LoopbackTransport transport, @NonNull String identifier);
+    }
+
+    private final Medium                             medium;
+    private final int                                longWriteBytes;
+    private final HashMap<String, ArrayDeque<byte[]>> outBuffers          = new HashMap<>();
+    private final Set<String>                        connectedIdentifiers = new HashSet<>();
+    private final Set<String>                        writingIdentifiers   = new HashSet<>();
+    private final HashMap<String, Integer>           identifierMtus       = new HashMap<>();
+
+    public LoopbackTransport(@NonNull String serviceName,
+                             @Nullable TransportCallback callback,
+                             @NonNull Medium medium) {
+        this(serviceName, callback, medium, DEFAULT_LONG_WRITE_BYTES);
+    }
+
+    /**
+     * @param longWriteBytes the largest chunk the session layer should hand to a single write
+     */
+    public LoopbackTransport(@NonNull String serviceName,
+                             @Nullable TransportCallback callback,
+                             @NonNull Medium medium,
+                             int longWriteBytes) {
+        super(serviceName, callback);
+
+        if (longWriteBytes < 1)
+            throw new IllegalArgumentException("longWriteBytes must be positive");
+
+        this.medium         = medium;
+        this.longWriteBytes = longWriteBytes;
+    }
+
+    // <editor-fold desc="Transport">
+
+    @Override
+    public boolean sendData(byte[] data, Set<String> identifiers) {
+        boolean didSendAll = true;
+
+        for (String identifier : identifiers) {
+            boolean didSend = sendData(data, identifier);
+
+            if (!didSend) didSendAll = false;
+        }
+        return didSendAll;
+    }
+
+    /**
+     * Queue data for identifier. Queued chunks are written back to back.
+     *
+     * @return false if identifier is not connected or the write could not be started
+     */
+    @Override
+    public boolean sendData(@NonNull byte[] data, String identifier) {
+        if (!outBuffers.containsKey(identifier))
+            outBuffers.put(identifier, new ArrayDeque<byte[]>());
+
+        outBuffers.get(identifier).add(data);
+
+        if (connectedIdentifiers.contains(identifier))
+            return transmitOutgoingData(identifier);
+
+        return false;
+    }
+
+    @Override
+    public void start() {
+        // Connections are established by the medium
+    }
+
+    @Override
+    public void advertise() {
+        // Connections are established by the medium
+    }
+
+    @Override
+    public void scanForPeers() {
+        // Connections are established by the medium
+    }
+
+    @Override
+    public void stop() {
+        for (String identifier : new HashSet<>(connectedIdentifiers))
+            medium.disconnect(this, identifier);
+    }
+
+    @Override
+    public int getTransportCode() {
+        return TRANSPORT_CODE;
+    }
+
+    @Override
+    public int getLongWriteBytes() {
+        return longWriteBytes;
+    }
+
+    @Override
+    public int getLongWriteBytes(String identifier) {
+        Integer mtuBytes = identifierMtus.get(identifier);
+        return mtuBytes == null ? longWriteBytes : Math.min(longWriteBytes, mtuBytes);
+    }
+
+    // </editor-fold desc="Transport">
+
+    // <editor-fold desc="Medium events">
+
+    /**
+     * @param peerIsHost whether the remote peer accepted this connection. Only the side
+     *                   connecting to a host initiates identification
+     * @param rssi       signal strength of the connection, as a negative dBm value
+     */
+    public void connected(@NonNull String identifier, boolean peerIsHost, int rssi) {
+        connectedIdentifiers.add(identifier);
+
+        Map<String, Object> extraInfo = new HashMap<>();
+        extraInfo.put("rssi", rssi);
+
+        TransportCallback callback = getCallback();
+        if (callback != null)
+            callback.identifierUpdated(this, identifier, ConnectionStatus.CONNECTED, peerIsHost, extraInfo);
+
+        transmitOutgoingData(identifier);
+    }
+
+    /** The link to identifier negotiated writes of up to mtuBytes */
+    public void mtuChanged(@NonNull String identifier, int mtuBytes) {
+        if (mtuBytes < 1)
+            throw new IllegalArgumentException("MTU must be positive");
+
+        Timber.d("MTU of %d bytes for %s", mtuBytes, identifier);
+        identifierMtus.put(identifier, mtuBytes);
+    }
+
+    public void disconnected(@NonNull String identifier, boolean peerIsHost) {
+        connectedIdentifiers.remove(identifier);
+        identifierMtus.remove(identifier);
+        outBuffers.remove(identifier);
+        writingIdentifiers.remove(identifier);
+
+        TransportCallback callback = getCallback();
+        if (callback != null)
+            callback.identifierUpdated(this, identifier, ConnectionStatus.DISCONNECTED, peerIsHost, null);
+    }
+
+    public void dataReceived(@NonNull String identifier, @NonNull byte[] data) {
+        TransportCallback callback = getCallback();
+        if (callback != null)
+            callback.dataReceivedFromIdentifier(this, data, identifier);
+    }
+
+    /** Report chunks that arrived together, such as within one connection event */
+    public void dataReceived(@NonNull ReceiveBatch batch) {
+        TransportCallback callback = getCallback();
+        if (callback != null)
+            callback.dataReceivedFromIdentifiers(this, batch);
+    }
+
+    /**
+     * Report completion of a write started via {@link Medium#write(LoopbackTransport, String, byte[])}
+     *
+     * @param exception non-null if data was not delivered. Chunks queued behind data are
+     *                  discarded, as the session layer resends them in order
+     */
+    public void writeComplete(@NonNull String identifier, @NonNull byte[] data, @Nullable Exception exception) {
+        writingIdentifiers.remove(identifier);
+        if (exception != null) outBuffers.remove(identifier);
+
+        TransportCallback callback = getCallback();
+        if (callback != null)
+            callback.dataSentToIdentifier(this, data, identifier, exception);
+
+        transmitOutgoingData(identifier);
+    }
+
+    // </editor-fold desc="Medium events">
+
+    /**
+     * Write the next queued chunk for identifier, unless a write is already outstanding.
+     * A write the medium refuses is dropped and reported failed, so that the session layer may queue it again.
+     *
+     * @return false if a write was attempted and failed
+     */
+    private boolean transmitOutgoingData(String identifier) {
+        if (!connectedIdentifiers.contains(identifier) || writingIdentifiers.contains(identifier)) return true;
+
+        ArrayDeque<byte[]> outBuffer = outBuffers.get(identifier);
+        byte[] toSend = outBuffer == null ? null : outBuffer.poll();
+        if (toSend == null) return true;
+
+        writingIdentifiers.add(identifier);
+        if (medium.write(this, identifier, toSend)) return true;
+
+        Timber.w("Failed to send %d bytes to %s, drop it", toSend.length, identifier);
+        writeComplete(identifier, toSend, new IllegalStateException("Failed to write to " + identifier));
+        return false;
+    }
+}
@@ -0,0 +1,172 @@
+package sword.blemesh.sdk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link MeshEventLoop} runs events on its own thread in the order they were posted
+ */
+public class MeshEventLoopTest {
+
+    @Test
+    public void events_of_each_producer_run_in_order_on_the_loop() throws Exception {
+        final MeshEventLoop loop = new MeshEventLoop("test");
+        loop.start();
+
+        final int producers = 4;
+        final int perProducer = 5000;
+        final List<Integer> ran = new ArrayList<>();
+        final List<Boolean> onLoop = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(producers * perProducer);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        final int event = producer * perProducer + i;
+                        loop.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Unsynchronized, as only the loop thread touches these
+                                ran.add(event);
+                                if (!loop.isLoopThread()) onLoop.add(false);
+                                done.countDown();
+                            }
+                        });
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        loop.quit();
+
+        assertTrue(onLoop.isEmpty());
+        assertEquals(producers * perProducer, ran.size());
+        int[] last = new int[producers];
+        for (int p = 0; p < producers; p++) last[p] = -1;
+        for (int event : ran) {
+            int producer = event / perProducer;
+            assertTrue(event % perProducer > last[producer]);
+            last[producer] = event % perProducer;
+        }
+        assertTrue(loop.getTicks() <= loop.getEvents());
+    }
+
+    @Test
+    public void delayed_events_run_once_due_unless_removed() throws Exception {
+        MeshEventLoop loop = new MeshEventLoop("test");
+        loop.start();
+
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        Runnable removed = new Runnable() {
+            @Override
+            public void run() {
+                ran.add("removed");
+            }
+        };
+        loop.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                ran.add("late");
+                done.countDown();
+            }
+        }, 60);
+        loop.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                ran.add("early");
+            }
+        }, 20);
+        loop.postDelayed(removed, 40);
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                ran.add("now");
+            }
+        });
+        loop.removeCallbacks(removed);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        loop.quit();
+        assertEquals(3, ran.size());
+        assertEquals("now", ran.get(0));
+        assertEquals("early", ran.get(1));
+        assertEquals("late", ran.get(2));
+    }
+
+    @Test
+    public void throwing_events_do_not_stop_the_loop() throws Exception {
+        MeshEventLoop loop = new MeshEventLoop("test");
+        loop.start();
+
+        final CountDownLatch done = new CountDownLatch(2);
+        Runnable failing = new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Handler failed");
+            }
+        };
+        Runnable counting = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        loop.post(failing);
+        loop.post(counting);
+        loop.postDelayed(failing, 10);
+        loop.postDelayed(counting, 20);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        loop.quit();
+    }
+
+    @Test
+    public void quit_runs_events_posted_before_it() throws Exception {
+        final MeshEventLoop loop = new MeshEventLoop("test");
+        final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+        for (int i = 0; i < 3 * MeshEventLoop.MAX_EVENTS_PER_TICK; i++) {
+            final int event = i;
+            loop.post(new Runnable() {
+                @Override
+                public void run() {
+                    ran.add(event);
+                }
+            });
+        }
+        loop.quit();
+        loop.post(new Runnable() {
+            @Override
+            public void run() {
+                ran.add(-1);
+            }
+        });
+        loop.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ran.size() < 3 * MeshEventLoop.MAX_EVENTS_PER_TICK && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        Thread.sleep(50);
+        assertEquals(3 * MeshEventLoop.MAX_EVENTS_PER_TICK, ran.size());
+        assertFalse(ran.contains(-1));
+        assertTrue(loop.getTicks() >= 3);
+
+        try {
+            loop.start();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
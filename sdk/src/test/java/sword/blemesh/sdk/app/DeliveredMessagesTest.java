@@ -0,0 +1,70 @@
+package sword.blemesh.sdk.app;
+
+import org.junit.Test;
+
+import sword.blemesh.sdk.Clock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exactness, expiry and capacity of {@link DeliveredMessages}
+ */
+public class DeliveredMessagesTest {
+
+    private static final String A = "02:00:00:00:00:01";
+    private static final String B = "02:00:00:00:00:02";
+
+    private long now;
+
+    private final Clock clock = new Clock() {
+        @Override
+        public long elapsedMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void many_deliveries_are_never_mistaken_for_copies() throws Exception {
+        DeliveredMessages delivered = new DeliveredMessages();
+        delivered.setClock(clock);
+
+        int perSource = DeliveredMessages.DEFAULT_CAPACITY / 2;
+        for (long id = 0; id < perSource; id++) {
+            assertFalse(delivered.checkAndAdd(A, id));
+            assertFalse(delivered.checkAndAdd(B, id));
+        }
+        for (long id = 0; id < perSource; id++) {
+            assertTrue(delivered.checkAndAdd(A, id));
+            assertTrue(delivered.checkAndAdd(B, id));
+        }
+    }
+
+    @Test
+    public void copies_are_recognised_until_a_held_retransmission_could_arrive() throws Exception {
+        DeliveredMessages delivered = new DeliveredMessages();
+        delivered.setClock(clock);
+        assertTrue(DeliveredMessages.DEFAULT_EXPIRY_MILLIS > StoreAndForwardQueue.DEFAULT_TTL_MILLIS +
+                (DeliveryTracker.DEFAULT_MAX_ATTEMPTS - 1) * DeliveryTracker.MAX_TIMEOUT_MILLIS);
+
+        assertFalse(delivered.checkAndAdd(A, 7));
+        now = DeliveredMessages.DEFAULT_EXPIRY_MILLIS - 1;
+        assertTrue(delivered.checkAndAdd(A, 7));
+
+        now = DeliveredMessages.DEFAULT_EXPIRY_MILLIS;
+        assertFalse(delivered.checkAndAdd(B, 7));
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void oldest_deliveries_are_forgotten_over_capacity() throws Exception {
+        DeliveredMessages delivered = new DeliveredMessages(1000, 2);
+        delivered.setClock(clock);
+
+        assertFalse(delivered.checkAndAdd(A, 1));
+        assertFalse(delivered.checkAndAdd(A, 2));
+        assertFalse(delivered.checkAndAdd(A, 3));
+        assertEquals(2, delivered.size());
+        assertTrue(delivered.checkAndAdd(A, 3));
+        assertFalse(delivered.checkAndAdd(A, 1));
+    }
+}
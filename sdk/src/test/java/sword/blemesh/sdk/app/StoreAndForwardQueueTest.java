@@ -0,0 +1,109 @@
+package sword.blemesh.sdk.app;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+import sword.blemesh.sdk.Clock;
+import sword.blemesh.sdk.mesh_graph.Peer;
+import sword.blemesh.sdk.session.DataTransferMessage;
+
+import static org.junit.Assert.*;
+
+/**
+ * Expiry, capacity and persistence of {@link StoreAndForwardQueue}
+ */
+public class StoreAndForwardQueueTest {
+
+    private static final String SOURCE = "02:00:00:00:00:00";
+    private static final String A      = "02:00:00:00:00:01";
+    private static final String B      = "02:00:00:00:00:02";
+
+    private long now;
+
+    private final Clock clock = new Clock() {
+        @Override
+        public long elapsedMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void messages_are_taken_by_destination_until_they_expire() throws Exception {
+        StoreAndForwardQueue queue = new StoreAndForwardQueue(1000, 1024 * 1024, 10);
+        queue.setClock(clock);
+        DataTransferMessage first = message(A, 10);
+        queue.store(first);
+        now = 500;
+        DataTransferMessage second = message(A, 20);
+        queue.store(second);
+        queue.store(message(B, 30));
+        assertEquals(3, queue.size());
+
+        now = 1000;
+        List<DataTransferMessage> taken = queue.take(A);
+        assertEquals(1, taken.size());
+        assertSame(second, taken.get(0));
+        assertEquals(1, queue.size());
+
+        now = 1500;
+        assertEquals(1, queue.expire().size());
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.getStoredBytes());
+    }
+
+    @Test
+    public void oldest_messages_make_room() throws Exception {
+        DataTransferMessage first = message(A, 100);
+        StoreAndForwardQueue queue = new StoreAndForwardQueue(1000, 2 * first.getTotalLengthBytes(), 10);
+        queue.setClock(clock);
+
+        assertTrue(queue.store(first).isEmpty());
+        now = 1;
+        assertTrue(queue.store(message(B, 100)).isEmpty());
+        now = 2;
+        List<DataTransferMessage> dropped = queue.store(message(A, 100));
+        assertEquals(1, dropped.size());
+        assertSame(first, dropped.get(0));
+        assertEquals(2, queue.size());
+
+        DataTransferMessage tooLarge = message(B, 1000);
+        assertSame(tooLarge, queue.store(tooLarge).get(0));
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void held_messages_survive_restart() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "store_and_forward_" + System.nanoTime());
+        try {
+            StoreAndForwardQueue queue = new StoreAndForwardQueue();
+            queue.setDirectory(directory);
+            DataTransferMessage message = message(A, 300);
+            queue.store(message);
+            queue.store(message(B, 5));
+            queue.take(B);
+
+            StoreAndForwardQueue restarted = new StoreAndForwardQueue();
+            restarted.setDirectory(directory);
+            assertEquals(1, restarted.size());
+            DataTransferMessage read = restarted.take(A).get(0);
+            assertEquals(message.getID(), read.getID());
+            assertEquals(message.getTTL(), read.getTTL());
+            assertArrayEquals(message.getBodyAtOffset(0, 300), read.getBodyAtOffset(0, 300));
+
+            assertEquals(0, directory.listFiles().length);
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) for (File file : files) file.delete();
+            directory.delete();
+        }
+    }
+
+    private static DataTransferMessage message(String destination, int bodyLength) {
+        byte[] body = new byte[bodyLength];
+        for (int i = 0; i < bodyLength; i++) body[i] = (byte) i;
+        return DataTransferMessage.createOutgoing(null, new Peer(destination, destination, new Date(), 0, 0), SOURCE, body);
+    }
+}
@@ -0,0 +1,130 @@
+package sword.blemesh.sdk.mesh_graph;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import sword.blemesh.sdk.Clock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Route publication and link state bookkeeping of {@link LocalGraph} as topology changes
+ */
+public class LocalGraphTest {
+
+    private static final String LOCAL = "02:00:00:00:00:00";
+    private static final String A     = "02:00:00:00:00:01";
+    private static final String B     = "02:00:00:00:00:02";
+
+    @Test
+    public void forwarding_table_is_replaced_not_modified() throws Exception {
+        LocalGraph graph = new LocalGraph(new LocalPeer("local", LOCAL));
+        assertEquals(0, graph.getForwardingTable().size());
+
+        addPeer(graph, A);
+        addPeer(graph, B);
+        link(graph, LOCAL, A, 50);
+        link(graph, A, B, 60);
+        graph.calCluateShortestPath();
+
+        ForwardingTable before = graph.getForwardingTable();
+        assertEquals(A, before.getNextHop(B).getMacAddress());
+        assertEquals(A, before.getNextHop(A).getMacAddress());
+        assertNull(before.getNextHop(LOCAL));
+        assertEquals(2, graph.getVertexList().get(B).getHops());
+
+        graph.lostDirectRemote(graph.getVertexList().get(A));
+
+        assertEquals(A, before.getNextHop(B).getMacAddress());
+        assertFalse(graph.getForwardingTable().isReachable(B));
+        assertNull(graph.getNextReply(B));
+        assertFalse(graph.getVertexList().containsKey(B));
+    }
+
+    @Test
+    public void link_state_expires_unless_refreshed() throws Exception {
+        final long[] now = {0};
+        LocalGraph graph = new LocalGraph(new LocalPeer("local", LOCAL));
+        graph.setClock(new Clock() {
+            @Override
+            public long elapsedMillis() {
+                return now[0];
+            }
+        });
+        addPeer(graph, A);
+        link(graph, LOCAL, A, 50);
+        List<String> none = Collections.emptyList();
+
+        graph.applyLinkState(A, 1, 0, true, links(LOCAL, 50, B, 60), none, peer(A));
+        graph.applyLinkState(B, 1, 0, true, links(A, 60), none, peer(B));
+        assertTrue(graph.getForwardingTable().isReachable(B));
+
+        now[0] = (LocalGraph.LINK_STATE_MAX_AGE_SECONDS - 60) * 1000L;
+        assertEquals(LocalGraph.LinkStateUpdate.APPLIED,
+                graph.applyLinkState(A, 2, 0, true, links(LOCAL, 50, B, 60), none, peer(A)));
+        assertTrue(graph.expireLinkStates().isEmpty());
+
+        now[0] = LocalGraph.LINK_STATE_MAX_AGE_SECONDS * 1000L;
+        assertEquals(Collections.singletonList(B), graph.expireLinkStates());
+        assertFalse(graph.getForwardingTable().isReachable(B));
+        assertTrue(graph.getForwardingTable().isReachable(A));
+        assertEquals(0, graph.getLinkStateSequence(B));
+
+        // An advertisement as old as the max age is not applied, however new its sequence number
+        assertEquals(LocalGraph.LinkStateUpdate.STALE, graph.applyLinkState(B, 2,
+                LocalGraph.LINK_STATE_MAX_AGE_SECONDS, true, links(A, 60), none, peer(B)));
+        assertEquals(LocalGraph.LinkStateUpdate.APPLIED,
+                graph.applyLinkState(B, 2, 60, true, links(A, 60), none, peer(B)));
+        assertTrue(graph.getForwardingTable().isReachable(B));
+        assertEquals(60, graph.getLinkStateAge(B));
+    }
+
+    @Test
+    public void merging_a_known_graph_changes_nothing() throws Exception {
+        LocalGraph graph = new LocalGraph(new LocalPeer("local", LOCAL));
+        Peer a = new Peer(A, A, new Date(), 0, 0);
+        graph.newDirectRemote(a);
+
+        PeersGraph remote = new PeersGraph();
+        remote.insertVertex(a);
+        remote.insertVertex(new Peer(B, B, new Date(), 0, 0));
+        remote.addMatrixRow(LOCAL);
+        remote.addMatrixRow(A);
+        remote.addMatrixRow(B);
+        remote.insertEdge(new PeersEdge(LOCAL, A, 50));
+        remote.insertEdge(new PeersEdge(A, B, 60));
+        remote.insertEdge(new PeersEdge(B, A, 60));
+
+        assertTrue(graph.mergeGarph(a, remote));
+        assertFalse(graph.mergeGarph(a, remote));
+        remote.insertEdge(new PeersEdge(B, A, 70));
+        assertTrue(graph.mergeGarph(a, remote));
+    }
+
+    private static LinkedHashMap<String, Integer> links(Object... neighbourRssis) {
+        LinkedHashMap<String, Integer> links = new LinkedHashMap<>();
+        for (int i = 0; i < neighbourRssis.length; i += 2)
+            links.put((String) neighbourRssis[i], (Integer) neighbourRssis[i + 1]);
+        return links;
+    }
+
+    private static LinkedHashMap<String, Peer> peer(String address) {
+        LinkedHashMap<String, Peer> peers = new LinkedHashMap<>();
+        peers.put(address, new Peer(address, address, new Date(), 0, 0));
+        return peers;
+    }
+
+    private static void addPeer(LocalGraph graph, String address) {
+        graph.insertVertex(new Peer(address, address, new Date(), 0, 0));
+        graph.addMatrixRow(address);
+    }
+
+    private static void link(LocalGraph graph, String a, String b, int rssi) {
+        graph.insertEdge(new PeersEdge(a, b, rssi));
+        graph.insertEdge(new PeersEdge(b, a, rssi));
+    }
+}
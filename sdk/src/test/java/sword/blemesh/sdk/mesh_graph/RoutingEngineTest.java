@@ -0,0 +1,293 @@
+package sword.blemesh.sdk.mesh_graph;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link RoutingEngine} routes against {@link LegacyShortestPath} and against
+ * every simple path of small graphs.
+ */
+public class RoutingEngineTest {
+
+    private LinkedHashMap<String, Peer>                           vertexList = new LinkedHashMap<>();
+    private LinkedHashMap<String, LinkedHashMap<String, Integer>> edgeMatrix = new LinkedHashMap<>();
+
+    @Test
+    public void hops_and_reachability_match_legacy() throws Exception {
+        for (int seed = 0; seed < 200; seed++) {
+            Random random = new Random(seed);
+            randomGraph(2 + random.nextInt(150), random, 90);
+
+            RoutingEngine engine = new RoutingEngine();
+            engine.compute(vertexList, edgeMatrix, address(0));
+            LinkedHashMap<String, LegacyShortestPath.Shortest_Path_Info> legacy =
+                    LegacyShortestPath.calculate(vertexList, edgeMatrix, address(0));
+
+            for (String node : vertexList.keySet()) {
+                assertEquals("seed " + seed + " node " + node, legacy.get(node).getHops(), engine.getHops(node));
+                if (engine.isReachable(node)) assertRoute(engine, node);
+            }
+        }
+    }
+
+    @Test
+    public void routes_are_best_of_all_simple_paths() throws Exception {
+        for (int seed = 0; seed < 300; seed++) {
+            Random random = new Random(seed);
+            int size = 2 + random.nextInt(7);
+            randomGraph(size, random, 90);
+
+            RoutingEngine engine = new RoutingEngine();
+            engine.compute(vertexList, edgeMatrix, address(0));
+
+            for (int node = 1; node < size; node++) {
+                List<Integer> best = bestSimplePath(address(0), address(node), new ArrayList<String>(),
+                        new ArrayList<Integer>());
+                if (best == null) {
+                    assertFalse(engine.isReachable(address(node)));
+                    continue;
+                }
+                assertEquals("seed " + seed + " node " + node, 0, compareRoutes(best, assertRoute(engine, address(node))));
+            }
+        }
+    }
+
+    @Test
+    public void repaired_routes_match_full_computation() throws Exception {
+        for (int seed = 0; seed < 100; seed++) {
+            Random random = new Random(seed);
+            int size = 2 + random.nextInt(120);
+            randomGraph(size, random, 90);
+
+            RoutingEngine repaired = new RoutingEngine();
+            repaired.compute(vertexList, edgeMatrix, address(0));
+
+            for (int change = 0; change < 40; change++) {
+                String src = address(random.nextInt(size));
+                LinkedHashMap<String, Integer> row = edgeMatrix.get(src);
+                String desc = random.nextBoolean() && !row.isEmpty()
+                        ? new ArrayList<>(row.keySet()).get(random.nextInt(row.size()))
+                        : address(random.nextInt(size));
+                if (src.equals(desc)) continue;
+
+                Integer rssi = random.nextInt(3) == 0 ? null : 20 + random.nextInt(71);
+                if (rssi == null) row.remove(desc);
+                else row.put(desc, rssi);
+                repaired.updateLink(src, desc, rssi);
+
+                RoutingEngine full = new RoutingEngine();
+                full.compute(vertexList, edgeMatrix, address(0));
+                for (String node : vertexList.keySet()) {
+                    assertEquals("seed " + seed + " change " + change, full.getHops(node), repaired.getHops(node));
+                    if (full.isReachable(node))
+                        assertEquals(0, compareRoutes(assertRoute(full, node), assertRoute(repaired, node)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unusable_link_is_avoided_by_a_longer_route() throws Exception {
+        addVertices(4);
+        link(0, 1, 95);
+        link(0, 2, 40);
+        link(2, 3, 40);
+        link(3, 1, 40);
+
+        RoutingEngine engine = new RoutingEngine();
+        engine.compute(vertexList, edgeMatrix, address(0));
+
+        assertEquals(3, engine.getHops(address(1)));
+        assertEquals(address(2), engine.getNextHop(address(1)));
+        assertEquals(40, engine.getWorstRssi(address(1)));
+
+        // Once no usable route remains, the unusable link is used
+        edgeMatrix.get(address(3)).remove(address(1));
+        engine.compute(vertexList, edgeMatrix, address(0));
+        assertEquals(1, engine.getHops(address(1)));
+        assertEquals(RoutingEngine.MAX_METRIC, engine.getWorstMetric(address(1)));
+    }
+
+    @Test
+    public void equal_hops_prefer_better_worst_link() throws Exception {
+        addVertices(4);
+        link(0, 1, 40);
+        link(1, 3, 70);
+        link(0, 2, 60);
+        link(2, 3, 60);
+
+        RoutingEngine engine = new RoutingEngine();
+        engine.compute(vertexList, edgeMatrix, address(0));
+
+        assertEquals(2, engine.getHops(address(3)));
+        assertEquals(address(2), engine.getNextHop(address(3)));
+        assertEquals(60, engine.getWorstRssi(address(3)));
+        assertNull(engine.getNextHop(address(0)));
+    }
+
+    @Test
+    public void disjoint_paths_share_no_relay() throws Exception {
+        // 0 - 1 - 4, 0 - 2 - 4 and 0 - 3 - 5 - 4, with a shortcut 1 - 2 that must not be reused
+        addVertices(6);
+        link(0, 1, 40);
+        link(1, 4, 40);
+        link(0, 2, 50);
+        link(2, 4, 50);
+        link(1, 2, 30);
+        link(0, 3, 40);
+        link(3, 5, 40);
+        link(5, 4, 40);
+
+        RoutingEngine engine = new RoutingEngine();
+        engine.compute(vertexList, edgeMatrix, address(0));
+
+        List<List<String>> paths = engine.getDisjointPaths(address(4), 5);
+        assertEquals(3, paths.size());
+        assertEquals(Arrays.asList(address(1), address(4)), paths.get(0));
+        assertEquals(Arrays.asList(address(2), address(4)), paths.get(1));
+        assertEquals(Arrays.asList(address(3), address(5), address(4)), paths.get(2));
+
+        assertEquals(1, engine.getDisjointPaths(address(4), 1).size());
+        assertTrue(engine.getDisjointPaths(address(0), 3).isEmpty());
+    }
+
+    @Test
+    public void disjoint_paths_of_random_graphs_are_valid_routes() throws Exception {
+        for (int seed = 0; seed < 100; seed++) {
+            Random random = new Random(seed);
+            int size = 2 + random.nextInt(40);
+            randomGraph(size, random, 90);
+
+            RoutingEngine engine = new RoutingEngine();
+            engine.setRequireTwoWayLinks(true);
+            engine.compute(vertexList, edgeMatrix, address(0));
+
+            for (int node = 1; node < size; node++) {
+                List<List<String>> paths = engine.getDisjointPaths(address(node), 3);
+                assertEquals(engine.isReachable(address(node)), !paths.isEmpty());
+                if (paths.isEmpty()) continue;
+                assertEquals(engine.getHops(address(node)), paths.get(0).size());
+
+                List<String> relays = new ArrayList<>();
+                for (List<String> path : paths) {
+                    String previous = address(0);
+                    for (String hop : path) {
+                        assertNotNull(edgeMatrix.get(previous).get(hop));
+                        assertNotNull(edgeMatrix.get(hop).get(previous));
+                        previous = hop;
+                    }
+                    assertEquals(address(node), previous);
+                    for (String relay : path.subList(0, path.size() - 1)) {
+                        assertFalse("seed " + seed + " relay " + relay + " reused", relays.contains(relay));
+                        relays.add(relay);
+                    }
+                }
+            }
+        }
+    }
+
+    // <editor-fold desc="Brute force">
+
+    /** @return link metrics of the best simple path from src to desc, or null if there is none */
+    private List<Integer> bestSimplePath(String src, String desc, List<String> visited, List<Integer> metrics) {
+        if (src.equals(desc)) return new ArrayList<>(metrics);
+        if (metrics.size() + 1 >= RoutingEngine.MAX_HOPS) return null;
+
+        visited.add(src);
+        List<Integer> best = null;
+        for (String next : edgeMatrix.get(src).keySet()) {
+            if (visited.contains(next)) continue;
+            metrics.add(RoutingEngine.metricForRssi(edgeMatrix.get(src).get(next)));
+            List<Integer> route = bestSimplePath(next, desc, visited, metrics);
+            metrics.remove(metrics.size() - 1);
+            if (route != null && (best == null || compareRoutes(route, best) < 0)) best = route;
+        }
+        visited.remove(visited.size() - 1);
+        return best;
+    }
+
+    /** Usable routes first, then fewer hops, then smaller metrics compared worst first */
+    private static int compareRoutes(List<Integer> a, List<Integer> b) {
+        List<Integer> sortedA = new ArrayList<>(a);
+        List<Integer> sortedB = new ArrayList<>(b);
+        Collections.sort(sortedA, Collections.<Integer>reverseOrder());
+        Collections.sort(sortedB, Collections.<Integer>reverseOrder());
+
+        boolean unusableA = sortedA.contains(RoutingEngine.MAX_METRIC);
+        boolean unusableB = sortedB.contains(RoutingEngine.MAX_METRIC);
+        if (unusableA != unusableB) return unusableA ? 1 : -1;
+        if (a.size() != b.size()) return a.size() - b.size();
+        for (int i = 0; i < sortedA.size(); i++) {
+            if (!sortedA.get(i).equals(sortedB.get(i))) return sortedA.get(i) - sortedB.get(i);
+        }
+        return 0;
+    }
+
+    /**
+     * Walk the engine's route to desc back to the source, checking it against the edge matrix
+     *
+     * @return link metrics of the route
+     */
+    private List<Integer> assertRoute(RoutingEngine engine, String desc) {
+        List<Integer> metrics = new ArrayList<>();
+        int worstRssi = 0;
+        String node = desc;
+        String firstHop = null;
+        while (engine.getPrevious(node) != null) {
+            String previous = engine.getPrevious(node);
+            Integer rssi = edgeMatrix.get(previous).get(node);
+            assertNotNull(rssi);
+            metrics.add(RoutingEngine.metricForRssi(rssi));
+            worstRssi = Math.max(worstRssi, rssi);
+            firstHop = node;
+            node = previous;
+        }
+        assertEquals(address(0), node);
+        assertEquals(engine.getHops(desc), metrics.size());
+        assertEquals(engine.getWorstRssi(desc), worstRssi);
+        assertEquals(engine.getNextHop(desc), firstHop);
+        return metrics;
+    }
+
+    // </editor-fold desc="Brute force">
+
+    /** Random links averaging 3 per node, some one way, with rssi up to maxRssi */
+    private void randomGraph(int size, Random random, int maxRssi) {
+        vertexList.clear();
+        edgeMatrix.clear();
+        addVertices(size);
+        for (int i = 0; i < size * 3 / 2; i++) {
+            int a = random.nextInt(size);
+            int b = random.nextInt(size);
+            if (a == b) continue;
+            int rssi = 20 + random.nextInt(maxRssi - 19);
+            edgeMatrix.get(address(a)).put(address(b), rssi);
+            if (random.nextInt(4) != 0) edgeMatrix.get(address(b)).put(address(a), rssi);
+        }
+    }
+
+    private void addVertices(int count) {
+        for (int i = 0; i < count; i++) {
+            vertexList.put(address(i), new Peer("node" + i, address(i), new Date(), 0, 0));
+            edgeMatrix.put(address(i), new LinkedHashMap<String, Integer>());
+        }
+    }
+
+    private void link(int a, int b, int rssi) {
+        edgeMatrix.get(address(a)).put(address(b), rssi);
+        edgeMatrix.get(address(b)).put(address(a), rssi);
+    }
+
+    private static String address(int index) {
+        return String.format("02:00:00:00:%02X:%02X", (index >> 8) & 0xFF, index & 0xFF);
+    }
+}
@@ -0,0 +1,119 @@
+package sword.blemesh.sdk.session;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import sword.blemesh.sdk.mesh_graph.Peer;
+
+import static org.junit.Assert.*;
+import static sword.blemesh.sdk.session.TestFixtures.SRC_MAC;
+
+/**
+ * Compares the {@link BinaryHeaderCodec} header format against the JSON headers
+ * it replaces and checks both decode to the same header map.
+ */
+public class BinaryHeaderCodecTest {
+
+
+    @Test
+    public void identity_headers_round_trip_and_shrink() throws Exception {
+        IdentityMessage message = new IdentityMessage(MessageId.next(SRC_MAC),
+                new Peer("alice", SRC_MAC, new Date(), -1, 0));
+
+        assertSmallerAndRoundTrips("identity", message.getHeaders());
+    }
+
+    @Test
+    public void data_transfer_headers_round_trip_and_shrink() throws Exception {
+        DataTransferMessage message = new DataTransferMessage(dataTransferHeaders(null), "hi there".getBytes());
+
+        assertSmallerAndRoundTrips("datatransfer", message.getHeaders());
+    }
+
+    @Test
+    public void data_transfer_extra_headers_round_trip_and_shrink() throws Exception {
+        HashMap<String, Object> extra = new HashMap<>();
+        extra.put("mime", "text/plain");
+        extra.put("retries", 2);
+        DataTransferMessage message = new DataTransferMessage(dataTransferHeaders(extra), "hi there".getBytes());
+
+        assertSmallerAndRoundTrips("datatransfer+extra", message.getHeaders());
+    }
+
+    @Test
+    public void graph_headers_round_trip_and_shrink() throws Exception {
+        HashMap<String, Object> headers = new HashMap<>();
+        headers.put(SessionMessage.HEADER_TYPE, GraphMessage.HEADER_TYPE);
+        headers.put(SessionMessage.HEADER_BODY_LENGTH, 0);
+        headers.put(SessionMessage.HEADER_ID, MessageId.create(0x0E2A91, 7));
+        headers.put(SessionMessage.HEADER_MAC_ADDRESS, SRC_MAC);
+        headers.put(GraphMessage.HEADER_REMOTE_ACTION, GraphMessage.ACTION_JOIN);
+        headers.put(GraphMessage.HEADER_CAST_FORM, GraphMessage.BROADCAST);
+        GraphMessage message = new GraphMessage(headers, null);
+
+        assertSmallerAndRoundTrips("graph_info", message.getHeaders());
+    }
+
+    @Test
+    public void unknown_keys_and_unpackable_addresses_round_trip() throws Exception {
+        HashMap<String, Object> headers = new HashMap<>();
+        headers.put(SessionMessage.HEADER_TYPE, "custom");
+        headers.put(SessionMessage.HEADER_MAC_ADDRESS, "192.1.1.100");
+        headers.put("lower_case_mac", "a0:b1:c2:d3:e4:f5");
+        headers.put("negative", -42);
+        headers.put("big", Long.MAX_VALUE);
+
+        assertEquals(headers, decode(BinaryHeaderCodec.encode(headers)));
+    }
+
+    @Test
+    public void serialized_message_uses_binary_version() throws Exception {
+        byte[] serialized = new IdentityMessage(MessageId.next(SRC_MAC),
+                new Peer("alice", SRC_MAC, new Date(), -1, 0)).serialize();
+
+        assertEquals(SessionMessage.HEADER_VERSION_BINARY, serialized[0]);
+    }
+
+    @Test
+    public void message_id_is_written_in_eight_bytes() throws Exception {
+        HashMap<String, Object> headers = new HashMap<>();
+        headers.put(SessionMessage.HEADER_ID, MessageId.create(0xFFFFFF, MessageId.COUNTER_MASK));
+
+        byte[] encoded = BinaryHeaderCodec.encode(headers);
+        assertEquals(1 + 8, encoded.length);
+        assertEquals(headers, decode(encoded));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncated_headers_are_rejected() throws Exception {
+        byte[] encoded = BinaryHeaderCodec.encode(dataTransferHeaders(null));
+        BinaryHeaderCodec.decode(encoded, 0, encoded.length - 3);
+    }
+
+    private static HashMap<String, Object> dataTransferHeaders(Map<String, Object> extra) {
+        HashMap<String, Object> headers = TestFixtures.dataTransferHeaders(8);
+        if (extra != null)
+            headers.put(DataTransferMessage.HEADER_EXTRA, extra);
+        return headers;
+    }
+
+    private static void assertSmallerAndRoundTrips(String label, Map<String, Object> headers) throws Exception {
+        byte[] json = new JSONObject(headers).toString().getBytes("UTF-8");
+        byte[] binary = BinaryHeaderCodec.encode(headers);
+
+        System.out.println(String.format("%-20s json %4d bytes, binary %4d bytes, saved %4d bytes (%.0f%%)",
+                label, json.length, binary.length, json.length - binary.length,
+                100f * (json.length - binary.length) / json.length));
+
+        assertTrue(binary.length < json.length);
+        assertEquals(headers, decode(binary));
+    }
+
+    private static HashMap<String, Object> decode(byte[] encoded) {
+        return BinaryHeaderCodec.decode(encoded, 0, encoded.length);
+    }
+}
@@ -0,0 +1,144 @@
+package sword.blemesh.sdk.session;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+import sword.blemesh.sdk.mesh_graph.Peer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends File and InputStream backed {@link DataTransferMessage}s through a
+ * {@link SessionMessageDeserializer} in transport sized chunks.
+ */
+public class DataTransferMessageTest {
+
+    private static final String SRC_MAC = "5C:51:4F:0E:2A:91";
+
+    private static final Peer RECIPIENT = new Peer("bob", "A0:B1:C2:D3:E4:F5", new Date(), -1, 0);
+
+    private static final int CHUNK_BYTES = 512;
+
+    @Test
+    public void large_file_body_is_spooled_to_file() throws Exception {
+        byte[] body = randomBody(SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES + 12345);
+        File file = File.createTempFile("outgoing", ".body");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(body);
+        out.close();
+
+        DataTransferMessage received = transfer(DataTransferMessage.createOutgoing(null, RECIPIENT, SRC_MAC, file));
+
+        assertFalse(received.isBodyInMemory());
+        assertNotNull(received.getBodyFile());
+        assertArrayEquals(body, readFile(received.getBodyFile()));
+        assertTrue(received.getBodyFile().delete());
+    }
+
+    @Test
+    public void small_stream_body_is_held_in_memory() throws Exception {
+        byte[] body = randomBody(40000);
+
+        DataTransferMessage received = transfer(DataTransferMessage.createOutgoing(null, RECIPIENT, SRC_MAC,
+                new ByteArrayInputStream(body), body.length));
+
+        assertTrue(received.isBodyInMemory());
+        assertNull(received.getBodyFile());
+        assertArrayEquals(body, received.getBodyAtOffset(0, body.length));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void stream_body_cannot_be_reread() throws Exception {
+        byte[] body = randomBody(100);
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, RECIPIENT, SRC_MAC,
+                new ByteArrayInputStream(body), body.length);
+
+        message.getBodyAtOffset(0, 50);
+        message.getBodyAtOffset(0, 50);
+    }
+
+    @Test
+    public void relayed_message_carries_decremented_ttl() throws Exception {
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, RECIPIENT, SRC_MAC, randomBody(100));
+
+        DataTransferMessage firstHop  = transfer(message);
+        DataTransferMessage secondHop = transfer(firstHop);
+        assertEquals(DataTransferMessage.TTL_INITIAL_VALUE - 1, firstHop.getTTL());
+        assertEquals(DataTransferMessage.TTL_INITIAL_VALUE - 2, secondHop.getTTL());
+        assertEquals(2, secondHop.getHopCount());
+    }
+
+    @Test
+    public void retransmission_and_ack_carry_delivery_id() throws Exception {
+        byte[] body = randomBody(300);
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, RECIPIENT, SRC_MAC, body);
+        message.requestDeliveryAck();
+
+        DataTransferMessage retransmission = transfer(DataTransferMessage.createRetransmission(message));
+        assertNotEquals(message.getID(), retransmission.getID());
+        assertEquals(message.getID(), retransmission.getDeliveryId());
+        assertFalse(retransmission.isDeliveryAck());
+        assertArrayEquals(body, retransmission.getBodyAtOffset(0, body.length));
+
+        DataTransferMessage ack = transfer(DataTransferMessage.createDeliveryAck(retransmission, RECIPIENT.getMacAddress()));
+        assertTrue(ack.isDeliveryAck());
+        assertFalse(ack.isDeliveryAckRequested());
+        assertEquals(message.getID(), ack.getAckedDeliveryId());
+        assertEquals(SRC_MAC, ack.getDesc_mac_address());
+        assertEquals(SessionMessage.Priority.CONTROL, ack.getPriority());
+    }
+
+    /** Serialize message chunk by chunk into a deserializer, returning the message it produces */
+    private static DataTransferMessage transfer(DataTransferMessage message) {
+        final DataTransferMessage[] received = new DataTransferMessage[1];
+        SessionMessageDeserializer deserializer = new SessionMessageDeserializer(null,
+                new SessionMessageDeserializer.SessionMessageDeserializerCallback() {
+                    @Override
+                    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+                    @Override
+                    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+                    @Override
+                    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                        assertNull(e);
+                        received[0] = (DataTransferMessage) message;
+                    }
+                });
+
+        byte[] chunk = new byte[CHUNK_BYTES];
+        int offset = 0;
+        int bytesWritten;
+        while ((bytesWritten = message.serialize(offset, chunk, 0, chunk.length)) > 0) {
+            deserializer.dataReceived(chunk, 0, bytesWritten);
+            offset += bytesWritten;
+        }
+
+        assertEquals(message.getTotalLengthBytes(), offset);
+        assertNotNull(received[0]);
+        assertEquals(message.getID(), received[0].getID());
+        return received[0];
+    }
+
+    private static byte[] randomBody(int length) {
+        byte[] body = new byte[length];
+        new Random(length).nextBytes(body);
+        return body;
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        RandomAccessFile reader = new RandomAccessFile(file, "r");
+        byte[] contents = new byte[(int) reader.length()];
+        reader.readFully(contents);
+        reader.close();
+        return Arrays.copyOf(contents, contents.length);
+    }
+}
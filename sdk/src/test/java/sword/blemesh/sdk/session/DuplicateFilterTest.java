@@ -0,0 +1,106 @@
+package sword.blemesh.sdk.session;
+
+import org.junit.Test;
+
+import sword.blemesh.sdk.Clock;
+
+import static org.junit.Assert.*;
+import static sword.blemesh.sdk.session.TestFixtures.usedHeap;
+
+/**
+ * Checks {@link DuplicateFilter} forgets by capacity and time, and reports its memory and
+ * false positive rate over a long stream of message IDs.
+ */
+public class DuplicateFilterTest {
+
+    private static final int    ID_COUNT            = 10 * 1000 * 1000;
+    private static final int    CAPACITY            = 64 * 1024;
+    private static final double FALSE_POSITIVE_RATE = 1e-4;
+
+    private static final String[] SOURCES = new String[50];
+
+    static {
+        for (int i = 0; i < SOURCES.length; i++)
+            SOURCES[i] = String.format("02:00:00:00:00:%02X", i);
+    }
+
+    private long now;
+
+    private final Clock clock = new Clock() {
+        @Override
+        public long elapsedMillis() {
+            return now;
+        }
+    };
+
+    @Test
+    public void memory_is_constant_over_ten_million_ids() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(CAPACITY, Long.MAX_VALUE / 4, FALSE_POSITIVE_RATE, clock);
+        long memoryBytes = filter.getMemoryBytes();
+        long baselineHeap = usedHeap();
+
+        long falsePositives = 0;
+        for (int i = 0; i < ID_COUNT; i++) {
+            if (filter.checkAndAdd(source(i), id(i))) falsePositives++;
+        }
+        long heapGrowth = usedHeap() - baselineHeap;
+
+        // The most recent capacity IDs are always still held
+        for (int i = ID_COUNT - CAPACITY; i < ID_COUNT; i++)
+            assertTrue(filter.checkAndAdd(source(i), id(i)));
+
+        double measuredRate = (double) falsePositives / ID_COUNT;
+        System.out.println(String.format("%d ids in %d KB: %d false positives (%.2e measured, %.2e estimated, %.0e target), %d rotations, heap growth %d KB",
+                ID_COUNT, memoryBytes / 1024, falsePositives, measuredRate, filter.getEstimatedFalsePositiveRate(),
+                FALSE_POSITIVE_RATE, filter.getRotationCount(), heapGrowth / 1024));
+
+        assertEquals(memoryBytes, filter.getMemoryBytes());
+        assertTrue("Heap grew by " + heapGrowth + " bytes", heapGrowth < 4 * 1024 * 1024);
+        // Two filters are looked up, each up to its target rate once full
+        assertTrue(measuredRate < 2 * FALSE_POSITIVE_RATE);
+        assertTrue(filter.getEstimatedFalsePositiveRate() < 3 * FALSE_POSITIVE_RATE);
+    }
+
+    @Test
+    public void ids_expire_after_one_to_two_expiries() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(CAPACITY, 1000, FALSE_POSITIVE_RATE, clock);
+        assertFalse(filter.checkAndAdd(source(1), id(1)));
+
+        now = 999;
+        assertTrue(filter.checkAndAdd(source(1), id(1)));
+        now = 1500;
+        assertFalse(filter.checkAndAdd(source(2), id(2)));
+
+        now = 3000;
+        assertFalse(filter.checkAndAdd(source(1), id(1)));
+        assertTrue(filter.checkAndAdd(source(2), id(2)));
+
+        // Seen again, so carried over the next rotation
+        now = 4000;
+        assertTrue(filter.checkAndAdd(source(2), id(2)));
+
+        // A quiet spell forgets everything
+        now = 10 * 1000;
+        assertFalse(filter.checkAndAdd(source(2), id(2)));
+        assertEquals(4, filter.getRotationCount());
+    }
+
+    @Test
+    public void same_id_from_other_source_is_not_a_duplicate() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(CAPACITY, 1000, FALSE_POSITIVE_RATE, clock);
+        assertFalse(filter.checkAndAdd("02:00:00:00:00:01", 0x0a1b2c3dL));
+        assertFalse(filter.checkAndAdd("02:00:00:00:00:02", 0x0a1b2c3dL));
+        assertFalse(filter.checkAndAdd("02:00:00:00:00:0", 0x10a1b2c3dL));
+        assertTrue(filter.checkAndAdd("02:00:00:00:00:01", 0x0a1b2c3dL));
+        assertEquals(4, filter.getCheckCount());
+        assertEquals(1, filter.getDuplicateCount());
+    }
+
+    private static String source(int i) {
+        return SOURCES[i % SOURCES.length];
+    }
+
+    private static long id(int i) {
+        return MessageId.create(i % SOURCES.length, i);
+    }
+}
@@ -0,0 +1,50 @@
+package sword.blemesh.sdk.session;
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import sword.blemesh.sdk.mesh_graph.Peer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Layout of {@link MessageId} and how ID headers from older peers are read
+ */
+public class MessageIdTest {
+
+    private static final String MAC = "5C:51:4F:0E:2A:91";
+
+    @Test
+    public void ids_carry_origin_and_increasing_counter() throws Exception {
+        long first  = MessageId.next(MAC);
+        long second = MessageId.next(MAC);
+
+        assertEquals(0x0E2A91, MessageId.getOrigin(first));
+        assertEquals(0x0E2A91, MessageId.getOrigin(second));
+        assertEquals(MessageId.getCounter(first) + 1, MessageId.getCounter(second));
+        assertEquals(0xFFFFFF, MessageId.getOrigin(MessageId.create(0xFFFFFF, -1)));
+        assertEquals(MessageId.COUNTER_MASK, MessageId.getCounter(MessageId.create(0xFFFFFF, -1)));
+    }
+
+    @Test
+    public void message_id_is_carried_as_long() throws Exception {
+        Peer recipient = new Peer("bob", "A0:B1:C2:D3:E4:F5", new Date(), -1, 0);
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, recipient, MAC, "hi".getBytes());
+
+        assertEquals(message.getID(), message.getHeaders().get(SessionMessage.HEADER_ID));
+        assertEquals(0x0E2A91, MessageId.getOrigin(message.getID()));
+    }
+
+    @Test
+    public void legacy_hex_ids_are_accepted() throws Exception {
+        assertEquals(0x3fa9c07eL, MessageId.parse("3fa9c07e"));
+        assertEquals(42L, MessageId.parse(42));
+        assertEquals(42L, MessageId.parse(42L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformed_ids_are_rejected() throws Exception {
+        MessageId.parse("not-an-id");
+    }
+}
@@ -0,0 +1,204 @@
+package sword.blemesh.sdk.session;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+import static sword.blemesh.sdk.session.TestFixtures.dataTransferMessage;
+import static sword.blemesh.sdk.session.TestFixtures.usedHeap;
+
+/**
+ * Streams long runs of serialized {@link SessionMessage}s through a single
+ * {@link SessionMessageDeserializer} and checks its memory stays bounded, and that malformed
+ * or unstorable messages fail alone.
+ */
+public class SessionMessageDeserializerTest {
+
+    private static final int MESSAGE_COUNT = 100 * 1000;
+    private static final int CHUNK_BYTES   = 512;
+
+    @Test
+    public void long_stream_keeps_memory_flat() throws Exception {
+        byte[] stream = serializedStream(new int[] {0, 20, 300, 700});
+        CountingCallback callback = new CountingCallback();
+        SessionMessageDeserializer deserializer = new SessionMessageDeserializer(null, callback);
+
+        // Warm up so the baseline includes the deserializer's steady state
+        feed(deserializer, stream, 1000);
+        long baselineHeap = usedHeap();
+        int maxCapacity = 0;
+
+        int fed = 1000;
+        while (fed < MESSAGE_COUNT) {
+            int batch = Math.min(1000, MESSAGE_COUNT - fed);
+            feed(deserializer, stream, batch);
+            fed += batch;
+            maxCapacity = Math.max(maxCapacity, deserializer.getBufferCapacity());
+        }
+        long heapGrowth = usedHeap() - baselineHeap;
+
+        System.out.println(String.format("%d messages, max buffer capacity %d bytes, heap growth %d KB",
+                callback.completed, maxCapacity, heapGrowth / 1024));
+
+        assertEquals(MESSAGE_COUNT, callback.completed);
+        assertEquals(0, callback.failed);
+        assertEquals(SessionMessageDeserializer.INITIAL_BUFFER_BYTES, maxCapacity);
+        assertTrue("Heap grew by " + heapGrowth + " bytes", heapGrowth < 4 * 1024 * 1024);
+    }
+
+    @Test
+    public void buffer_shrinks_after_large_message() throws Exception {
+        CountingCallback callback = new CountingCallback();
+        SessionMessageDeserializer deserializer = new SessionMessageDeserializer(null, callback);
+
+        byte[] large = dataTransferMessage(100 * 1000).serialize();
+        for (int offset = 0; offset < large.length; offset += CHUNK_BYTES)
+            deserializer.dataReceived(Arrays.copyOfRange(large, offset, Math.min(large.length, offset + CHUNK_BYTES)));
+
+        assertEquals(1, callback.completed);
+        assertEquals(100 * 1000, callback.lastBodyLength);
+        assertEquals(SessionMessageDeserializer.INITIAL_BUFFER_BYTES, deserializer.getBufferCapacity());
+    }
+
+    @Test
+    public void unknown_version_is_reported_and_stream_recovers() throws Exception {
+        CountingCallback callback = new CountingCallback();
+        SessionMessageDeserializer deserializer = new SessionMessageDeserializer(null, callback);
+
+        deserializer.dataReceived(new byte[] {99, 0, 0, 1, 2, 3});
+        assertEquals(1, callback.failed);
+
+        deserializer.dataReceived(dataTransferMessage(10).serialize());
+        assertEquals(1, callback.completed);
+    }
+
+    @Test
+    public void invalid_body_length_is_rejected_and_stream_recovers() throws Exception {
+        CountingCallback callback = new CountingCallback();
+        SessionMessageDeserializer deserializer = new SessionMessageDeserializer(null, callback);
+
+        for (Object bodyLength : new Object[] {null, -1, SessionMessageDeserializer.MAX_BODY_BYTES + 1}) {
+            HashMap<String, Object> headers = new HashMap<>(dataTransferMessage(0).getHeaders());
+            if (bodyLength == null) headers.remove(SessionMessage.HEADER_BODY_LENGTH);
+            else headers.put(SessionMessage.HEADER_BODY_LENGTH, bodyLength);
+            byte[] header = BinaryHeaderCodec.encode(headers);
+            byte[] prefix = {SessionMessage.HEADER_VERSION_BINARY, (byte) header.length, (byte) (header.length >> 8)};
+            deserializer.dataReceived(prefix);
+            deserializer.dataReceived(header);
+        }
+        assertEquals(3, callback.failed);
+
+        deserializer.dataReceived(dataTransferMessage(10).serialize());
+        assertEquals(1, callback.completed);
+    }
+
+    @Test
+    public void disk_body_reports_progress() throws Exception {
+        CountingCallback callback = new CountingCallback();
+        SessionMessageDeserializer deserializer = new SessionMessageDeserializer(null, callback);
+
+        int bodyLength = SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES + CHUNK_BYTES;
+        byte[] large = dataTransferMessage(bodyLength).serialize();
+        for (int offset = 0; offset < large.length; offset += CHUNK_BYTES)
+            deserializer.dataReceived(Arrays.copyOfRange(large, offset, Math.min(large.length, offset + CHUNK_BYTES)));
+
+        assertEquals(1, callback.completed);
+        assertTrue(callback.progressCount > bodyLength / CHUNK_BYTES);
+        assertEquals(1, callback.lastProgress, 0);
+        assertTrue(callback.lastMessage.getBodyFile().delete());
+    }
+
+    @Test
+    public void body_that_cannot_be_stored_fails_only_its_message() throws Exception {
+        CountingCallback callback = new CountingCallback();
+        SessionMessageDeserializer deserializer = new SessionMessageDeserializer(null, callback);
+
+        byte[] large = dataTransferMessage(SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES + 1).serialize();
+        byte[] small = dataTransferMessage(10).serialize();
+        byte[] stream = new byte[large.length + small.length];
+        System.arraycopy(large, 0, stream, 0, large.length);
+        System.arraycopy(small, 0, stream, large.length, small.length);
+
+        String tmpdir = System.getProperty("java.io.tmpdir");
+        System.setProperty("java.io.tmpdir", new File(tmpdir, "missing-" + System.nanoTime()).getPath());
+        try {
+            for (int offset = 0; offset < stream.length; offset += CHUNK_BYTES)
+                deserializer.dataReceived(Arrays.copyOfRange(stream, offset, Math.min(stream.length, offset + CHUNK_BYTES)));
+        } finally {
+            System.setProperty("java.io.tmpdir", tmpdir);
+        }
+
+        assertEquals(1, callback.failed);
+        assertEquals(1, callback.completed);
+        assertEquals(10, callback.lastBodyLength);
+    }
+
+    /** Concatenate messages with the given body sizes so chunks straddle message boundaries */
+    private static byte[] serializedStream(int[] bodySizes) {
+        byte[][] messages = new byte[bodySizes.length][];
+        int length = 0;
+        for (int i = 0; i < bodySizes.length; i++) {
+            messages[i] = dataTransferMessage(bodySizes[i]).serialize();
+            length += messages[i].length;
+        }
+        byte[] stream = new byte[length];
+        int offset = 0;
+        for (byte[] message : messages) {
+            System.arraycopy(message, 0, stream, offset, message.length);
+            offset += message.length;
+        }
+        return stream;
+    }
+
+    /**
+     * Feed rounds * (messages in stream) messages in fixed size chunks. Each round feeds the stream
+     * from a different starting phase so chunk boundaries fall everywhere in the messages.
+     */
+    private static void feed(SessionMessageDeserializer deserializer, byte[] stream, int messages) {
+        int messagesPerStream = 4;
+        byte[] chunk = new byte[CHUNK_BYTES];
+        for (int round = 0; round < messages / messagesPerStream; round++) {
+            int offset = 0;
+            int firstChunk = 1 + (round * 37) % (CHUNK_BYTES - 1);
+            while (offset < stream.length) {
+                int length = Math.min(offset == 0 ? firstChunk : CHUNK_BYTES, stream.length - offset);
+                byte[] data = length == CHUNK_BYTES ? chunk : new byte[length];
+                System.arraycopy(stream, offset, data, 0, length);
+                deserializer.dataReceived(data);
+                offset += length;
+            }
+        }
+    }
+
+    private static class CountingCallback implements SessionMessageDeserializer.SessionMessageDeserializerCallback {
+        int completed;
+        int failed;
+        int lastBodyLength;
+        int progressCount;
+        float lastProgress;
+        DataTransferMessage lastMessage;
+
+        @Override
+        public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {}
+
+        @Override
+        public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {
+            progressCount++;
+            lastProgress = progress;
+        }
+
+        @Override
+        public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+            if (e != null) {
+                failed++;
+                return;
+            }
+            completed++;
+            lastMessage = (DataTransferMessage) message;
+            lastBodyLength = lastMessage.getBodyLengthBytes();
+        }
+    }
+}
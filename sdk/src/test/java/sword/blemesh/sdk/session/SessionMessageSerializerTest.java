@@ -0,0 +1,220 @@
+package sword.blemesh.sdk.session;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import sword.blemesh.sdk.ByteCopyCounter;
+
+import static org.junit.Assert.*;
+import static sword.blemesh.sdk.session.TestFixtures.dataTransferMessage;
+
+/**
+ * Exercises the {@link SessionMessageSerializer} sliding window, and reports the throughput
+ * gained by window size over a simulated link where acknowledgements take a round trip.
+ */
+public class SessionMessageSerializerTest {
+
+    private static final int CHUNK_BYTES = 512;
+
+    @Test
+    public void window_limits_chunks_in_flight() throws Exception {
+        SessionMessageSerializer serializer = new SessionMessageSerializer(dataTransferMessage(10 * CHUNK_BYTES));
+        serializer.setWindowSize(3);
+
+        assertNotNull(serializer.getNextChunk(CHUNK_BYTES));
+        assertNotNull(serializer.getNextChunk(CHUNK_BYTES));
+        assertNotNull(serializer.getNextChunk(CHUNK_BYTES));
+        assertNull(serializer.getNextChunk(CHUNK_BYTES));
+        assertEquals(3, serializer.getInFlightCount());
+
+        assertNotNull(serializer.ackChunkDelivery());
+        assertNotNull(serializer.getNextChunk(CHUNK_BYTES));
+        assertNull(serializer.getNextChunk(CHUNK_BYTES));
+    }
+
+    @Test
+    public void out_of_order_acks_report_message_completion_once() throws Exception {
+        SessionMessage message = dataTransferMessage(3 * CHUNK_BYTES);
+        SessionMessageSerializer serializer = new SessionMessageSerializer(message);
+        serializer.setWindowSize(8);
+
+        List<byte[]> chunks = drain(serializer);
+        int completions = 0;
+        for (int i = chunks.size() - 1; i >= 0; i--) {
+            SessionMessageSerializer.ChunkAck ack = serializer.ackChunkDelivery(chunks.get(i));
+            assertNotNull(ack);
+            assertSame(message, ack.message);
+            if (ack.progress == 1) completions++;
+        }
+
+        assertEquals(1, completions);
+        assertEquals(0, serializer.getInFlightCount());
+        assertNull(serializer.ackChunkDelivery(chunks.get(0)));
+    }
+
+    @Test
+    public void batched_ack_covers_earlier_chunks_across_messages() throws Exception {
+        SessionMessage first = dataTransferMessage(CHUNK_BYTES);
+        SessionMessage second = dataTransferMessage(2 * CHUNK_BYTES);
+        SessionMessageSerializer serializer = new SessionMessageSerializer(first);
+        serializer.queueMessage(second);
+        serializer.setWindowSize(16);
+
+        int chunkCount = drain(serializer).size();
+        List<SessionMessageSerializer.ChunkAck> acks = serializer.ackChunksThrough(serializer.getLastChunkSequence());
+
+        assertEquals(chunkCount, acks.size());
+        assertSame(first, acks.get(0).message);
+        assertEquals(1, acks.get(acks.size() - 1).progress, 0);
+        assertSame(second, acks.get(acks.size() - 1).message);
+    }
+
+    @Test
+    public void nacked_chunk_is_retransmitted_then_abandoned() throws Exception {
+        SessionMessageSerializer serializer = new SessionMessageSerializer(dataTransferMessage(4 * CHUNK_BYTES));
+        serializer.setWindowSize(1);
+
+        byte[] chunk = serializer.getNextChunk(CHUNK_BYTES);
+        for (int i = 0; i < SessionMessageSerializer.MAX_CHUNK_RETRANSMITS; i++) {
+            assertTrue(serializer.nackChunkDelivery(chunk));
+            assertSame(chunk, serializer.getNextChunk(CHUNK_BYTES));
+        }
+        assertFalse(serializer.nackChunkDelivery(chunk));
+        assertNull(serializer.getNextChunk(CHUNK_BYTES));
+    }
+
+    @Test
+    public void abandoned_message_is_aborted_and_frees_the_window() throws Exception {
+        SessionMessage first = dataTransferMessage(4 * CHUNK_BYTES);
+        SessionMessage second = dataTransferMessage(CHUNK_BYTES);
+        SessionMessageSerializer serializer = new SessionMessageSerializer(first);
+        serializer.queueMessage(second);
+        serializer.setChannel(2);
+        serializer.setWindowSize(2);
+
+        assertNotNull(serializer.ackChunkDelivery(serializer.getNextChunk(CHUNK_BYTES)));
+        byte[] chunk = serializer.getNextChunk(CHUNK_BYTES);
+        assertNull(serializer.abandonMessage(chunk));
+        for (int i = 0; i < SessionMessageSerializer.MAX_CHUNK_RETRANSMITS; i++) {
+            assertTrue(serializer.nackChunkDelivery(chunk));
+            assertSame(chunk, serializer.getNextChunk(CHUNK_BYTES));
+        }
+        assertFalse(serializer.nackChunkDelivery(chunk));
+        assertSame(first, serializer.abandonMessage(chunk));
+
+        // The receiver discards what it got of the first message, then gets the second whole
+        byte[] abort = serializer.getNextChunk(CHUNK_BYTES);
+        assertTrue(SessionMessageSerializer.isAbort(abort));
+        assertEquals(2, SessionMessageSerializer.getChannel(abort));
+        assertNotNull(serializer.ackChunkDelivery(abort));
+
+        int secondBytes = 0;
+        List<byte[]> chunks = drain(serializer);
+        for (byte[] rest : chunks) {
+            assertSame(second, serializer.ackChunkDelivery(rest).message);
+            secondBytes += rest.length - 1;
+        }
+        assertEquals(second.getTotalLengthBytes(), secondBytes);
+        assertEquals(0, serializer.getInFlightCount());
+    }
+
+    @Test
+    public void nack_resends_later_chunks_in_order() throws Exception {
+        SessionMessageSerializer serializer = new SessionMessageSerializer(dataTransferMessage(4 * CHUNK_BYTES));
+        serializer.setWindowSize(3);
+
+        List<byte[]> chunks = drain(serializer);
+        assertNotNull(serializer.ackChunkDelivery(chunks.get(0)));
+        assertTrue(serializer.nackChunkDelivery(chunks.get(1)));
+
+        assertSame(chunks.get(1), serializer.getNextChunk(CHUNK_BYTES));
+        assertSame(chunks.get(2), serializer.getNextChunk(CHUNK_BYTES));
+        assertNotNull(serializer.getNextChunk(CHUNK_BYTES));
+    }
+
+    @Test
+    public void chunks_are_serialized_to_size_without_copies() throws Exception {
+        SessionMessage message = dataTransferMessage(5 * CHUNK_BYTES + 100);
+        SessionMessageSerializer serializer = new SessionMessageSerializer(message);
+        serializer.setWindowSize(16);
+        serializer.setChannel(3);
+        ByteCopyCounter.reset();
+
+        List<byte[]> chunks = drain(serializer);
+        int serializedBytes = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            if (i < chunks.size() - 1) assertEquals(CHUNK_BYTES, chunks.get(i).length);
+            serializedBytes += chunks.get(i).length - 1;
+        }
+        assertEquals(message.getTotalLengthBytes(), serializedBytes);
+        assertEquals(0, ByteCopyCounter.getCopies());
+    }
+
+    @Test
+    public void throughput_increases_with_window_size() throws Exception {
+        // 512 byte chunks over a link moving 32 KB/s (16 ms per chunk), with acks arriving 40 ms later
+        long transmitMicros = 16 * 1000;
+        long ackDelayMicros = 40 * 1000;
+        int bodyBytes = 256 * 1024;
+
+        double windowOne = 0;
+        double previous = 0;
+        for (int window : new int[] {1, 2, 4, 8}) {
+            double bytesPerSecond = simulateThroughput(window, bodyBytes, transmitMicros, ackDelayMicros);
+            System.out.println(String.format("window %d: %6.1f KB/s", window, bytesPerSecond / 1024));
+
+            if (window == 1) windowOne = bytesPerSecond;
+            assertTrue(bytesPerSecond >= previous);
+            previous = bytesPerSecond;
+        }
+        // Window 4 covers the ack round trip, so the link should be busy nearly all the time
+        assertTrue(previous > 3 * windowOne);
+    }
+
+    /**
+     * Discrete event simulation of one link. The link transmits one chunk at a time and the
+     * acknowledgement of each arrives ackDelayMicros after its transmission completes.
+     *
+     * @return bytes delivered per second of virtual time
+     */
+    private static double simulateThroughput(int window, int bodyBytes, long transmitMicros, long ackDelayMicros) {
+        SessionMessage message = dataTransferMessage(bodyBytes);
+        SessionMessageSerializer serializer = new SessionMessageSerializer(message);
+        serializer.setWindowSize(window);
+
+        PriorityQueue<long[]> acks = new PriorityQueue<>(16, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return Long.compare(lhs[0], rhs[0]);
+            }
+        });
+        long now = 0;
+        long linkFreeAt = 0;
+        boolean delivered = false;
+
+        while (!delivered) {
+            byte[] chunk;
+            while ((chunk = serializer.getNextChunk(CHUNK_BYTES)) != null) {
+                linkFreeAt = Math.max(now, linkFreeAt) + transmitMicros;
+                acks.add(new long[] {linkFreeAt + ackDelayMicros, serializer.getLastChunkSequence()});
+            }
+
+            long[] ack = acks.poll();
+            now = ack[0];
+            SessionMessageSerializer.ChunkAck chunkAck = serializer.ackChunkDelivery((int) ack[1]);
+            delivered = chunkAck.progress == 1;
+        }
+        return message.getTotalLengthBytes() / (now / 1000000.0);
+    }
+
+    private static List<byte[]> drain(SessionMessageSerializer serializer) {
+        ArrayList<byte[]> chunks = new ArrayList<>();
+        byte[] chunk;
+        while ((chunk = serializer.getNextChunk(CHUNK_BYTES)) != null) chunks.add(chunk);
+        return chunks;
+    }
+}
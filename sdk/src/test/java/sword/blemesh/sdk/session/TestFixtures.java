@@ -0,0 +1,45 @@
+package sword.blemesh.sdk.session;
+
+import java.util.HashMap;
+
+/**
+ * Messages and measurements shared by the session tests
+ */
+final class TestFixtures {
+
+    static final String SRC_MAC  = "5C:51:4F:0E:2A:91";
+    static final String DESC_MAC = "A0:B1:C2:D3:E4:F5";
+
+    private TestFixtures() {}
+
+    /** @return headers of a DataTransferMessage from {@link #SRC_MAC} to {@link #DESC_MAC}, as received */
+    static HashMap<String, Object> dataTransferHeaders(int bodyLength) {
+        HashMap<String, Object> headers = new HashMap<>();
+        headers.put(SessionMessage.HEADER_TYPE, DataTransferMessage.HEADER_TYPE);
+        headers.put(SessionMessage.HEADER_BODY_LENGTH, bodyLength);
+        headers.put(SessionMessage.HEADER_ID, MessageId.create(0x0E2A91, 41));
+        headers.put(SessionMessage.HEADER_MAC_ADDRESS, SRC_MAC);
+        headers.put(DataTransferMessage.HEADER_DESC, DESC_MAC);
+        headers.put(DataTransferMessage.HEADER_SOURCE, SRC_MAC);
+        headers.put(DataTransferMessage.HEADER_TTL, DataTransferMessage.TTL_INITIAL_VALUE);
+        headers.put(DataTransferMessage.HEADER_SEND_DATE, 1473432570166L);
+        return headers;
+    }
+
+    /** @return a received DataTransferMessage whose body bytes count up from 0 */
+    static DataTransferMessage dataTransferMessage(int bodyLength) {
+        byte[] body = new byte[bodyLength];
+        for (int i = 0; i < bodyLength; i++) body[i] = (byte) i;
+        return new DataTransferMessage(dataTransferHeaders(bodyLength), body);
+    }
+
+    /** @return heap in use once garbage collection settled */
+    static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,676 @@
+package sword.blemesh.sdk.simulator;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import sword.blemesh.sdk.app.DeliveryTracker;
+import sword.blemesh.sdk.app.ForwardingStats;
+import sword.blemesh.sdk.app.StoreAndForwardQueue;
+import sword.blemesh.sdk.mesh_graph.LocalGraph;
+import sword.blemesh.sdk.mesh_graph.Peer;
+import sword.blemesh.sdk.session.DataTransferMessage;
+import sword.blemesh.sdk.session.GraphMessage;
+import sword.blemesh.sdk.session.IdentityMessage;
+import sword.blemesh.sdk.session.SessionMessage;
+import sword.blemesh.sdk.session.SessionMessageSerializer;
+import sword.blemesh.sdk.transport.loopback.LoopbackTransport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link sword.blemesh.sdk.session.SessionManager} and {@link sword.blemesh.sdk.app.MeshRouter}
+ * over {@link MeshSimulator} topologies, and reports routing convergence cost by mesh size.
+ */
+public class MeshSimulatorTest {
+
+    @Test
+    public void line_converges_and_delivers_across_hops() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(1);
+        List<MeshSimulator.Node> nodes = line(simulator, 5, new MeshSimulator.LinkConfig());
+        simulator.runUntilIdle();
+
+        assertTrue(simulator.isConverged());
+
+        MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node last  = nodes.get(nodes.size() - 1);
+        Peer nextHop = first.router.getNextReply(last.peer);
+        assertNotNull(nextHop);
+        assertEquals(nodes.get(1).getMacAddress(), nextHop.getMacAddress());
+
+        byte[] data = body(3000);
+        assertTrue(first.send(data, last));
+        simulator.runUntilIdle();
+
+        assertEquals(1, last.getReceived().size());
+        assertArrayEquals(data, last.getReceived().get(0).getBodyAtOffset(0, data.length));
+        assertEquals(first.getMacAddress(), last.getReceived().get(0).getSource());
+        for (MeshSimulator.Node node : nodes.subList(1, nodes.size() - 1))
+            assertEquals(0, node.getReceived().size());
+    }
+
+    @Test
+    public void lossy_links_deliver_via_retransmission() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(7);
+        List<MeshSimulator.Node> nodes = line(simulator, 3, new MeshSimulator.LinkConfig().setLossRate(0.05));
+        simulator.runUntilIdle();
+        assertTrue(simulator.isConverged());
+
+        byte[] data = body(20 * 1000);
+        assertTrue(nodes.get(0).send(data, nodes.get(2)));
+        simulator.runUntilIdle();
+
+        assertTrue(simulator.getLostWrites() > 0);
+        assertEquals(1, nodes.get(2).getReceived().size());
+        assertArrayEquals(data, nodes.get(2).getReceived().get(0).getBodyAtOffset(0, data.length));
+    }
+
+    @Test
+    public void writes_fit_link_mtu() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(1);
+        MeshSimulator.Node a = simulator.addNode("a", 128);
+        MeshSimulator.Node b = simulator.addNode("b", 128);
+        simulator.connect(a, b, new MeshSimulator.LinkConfig().setMtuBytes(128));
+        simulator.runUntilIdle();
+
+        byte[] data = body(5000);
+        assertTrue(a.send(data, b));
+        simulator.runUntilIdle();
+
+        assertEquals(1, b.getReceived().size());
+        assertTrue(simulator.getBytesWritten() / simulator.getWrites() <= 128);
+    }
+
+    @Test
+    public void chunks_fit_the_mtu_of_each_link() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(1);
+        MeshSimulator.Node a = simulator.addNode("a");
+        MeshSimulator.Node b = simulator.addNode("b");
+        MeshSimulator.Node c = simulator.addNode("c");
+        simulator.connect(a, b, new MeshSimulator.LinkConfig().setMtuBytes(514));
+        simulator.connect(b, c, new MeshSimulator.LinkConfig().setMtuBytes(20));
+        simulator.runUntilIdle();
+        assertTrue(simulator.isConverged());
+
+        assertEquals(LoopbackTransport.DEFAULT_LONG_WRITE_BYTES, a.transport.getLongWriteBytes(b.getMacAddress()));
+        assertEquals(LoopbackTransport.DEFAULT_LONG_WRITE_BYTES, b.transport.getLongWriteBytes(a.getMacAddress()));
+        assertEquals(20, b.transport.getLongWriteBytes(c.getMacAddress()));
+        assertEquals(20, c.transport.getLongWriteBytes(b.getMacAddress()));
+
+        byte[] data = body(5000);
+        assertTrue(a.send(data, c));
+        simulator.runUntilIdle();
+
+        assertEquals(1, c.getReceived().size());
+        assertArrayEquals(data, c.getReceived().get(0).getBodyAtOffset(0, data.length));
+    }
+
+    @Test
+    public void stream_without_channel_prefix_is_read_in_order() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(1);
+        final MeshSimulator.Node node = simulator.addNode("node");
+        final MeshSimulator.Node older = simulator.addNode("older");
+
+        // A peer predating priority channels sends each message whole, without channel bytes
+        byte[] data = body(100);
+        List<SessionMessage> messages = new ArrayList<>();
+        messages.add(new IdentityMessage(null, older.peer));
+        messages.add(DataTransferMessage.createOutgoing(null, node.peer, older.getMacAddress(), data));
+        SessionMessageSerializer serializer = new SessionMessageSerializer(messages);
+        serializer.setWindowSize(Integer.MAX_VALUE);
+        simulator.schedule(0, new Runnable() {
+            @Override
+            public void run() {
+                node.transport.connected(older.getMacAddress(), false, 50);
+            }
+        });
+        byte[] chunk;
+        while ((chunk = serializer.getNextChunk(20)) != null) {
+            final byte[] received = chunk;
+            simulator.schedule(0, new Runnable() {
+                @Override
+                public void run() {
+                    node.transport.dataReceived(older.getMacAddress(), received);
+                }
+            });
+        }
+        simulator.runUntilIdle();
+
+        assertEquals(1, node.getReceived().size());
+        assertArrayEquals(data, node.getReceived().get(0).getBodyAtOffset(0, data.length));
+        assertEquals(older.getMacAddress(), node.getReceived().get(0).getSource());
+    }
+
+    @Test
+    public void disconnect_removes_unreachable_peers() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(1);
+        List<MeshSimulator.Node> nodes = line(simulator, 4, new MeshSimulator.LinkConfig());
+        simulator.runUntilIdle();
+        assertTrue(simulator.isConverged());
+
+        simulator.disconnect(nodes.get(1), nodes.get(2));
+        simulator.runUntilIdle();
+
+        assertTrue(nodes.get(0).knows(nodes.subList(0, 2)));
+        assertFalse(nodes.get(0).router.getGraph().getVertexList().containsKey(nodes.get(3).getMacAddress()));
+        assertFalse(nodes.get(0).send(body(10), nodes.get(3)));
+        assertEquals(1, nodes.get(0).router.getStoreAndForwardQueue().size());
+    }
+
+    @Test
+    public void expired_hold_to_pruned_destination_reports_its_address() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(1);
+        List<MeshSimulator.Node> nodes = line(simulator, 3, new MeshSimulator.LinkConfig());
+        simulator.runUntilIdle();
+        final MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node last = nodes.get(2);
+
+        simulator.disconnect(nodes.get(1), last);
+        simulator.runUntilIdle();
+        assertFalse(first.send(body(10), last));
+
+        simulator.runFor((StoreAndForwardQueue.DEFAULT_TTL_MILLIS + 1000) * 1000);
+        simulator.schedule(0, new Runnable() {
+            @Override
+            public void run() {
+                first.router.maintainLinkState();
+            }
+        });
+        simulator.runUntilIdle();
+
+        assertEquals(1, first.getFailed().size());
+        assertEquals(last.getMacAddress(), first.getFailedDescs().get(0).getMacAddress());
+        assertEquals(1, first.router.getForwardingStats().getDroppedCount(ForwardingStats.DropReason.HOLD_EXPIRED));
+    }
+
+    @Test
+    public void held_messages_are_delivered_when_partition_heals() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(5);
+        MeshSimulator.LinkConfig config = new MeshSimulator.LinkConfig().setBytesPerSecond(20 * 1000);
+        List<MeshSimulator.Node> nodes = line(simulator, 3, config);
+        simulator.runUntilIdle();
+        MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node relay = nodes.get(1);
+        MeshSimulator.Node last  = nodes.get(2);
+
+        // Held by the sender while partitioned
+        simulator.disconnect(first, relay);
+        simulator.runUntilIdle();
+        byte[] held = body(100);
+        assertFalse(first.send(held, last));
+        simulator.connect(first, relay, config);
+        simulator.runUntilIdle();
+        assertEquals(1, last.getReceived().size());
+        assertArrayEquals(held, last.getReceived().get(0).getBodyAtOffset(0, held.length));
+        assertEquals(0, first.router.getStoreAndForwardQueue().size());
+
+        // Held by the relay when the next hop leaves mid transfer
+        byte[] relayed = body(10 * 1000);
+        assertTrue(first.send(relayed, last));
+        simulator.runFor(700 * 1000);
+        simulator.disconnect(relay, last);
+        simulator.runUntilIdle();
+        assertEquals(1, last.getReceived().size());
+        assertEquals(1, relay.router.getStoreAndForwardQueue().size());
+
+        simulator.connect(relay, last, config);
+        simulator.runUntilIdle();
+        assertEquals(2, last.getReceived().size());
+        assertArrayEquals(relayed, last.getReceived().get(1).getBodyAtOffset(0, relayed.length));
+        assertEquals(0, relay.router.getStoreAndForwardQueue().size());
+    }
+
+    @Test
+    public void stream_body_cut_off_mid_transfer_fails_rather_than_reroutes() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(7);
+        MeshSimulator.LinkConfig config = new MeshSimulator.LinkConfig().setBytesPerSecond(20 * 1000);
+        List<MeshSimulator.Node> nodes = line(simulator, 3, config);
+        simulator.runUntilIdle();
+        MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node relay = nodes.get(1);
+        MeshSimulator.Node last  = nodes.get(2);
+
+        byte[] data = body(10 * 1000);
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, last.peer, first.getMacAddress(),
+                new ByteArrayInputStream(data), data.length);
+        assertTrue(first.router.send(message));
+        simulator.runFor(200 * 1000);
+        simulator.disconnect(first, relay);
+        simulator.runUntilIdle();
+        simulator.connect(first, relay, config);
+        simulator.runUntilIdle();
+
+        // Part of the stream was read, so the message cannot be sent again
+        assertEquals(0, last.getReceived().size());
+        assertEquals(1, first.getFailed().size());
+        assertSame(message, first.getFailed().get(0));
+        assertEquals(1, first.router.getForwardingStats().getDroppedCount(ForwardingStats.DropReason.BODY_NOT_REPLAYABLE));
+        assertEquals(0, first.router.getStoreAndForwardQueue().size());
+    }
+
+    @Test
+    public void report_convergence_cost_by_mesh_size() throws Exception {
+        for (int size : new int[] {5, 10, 20, 40}) {
+            MeshSimulator simulator = new MeshSimulator(size);
+            randomTree(simulator, size, new MeshSimulator.LinkConfig().setBytesPerSecond(32 * 1024));
+
+            long start = System.nanoTime();
+            simulator.runUntilIdle();
+            long wallMillis = (System.nanoTime() - start) / 1000000;
+
+            assertTrue(simulator.isConverged());
+            System.out.println(String.format("%3d nodes: converged in %6d ms virtual, %5d KB written in %6d writes (%d ms wall)",
+                    size, simulator.getNowMicros() / 1000, simulator.getBytesWritten() / 1024,
+                    simulator.getWrites(), wallMillis));
+        }
+    }
+
+    @Test
+    public void report_topology_bytes_per_join_and_leave() throws Exception {
+        for (int size : new int[] {20, 100}) {
+            MeshSimulator simulator = new MeshSimulator(size);
+            List<MeshSimulator.Node> nodes = randomTree(simulator, size, new MeshSimulator.LinkConfig());
+            simulator.runUntilIdle();
+            assertTrue(simulator.isConverged());
+
+            simulator.resetStatistics();
+            MeshSimulator.Node joining = simulator.addNode("joining");
+            MeshSimulator.Node attached = nodes.get(new Random(size).nextInt(size));
+            simulator.connect(attached, joining, new MeshSimulator.LinkConfig());
+            simulator.runUntilIdle();
+            assertTrue(simulator.isConverged());
+            long joinBytes = simulator.getBytesWritten();
+            long joinWrites = simulator.getWrites();
+
+            // Flooding the joined graph crosses each of the size links at least once
+            long fullGraphBytes = GraphMessage.createOutgoing(null, GraphMessage.ACTION_JOIN, GraphMessage.BROADCAST,
+                    joining.router.getGraph(), joining.getMacAddress()).getTotalLengthBytes();
+
+            simulator.resetStatistics();
+            simulator.disconnect(attached, joining);
+            simulator.runUntilIdle();
+            for (MeshSimulator.Node node : nodes)
+                assertFalse(node.router.getGraph().getForwardingTable().isReachable(joining.getMacAddress()));
+
+            System.out.println(String.format("%3d nodes: join wrote %6d bytes in %4d writes, leave %6d bytes in %4d writes, full graph flood %7d bytes",
+                    size, joinBytes, joinWrites, simulator.getBytesWritten(), simulator.getWrites(), fullGraphBytes * size));
+            assertTrue(joinBytes < fullGraphBytes * size);
+            assertTrue(simulator.getBytesWritten() < fullGraphBytes * size);
+        }
+    }
+
+    @Test
+    public void cyclic_mesh_floods_each_change_once() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(3);
+        MeshSimulator.LinkConfig config = new MeshSimulator.LinkConfig();
+        List<MeshSimulator.Node> nodes = line(simulator, 12, config);
+        simulator.connect(nodes.get(11), nodes.get(0), config);
+        for (int i = 0; i < 12; i += 4)
+            simulator.connect(nodes.get(i), nodes.get(i + 6 > 11 ? i - 6 : i + 6), config);
+        int links = 12 + 3;
+        simulator.runUntilIdle();
+        assertTrue(simulator.isConverged());
+
+        simulator.resetStatistics();
+        simulator.disconnect(nodes.get(3), nodes.get(4));
+        simulator.runUntilIdle();
+
+        // Each end's delta crosses each link at most once either way
+        System.out.println(String.format("cycle of %d links: one link lost cost %d writes", links, simulator.getWrites()));
+        assertTrue(simulator.getWrites() <= 2 * 2 * (links - 1));
+        assertTrue(nodes.get(3).knows(nodes));
+        assertEquals(nodes.get(2).getMacAddress(),
+                nodes.get(3).router.getNextReply(nodes.get(4).peer).getMacAddress());
+    }
+
+    @Test
+    public void multipoint_relays_cut_redundant_flooding_of_dense_cluster() throws Exception {
+        long floodWrites = clusterLinkLossWrites(false);
+        long relayWrites = clusterLinkLossWrites(true);
+
+        System.out.println(String.format("30 node cluster: one link lost cost %d writes flooding to all, %d via multipoint relays (%d%% fewer)",
+                floodWrites, relayWrites, 100 - relayWrites * 100 / floodWrites));
+        assertTrue(relayWrites * 2 < floodWrites);
+    }
+
+    @Test
+    public void chat_is_not_held_behind_bulk_transfer() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(3);
+        List<MeshSimulator.Node> nodes = line(simulator, 3, new MeshSimulator.LinkConfig().setBytesPerSecond(20 * 1000));
+        simulator.runUntilIdle();
+        assertTrue(simulator.isConverged());
+        MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node last  = nodes.get(2);
+
+        long bulkSentMicros = simulator.getNowMicros();
+        assertTrue(first.send(body(100 * 1000), last));
+        simulator.runFor(500 * 1000);
+        long chatSentMicros = simulator.getNowMicros();
+        assertTrue(first.send(body(40), last));
+        simulator.runUntilIdle();
+
+        assertEquals(2, last.getReceived().size());
+        assertEquals(40, last.getReceived().get(0).getBodyLengthBytes());
+        long chatMicros = last.getReceivedMicros().get(0) - chatSentMicros;
+        long bulkMicros = last.getReceivedMicros().get(1) - bulkSentMicros;
+
+        System.out.println(String.format("chat over 2 hops took %d ms during a %d ms bulk transfer",
+                chatMicros / 1000, bulkMicros / 1000));
+        assertTrue(chatMicros * 20 < bulkMicros);
+    }
+
+    @Test
+    public void relays_pass_bulk_message_on_as_it_arrives() throws Exception {
+        long oneHopMicros = bulkTransferMicros(1, true);
+        long cutThroughMicros = bulkTransferMicros(5, true);
+        long storeAndForwardMicros = bulkTransferMicros(5, false);
+
+        System.out.println(String.format("50 KB over 1 hop took %d ms, over 5 hops %d ms cut-through, %d ms store and forward",
+                oneHopMicros / 1000, cutThroughMicros / 1000, storeAndForwardMicros / 1000));
+        assertTrue(cutThroughMicros < oneHopMicros * 3 / 2);
+        assertTrue(storeAndForwardMicros > oneHopMicros * 4);
+    }
+
+    @Test
+    public void message_cut_off_at_relay_is_discarded_downstream() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(29);
+        MeshSimulator.LinkConfig config = new MeshSimulator.LinkConfig().setBytesPerSecond(20 * 1000);
+        List<MeshSimulator.Node> nodes = line(simulator, 3, config);
+        simulator.runUntilIdle();
+        MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node last  = nodes.get(2);
+
+        byte[] data = body(50 * 1000);
+        assertTrue(first.send(data, last));
+        simulator.runFor(1000 * 1000);
+        simulator.disconnect(first, nodes.get(1));
+        simulator.runUntilIdle();
+        assertEquals(0, last.getReceived().size());
+
+        // The source held the message, and sends it whole once reconnected
+        simulator.connect(first, nodes.get(1), config);
+        simulator.runUntilIdle();
+        assertTrue(first.send(body(40), last));
+        simulator.runUntilIdle();
+
+        assertEquals(2, last.getReceived().size());
+        assertArrayEquals(data, last.getReceived().get(0).getBodyAtOffset(0, data.length));
+        assertEquals(40, last.getReceived().get(1).getBodyLengthBytes());
+    }
+
+    @Test
+    public void bulk_transfers_spread_over_disjoint_routes_of_a_grid() throws Exception {
+        long singlePathMicros = gridTransferMicros(false);
+        long multipathMicros  = gridTransferMicros(true);
+
+        System.out.println(String.format("8 x 20 KB across a 4 x 4 grid took %d ms on one route, %d ms spread over disjoint routes",
+                singlePathMicros / 1000, multipathMicros / 1000));
+        assertTrue(multipathMicros * 3 < singlePathMicros * 2);
+    }
+
+    @Test
+    public void chunks_received_in_batches_deliver_intact() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(43);
+        simulator.setReceiveBatchMicros(7500);
+        List<MeshSimulator.Node> nodes = line(simulator, 4, new MeshSimulator.LinkConfig().setLatencyMillis(1).setBytesPerSecond(1000 * 1000));
+        simulator.runUntilIdle();
+        assertTrue(simulator.isConverged());
+        MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node last  = nodes.get(3);
+
+        simulator.resetStatistics();
+        byte[] bulk = body(40 * 1000);
+        byte[] chat = body(100);
+        assertTrue(first.send(bulk, last));
+        assertTrue(last.send(chat, first));
+        simulator.runUntilIdle();
+
+        System.out.println(String.format("%d writes received in %d batches", simulator.getWrites(), simulator.getReceiveBatches()));
+        assertTrue(simulator.getReceiveBatches() * 2 < simulator.getWrites());
+        assertEquals(1, last.getReceived().size());
+        assertArrayEquals(bulk, last.getReceived().get(0).getBodyAtOffset(0, bulk.length));
+        assertEquals(1, first.getReceived().size());
+        assertArrayEquals(chat, first.getReceived().get(0).getBodyAtOffset(0, chat.length));
+    }
+
+    @Test
+    public void ttl_reaches_the_furthest_reachable_destination() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(23);
+        int hops = LocalGraph.MAX_HOPS - 1;
+        List<MeshSimulator.Node> nodes = line(simulator, hops + 1, new MeshSimulator.LinkConfig());
+        simulator.runUntilIdle();
+        assertTrue(simulator.isConverged());
+        MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node last  = nodes.get(hops);
+
+        assertTrue(first.send(body(100), last));
+        simulator.runUntilIdle();
+
+        assertEquals(1, last.getReceived().size());
+        assertEquals(1, last.router.getForwardingStats().getDeliveredCount(hops));
+        for (MeshSimulator.Node relay : nodes.subList(1, hops)) {
+            assertEquals(1, relay.router.getForwardingStats().getForwardedCount());
+            assertEquals(0, relay.router.getForwardingStats().getDroppedCount(ForwardingStats.DropReason.TTL_EXPIRED));
+        }
+    }
+
+    @Test
+    public void delivery_acks_report_latency_and_ratio() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(11);
+        List<MeshSimulator.Node> nodes = line(simulator, 4, new MeshSimulator.LinkConfig().setBytesPerSecond(20 * 1000));
+        simulator.runUntilIdle();
+        MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node last  = nodes.get(3);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(first.sendWithAck(body(100 + i), last));
+            simulator.runFor(200 * 1000);
+        }
+        simulator.runUntilIdle();
+
+        DeliveryTracker tracker = first.router.getDeliveryTracker();
+        System.out.println(String.format("%d of 20 acknowledged over 3 hops, ratio %.2f, mean latency %d ms, srtt %d ms, timeout %d ms",
+                tracker.getDeliveredCount(), tracker.getDeliveryRatio(), tracker.getMeanLatencyMillis(),
+                tracker.getSmoothedRttMillis(last.getMacAddress()), tracker.getTimeoutMillis(last.getMacAddress(), 3)));
+        assertEquals(20, last.getReceived().size());
+        assertEquals(20, tracker.getDeliveredCount());
+        assertEquals(0, tracker.getRetransmitCount());
+        assertEquals(1.0, tracker.getDeliveryRatio(), 0);
+        assertTrue(tracker.getSmoothedRttMillis(last.getMacAddress()) > 0);
+        // Acks are not reported as data
+        assertEquals(0, first.getReceived().size());
+    }
+
+    @Test
+    public void message_lost_at_relay_is_sent_again() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(13);
+        List<MeshSimulator.Node> nodes = line(simulator, 4, new MeshSimulator.LinkConfig());
+        simulator.runUntilIdle();
+        MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node last  = nodes.get(3);
+
+        // The third hop's relay crashes after the first hop completed
+        nodes.get(2).setBlackhole(true);
+        byte[] data = body(500);
+        assertTrue(first.sendWithAck(data, last));
+        simulator.runFor(1000 * 1000);
+        assertEquals(0, last.getReceived().size());
+        nodes.get(2).setBlackhole(false);
+        simulator.runUntilIdle();
+
+        DeliveryTracker tracker = first.router.getDeliveryTracker();
+        assertEquals(1, last.getReceived().size());
+        assertArrayEquals(data, last.getReceived().get(0).getBodyAtOffset(0, data.length));
+        assertEquals(1, tracker.getDeliveredCount());
+        assertEquals(1, tracker.getRetransmitCount());
+    }
+
+    @Test
+    public void message_whose_ack_was_lost_is_received_once() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(17);
+        List<MeshSimulator.Node> nodes = line(simulator, 4, new MeshSimulator.LinkConfig());
+        simulator.runUntilIdle();
+        MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node last  = nodes.get(3);
+
+        assertTrue(first.sendWithAck(body(500), last));
+        while (last.getReceived().isEmpty())
+            simulator.runFor(1000);
+        first.setBlackhole(true);
+        simulator.runFor(1000 * 1000);
+        first.setBlackhole(false);
+        simulator.runUntilIdle();
+
+        DeliveryTracker tracker = first.router.getDeliveryTracker();
+        assertEquals(1, last.getReceived().size());
+        assertEquals(1, tracker.getDeliveredCount());
+        assertEquals(1, tracker.getRetransmitCount());
+    }
+
+    @Test
+    public void unacknowledged_message_fails_after_last_attempt() throws Exception {
+        MeshSimulator simulator = new MeshSimulator(19);
+        List<MeshSimulator.Node> nodes = line(simulator, 3, new MeshSimulator.LinkConfig());
+        simulator.runUntilIdle();
+        MeshSimulator.Node first = nodes.get(0);
+
+        nodes.get(2).setBlackhole(true);
+        assertTrue(first.sendWithAck(body(100), nodes.get(2)));
+        simulator.runUntilIdle();
+
+        DeliveryTracker tracker = first.router.getDeliveryTracker();
+        assertEquals(0, tracker.getDeliveredCount());
+        assertEquals(1, tracker.getFailedCount());
+        assertEquals(DeliveryTracker.DEFAULT_MAX_ATTEMPTS - 1, tracker.getRetransmitCount());
+        assertEquals(0, tracker.getDeliveryRatio(), 0);
+        assertFalse(first.router.hasPendingDeliveries());
+    }
+
+    /** @return time a 50 KB message took to cross a line of hops over 20 KB/s links */
+    private static long bulkTransferMicros(int hops, boolean cutThrough) {
+        MeshSimulator simulator = new MeshSimulator(31);
+        List<MeshSimulator.Node> nodes = line(simulator, hops + 1, new MeshSimulator.LinkConfig().setBytesPerSecond(20 * 1000));
+        for (MeshSimulator.Node node : nodes)
+            node.router.setCutThrough(cutThrough);
+        simulator.runUntilIdle();
+        assertTrue(simulator.isConverged());
+        MeshSimulator.Node last = nodes.get(hops);
+
+        long sentMicros = simulator.getNowMicros();
+        byte[] data = body(50 * 1000);
+        assertTrue(nodes.get(0).send(data, last));
+        simulator.runUntilIdle();
+
+        assertEquals(1, last.getReceived().size());
+        assertArrayEquals(data, last.getReceived().get(0).getBodyAtOffset(0, data.length));
+        return last.getReceivedMicros().get(0) - sentMicros;
+    }
+
+    /** @return time 8 messages of 20 KB took from one corner of a 4 x 4 grid to the opposite corner */
+    private static long gridTransferMicros(boolean multipath) {
+        MeshSimulator simulator = new MeshSimulator(37);
+        List<MeshSimulator.Node> nodes = grid(simulator, 4, new MeshSimulator.LinkConfig().setBytesPerSecond(20 * 1000));
+        for (MeshSimulator.Node node : nodes)
+            node.router.setMultipath(multipath);
+        simulator.runUntilIdle();
+        assertTrue(simulator.isConverged());
+        MeshSimulator.Node first = nodes.get(0);
+        MeshSimulator.Node last  = nodes.get(nodes.size() - 1);
+
+        long sentMicros = simulator.getNowMicros();
+        for (int i = 0; i < 8; i++)
+            assertTrue(first.send(body(20 * 1000 + i), last));
+        simulator.runUntilIdle();
+
+        assertEquals(8, last.getReceived().size());
+        long doneMicros = 0;
+        for (long receivedMicros : last.getReceivedMicros())
+            doneMicros = Math.max(doneMicros, receivedMicros);
+        return doneMicros - sentMicros;
+    }
+
+    /** @return writes spent telling a dense cluster that one of its links was lost */
+    private static long clusterLinkLossWrites(boolean multipointRelays) {
+        MeshSimulator simulator = new MeshSimulator(41);
+        List<MeshSimulator.Node> nodes = cluster(simulator, 30, 0.4, new MeshSimulator.LinkConfig());
+        for (MeshSimulator.Node node : nodes) {
+            node.router.setMultipointRelays(multipointRelays);
+            node.router.setLogGraph(false);
+        }
+        simulator.runUntilIdle();
+        assertTrue(simulator.isConverged());
+
+        MeshSimulator.Node a = nodes.get(0);
+        MeshSimulator.Node b = null;
+        for (MeshSimulator.Node node : nodes)
+            if (b == null && node != a && simulator.isConnected(a, node)) b = node;
+
+        simulator.resetStatistics();
+        simulator.disconnect(a, b);
+        simulator.runUntilIdle();
+
+        assertTrue(simulator.isConverged());
+        for (MeshSimulator.Node node : nodes) {
+            assertNull(node.router.getGraph().getEdgeMatrix().get(a.getMacAddress()).get(b.getMacAddress()));
+            assertNull(node.router.getGraph().getEdgeMatrix().get(b.getMacAddress()).get(a.getMacAddress()));
+        }
+        return simulator.getWrites();
+    }
+
+    /** Nodes placed at random in a unit square, each linked to those within range */
+    private static List<MeshSimulator.Node> cluster(MeshSimulator simulator, int size, double range,
+                                                    MeshSimulator.LinkConfig config) {
+        Random random = new Random(size);
+        List<MeshSimulator.Node> nodes = new ArrayList<>();
+        double[][] positions = new double[size][];
+        for (int i = 0; i < size; i++) {
+            nodes.add(simulator.addNode("node" + i));
+            positions[i] = new double[] {random.nextDouble(), random.nextDouble()};
+            for (int j = 0; j < i; j++) {
+                if (Math.hypot(positions[i][0] - positions[j][0], positions[i][1] - positions[j][1]) < range)
+                    simulator.connect(nodes.get(j), nodes.get(i), config);
+            }
+        }
+        return nodes;
+    }
+
+    /** Nodes of a size x size grid, each linked to its right and lower neighbour, row by row */
+    private static List<MeshSimulator.Node> grid(MeshSimulator simulator, int size, MeshSimulator.LinkConfig config) {
+        List<MeshSimulator.Node> nodes = new ArrayList<>();
+        for (int i = 0; i < size * size; i++) {
+            nodes.add(simulator.addNode("node" + i));
+            if (i % size > 0) simulator.connect(nodes.get(i - 1), nodes.get(i), config);
+            if (i >= size) simulator.connect(nodes.get(i - size), nodes.get(i), config);
+        }
+        return nodes;
+    }
+
+    private static List<MeshSimulator.Node> line(MeshSimulator simulator, int size, MeshSimulator.LinkConfig config) {
+        List<MeshSimulator.Node> nodes = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            nodes.add(simulator.addNode("node" + i));
+            if (i > 0) simulator.connect(nodes.get(i - 1), nodes.get(i), config);
+        }
+        return nodes;
+    }
+
+    /** Each node joins a random earlier node, as devices appear one by one */
+    private static List<MeshSimulator.Node> randomTree(MeshSimulator simulator, int size, MeshSimulator.LinkConfig config) {
+        Random random = new Random(size);
+        List<MeshSimulator.Node> nodes = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            nodes.add(simulator.addNode("node" + i));
+            if (i > 0) simulator.connect(nodes.get(random.nextInt(i)), nodes.get(i), config);
+        }
+        return nodes;
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        new Random(length).nextBytes(body);
+        return body;
+    }
+}
@@ -0,0 +1,119 @@
+package sword.blemesh.sdk.transport;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link SerialWriteQueue} keeps one write outstanding per identifier, in order, while
+ * writes complete on another thread than the one sending
+ */
+public class SerialWriteQueueTest {
+
+    private static final String IDENTIFIER = "5C:51:4F:0E:2A:91";
+
+    /** Records writes, which a completer thread finishes. Refuses to start writes while refuse is set */
+    private static class RecordingWriter implements SerialWriteQueue.Writer {
+        final LinkedBlockingQueue<byte[]> outstanding = new LinkedBlockingQueue<>();
+        final List<byte[]>                written     = Collections.synchronizedList(new ArrayList<byte[]>());
+        final List<byte[]>                failed      = Collections.synchronizedList(new ArrayList<byte[]>());
+        final AtomicInteger               inFlight    = new AtomicInteger();
+        /** Writes started while another was outstanding */
+        final AtomicInteger               overlapping = new AtomicInteger();
+        volatile boolean                  refuse;
+
+        @Override
+        public boolean isWritable(@NonNull String identifier) {
+            return true;
+        }
+
+        @Override
+        public boolean write(@NonNull byte[] frame, @NonNull String identifier) {
+            if (refuse) return false;
+
+            if (inFlight.incrementAndGet() > 1) overlapping.incrementAndGet();
+            written.add(frame);
+            outstanding.add(frame);
+            return true;
+        }
+
+        @Override
+        public void writeFailed(@NonNull byte[] frame, @NonNull String identifier) {
+            failed.add(frame);
+        }
+    }
+
+    @Test
+    public void writes_completed_on_another_thread_stay_serial_and_in_order() throws Exception {
+        final int frameCount = 20000;
+        final RecordingWriter writer = new RecordingWriter();
+        final SerialWriteQueue queue = new SerialWriteQueue(writer);
+
+        Thread completer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < frameCount; i++) {
+                        writer.outstanding.poll(10, TimeUnit.SECONDS);
+                        writer.inFlight.decrementAndGet();
+                        queue.writeCompleted(IDENTIFIER, false);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        completer.start();
+
+        List<byte[]> sent = new ArrayList<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            byte[] frame = new byte[] { (byte) i, (byte) (i >> 8) };
+            sent.add(frame);
+            assertTrue(queue.send(frame, IDENTIFIER));
+        }
+        completer.join(30 * 1000);
+
+        assertFalse(completer.isAlive());
+        assertEquals(0, writer.overlapping.get());
+        assertEquals(frameCount, writer.written.size());
+        for (int i = 0; i < frameCount; i++)
+            assertSame(sent.get(i), writer.written.get(i));
+        assertEquals(0, queue.getQueuedCount(IDENTIFIER));
+    }
+
+    @Test
+    public void failed_write_drops_the_frames_queued_behind_it() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        SerialWriteQueue queue = new SerialWriteQueue(writer);
+
+        byte[] first = new byte[1];
+        assertTrue(queue.send(first, IDENTIFIER));
+        queue.send(new byte[2], IDENTIFIER);
+        queue.send(new byte[3], IDENTIFIER);
+        assertEquals(2, queue.getQueuedCount(IDENTIFIER));
+
+        queue.writeCompleted(IDENTIFIER, true);
+        assertEquals(0, queue.getQueuedCount(IDENTIFIER));
+        assertEquals(1, writer.written.size());
+
+        // A write that does not start is reported, and the next is written at once
+        writer.refuse = true;
+        byte[] refused = new byte[4];
+        assertFalse(queue.send(refused, IDENTIFIER));
+        assertEquals(1, writer.failed.size());
+        assertSame(refused, writer.failed.get(0));
+
+        writer.refuse = false;
+        assertTrue(queue.send(new byte[5], IDENTIFIER));
+        assertEquals(2, writer.written.size());
+    }
+}